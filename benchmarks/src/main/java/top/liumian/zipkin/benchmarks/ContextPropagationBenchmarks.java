@@ -0,0 +1,129 @@
+package top.liumian.zipkin.benchmarks;
+
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import top.liumian.zipkin.util.TraceExecutors;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 异步任务捕获、恢复链路上下文的开销，使用在当前线程执行的Executor，只统计上下文传递本身
+ *
+ * @author liumian  2022/10/4 15:00
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ContextPropagationBenchmarks {
+
+    private static final Executor DIRECT = Runnable::run;
+
+    @Param
+    public TracingMode mode;
+
+    private Tracing tracing;
+
+    private Span parent;
+
+    private Tracer.SpanInScope parentScope;
+
+    private Executor executor;
+
+    private Executor contextExecutor;
+
+    private final Runnable task = () -> {
+    };
+
+    @Setup
+    public void setup() {
+        tracing = mode.create();
+        parent = tracing.tracer().newTrace();
+        executor = TraceExecutors.executor(tracing, DIRECT);
+        enterParent();
+        contextExecutor = TraceExecutors.contextExecutor(tracing, DIRECT);
+        exitParent();
+    }
+
+    /**
+     * 模拟任务在其他线程执行：提交时父链路在作用域内，执行时已不在
+     */
+    private void enterParent() {
+        parentScope = tracing.tracer().withSpanInScope(parent);
+    }
+
+    private void exitParent() {
+        parentScope.close();
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracing.close();
+    }
+
+    @Benchmark
+    public void raw_execute() {
+        DIRECT.execute(task);
+    }
+
+    /**
+     * wrap_run、executor_execute中进出父链路作用域本身的开销
+     */
+    @Benchmark
+    public void parentScope() {
+        enterParent();
+        exitParent();
+    }
+
+    @Benchmark
+    public void wrap_run() {
+        enterParent();
+        Runnable wrapped = TraceExecutors.wrap(tracing, task);
+        exitParent();
+        wrapped.run();
+    }
+
+    @Benchmark
+    public void executor_execute() {
+        enterParent();
+        executor.execute(task);
+        exitParent();
+    }
+
+    @Benchmark
+    public void contextExecutor_execute() {
+        contextExecutor.execute(task);
+    }
+
+    @Benchmark
+    public Object raw_supplyAsync() {
+        return CompletableFuture.supplyAsync(this::value, DIRECT).join();
+    }
+
+    @Benchmark
+    public Object contextExecutor_supplyAsync() {
+        return CompletableFuture.supplyAsync(this::value, contextExecutor).join();
+    }
+
+    private Object value() {
+        return this;
+    }
+
+}
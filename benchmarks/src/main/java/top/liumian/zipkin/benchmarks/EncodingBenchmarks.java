@@ -0,0 +1,102 @@
+package top.liumian.zipkin.benchmarks;
+
+import brave.Span;
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import top.liumian.zipkin.core.reporter.Compression;
+import top.liumian.zipkin.core.reporter.SpanEncoder;
+import zipkin2.reporter.BytesMessageEncoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 各编码和压缩方式下每个span的编码、打包、压缩开销，启动时会输出每个span在网络上占用的字节数
+ * <p>
+ * 每次调用编码一批 {@link #BATCH} 个span并压缩为一个消息，结果按span计；NONE 一行即为单纯编码的开销，
+ * 配合 -prof gc 可以看到每个span分配的字节数。
+ *
+ * @author liumian  2022/10/12 19:00
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class EncodingBenchmarks {
+
+    static final int BATCH = 100;
+
+    @Param
+    public SpanEncoder encoding;
+
+    @Param
+    public Compression compression;
+
+    private final MutableSpan[] spans = new MutableSpan[BATCH];
+
+    private final List<byte[]> encoded = new ArrayList<>(BATCH);
+
+    private BytesMessageEncoder messageEncoder;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < BATCH; i++) {
+            spans[i] = consumeSpan(i);
+        }
+        messageEncoder = BytesMessageEncoder.forEncoding(encoding.encoding());
+        System.out.printf("%n%s/%s wire bytes per span: %.1f%n", encoding, compression, (double) exportBatch().length / BATCH);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public byte[] exportBatch() {
+        encoded.clear();
+        for (MutableSpan span : spans) {
+            encoded.add(encoding.encode(span));
+        }
+        return compression.compress(messageEncoder.encode(encoded));
+    }
+
+    /**
+     * 与 MQ/CONSUME span 相近的内容，每个span的id和标签值不同，避免压缩结果过于理想
+     */
+    private static MutableSpan consumeSpan(int i) {
+        TraceContext context = TraceContext.newBuilder()
+                .traceIdHigh(0x463ac35c9f6413adL + i)
+                .traceId(0x48485a3953bb6124L * (i + 1))
+                .parentId(0x6b221d5bc9e6496cL + i)
+                .spanId(0x5b4185666d50f68bL * (i + 1))
+                .build();
+        MutableSpan span = new MutableSpan(context, null);
+        span.name("MQ/CONSUME");
+        span.kind(Span.Kind.CONSUMER);
+        span.startTimestamp(1665561600000000L + i * 1000L);
+        span.finishTimestamp(1665561600000000L + i * 1000L + 350 + i);
+        span.localServiceName("order-service");
+        span.localIp("10.0.12.34");
+        span.remoteServiceName("rocketmq");
+        span.remoteIpAndPort("10.0.1." + (i % 4 + 1), 10911);
+        span.tag("mq.topic", "order-event");
+        span.tag("mq.queue.id", String.valueOf(i % 8));
+        span.tag("mq.reconsume.times", "0");
+        span.tag("mq.store.latency", String.valueOf(3 + i % 5));
+        span.tag("mq.consume.lag", String.valueOf(i * 7));
+        return span;
+    }
+
+}
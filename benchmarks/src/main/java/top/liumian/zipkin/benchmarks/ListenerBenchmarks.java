@@ -0,0 +1,159 @@
+package top.liumian.zipkin.benchmarks;
+
+import brave.Span;
+import brave.Tracing;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerOrderly;
+import org.apache.rocketmq.client.hook.ConsumeMessageContext;
+import org.apache.rocketmq.client.impl.consumer.DefaultMQPushConsumerImpl;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import top.liumian.zipkin.core.mq.InstrumentationMode;
+import top.liumian.zipkin.core.mq.MqTracing;
+import top.liumian.zipkin.core.mq.consumer.TracingConsumerProxyFactory;
+import top.liumian.zipkin.core.mq.consumer.TracingMessageListenerConcurrently;
+import top.liumian.zipkin.core.mq.consumer.TracingMessageListenerOrderly;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 链路跟踪监听器、消费钩子与原始监听器的消费开销对比，消息中携带上游链路信息
+ *
+ * @author liumian  2022/9/24 11:00
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class ListenerBenchmarks {
+
+    private static final int BATCH_SIZE = 32;
+
+    @Param
+    public TracingMode mode;
+
+    private Tracing tracing;
+
+    private MessageListenerConcurrently rawConcurrently;
+
+    private MessageListenerConcurrently tracingConcurrently;
+
+    private MessageListenerOrderly rawOrderly;
+
+    private DefaultMQPushConsumerImpl hookedConsumerImpl;
+
+    private MessageListenerOrderly tracingOrderly;
+
+    private ConsumeConcurrentlyContext concurrentlyContext;
+
+    private ConsumeOrderlyContext orderlyContext;
+
+    private List<MessageExt> single;
+
+    private List<MessageExt> batch;
+
+    @Setup
+    public void setup() {
+        tracing = mode.create();
+        MqTracing mqTracing = MqTracing.create(tracing);
+        rawConcurrently = (msgs, context) -> ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
+        tracingConcurrently = new TracingMessageListenerConcurrently(mqTracing, "benchmark_consumer_group", rawConcurrently);
+        rawOrderly = (msgs, context) -> ConsumeOrderlyStatus.SUCCESS;
+        tracingOrderly = new TracingMessageListenerOrderly(mqTracing, "benchmark_consumer_group", rawOrderly);
+        MqTracing hookTracing = MqTracing.newBuilder(tracing).instrumentationMode(InstrumentationMode.HOOK).build();
+        hookedConsumerImpl = TracingConsumerProxyFactory.createTracingConsumer(hookTracing, new DefaultMQPushConsumer("benchmark_consumer_group"))
+                .getDefaultMQPushConsumerImpl();
+
+        MessageQueue messageQueue = new MessageQueue("TopicTest", "broker-a", 0);
+        concurrentlyContext = new ConsumeConcurrentlyContext(messageQueue);
+        orderlyContext = new ConsumeOrderlyContext(messageQueue);
+
+        single = Collections.singletonList(tracedMessage(mqTracing));
+        batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(tracedMessage(mqTracing));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracing.close();
+    }
+
+    private static MessageExt tracedMessage(MqTracing mqTracing) {
+        MessageExt messageExt = new MessageExt();
+        messageExt.setTopic("TopicTest");
+        Span upstream = mqTracing.tracing().tracer().nextSpan();
+        mqTracing.messageInjector().inject(upstream.context(), messageExt);
+        return messageExt;
+    }
+
+    @Benchmark
+    public ConsumeConcurrentlyStatus concurrently_raw() {
+        return rawConcurrently.consumeMessage(single, concurrentlyContext);
+    }
+
+    @Benchmark
+    public ConsumeConcurrentlyStatus concurrently_traced() {
+        return tracingConcurrently.consumeMessage(single, concurrentlyContext);
+    }
+
+    /**
+     * 按RocketMQ消费线程的方式在监听器前后调用钩子
+     */
+    @Benchmark
+    public ConsumeConcurrentlyStatus concurrently_hooked() {
+        ConsumeMessageContext context = new ConsumeMessageContext();
+        context.setConsumerGroup("benchmark_consumer_group");
+        context.setMsgList(single);
+        hookedConsumerImpl.executeHookBefore(context);
+        ConsumeConcurrentlyStatus status = rawConcurrently.consumeMessage(single, concurrentlyContext);
+        context.setStatus(status.toString());
+        context.setSuccess(status == ConsumeConcurrentlyStatus.CONSUME_SUCCESS);
+        hookedConsumerImpl.executeHookAfter(context);
+        return status;
+    }
+
+    @Benchmark
+    public ConsumeConcurrentlyStatus concurrentlyBatch_raw() {
+        return rawConcurrently.consumeMessage(batch, concurrentlyContext);
+    }
+
+    @Benchmark
+    public ConsumeConcurrentlyStatus concurrentlyBatch_traced() {
+        return tracingConcurrently.consumeMessage(batch, concurrentlyContext);
+    }
+
+    @Benchmark
+    public ConsumeOrderlyStatus orderly_raw() {
+        return rawOrderly.consumeMessage(single, orderlyContext);
+    }
+
+    @Benchmark
+    public ConsumeOrderlyStatus orderly_traced() {
+        return tracingOrderly.consumeMessage(single, orderlyContext);
+    }
+
+}
@@ -0,0 +1,127 @@
+package top.liumian.zipkin.benchmarks;
+
+import brave.context.slf4j.MDCScopeDecorator;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.CurrentTraceContext.ScopeDecorator;
+import brave.propagation.ThreadLocalCurrentTraceContext;
+import brave.propagation.TraceContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import top.liumian.zipkin.core.log.MdcScopeDecorator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 进入并退出一个scope时写入MDC的开销，对比不写MDC、brave自带的MDCScopeDecorator和starter的MdcScopeDecorator
+ *
+ * @author liumian  2022/10/9 14:00
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MdcBenchmarks {
+
+    public enum Decorator {
+        NONE {
+            @Override
+            ScopeDecorator create() {
+                return ScopeDecorator.NOOP;
+            }
+        },
+        /**
+         * brave-context-slf4j，写入traceId和spanId
+         */
+        BRAVE {
+            @Override
+            ScopeDecorator create() {
+                return MDCScopeDecorator.get();
+            }
+        },
+        /**
+         * 写入traceId和spanId
+         */
+        STARTER {
+            @Override
+            ScopeDecorator create() {
+                return MdcScopeDecorator.create();
+            }
+        },
+        /**
+         * 只写入traceId
+         */
+        STARTER_TRACE_ID {
+            @Override
+            ScopeDecorator create() {
+                return MdcScopeDecorator.newBuilder().clear().add(MdcScopeDecorator.Field.TRACE_ID).build();
+            }
+        };
+
+        abstract ScopeDecorator create();
+    }
+
+    public enum Scenario {
+        /**
+         * 没有外层链路时进入，例如消费线程开始处理一条消息
+         */
+        ROOT,
+        /**
+         * 同一链路中进入子span，例如TraceUtil在消费span中再开启一个span
+         */
+        CHILD,
+        /**
+         * 重复进入当前链路，例如对当前span调用withSpanInScope
+         */
+        SAME_CONTEXT
+    }
+
+    @Param
+    public Decorator decorator;
+
+    @Param
+    public Scenario scenario;
+
+    private final TraceContext parent = TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build();
+
+    private final TraceContext child = parent.toBuilder().parentId(2L).spanId(3L).build();
+
+    private CurrentTraceContext currentTraceContext;
+
+    private CurrentTraceContext.Scope parentScope;
+
+    private TraceContext context;
+
+    @Setup
+    public void setup() {
+        currentTraceContext = ThreadLocalCurrentTraceContext.newBuilder().addScopeDecorator(decorator.create()).build();
+        if (scenario != Scenario.ROOT) {
+            parentScope = currentTraceContext.newScope(parent);
+        }
+        context = scenario == Scenario.CHILD ? child : parent;
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (parentScope != null) {
+            parentScope.close();
+        }
+    }
+
+    @Benchmark
+    public void scope() {
+        currentTraceContext.newScope(context).close();
+    }
+
+}
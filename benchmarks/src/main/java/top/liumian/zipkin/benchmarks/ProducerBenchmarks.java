@@ -0,0 +1,142 @@
+package top.liumian.zipkin.benchmarks;
+
+import brave.Tracing;
+import org.apache.rocketmq.client.hook.SendMessageContext;
+import org.apache.rocketmq.client.impl.CommunicationMode;
+import org.apache.rocketmq.client.impl.producer.DefaultMQProducerImpl;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.client.producer.SendStatus;
+import org.apache.rocketmq.common.message.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import top.liumian.zipkin.core.mq.InstrumentationMode;
+import top.liumian.zipkin.core.mq.MqTracing;
+import top.liumian.zipkin.core.mq.producer.TracingProducerProxyFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 代理生产者、钩子模式与原始生产者的调用开销对比，网络层已屏蔽
+ *
+ * @author liumian  2022/9/24 10:40
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class ProducerBenchmarks {
+
+    private static final int BATCH_SIZE = 16;
+
+    @Param
+    public TracingMode mode;
+
+    private Tracing tracing;
+
+    private DefaultMQProducer rawProducer;
+
+    private DefaultMQProducer tracingProducer;
+
+    private DefaultMQProducer target;
+
+    private DefaultMQProducerImpl hookedProducerImpl;
+
+    private SendResult sendResult;
+
+    private Message message;
+
+    private List<Message> batch;
+
+    @Setup
+    public void setup() {
+        tracing = mode.create();
+        rawProducer = new StubMQProducer();
+        tracingProducer = TracingProducerProxyFactory.createTracingProducer(tracing, new StubMQProducer());
+        target = new StubMQProducer();
+        MqTracing hookTracing = MqTracing.newBuilder(tracing).instrumentationMode(InstrumentationMode.HOOK).build();
+        hookedProducerImpl = TracingProducerProxyFactory.createTracingProducer(hookTracing, new StubMQProducer()).getDefaultMQProducerImpl();
+        sendResult = new SendResult();
+        sendResult.setSendStatus(SendStatus.SEND_OK);
+        message = new Message("TopicTest", new byte[0]);
+        batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(new Message("TopicTest", new byte[0]));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracing.close();
+    }
+
+    @Benchmark
+    public SendResult send_raw() throws Exception {
+        return rawProducer.send(message);
+    }
+
+    @Benchmark
+    public SendResult send_proxied() throws Exception {
+        return tracingProducer.send(message);
+    }
+
+    /**
+     * 钩子模式下RocketMQ在每次向broker发送前后各调用一次钩子，这里按同样的方式调用，不包括发送本身
+     */
+    @Benchmark
+    public SendResult send_hooked() {
+        SendMessageContext context = new SendMessageContext();
+        context.setMessage(message);
+        context.setCommunicationMode(CommunicationMode.SYNC);
+        hookedProducerImpl.executeSendMessageHookBefore(context);
+        context.setSendResult(sendResult);
+        hookedProducerImpl.executeSendMessageHookAfter(context);
+        return context.getSendResult();
+    }
+
+    @Benchmark
+    public SendResult sendBatch_raw() throws Exception {
+        return rawProducer.send(batch);
+    }
+
+    @Benchmark
+    public SendResult sendBatch_proxied() throws Exception {
+        return tracingProducer.send(batch);
+    }
+
+    /**
+     * 不需要跟踪的方法，衡量代理的转发开销
+     */
+    @Benchmark
+    public String passThrough_raw() {
+        return rawProducer.getProducerGroup();
+    }
+
+    @Benchmark
+    public String passThrough_proxied() {
+        return tracingProducer.getProducerGroup();
+    }
+
+    /**
+     * 代理类已生成后再创建一个代理，包括代理类父类构造函数的开销
+     */
+    @Benchmark
+    public DefaultMQProducer createProxy() {
+        return TracingProducerProxyFactory.createTracingProducer(tracing, target);
+    }
+
+}
@@ -0,0 +1,98 @@
+package top.liumian.zipkin.benchmarks;
+
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import top.liumian.zipkin.core.mq.MqTracing;
+import top.liumian.zipkin.core.mq.PropagationFormat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 各链路信息格式的注入、序列化与提取开销，启动时会输出链路信息在RocketMQ消息属性中占用的字节数
+ *
+ * @author liumian  2022/10/1 11:30
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class PropagationBenchmarks {
+
+    @Param
+    public PropagationFormat format;
+
+    private Tracing tracing;
+
+    private MqTracing mqTracing;
+
+    private TraceContext context;
+
+    private MessageExt messageExt;
+
+    @Setup
+    public void setup() {
+        tracing = TracingMode.SAMPLED.create();
+        mqTracing = MqTracing.newBuilder(tracing).propagationFormat(format).build();
+        // 带父节点的上下文，与链路中间的发送端一致
+        context = tracing.tracer().newChild(tracing.tracer().nextSpan().context()).context();
+
+        Message message = newMessage();
+        int before = serializedBytes(message);
+        mqTracing.messageInjector().inject(context, message);
+        int propertyBytes = serializedBytes(message) - before;
+        System.out.println(format + " property bytes per message: " + propertyBytes);
+
+        messageExt = new MessageExt();
+        messageExt.setTopic(message.getTopic());
+        MessageAccessor.setProperties(messageExt, message.getProperties());
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracing.close();
+    }
+
+    /**
+     * 注入链路信息并按RocketMQ发送时的方式序列化消息属性
+     */
+    @Benchmark
+    public String injectAndSerialize() {
+        Message message = newMessage();
+        mqTracing.messageInjector().inject(context, message);
+        return MessageDecoder.messageProperties2String(message.getProperties());
+    }
+
+    @Benchmark
+    public TraceContextOrSamplingFlags extract() {
+        return mqTracing.messageExtractor().extract(messageExt);
+    }
+
+    private static Message newMessage() {
+        return new Message("TopicTest", "TagA", "KEY", new byte[0]);
+    }
+
+    private static int serializedBytes(Message message) {
+        return MessageDecoder.messageProperties2String(message.getProperties()).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+}
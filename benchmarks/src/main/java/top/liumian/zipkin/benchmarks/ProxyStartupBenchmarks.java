@@ -0,0 +1,101 @@
+package top.liumian.zipkin.benchmarks;
+
+import brave.Tracing;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.common.message.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import top.liumian.zipkin.core.mq.consumer.TracingConsumerProxyFactory;
+import top.liumian.zipkin.core.mq.producer.TracingProducerProxyFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 冷启动时创建代理生产者/消费者并完成第一次发送的耗时，每次测量都在新的JVM中进行
+ * <p>
+ * 对比预生成的代理类时，先生成代理类再把输出目录加到classpath中：
+ * <pre>{@code
+ * java -cp target/benchmarks.jar top.liumian.zipkin.core.mq.ProxyClassGenerator target/proxies \
+ *     top.liumian.zipkin.benchmarks.StubMQProducer org.apache.rocketmq.client.consumer.DefaultMQPushConsumer
+ * java -cp target/benchmarks.jar:target/proxies org.openjdk.jmh.Main ProxyStartupBenchmarks
+ * }</pre>
+ *
+ * @author liumian  2022/10/7 10:00
+ */
+@Fork(10)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ProxyStartupBenchmarks {
+
+    /**
+     * 是否使用classpath中预生成的代理类
+     */
+    @Param({"false", "true"})
+    public boolean pregenerated;
+
+    private Tracing tracing;
+
+    private Message message;
+
+    private long loadedClasses;
+
+    private long metaspaceUsed;
+
+    @Setup
+    public void setup() throws Exception {
+        System.setProperty("zipkin.rocketmq.proxy.pregenerated", String.valueOf(pregenerated));
+        tracing = TracingMode.SAMPLED.create();
+        message = new Message("TopicTest", new byte[0]);
+        // 提前加载RocketMQ与链路跟踪本身的类，只统计代理带来的开销
+        new StubMQProducer().send(message);
+        new DefaultMQPushConsumer("benchmark_consumer_group");
+        tracing.tracer().nextSpan().start().finish();
+        loadedClasses = ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount();
+        metaspaceUsed = metaspaceUsed();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf("%n%d classes loaded, %d KB metaspace used by proxies%n",
+                ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount() - loadedClasses,
+                (metaspaceUsed() - metaspaceUsed) / 1024);
+        tracing.close();
+    }
+
+    private static long metaspaceUsed() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if ("Metaspace".equals(pool.getName())) {
+                return pool.getUsage().getUsed();
+            }
+        }
+        return 0L;
+    }
+
+    @Benchmark
+    public SendResult firstProxies() throws Exception {
+        DefaultMQProducer producer = TracingProducerProxyFactory.createTracingProducer(tracing, new StubMQProducer());
+        DefaultMQPushConsumer consumer = TracingConsumerProxyFactory.createTracingConsumer(tracing, new DefaultMQPushConsumer("benchmark_consumer_group"));
+        consumer.registerMessageListener((MessageListenerConcurrently) (msgs, context) -> ConsumeConcurrentlyStatus.CONSUME_SUCCESS);
+        return producer.send(message);
+    }
+
+}
@@ -0,0 +1,91 @@
+package top.liumian.zipkin.benchmarks;
+
+import brave.Span;
+import brave.Tracing;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import top.liumian.zipkin.core.metrics.ResourceUsageSpanHandler;
+import top.liumian.zipkin.util.TraceUtil;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 开启资源消耗统计后TraceUtil.newTrace的开销，与OFF的差值即为每个span的额外开销
+ *
+ * @author liumian  2022/10/13 14:00
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class ResourceUsageBenchmarks {
+
+    private static final String TRACE_NAME = "benchmark";
+
+    public enum Capture {
+        /**
+         * 不注册ResourceUsageSpanHandler
+         */
+        OFF(-1),
+        /**
+         * 生产环境建议的比例
+         */
+        ONE_PERCENT(0.01f),
+        /**
+         * 每个span都读取计数器
+         */
+        ALL(1);
+
+        final float probability;
+
+        Capture(float probability) {
+            this.probability = probability;
+        }
+    }
+
+    @Param
+    public Capture capture;
+
+    private Tracing tracing;
+
+    @Setup
+    public void setup() {
+        Tracing.Builder builder = Tracing.newBuilder().localServiceName("benchmark").sampler(Sampler.ALWAYS_SAMPLE);
+        if (capture != Capture.OFF) {
+            builder.addSpanHandler(ResourceUsageSpanHandler.newBuilder().probability(capture.probability).build());
+        }
+        tracing = builder.addSpanHandler(new SpanHandler() {
+            @Override
+            public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+                return true;
+            }
+        }).build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracing.close();
+    }
+
+    @Benchmark
+    public Span newTrace() {
+        return TraceUtil.newTrace(tracing, TRACE_NAME, span -> span);
+    }
+
+}
@@ -0,0 +1,35 @@
+package top.liumian.zipkin.benchmarks;
+
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.client.producer.SendStatus;
+import org.apache.rocketmq.common.message.Message;
+
+import java.util.Collection;
+
+/**
+ * 屏蔽网络层的生产者，发送方法直接返回固定的结果
+ *
+ * @author liumian  2022/9/24 10:10
+ */
+public class StubMQProducer extends DefaultMQProducer {
+
+    private final SendResult sendResult;
+
+    public StubMQProducer() {
+        super("benchmark_producer_group");
+        sendResult = new SendResult();
+        sendResult.setSendStatus(SendStatus.SEND_OK);
+    }
+
+    @Override
+    public SendResult send(Message msg) {
+        return sendResult;
+    }
+
+    @Override
+    public SendResult send(Collection<Message> msgs) {
+        return sendResult;
+    }
+
+}
@@ -0,0 +1,131 @@
+package top.liumian.zipkin.benchmarks;
+
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import top.liumian.zipkin.core.mq.MqTracing;
+import top.liumian.zipkin.util.TraceTemplate;
+import top.liumian.zipkin.util.TraceUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TraceUtil及TraceTemplate各个入口的开销
+ *
+ * @author liumian  2022/9/24 10:20
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class TraceUtilBenchmarks {
+
+    private static final String TRACE_NAME = "benchmark";
+
+    @Param
+    public TracingMode mode;
+
+    private Tracing tracing;
+
+    private MqTracing mqTracing;
+
+    private Span parent;
+
+    private Map<String, String> properties;
+
+    private Message message;
+
+    private MessageExt messageExt;
+
+    private TraceTemplate template;
+
+    @Setup
+    public void setup() {
+        tracing = mode.create();
+        mqTracing = MqTracing.create(tracing);
+        parent = tracing.tracer().nextSpan();
+        properties = new HashMap<>();
+        tracing.propagation().injector(Map<String, String>::put).inject(parent.context(), properties);
+        message = new Message("TopicTest", new byte[0]);
+        messageExt = new MessageExt();
+        messageExt.setTopic("TopicTest");
+        mqTracing.messageInjector().inject(parent.context(), messageExt);
+        template = TraceTemplate.newBuilder(tracing, TRACE_NAME).tagThread(false).build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracing.close();
+    }
+
+    @Benchmark
+    public Span newTrace() {
+        return TraceUtil.newTrace(tracing, TRACE_NAME, span -> span);
+    }
+
+    /**
+     * 包含打开父span作用域的开销
+     */
+    @Benchmark
+    public Span newChildTrace() {
+        try (Tracer.SpanInScope ws = tracing.tracer().withSpanInScope(parent)) {
+            return TraceUtil.newChildTrace(tracing, TRACE_NAME, span -> span);
+        }
+    }
+
+    @Benchmark
+    public Span template_newTrace() throws Throwable {
+        return template.newTrace(span -> span);
+    }
+
+    @Benchmark
+    public Span template_newChildTrace() throws Throwable {
+        try (Tracer.SpanInScope ws = tracing.tracer().withSpanInScope(parent)) {
+            return template.newChildTrace(span -> span);
+        }
+    }
+
+    @Benchmark
+    public Span template_extract() throws Throwable {
+        return template.extract(mqTracing.messageExtractor(), messageExt, span -> span);
+    }
+
+    @Benchmark
+    public Map<String, String> injectTraceInfo_map() throws Throwable {
+        return TraceUtil.injectTraceInfo(tracing, TRACE_NAME, traceInfo -> traceInfo);
+    }
+
+    @Benchmark
+    public Span injectTraceInfo_message() throws Throwable {
+        return TraceUtil.injectTraceInfo(tracing, TRACE_NAME, mqTracing.messageInjector(), message, span -> span);
+    }
+
+    @Benchmark
+    public Span extractTraceInfo_map() {
+        return TraceUtil.extractTraceInfo(tracing, TRACE_NAME, properties, span -> span);
+    }
+
+    @Benchmark
+    public Span extractTraceInfo_message() {
+        return TraceUtil.extractTraceInfo(tracing, TRACE_NAME, mqTracing.messageExtractor(), messageExt, span -> span);
+    }
+
+}
@@ -0,0 +1,74 @@
+package top.liumian.zipkin.benchmarks;
+
+import brave.Tracing;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+
+/**
+ * 基准测试中的链路跟踪状态
+ *
+ * @author liumian  2022/9/24 10:00
+ */
+public enum TracingMode {
+
+    /**
+     * 全部采样，span被完整记录后丢弃，不包含上报开销
+     */
+    SAMPLED {
+        @Override
+        Tracing.Builder configure(Tracing.Builder builder) {
+            return builder.sampler(Sampler.ALWAYS_SAMPLE);
+        }
+    },
+
+    /**
+     * 全部不采样，只保留链路信息传递
+     */
+    UNSAMPLED {
+        @Override
+        Tracing.Builder configure(Tracing.Builder builder) {
+            return builder.sampler(Sampler.NEVER_SAMPLE);
+        }
+    },
+
+    /**
+     * 全部采样，但通过Tracing.setNoop关闭链路跟踪
+     */
+    NOOP {
+        @Override
+        Tracing.Builder configure(Tracing.Builder builder) {
+            return builder.sampler(Sampler.ALWAYS_SAMPLE);
+        }
+
+        @Override
+        public Tracing create() {
+            Tracing tracing = super.create();
+            tracing.setNoop(true);
+            return tracing;
+        }
+    };
+
+    /**
+     * 丢弃所有span，避免默认的LogSpanHandler把日志开销算进来
+     */
+    private static final SpanHandler DISCARD = new SpanHandler() {
+        @Override
+        public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "DiscardSpanHandler";
+        }
+    };
+
+    abstract Tracing.Builder configure(Tracing.Builder builder);
+
+    public Tracing create() {
+        return configure(Tracing.newBuilder().localServiceName("benchmark").addSpanHandler(DISCARD)).build();
+    }
+
+}
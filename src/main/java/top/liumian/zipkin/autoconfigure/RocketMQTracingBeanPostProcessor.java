@@ -0,0 +1,40 @@
+package top.liumian.zipkin.autoconfigure;
+
+import net.sf.cglib.proxy.Factory;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import top.liumian.zipkin.core.mq.MqTracing;
+import top.liumian.zipkin.core.mq.consumer.TracingConsumerProxyFactory;
+import top.liumian.zipkin.core.mq.producer.TracingProducerProxyFactory;
+
+/**
+ * 为容器中的DefaultMQProducer/DefaultMQPushConsumer自动创建链路跟踪代理，钩子模式下注册钩子并返回原对象
+ *
+ * @author liumian  2022/9/10 15:05
+ */
+public class RocketMQTracingBeanPostProcessor implements BeanPostProcessor {
+
+    private final ObjectProvider<MqTracing> mqTracing;
+
+    public RocketMQTracingBeanPostProcessor(ObjectProvider<MqTracing> mqTracing) {
+        this.mqTracing = mqTracing;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (bean instanceof Factory) {
+            // 已经是代理对象
+            return bean;
+        }
+        if (bean instanceof DefaultMQProducer) {
+            return TracingProducerProxyFactory.createTracingProducer(mqTracing.getObject(), (DefaultMQProducer) bean);
+        } else if (bean instanceof DefaultMQPushConsumer) {
+            return TracingConsumerProxyFactory.createTracingConsumer(mqTracing.getObject(), (DefaultMQPushConsumer) bean);
+        } else {
+            return bean;
+        }
+    }
+
+}
@@ -0,0 +1,280 @@
+package top.liumian.zipkin.autoconfigure;
+
+import brave.Tracing;
+import brave.handler.SpanHandler;
+import brave.propagation.B3Propagation;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.ThreadLocalCurrentTraceContext;
+import brave.sampler.Sampler;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.util.StringUtils;
+import top.liumian.zipkin.core.log.MdcScopeDecorator;
+import top.liumian.zipkin.core.metrics.ResourceUsageSpanHandler;
+import top.liumian.zipkin.core.mq.MqMetrics;
+import top.liumian.zipkin.core.mq.MqPolicies;
+import top.liumian.zipkin.core.mq.MqPolicyWatcher;
+import top.liumian.zipkin.core.mq.MqSampler;
+import top.liumian.zipkin.core.mq.MqTracing;
+import top.liumian.zipkin.core.reporter.AsyncSpanHandler;
+import top.liumian.zipkin.core.reporter.BackPressureSampler;
+import top.liumian.zipkin.core.reporter.Compression;
+import top.liumian.zipkin.core.reporter.ExportBacklog;
+import top.liumian.zipkin.core.reporter.FileSpanSender;
+import top.liumian.zipkin.core.reporter.HttpSpanSender;
+import top.liumian.zipkin.core.reporter.SpoolSpanHandler;
+import top.liumian.zipkin.core.reporter.TailSamplingSpanHandler;
+import zipkin2.reporter.Sender;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * zipkin链路跟踪自动配置
+ *
+ * @author liumian  2022/9/10 14:50
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnClass(Tracing.class)
+@ConditionalOnProperty(prefix = "zipkin", name = "enabled", matchIfMissing = true)
+@EnableConfigurationProperties(ZipkinProperties.class)
+public class ZipkinAutoConfiguration {
+
+    @Bean
+    @ConditionalOnMissingBean
+    public Sender zipkinSender(ZipkinProperties properties, @Value("${spring.application.name:default}") String applicationName) {
+        ZipkinProperties.Sender sender = properties.getSender();
+        Compression compression = sender.getCompression() != null ? sender.getCompression()
+                : sender.isCompressionEnabled() ? Compression.GZIP : Compression.NONE;
+        if (sender.getTransport() == ZipkinProperties.Transport.FILE) {
+            String file = StringUtils.hasText(sender.getFile()) ? sender.getFile() : defaultFile(serviceName(properties, applicationName), ".bin");
+            return FileSpanSender.newBuilder(Paths.get(file))
+                    .encoding(sender.getEncoding())
+                    .compression(compression)
+                    .maxFileBytes(sender.getFileMaxBytes())
+                    .build();
+        }
+        String baseUrl = properties.getBaseUrl();
+        String endpoint = (baseUrl.endsWith("/") ? baseUrl : baseUrl + "/") + HttpSpanSender.spansPath(sender.getEncoding());
+        return HttpSpanSender.newBuilder(endpoint)
+                .encoding(sender.getEncoding())
+                .compression(compression)
+                .connectTimeout((int) sender.getConnectTimeout().toMillis())
+                .readTimeout((int) sender.getReadTimeout().toMillis())
+                .build();
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "zipkin.reporter.spool", name = "enabled", havingValue = "false", matchIfMissing = true)
+    public AsyncSpanHandler asyncSpanHandler(Sender sender, ZipkinProperties properties) {
+        ZipkinProperties.Reporter reporter = properties.getReporter();
+        AsyncSpanHandler.Builder builder = AsyncSpanHandler.newBuilder(sender)
+                .queuedMaxSpans(reporter.getQueuedMaxSpans())
+                .messageTimeout(reporter.getMessageTimeout().toNanos(), TimeUnit.NANOSECONDS)
+                .closeTimeout(reporter.getCloseTimeout().toNanos(), TimeUnit.NANOSECONDS)
+                .dropPolicy(reporter.getDropPolicy());
+        if (reporter.getQueuedMaxBytes() != null) {
+            builder.queuedMaxBytes(reporter.getQueuedMaxBytes());
+        }
+        if (reporter.getMessageMaxBytes() != null) {
+            builder.messageMaxBytes(reporter.getMessageMaxBytes());
+        }
+        return builder.build();
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "zipkin.reporter.spool", name = "enabled")
+    public SpoolSpanHandler spoolSpanHandler(Sender sender, ZipkinProperties properties,
+                                             @Value("${spring.application.name:default}") String applicationName) {
+        ZipkinProperties.Reporter reporter = properties.getReporter();
+        ZipkinProperties.Spool spool = reporter.getSpool();
+        String file = StringUtils.hasText(spool.getFile()) ? spool.getFile() : defaultFile(serviceName(properties, applicationName), ".spool");
+        SpoolSpanHandler.Builder builder = SpoolSpanHandler.newBuilder(sender, Paths.get(file))
+                .maxBytes(spool.getMaxBytes())
+                .drainInterval(spool.getDrainInterval().toNanos(), TimeUnit.NANOSECONDS)
+                .maxBackoff(spool.getMaxBackoff().toNanos(), TimeUnit.NANOSECONDS)
+                .closeTimeout(reporter.getCloseTimeout().toNanos(), TimeUnit.NANOSECONDS);
+        if (reporter.getMessageMaxBytes() != null) {
+            builder.messageMaxBytes(reporter.getMessageMaxBytes());
+        }
+        return builder.build();
+    }
+
+    /**
+     * 按比例采样，上报器可以提供积压情况时包装为 {@link BackPressureSampler}
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    public Sampler zipkinSampler(ZipkinProperties properties, ObjectProvider<ExportBacklog> backlog) {
+        ZipkinProperties.Sampler sampler = properties.getSampler();
+        Sampler probability = Sampler.create(sampler.getProbability());
+        ZipkinProperties.BackPressure backPressure = sampler.getBackPressure();
+        ExportBacklog exportBacklog = backPressure.isEnabled() ? backlog.getIfUnique() : null;
+        if (exportBacklog == null) {
+            return probability;
+        }
+        return BackPressureSampler.newBuilder(probability, exportBacklog)
+                .highWatermark(backPressure.getHighWatermark())
+                .lowWatermark(backPressure.getLowWatermark())
+                .checkInterval(backPressure.getCheckInterval().toNanos(), TimeUnit.NANOSECONDS)
+                .build();
+    }
+
+    /**
+     * 排在上报器之前，标签才会随span一起上报
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "zipkin.resource-usage", name = "enabled")
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public ResourceUsageSpanHandler resourceUsageSpanHandler(ZipkinProperties properties) {
+        ZipkinProperties.ResourceUsage resourceUsage = properties.getResourceUsage();
+        ResourceUsageSpanHandler.Builder builder = ResourceUsageSpanHandler.newBuilder()
+                .probability(resourceUsage.getProbability());
+        resourceUsage.getSpanNames().forEach(builder::spanName);
+        return builder.build();
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean
+    public Tracing tracing(ZipkinProperties properties,
+                           @Value("${spring.application.name:default}") String applicationName,
+                           Sampler sampler,
+                           ObjectProvider<SpanHandler> spanHandlers,
+                           ObjectProvider<CurrentTraceContext.ScopeDecorator> scopeDecorators) {
+        String serviceName = serviceName(properties, applicationName);
+        ThreadLocalCurrentTraceContext.Builder currentTraceContext = ThreadLocalCurrentTraceContext.newBuilder();
+        scopeDecorators.orderedStream().forEach(currentTraceContext::addScopeDecorator);
+        Tracing.Builder builder = Tracing.newBuilder()
+                .localServiceName(serviceName)
+                .sampler(sampler)
+                .currentTraceContext(currentTraceContext.build());
+        ZipkinProperties.TailSampling tailSampling = properties.getReporter().getTailSampling();
+        if (tailSampling.isEnabled()) {
+            // 资源消耗需要在span结束的线程上读取，不能等尾部采样决策后再处理
+            spanHandlers.orderedStream().filter(ResourceUsageSpanHandler.class::isInstance).forEach(builder::addSpanHandler);
+            SpanHandler[] delegates = spanHandlers.orderedStream()
+                    .filter(handler -> !(handler instanceof ResourceUsageSpanHandler))
+                    .toArray(SpanHandler[]::new);
+            if (delegates.length > 0) {
+                TailSamplingSpanHandler handler = tailSamplingSpanHandler(tailSampling, delegates);
+                builder.addSpanHandler(handler);
+                if (handler.recordUnsampled()) {
+                    builder.alwaysSampleLocal();
+                    // 否则上报过载时未采样的链路仍在本地记录，慢链路照样导出，停止采样不起作用
+                    if (sampler instanceof BackPressureSampler) {
+                        builder.propagationFactory(((BackPressureSampler) sampler).skipLocalRecordingWhenOpen(B3Propagation.FACTORY));
+                    }
+                }
+            }
+        } else {
+            spanHandlers.orderedStream().forEach(builder::addSpanHandler);
+        }
+        return builder.build();
+    }
+
+    private static String serviceName(ZipkinProperties properties, String applicationName) {
+        return StringUtils.hasText(properties.getServiceName()) ? properties.getServiceName() : applicationName;
+    }
+
+    /**
+     * 临时目录由同一主机上的所有服务共用，文件名带上服务名称，避免不同服务写入同一文件
+     */
+    private static String defaultFile(String serviceName, String suffix) {
+        return Paths.get(System.getProperty("java.io.tmpdir"), "zipkin-" + serviceName.replaceAll("[^A-Za-z0-9._-]", "_") + suffix).toString();
+    }
+
+    /**
+     * 尾部采样放在所有span处理器之前，只有命中的链路才交给它们
+     */
+    private static TailSamplingSpanHandler tailSamplingSpanHandler(ZipkinProperties.TailSampling tailSampling, SpanHandler[] delegates) {
+        TailSamplingSpanHandler.Builder builder = TailSamplingSpanHandler.newBuilder(delegates)
+                .maxBufferedBytes(tailSampling.getMaxBufferedBytes())
+                .maxTraces(tailSampling.getMaxTraces())
+                .decisionWait(tailSampling.getDecisionWait().toNanos(), TimeUnit.NANOSECONDS)
+                .recordUnsampled(tailSampling.isRecordUnsampled());
+        if (tailSampling.getDefaultLatencyThreshold() != null) {
+            builder.defaultLatencyThreshold(tailSampling.getDefaultLatencyThreshold().toNanos(), TimeUnit.NANOSECONDS);
+        }
+        tailSampling.getLatencyThresholds().forEach((name, threshold) -> builder.latencyThreshold(name, threshold.toNanos(), TimeUnit.NANOSECONDS));
+        return builder.build();
+    }
+
+    @Configuration(proxyBeanMethods = false)
+    @ConditionalOnClass(name = "org.slf4j.MDC")
+    @ConditionalOnProperty(prefix = "zipkin.mdc", name = "enabled", matchIfMissing = true)
+    static class MdcConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean
+        public MdcScopeDecorator mdcScopeDecorator(ZipkinProperties properties) {
+            ZipkinProperties.Mdc mdc = properties.getMdc();
+            MdcScopeDecorator.Builder builder = MdcScopeDecorator.newBuilder().clear().sampledOnly(mdc.isSampledOnly());
+            for (MdcScopeDecorator.Field field : mdc.getFields()) {
+                builder.add(field, mdc.getNames().getOrDefault(field, field.defaultName()));
+            }
+            return builder.build();
+        }
+    }
+
+    @Configuration(proxyBeanMethods = false)
+    @ConditionalOnClass(DefaultMQProducer.class)
+    static class RocketMQTracingConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean
+        @ConditionalOnProperty(prefix = "zipkin.rocketmq", name = "metrics-enabled", matchIfMissing = true)
+        public MqMetrics mqMetrics() {
+            return MqMetrics.create();
+        }
+
+        @Bean
+        @ConditionalOnMissingBean
+        public MqPolicies mqPolicies() {
+            return MqPolicies.create();
+        }
+
+        @Bean(destroyMethod = "close")
+        @ConditionalOnProperty(prefix = "zipkin.rocketmq", name = "policy-file")
+        public MqPolicyWatcher mqPolicyWatcher(ZipkinProperties properties, MqPolicies policies) throws IOException {
+            return MqPolicyWatcher.start(Paths.get(properties.getRocketmq().getPolicyFile()), policies);
+        }
+
+        @Bean
+        @ConditionalOnMissingBean
+        public MqTracing mqTracing(Tracing tracing, ZipkinProperties properties, MqPolicies policies, ObjectProvider<MqMetrics> metrics) {
+            ZipkinProperties.RocketMQ rocketmq = properties.getRocketmq();
+            MqSampler.Builder sampler = MqSampler.newBuilder();
+            rocketmq.getTopicSamplers().forEach((topic, rule) -> sampler.putTopic(topic, rule.toSampler()));
+            rocketmq.getGroupSamplers().forEach((group, rule) -> sampler.putGroup(group, rule.toSampler()));
+            MqTracing.Builder builder = MqTracing.newBuilder(tracing)
+                    .batchTracingMode(rocketmq.getBatchTracingMode())
+                    .propagationFormat(rocketmq.getPropagationFormat())
+                    .sampler(sampler.build())
+                    .policies(policies)
+                    .queueSpan(rocketmq.isQueueSpan())
+                    .instrumentationMode(rocketmq.getInstrumentationMode());
+            metrics.ifAvailable(builder::metrics);
+            return builder.build();
+        }
+
+        @Bean
+        @ConditionalOnProperty(prefix = "zipkin.rocketmq", name = "enabled", matchIfMissing = true)
+        public static RocketMQTracingBeanPostProcessor rocketMQTracingBeanPostProcessor(ObjectProvider<MqTracing> mqTracing) {
+            return new RocketMQTracingBeanPostProcessor(mqTracing);
+        }
+    }
+
+}
@@ -0,0 +1,809 @@
+package top.liumian.zipkin.autoconfigure;
+
+import brave.sampler.RateLimitingSampler;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import top.liumian.zipkin.core.log.MdcScopeDecorator;
+import top.liumian.zipkin.core.mq.InstrumentationMode;
+import top.liumian.zipkin.core.mq.PropagationFormat;
+import top.liumian.zipkin.core.mq.consumer.BatchTracingMode;
+import top.liumian.zipkin.core.reporter.Compression;
+import top.liumian.zipkin.core.reporter.DropPolicy;
+import zipkin2.codec.Encoding;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * zipkin链路跟踪配置
+ *
+ * @author liumian  2022/9/10 14:20
+ */
+@ConfigurationProperties(prefix = "zipkin")
+public class ZipkinProperties {
+
+    /**
+     * 是否开启链路跟踪
+     */
+    private boolean enabled = true;
+
+    /**
+     * 服务名称，默认取spring.application.name
+     */
+    private String serviceName;
+
+    /**
+     * zipkin服务地址
+     */
+    private String baseUrl = "http://localhost:9411/";
+
+    private final Sender sender = new Sender();
+
+    private final Reporter reporter = new Reporter();
+
+    private final Sampler sampler = new Sampler();
+
+    private final Mdc mdc = new Mdc();
+
+    private final ResourceUsage resourceUsage = new ResourceUsage();
+
+    private final RocketMQ rocketmq = new RocketMQ();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public void setServiceName(String serviceName) {
+        this.serviceName = serviceName;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public void setBaseUrl(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    public Sender getSender() {
+        return sender;
+    }
+
+    public Reporter getReporter() {
+        return reporter;
+    }
+
+    public Sampler getSampler() {
+        return sampler;
+    }
+
+    public Mdc getMdc() {
+        return mdc;
+    }
+
+    public ResourceUsage getResourceUsage() {
+        return resourceUsage;
+    }
+
+    public RocketMQ getRocketmq() {
+        return rocketmq;
+    }
+
+    public static class Sender {
+
+        /**
+         * 连接超时时间
+         */
+        private Duration connectTimeout = Duration.ofSeconds(10);
+
+        /**
+         * 读取超时时间
+         */
+        private Duration readTimeout = Duration.ofSeconds(60);
+
+        /**
+         * 是否开启gzip压缩，设置了compression时以compression为准
+         */
+        private boolean compressionEnabled = true;
+
+        /**
+         * 上报方式
+         */
+        private Transport transport = Transport.HTTP;
+
+        /**
+         * span编码：JSON/PROTO3/THRIFT，PROTO3体积约为JSON的一半，需要zipkin 2.8以上
+         */
+        private Encoding encoding = Encoding.JSON;
+
+        /**
+         * 消息压缩方式：NONE/GZIP/ZSTD，zipkin服务端只支持GZIP
+         */
+        private Compression compression;
+
+        /**
+         * transport为FILE时写入的文件，默认为临时目录下的 zipkin-{服务名称}.bin；同一文件只能被一个进程写入
+         */
+        private String file;
+
+        /**
+         * transport为FILE时文件的最大字节数，超过后滚动
+         */
+        private long fileMaxBytes = 256L * 1024 * 1024;
+
+        public Duration getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        public void setConnectTimeout(Duration connectTimeout) {
+            this.connectTimeout = connectTimeout;
+        }
+
+        public Duration getReadTimeout() {
+            return readTimeout;
+        }
+
+        public void setReadTimeout(Duration readTimeout) {
+            this.readTimeout = readTimeout;
+        }
+
+        public boolean isCompressionEnabled() {
+            return compressionEnabled;
+        }
+
+        public void setCompressionEnabled(boolean compressionEnabled) {
+            this.compressionEnabled = compressionEnabled;
+        }
+
+        public Transport getTransport() {
+            return transport;
+        }
+
+        public void setTransport(Transport transport) {
+            this.transport = transport;
+        }
+
+        public Encoding getEncoding() {
+            return encoding;
+        }
+
+        public void setEncoding(Encoding encoding) {
+            this.encoding = encoding;
+        }
+
+        public Compression getCompression() {
+            return compression;
+        }
+
+        public void setCompression(Compression compression) {
+            this.compression = compression;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public void setFile(String file) {
+            this.file = file;
+        }
+
+        public long getFileMaxBytes() {
+            return fileMaxBytes;
+        }
+
+        public void setFileMaxBytes(long fileMaxBytes) {
+            this.fileMaxBytes = fileMaxBytes;
+        }
+    }
+
+    public enum Transport {
+        /**
+         * 通过http发送到zipkin或collector
+         */
+        HTTP,
+        /**
+         * 追加到本地文件，由旁路程序转发
+         */
+        FILE
+    }
+
+    public static class Reporter {
+
+        /**
+         * 队列中最多排队的span数量
+         */
+        private int queuedMaxSpans = 10000;
+
+        /**
+         * 队列中最多排队的span字节数，不配置时为堆内存的1%
+         */
+        private Long queuedMaxBytes;
+
+        /**
+         * 单次发送的最大字节数，不配置时使用sender的限制
+         */
+        private Integer messageMaxBytes;
+
+        /**
+         * 消息未攒满时最长等待多久发送
+         */
+        private Duration messageTimeout = Duration.ofSeconds(1);
+
+        /**
+         * 关闭时等待已排队span发送完成的最长时间
+         */
+        private Duration closeTimeout = Duration.ofSeconds(1);
+
+        /**
+         * 队列已满时的丢弃策略
+         */
+        private DropPolicy dropPolicy = DropPolicy.DROP_NEWEST;
+
+        private final Spool spool = new Spool();
+
+        private final TailSampling tailSampling = new TailSampling();
+
+        public int getQueuedMaxSpans() {
+            return queuedMaxSpans;
+        }
+
+        public void setQueuedMaxSpans(int queuedMaxSpans) {
+            this.queuedMaxSpans = queuedMaxSpans;
+        }
+
+        public Long getQueuedMaxBytes() {
+            return queuedMaxBytes;
+        }
+
+        public void setQueuedMaxBytes(Long queuedMaxBytes) {
+            this.queuedMaxBytes = queuedMaxBytes;
+        }
+
+        public Integer getMessageMaxBytes() {
+            return messageMaxBytes;
+        }
+
+        public void setMessageMaxBytes(Integer messageMaxBytes) {
+            this.messageMaxBytes = messageMaxBytes;
+        }
+
+        public Duration getMessageTimeout() {
+            return messageTimeout;
+        }
+
+        public void setMessageTimeout(Duration messageTimeout) {
+            this.messageTimeout = messageTimeout;
+        }
+
+        public Duration getCloseTimeout() {
+            return closeTimeout;
+        }
+
+        public void setCloseTimeout(Duration closeTimeout) {
+            this.closeTimeout = closeTimeout;
+        }
+
+        public DropPolicy getDropPolicy() {
+            return dropPolicy;
+        }
+
+        public void setDropPolicy(DropPolicy dropPolicy) {
+            this.dropPolicy = dropPolicy;
+        }
+
+        public Spool getSpool() {
+            return spool;
+        }
+
+        public TailSampling getTailSampling() {
+            return tailSampling;
+        }
+    }
+
+    public static class Spool {
+
+        /**
+         * 是否将span暂存到内存映射文件，开启后替代内存队列，zipkin服务不可用时span不会丢失
+         */
+        private boolean enabled = false;
+
+        /**
+         * spool文件路径，默认为临时目录下的 zipkin-{服务名称}.spool；同一文件只能被一个进程使用
+         */
+        private String file;
+
+        /**
+         * spool文件大小，写满后淘汰最旧的span
+         */
+        private int maxBytes = 64 * 1024 * 1024;
+
+        /**
+         * spool为空时检查新span的间隔
+         */
+        private Duration drainInterval = Duration.ofSeconds(1);
+
+        /**
+         * 发送失败后重试间隔的上限
+         */
+        private Duration maxBackoff = Duration.ofSeconds(30);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public void setFile(String file) {
+            this.file = file;
+        }
+
+        public int getMaxBytes() {
+            return maxBytes;
+        }
+
+        public void setMaxBytes(int maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        public Duration getDrainInterval() {
+            return drainInterval;
+        }
+
+        public void setDrainInterval(Duration drainInterval) {
+            this.drainInterval = drainInterval;
+        }
+
+        public Duration getMaxBackoff() {
+            return maxBackoff;
+        }
+
+        public void setMaxBackoff(Duration maxBackoff) {
+            this.maxBackoff = maxBackoff;
+        }
+    }
+
+    public static class TailSampling {
+
+        /**
+         * 是否开启尾部采样，开启后只上报出现错误或慢span的链路
+         */
+        private boolean enabled = false;
+
+        /**
+         * 缓冲区中span的估算字节数上限，超过时从最旧的链路开始淘汰
+         */
+        private long maxBufferedBytes = 16 * 1024 * 1024;
+
+        /**
+         * 同时缓存的链路数上限
+         */
+        private int maxTraces = 65536;
+
+        /**
+         * 链路缓存的最长时间，超过后仍未命中则丢弃
+         */
+        private Duration decisionWait = Duration.ofSeconds(10);
+
+        /**
+         * 未单独配置阈值的span的耗时阈值，不配置时只按错误导出
+         */
+        private Duration defaultLatencyThreshold;
+
+        /**
+         * 按span名称配置的耗时阈值，key为span名称
+         */
+        private Map<String, Duration> latencyThresholds = new LinkedHashMap<>();
+
+        /**
+         * 是否在本地记录头部未采样的链路并参与尾部采样；back-pressure停止采样期间，新建的未采样span不再本地记录
+         */
+        private boolean recordUnsampled = true;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getMaxBufferedBytes() {
+            return maxBufferedBytes;
+        }
+
+        public void setMaxBufferedBytes(long maxBufferedBytes) {
+            this.maxBufferedBytes = maxBufferedBytes;
+        }
+
+        public int getMaxTraces() {
+            return maxTraces;
+        }
+
+        public void setMaxTraces(int maxTraces) {
+            this.maxTraces = maxTraces;
+        }
+
+        public Duration getDecisionWait() {
+            return decisionWait;
+        }
+
+        public void setDecisionWait(Duration decisionWait) {
+            this.decisionWait = decisionWait;
+        }
+
+        public Duration getDefaultLatencyThreshold() {
+            return defaultLatencyThreshold;
+        }
+
+        public void setDefaultLatencyThreshold(Duration defaultLatencyThreshold) {
+            this.defaultLatencyThreshold = defaultLatencyThreshold;
+        }
+
+        public Map<String, Duration> getLatencyThresholds() {
+            return latencyThresholds;
+        }
+
+        public void setLatencyThresholds(Map<String, Duration> latencyThresholds) {
+            this.latencyThresholds = latencyThresholds;
+        }
+
+        public boolean isRecordUnsampled() {
+            return recordUnsampled;
+        }
+
+        public void setRecordUnsampled(boolean recordUnsampled) {
+            this.recordUnsampled = recordUnsampled;
+        }
+    }
+
+    public static class Sampler {
+
+        /**
+         * 采样率，0到1之间
+         */
+        private float probability = 1.0f;
+
+        private final BackPressure backPressure = new BackPressure();
+
+        public float getProbability() {
+            return probability;
+        }
+
+        public void setProbability(float probability) {
+            this.probability = probability;
+        }
+
+        public BackPressure getBackPressure() {
+            return backPressure;
+        }
+    }
+
+    public static class BackPressure {
+
+        /**
+         * 是否在span上报积压时自动停止采样新链路，积压缓解后逐步恢复
+         */
+        private boolean enabled = true;
+
+        /**
+         * 上报队列占用比例达到该值时停止采样新链路
+         */
+        private double highWatermark = 0.8;
+
+        /**
+         * 上报队列占用比例降到该值以下时开始逐步恢复
+         */
+        private double lowWatermark = 0.5;
+
+        /**
+         * 检查上报积压的间隔，也是恢复时准入比例翻倍的间隔
+         */
+        private Duration checkInterval = Duration.ofSeconds(1);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public double getHighWatermark() {
+            return highWatermark;
+        }
+
+        public void setHighWatermark(double highWatermark) {
+            this.highWatermark = highWatermark;
+        }
+
+        public double getLowWatermark() {
+            return lowWatermark;
+        }
+
+        public void setLowWatermark(double lowWatermark) {
+            this.lowWatermark = lowWatermark;
+        }
+
+        public Duration getCheckInterval() {
+            return checkInterval;
+        }
+
+        public void setCheckInterval(Duration checkInterval) {
+            this.checkInterval = checkInterval;
+        }
+    }
+
+    public static class Mdc {
+
+        /**
+         * 是否将链路信息写入slf4j MDC
+         */
+        private boolean enabled = true;
+
+        /**
+         * 写入MDC的字段
+         */
+        private List<MdcScopeDecorator.Field> fields = new ArrayList<>(Arrays.asList(MdcScopeDecorator.Field.TRACE_ID, MdcScopeDecorator.Field.SPAN_ID));
+
+        /**
+         * 字段在MDC中的键名，未配置的使用默认键名，例如traceId
+         */
+        private Map<MdcScopeDecorator.Field, String> names = new LinkedHashMap<>();
+
+        /**
+         * 是否只为采样的链路写入MDC
+         */
+        private boolean sampledOnly = false;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public List<MdcScopeDecorator.Field> getFields() {
+            return fields;
+        }
+
+        public void setFields(List<MdcScopeDecorator.Field> fields) {
+            this.fields = fields;
+        }
+
+        public Map<MdcScopeDecorator.Field, String> getNames() {
+            return names;
+        }
+
+        public void setNames(Map<MdcScopeDecorator.Field, String> names) {
+            this.names = names;
+        }
+
+        public boolean isSampledOnly() {
+            return sampledOnly;
+        }
+
+        public void setSampledOnly(boolean sampledOnly) {
+            this.sampledOnly = sampledOnly;
+        }
+    }
+
+    public static class ResourceUsage {
+
+        /**
+         * 是否记录span期间线程消耗的CPU时间和分配的字节数
+         */
+        private boolean enabled = false;
+
+        /**
+         * 记录的链路比例，0到1之间
+         */
+        private float probability = 0.01f;
+
+        /**
+         * 只记录这些名称的span，为空时记录所有span
+         */
+        private List<String> spanNames = new ArrayList<>();
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public float getProbability() {
+            return probability;
+        }
+
+        public void setProbability(float probability) {
+            this.probability = probability;
+        }
+
+        public List<String> getSpanNames() {
+            return spanNames;
+        }
+
+        public void setSpanNames(List<String> spanNames) {
+            this.spanNames = spanNames;
+        }
+    }
+
+    public static class RocketMQ {
+
+        /**
+         * 是否自动为DefaultMQProducer/DefaultMQPushConsumer开启链路跟踪
+         */
+        private boolean enabled = true;
+
+        /**
+         * 批量消费时的链路跟踪方式
+         */
+        private BatchTracingMode batchTracingMode = BatchTracingMode.LINKS;
+
+        /**
+         * 发送端写入链路信息的格式，消费端可以识别所有格式
+         */
+        private PropagationFormat propagationFormat = PropagationFormat.DEFAULT;
+
+        /**
+         * 按topic声明的采样规则，key为topic
+         */
+        private Map<String, SamplerRule> topicSamplers = new LinkedHashMap<>();
+
+        /**
+         * 按消费组声明的采样规则，key为消费组，优先于topic规则
+         */
+        private Map<String, SamplerRule> groupSamplers = new LinkedHashMap<>();
+
+        /**
+         * 是否按topic和消费组统计发送、消费的请求数、错误数与耗时分布，不受采样影响
+         */
+        private boolean metricsEnabled = true;
+
+        /**
+         * 消费时是否补记一个从消息存储到开始消费的span，展示消息在broker中等待的时间
+         */
+        private boolean queueSpan = false;
+
+        /**
+         * 开启链路跟踪的方式：PROXY生成子类代理，HOOK在原对象上注册RocketMQ发送/消费钩子
+         */
+        private InstrumentationMode instrumentationMode = InstrumentationMode.PROXY;
+
+        /**
+         * 按topic和消费组配置链路跟踪策略的properties文件，修改后自动重新加载，格式见MqPolicyWatcher
+         */
+        private String policyFile;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public BatchTracingMode getBatchTracingMode() {
+            return batchTracingMode;
+        }
+
+        public void setBatchTracingMode(BatchTracingMode batchTracingMode) {
+            this.batchTracingMode = batchTracingMode;
+        }
+
+        public PropagationFormat getPropagationFormat() {
+            return propagationFormat;
+        }
+
+        public void setPropagationFormat(PropagationFormat propagationFormat) {
+            this.propagationFormat = propagationFormat;
+        }
+
+        public Map<String, SamplerRule> getTopicSamplers() {
+            return topicSamplers;
+        }
+
+        public void setTopicSamplers(Map<String, SamplerRule> topicSamplers) {
+            this.topicSamplers = topicSamplers;
+        }
+
+        public Map<String, SamplerRule> getGroupSamplers() {
+            return groupSamplers;
+        }
+
+        public void setGroupSamplers(Map<String, SamplerRule> groupSamplers) {
+            this.groupSamplers = groupSamplers;
+        }
+
+        public boolean isMetricsEnabled() {
+            return metricsEnabled;
+        }
+
+        public void setMetricsEnabled(boolean metricsEnabled) {
+            this.metricsEnabled = metricsEnabled;
+        }
+
+        public boolean isQueueSpan() {
+            return queueSpan;
+        }
+
+        public void setQueueSpan(boolean queueSpan) {
+            this.queueSpan = queueSpan;
+        }
+
+        public InstrumentationMode getInstrumentationMode() {
+            return instrumentationMode;
+        }
+
+        public void setInstrumentationMode(InstrumentationMode instrumentationMode) {
+            this.instrumentationMode = instrumentationMode;
+        }
+
+        public String getPolicyFile() {
+            return policyFile;
+        }
+
+        public void setPolicyFile(String policyFile) {
+            this.policyFile = policyFile;
+        }
+    }
+
+    public static class SamplerRule {
+
+        /**
+         * 每秒最多采样的链路数，优先于probability
+         */
+        private Integer rate;
+
+        /**
+         * 采样率，0到1之间
+         */
+        private Float probability;
+
+        public Integer getRate() {
+            return rate;
+        }
+
+        public void setRate(Integer rate) {
+            this.rate = rate;
+        }
+
+        public Float getProbability() {
+            return probability;
+        }
+
+        public void setProbability(Float probability) {
+            this.probability = probability;
+        }
+
+        brave.sampler.Sampler toSampler() {
+            if (rate != null) {
+                return RateLimitingSampler.create(rate);
+            } else if (probability != null) {
+                return brave.sampler.Sampler.create(probability);
+            } else {
+                throw new IllegalArgumentException("采样规则需要配置rate或probability");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,310 @@
+package top.liumian.zipkin.core.log;
+
+import brave.propagation.CurrentTraceContext.Scope;
+import brave.propagation.CurrentTraceContext.ScopeDecorator;
+import brave.propagation.TraceContext;
+import org.slf4j.MDC;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 将链路信息写入slf4j MDC的scope装饰器
+ * <p>
+ * 只写入选定的字段。每个线程记住自己最后写入的链路，进入scope时按id逐个比较选定的字段，只更新变化的字段，
+ * 嵌套scope的字段与外层相同时（同一个链路重复进入、或只选了traceId时同一链路的子span）既不读也不写MDC，
+ * 也不创建新的scope对象。开启 {@link Builder#sampledOnly(boolean)} 后未采样的链路不写入MDC。
+ * <p>
+ * MDC中的这些字段应只由本装饰器维护，在scope内部直接修改或清空它们不会被察觉。
+ *
+ * @author liumian  2022/10/9 10:00
+ */
+public final class MdcScopeDecorator implements ScopeDecorator {
+
+    /**
+     * 可以写入MDC的链路字段
+     */
+    public enum Field {
+
+        TRACE_ID("traceId") {
+            @Override
+            boolean equal(TraceContext a, TraceContext b) {
+                return a.traceIdHigh() == b.traceIdHigh() && a.traceId() == b.traceId();
+            }
+
+            @Override
+            String value(TraceContext context) {
+                return context.traceIdString();
+            }
+        },
+
+        SPAN_ID("spanId") {
+            @Override
+            boolean equal(TraceContext a, TraceContext b) {
+                return a.spanId() == b.spanId();
+            }
+
+            @Override
+            String value(TraceContext context) {
+                return context.spanIdString();
+            }
+        },
+
+        PARENT_ID("parentId") {
+            @Override
+            boolean equal(TraceContext a, TraceContext b) {
+                return a.parentIdAsLong() == b.parentIdAsLong();
+            }
+
+            @Override
+            String value(TraceContext context) {
+                return context.parentIdString();
+            }
+        },
+
+        SAMPLED("sampled") {
+            @Override
+            boolean equal(TraceContext a, TraceContext b) {
+                return a.sampled() == b.sampled();
+            }
+
+            @Override
+            String value(TraceContext context) {
+                Boolean sampled = context.sampled();
+                return sampled == null ? null : sampled.toString();
+            }
+        };
+
+        private final String defaultName;
+
+        Field(String defaultName) {
+            this.defaultName = defaultName;
+        }
+
+        /**
+         * @return 默认的MDC键名
+         */
+        public String defaultName() {
+            return defaultName;
+        }
+
+        abstract boolean equal(TraceContext a, TraceContext b);
+
+        /**
+         * @return 字段值，没有时返回null
+         */
+        abstract String value(TraceContext context);
+
+        /**
+         * 两个链路（可能为null）在该字段上写入MDC的值是否相同
+         */
+        boolean sameValue(TraceContext a, TraceContext b) {
+            if (a == null || b == null) {
+                return a == b || value(a == null ? b : a) == null;
+            }
+            return equal(a, b);
+        }
+    }
+
+    private final Writer writer;
+
+    private final Field[] fields;
+
+    private final String[] names;
+
+    private final boolean sampledOnly;
+
+    /**
+     * 当前线程最后写入MDC的链路，每个装饰器各自记录
+     */
+    private final ThreadLocal<Written> written = ThreadLocal.withInitial(Written::new);
+
+    /**
+     * 写入traceId和spanId
+     */
+    public static MdcScopeDecorator create() {
+        return newBuilder().build();
+    }
+
+    public static Builder newBuilder() {
+        return new Builder(Slf4jWriter.INSTANCE);
+    }
+
+    /**
+     * 测试用，写入指定的位置而不是slf4j MDC
+     */
+    static Builder newBuilder(Writer writer) {
+        return new Builder(writer);
+    }
+
+    private MdcScopeDecorator(Builder builder) {
+        this.writer = builder.writer;
+        this.fields = builder.fields.keySet().toArray(new Field[0]);
+        this.names = builder.fields.values().toArray(new String[0]);
+        this.sampledOnly = builder.sampledOnly;
+    }
+
+    @Override
+    public Scope decorateScope(TraceContext context, Scope scope) {
+        if (context != null && sampledOnly && !Boolean.TRUE.equals(context.sampled())) {
+            context = null;
+        }
+        Written written = this.written.get();
+        TraceContext previous = written.context;
+        int changed = changedFields(previous, context);
+        if (changed == 0) {
+            return scope;
+        }
+        update(context, changed);
+        written.context = context;
+        return new MdcScope(scope, written, previous, changed);
+    }
+
+    /**
+     * @return 值发生变化的字段下标组成的位图
+     */
+    private int changedFields(TraceContext previous, TraceContext context) {
+        if (previous == context) {
+            return 0;
+        }
+        int changed = 0;
+        for (int i = 0; i < fields.length; i++) {
+            if (!fields[i].sameValue(previous, context)) {
+                changed |= 1 << i;
+            }
+        }
+        return changed;
+    }
+
+    private void update(TraceContext context, int changed) {
+        for (int i = 0; i < fields.length; i++) {
+            if ((changed & 1 << i) != 0) {
+                writer.update(names[i], context == null ? null : fields[i].value(context));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        Map<Field, String> fields = new LinkedHashMap<>();
+        for (int i = 0; i < this.fields.length; i++) {
+            fields.put(this.fields[i], names[i]);
+        }
+        return "MdcScopeDecorator{fields=" + fields + ", sampledOnly=" + sampledOnly + "}";
+    }
+
+    /**
+     * 退出时恢复进入前的字段值
+     */
+    private final class MdcScope implements Scope {
+
+        private final Scope delegate;
+
+        private final Written written;
+
+        private final TraceContext previous;
+
+        private final int changed;
+
+        MdcScope(Scope delegate, Written written, TraceContext previous, int changed) {
+            this.delegate = delegate;
+            this.written = written;
+            this.previous = previous;
+            this.changed = changed;
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+            update(previous, changed);
+            written.context = previous;
+        }
+    }
+
+    private static final class Written {
+        TraceContext context;
+    }
+
+    /**
+     * MDC的写入方式，值为null时移除
+     */
+    interface Writer {
+        void update(String name, String value);
+    }
+
+    private enum Slf4jWriter implements Writer {
+        INSTANCE;
+
+        @Override
+        public void update(String name, String value) {
+            if (value == null) {
+                MDC.remove(name);
+            } else {
+                MDC.put(name, value);
+            }
+        }
+    }
+
+    public static final class Builder {
+
+        private final Writer writer;
+
+        private final Map<Field, String> fields = new LinkedHashMap<>();
+
+        private boolean sampledOnly;
+
+        Builder(Writer writer) {
+            this.writer = writer;
+            fields.put(Field.TRACE_ID, Field.TRACE_ID.defaultName());
+            fields.put(Field.SPAN_ID, Field.SPAN_ID.defaultName());
+        }
+
+        /**
+         * 清空已选的字段，包括默认的traceId和spanId
+         */
+        public Builder clear() {
+            fields.clear();
+            return this;
+        }
+
+        /**
+         * 以默认键名写入字段
+         */
+        public Builder add(Field field) {
+            if (field == null) {
+                throw new NullPointerException("field == null");
+            }
+            return add(field, field.defaultName());
+        }
+
+        /**
+         * 以指定的MDC键名写入字段，同一字段重复添加时以最后一次为准
+         */
+        public Builder add(Field field, String name) {
+            if (field == null) {
+                throw new NullPointerException("field == null");
+            }
+            if (name == null || name.isEmpty()) {
+                throw new IllegalArgumentException("MDC键名不能为空");
+            }
+            fields.put(field, name);
+            return this;
+        }
+
+        /**
+         * 是否只为采样的链路写入MDC，默认false
+         */
+        public Builder sampledOnly(boolean sampledOnly) {
+            this.sampledOnly = sampledOnly;
+            return this;
+        }
+
+        public MdcScopeDecorator build() {
+            if (fields.isEmpty()) {
+                throw new IllegalArgumentException("至少需要一个字段");
+            }
+            return new MdcScopeDecorator(this);
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+package top.liumian.zipkin.core.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁、分段的延迟直方图
+ * <p>
+ * 桶按对数-线性划分（与HdrHistogram相同的思路），每个2的幂区间再等分为16个子桶，相对误差不超过1/16，
+ * 以微秒为单位记录，上限约71分钟，超过上限的值记入最后一个桶。
+ * 每个线程按线程id固定写入其中一段计数，记录时只有一次数组下标计算和几次原子加，不产生任何对象，
+ * 不同线程之间基本没有竞争；读取时合并所有分段生成 {@link Snapshot}。
+ *
+ * @author liumian  2022/10/2 10:00
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * 可记录的最大微秒数
+     */
+    private static final long MAX_MICROS = (1L << 32) - 1;
+
+    static final int BUCKETS = index(MAX_MICROS) + 1;
+
+    /**
+     * 每段的布局：BUCKETS个计数、总微秒数、最大微秒数
+     */
+    private static final int SUM = BUCKETS;
+
+    private static final int MAX = BUCKETS + 1;
+
+    private static final int STRIDE = BUCKETS + 2;
+
+    private final AtomicLongArray cells;
+
+    private final int stripeMask;
+
+    public LatencyHistogram() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param stripes 分段数，向上取整为2的幂，最多16段
+     */
+    public LatencyHistogram(int stripes) {
+        int size = 1;
+        while (size < Math.min(Math.max(stripes, 1), 16)) {
+            size <<= 1;
+        }
+        this.stripeMask = size - 1;
+        this.cells = new AtomicLongArray(size * STRIDE);
+    }
+
+    /**
+     * 记录一次耗时
+     *
+     * @param durationNanos 耗时，单位纳秒，负数按0处理
+     */
+    public void record(long durationNanos) {
+        long micros = Math.min(Math.max(durationNanos, 0L) / 1000L, MAX_MICROS);
+        int base = stripe() * STRIDE;
+        cells.incrementAndGet(base + index(micros));
+        cells.addAndGet(base + SUM, micros);
+        long max;
+        while (micros > (max = cells.get(base + MAX))) {
+            if (cells.compareAndSet(base + MAX, max, micros)) {
+                break;
+            }
+        }
+    }
+
+    private int stripe() {
+        long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int) (id >>> 32) & stripeMask;
+    }
+
+    static int index(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return (exponent + 1) * SUB_BUCKETS + (int) (micros >>> exponent) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return 桶内最大的微秒数
+     */
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << exponent) - 1;
+    }
+
+    /**
+     * 合并所有分段，读取期间仍在进行的记录可能只有部分被计入
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        long sum = 0;
+        long max = 0;
+        for (int base = 0; base < cells.length(); base += STRIDE) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long value = cells.get(base + i);
+                counts[i] += value;
+                count += value;
+            }
+            sum += cells.get(base + SUM);
+            max = Math.max(max, cells.get(base + MAX));
+        }
+        return new Snapshot(counts, count, sum, max);
+    }
+
+    /**
+     * 直方图在某一时刻的只读副本
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+
+        private final long count;
+
+        private final long sumMicros;
+
+        private final long maxMicros;
+
+        Snapshot(long[] counts, long count, long sumMicros, long maxMicros) {
+            this.counts = counts;
+            this.count = count;
+            this.sumMicros = sumMicros;
+            this.maxMicros = maxMicros;
+        }
+
+        /**
+         * @return 记录次数
+         */
+        public long count() {
+            return count;
+        }
+
+        /**
+         * @return 平均耗时，单位纳秒
+         */
+        public long meanNanos() {
+            return count == 0 ? 0 : sumMicros * 1000L / count;
+        }
+
+        /**
+         * @return 最大耗时，单位纳秒，为累计值，不随 {@link #since(Snapshot)} 变化
+         */
+        public long maxNanos() {
+            return maxMicros * 1000L;
+        }
+
+        /**
+         * @param percentile 百分位，0到100之间，例如99.9
+         * @return 该百分位的耗时上界，单位纳秒，没有记录时返回0
+         */
+        public long percentileNanos(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1L, (long) Math.ceil(Math.min(Math.max(percentile, 0.0), 100.0) / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestEquivalentValue(i), maxMicros) * 1000L;
+                }
+            }
+            return maxNanos();
+        }
+
+        /**
+         * 计算两次快照之间的增量，用于按时间窗口统计
+         *
+         * @param earlier 更早的快照
+         * @return 两次快照之间新增的记录
+         */
+        public Snapshot since(Snapshot earlier) {
+            long[] delta = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                delta[i] = counts[i] - earlier.counts[i];
+            }
+            return new Snapshot(delta, count - earlier.count, sumMicros - earlier.sumMicros, maxMicros);
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{count=" + count + ", meanNanos=" + meanNanos() + ", p99Nanos=" + percentileNanos(99) + ", maxNanos=" + maxNanos() + "}";
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+package top.liumian.zipkin.core.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一类操作的请求数、错误数与耗时分布（RED指标）
+ * <p>
+ * 与采样无关，每次调用都会记录，记录过程不产生对象。请求速率由调用方对两次 {@link #snapshot()} 的请求数求差得到。
+ *
+ * @author liumian  2022/10/2 10:40
+ */
+public final class RedMetrics {
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * @param durationNanos 耗时，单位纳秒
+     * @param error         是否失败
+     */
+    public void record(long durationNanos, boolean error) {
+        latency.record(durationNanos);
+        if (error) {
+            errors.increment();
+        }
+    }
+
+    public Snapshot snapshot() {
+        // 先读错误数，保证错误数不会大于请求数
+        long errorCount = errors.sum();
+        return new Snapshot(errorCount, latency.snapshot());
+    }
+
+    public static final class Snapshot {
+
+        private final long errors;
+
+        private final LatencyHistogram.Snapshot latency;
+
+        Snapshot(long errors, LatencyHistogram.Snapshot latency) {
+            this.errors = errors;
+            this.latency = latency;
+        }
+
+        /**
+         * @return 请求数
+         */
+        public long requests() {
+            return latency.count();
+        }
+
+        /**
+         * @return 错误数
+         */
+        public long errors() {
+            return errors;
+        }
+
+        /**
+         * @return 错误率，没有请求时返回0
+         */
+        public double errorRate() {
+            return requests() == 0 ? 0.0 : (double) errors / requests();
+        }
+
+        /**
+         * @return 耗时分布
+         */
+        public LatencyHistogram.Snapshot latency() {
+            return latency;
+        }
+
+        /**
+         * 计算两次快照之间的增量
+         */
+        public Snapshot since(Snapshot earlier) {
+            return new Snapshot(errors - earlier.errors, latency.since(earlier.latency));
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{requests=" + requests() + ", errors=" + errors + ", latency=" + latency + "}";
+        }
+    }
+
+}
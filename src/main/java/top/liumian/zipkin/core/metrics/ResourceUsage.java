@@ -0,0 +1,87 @@
+package top.liumian.zipkin.core.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一类span的线程CPU时间分布与分配字节数
+ * <p>
+ * 与 {@link RedMetrics} 相同，记录过程不产生对象，按时间窗口统计时对两次 {@link #snapshot()} 求差。
+ *
+ * @author liumian  2022/10/13 10:00
+ */
+public final class ResourceUsage {
+
+    private final LatencyHistogram cpuTime = new LatencyHistogram();
+
+    private final LongAdder allocatedBytes = new LongAdder();
+
+    /**
+     * @param cpuNanos       线程CPU时间，单位纳秒
+     * @param allocatedBytes 线程分配的字节数，无法获取时为负数，不计入
+     */
+    public void record(long cpuNanos, long allocatedBytes) {
+        if (allocatedBytes > 0) {
+            this.allocatedBytes.add(allocatedBytes);
+        }
+        cpuTime.record(cpuNanos);
+    }
+
+    public Snapshot snapshot() {
+        // 先读分配字节数，读取期间新增的记录不会使平均值偏高
+        long bytes = allocatedBytes.sum();
+        return new Snapshot(bytes, cpuTime.snapshot());
+    }
+
+    public static final class Snapshot {
+
+        private final long allocatedBytes;
+
+        private final LatencyHistogram.Snapshot cpuTime;
+
+        Snapshot(long allocatedBytes, LatencyHistogram.Snapshot cpuTime) {
+            this.allocatedBytes = allocatedBytes;
+            this.cpuTime = cpuTime;
+        }
+
+        /**
+         * @return 统计的span数量
+         */
+        public long spans() {
+            return cpuTime.count();
+        }
+
+        /**
+         * @return 线程CPU时间分布，精度为微秒
+         */
+        public LatencyHistogram.Snapshot cpuTime() {
+            return cpuTime;
+        }
+
+        /**
+         * @return 分配的总字节数
+         */
+        public long allocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * @return 每个span平均分配的字节数，没有span时返回0
+         */
+        public long meanAllocatedBytes() {
+            return spans() == 0 ? 0 : allocatedBytes / spans();
+        }
+
+        /**
+         * 计算两次快照之间的增量
+         */
+        public Snapshot since(Snapshot earlier) {
+            return new Snapshot(allocatedBytes - earlier.allocatedBytes, cpuTime.since(earlier.cpuTime));
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{spans=" + spans() + ", cpuTime=" + cpuTime + ", meanAllocatedBytes=" + meanAllocatedBytes() + "}";
+        }
+    }
+
+}
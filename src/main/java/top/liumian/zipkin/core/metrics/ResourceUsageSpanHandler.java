@@ -0,0 +1,279 @@
+package top.liumian.zipkin.core.metrics;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 记录span开始到结束之间当前线程消耗的CPU时间和分配的字节数，区分消费变慢是因为计算、分配还是阻塞
+ * <p>
+ * span创建时（{@link #begin}）读取 {@link ThreadMXBean} 的线程CPU时间和已分配字节数，结束时在同一线程再读一次，
+ * 差值写入 {@value #CPU_TIME_TAG}、{@value #ALLOCATED_BYTES_TAG} 标签，并按span名称汇总到 {@link ResourceUsage}。
+ * TraceUtil、TraceTemplate和消费监听器的span都在同一线程开始和结束，可以直接统计；在其他线程结束的span不记录。
+ * <p>
+ * 开始和结束各读取一次计数器，每个统计的span增加约0.5微秒，因此按trace id只统计 probability 比例的链路，
+ * 同一链路中的span要么都统计要么都不统计。
+ * 需要放在上报器之前，标签才会随span一起上报。
+ *
+ * @author liumian  2022/10/13 10:30
+ */
+public final class ResourceUsageSpanHandler extends SpanHandler {
+
+    /**
+     * 线程CPU时间，单位微秒
+     */
+    public static final String CPU_TIME_TAG = "cpu.time.us";
+
+    /**
+     * 线程分配的字节数
+     */
+    public static final String ALLOCATED_BYTES_TAG = "allocated.bytes";
+
+    /**
+     * 每个线程最多同时跟踪的未结束span数量，超过时放弃最早的
+     */
+    static final int MAX_DEPTH = 16;
+
+    /**
+     * 最多汇总的span名称数量，超过后计入 {@link #OTHER}
+     */
+    static final int MAX_NAMES = 1024;
+
+    static final String OTHER = "other";
+
+    private static final int PRECISION = 10000;
+
+    private final ThreadMXBean threads;
+
+    private final com.sun.management.ThreadMXBean allocation;
+
+    private final int threshold;
+
+    private final Set<String> spanNames;
+
+    private final ThreadLocal<Frames> frames = ThreadLocal.withInitial(Frames::new);
+
+    private final ConcurrentMap<String, ResourceUsage> usage = new ConcurrentHashMap<>();
+
+    private final LongAdder unmatchedSpans = new LongAdder();
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    private ResourceUsageSpanHandler(Builder builder) {
+        this.threshold = Math.round(builder.probability * PRECISION);
+        this.spanNames = builder.spanNames.isEmpty() ? Collections.emptySet() : new HashSet<>(builder.spanNames);
+        this.threads = ManagementFactory.getThreadMXBean();
+        if (!threads.isCurrentThreadCpuTimeSupported()) {
+            throw new IllegalStateException("当前JVM不支持读取线程CPU时间");
+        }
+        if (!threads.isThreadCpuTimeEnabled()) {
+            threads.setThreadCpuTimeEnabled(true);
+        }
+        this.allocation = allocation(threads);
+    }
+
+    /**
+     * @return 支持读取线程分配字节数时返回HotSpot的扩展接口，否则返回null
+     */
+    private static com.sun.management.ThreadMXBean allocation(ThreadMXBean threads) {
+        try {
+            if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+                return null;
+            }
+        } catch (NoClassDefFoundError e) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+        if (!allocation.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        if (!allocation.isThreadAllocatedMemoryEnabled()) {
+            allocation.setThreadAllocatedMemoryEnabled(true);
+        }
+        return allocation;
+    }
+
+    @Override
+    public boolean begin(TraceContext context, MutableSpan span, TraceContext parent) {
+        if (measured(context)) {
+            frames.get().push(context.spanId(), threads.getCurrentThreadCpuTime(), allocatedBytes());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+        if (!measured(context)) {
+            return true;
+        }
+        long cpuNanos = threads.getCurrentThreadCpuTime();
+        long allocatedBytes = allocatedBytes();
+        Frames frames = this.frames.get();
+        int frame = frames.pop(context.spanId());
+        if (frame < 0) {
+            unmatchedSpans.increment();
+            return true;
+        }
+        if (cause != Cause.FINISHED) {
+            return true;
+        }
+        String name = span.name();
+        if (!spanNames.isEmpty() && !spanNames.contains(name)) {
+            return true;
+        }
+        cpuNanos -= frames.cpuNanos[frame];
+        span.tag(CPU_TIME_TAG, String.valueOf(cpuNanos / 1000));
+        if (allocatedBytes >= 0) {
+            allocatedBytes -= frames.allocatedBytes[frame];
+            span.tag(ALLOCATED_BYTES_TAG, String.valueOf(allocatedBytes));
+        }
+        usage(name).record(cpuNanos, allocatedBytes);
+        return true;
+    }
+
+    /**
+     * 按trace id决定，同一链路的结果一致
+     */
+    private boolean measured(TraceContext context) {
+        return threshold > 0 && (threshold >= PRECISION || Math.abs(context.traceId() % PRECISION) < threshold);
+    }
+
+    private long allocatedBytes() {
+        return allocation != null ? allocation.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1L;
+    }
+
+    /**
+     * 先无锁读取，不存在时才创建
+     */
+    private ResourceUsage usage(String spanName) {
+        String name = spanName != null ? spanName : OTHER;
+        ResourceUsage result = usage.get(name);
+        if (result == null) {
+            if (usage.size() >= MAX_NAMES) {
+                name = OTHER;
+            }
+            result = usage.computeIfAbsent(name, key -> new ResourceUsage());
+        }
+        return result;
+    }
+
+    /**
+     * @return span名称到资源消耗快照的映射
+     */
+    public Map<String, ResourceUsage.Snapshot> snapshot() {
+        Map<String, ResourceUsage.Snapshot> snapshot = new LinkedHashMap<>();
+        usage.forEach((name, resourceUsage) -> snapshot.put(name, resourceUsage.snapshot()));
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    /**
+     * @return 是否能统计分配的字节数，取决于JVM
+     */
+    public boolean allocationSupported() {
+        return allocation != null;
+    }
+
+    /**
+     * @return 参与统计但没有在开始的线程上结束、或因同时未结束的span过多而被放弃的span数量
+     */
+    public long unmatchedSpans() {
+        return unmatchedSpans.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceUsageSpanHandler{probability=" + (double) threshold / PRECISION + "}";
+    }
+
+    /**
+     * 当前线程上已开始、未结束的span，按开始顺序排列
+     */
+    private static final class Frames {
+
+        final long[] spanIds = new long[MAX_DEPTH];
+
+        final long[] cpuNanos = new long[MAX_DEPTH];
+
+        final long[] allocatedBytes = new long[MAX_DEPTH];
+
+        int size;
+
+        void push(long spanId, long cpu, long allocated) {
+            if (size == MAX_DEPTH) {
+                System.arraycopy(spanIds, 1, spanIds, 0, MAX_DEPTH - 1);
+                System.arraycopy(cpuNanos, 1, cpuNanos, 0, MAX_DEPTH - 1);
+                System.arraycopy(allocatedBytes, 1, allocatedBytes, 0, MAX_DEPTH - 1);
+                size--;
+            }
+            spanIds[size] = spanId;
+            cpuNanos[size] = cpu;
+            allocatedBytes[size] = allocated;
+            size++;
+        }
+
+        /**
+         * 从最近开始的span向前查找，找到后丢弃它及之后开始的span（这些span会在其他线程结束）
+         *
+         * @return span所在位置，在pop之后、下一次push之前仍可读取；没有找到时返回-1
+         */
+        int pop(long spanId) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (spanIds[i] == spanId) {
+                    size = i;
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    public static final class Builder {
+
+        private float probability = 0.01f;
+
+        private final Set<String> spanNames = new HashSet<>();
+
+        Builder() {
+        }
+
+        /**
+         * 统计的链路比例，默认0.01，精度为万分之一
+         */
+        public Builder probability(float probability) {
+            if (probability < 0 || probability > 1) {
+                throw new IllegalArgumentException("probability应在0到1之间: " + probability);
+            }
+            this.probability = probability;
+            return this;
+        }
+
+        /**
+         * 只统计这些名称的span，默认统计所有span
+         */
+        public Builder spanName(String spanName) {
+            if (spanName == null) {
+                throw new NullPointerException("spanName == null");
+            }
+            this.spanNames.add(spanName);
+            return this;
+        }
+
+        public ResourceUsageSpanHandler build() {
+            return new ResourceUsageSpanHandler(this);
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+package top.liumian.zipkin.core.mq;
+
+import brave.propagation.B3SingleFormat;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageExt;
+
+import java.util.Base64;
+import java.util.Collection;
+import java.util.function.Function;
+
+/**
+ * 以单个消息属性传递链路信息的紧凑格式
+ *
+ * @author liumian  2022/10/1 10:20
+ */
+final class CompactPropagation {
+
+    static final String B3 = "b3";
+
+    static final String BINARY = "b3b";
+
+    private static final byte VERSION = 1;
+
+    private static final int FLAG_SAMPLED_SET = 1;
+
+    private static final int FLAG_SAMPLED = 1 << 1;
+
+    private static final int FLAG_DEBUG = 1 << 2;
+
+    private static final int FLAG_TRACE_ID_HIGH = 1 << 3;
+
+    /**
+     * 版本、标记位、trace id、span id
+     */
+    private static final int BINARY_SIZE = 2 + 8 + 8;
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    static final Function<TraceContext, String> B3_WRITER = B3SingleFormat::writeB3SingleFormatWithoutParentId;
+
+    static final Function<TraceContext, String> BINARY_WRITER = CompactPropagation::writeBinary;
+
+    private CompactPropagation() {
+    }
+
+    static TraceContext.Injector<Message> messageInjector(String key, Function<TraceContext, String> writer) {
+        return new TraceContext.Injector<Message>() {
+            @Override
+            public void inject(TraceContext context, Message message) {
+                message.putUserProperty(key, writer.apply(context));
+            }
+
+            @Override
+            public String toString() {
+                return "Message::putUserProperty(" + key + ")";
+            }
+        };
+    }
+
+    /**
+     * 批量消息共用同一份链路信息，只编码一次
+     */
+    static TraceContext.Injector<Collection<Message>> batchInjector(String key, Function<TraceContext, String> writer) {
+        return new TraceContext.Injector<Collection<Message>>() {
+            @Override
+            public void inject(TraceContext context, Collection<Message> messages) {
+                String value = writer.apply(context);
+                for (Message message : messages) {
+                    message.putUserProperty(key, value);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "Collection<Message>::putUserProperty(" + key + ")";
+            }
+        };
+    }
+
+    /**
+     * 依次识别二进制格式、b3单属性格式，都没有时交给tracing.propagation()的默认格式
+     */
+    static TraceContext.Extractor<MessageExt> extractor(TraceContext.Extractor<MessageExt> delegate) {
+        return new TraceContext.Extractor<MessageExt>() {
+            @Override
+            public TraceContextOrSamplingFlags extract(MessageExt message) {
+                String binary = message.getUserProperty(BINARY);
+                if (binary != null) {
+                    TraceContextOrSamplingFlags extracted = parseBinary(binary);
+                    if (extracted != null) {
+                        return extracted;
+                    }
+                }
+                String b3 = message.getUserProperty(B3);
+                if (b3 != null) {
+                    TraceContextOrSamplingFlags extracted = B3SingleFormat.parseB3SingleFormat(b3);
+                    if (extracted != null) {
+                        return extracted;
+                    }
+                }
+                return delegate.extract(message);
+            }
+
+            @Override
+            public String toString() {
+                return "CompactExtractor{" + delegate + "}";
+            }
+        };
+    }
+
+    static String writeBinary(TraceContext context) {
+        boolean traceIdHigh = context.traceIdHigh() != 0L;
+        byte[] bytes = new byte[traceIdHigh ? BINARY_SIZE + 8 : BINARY_SIZE];
+        int flags = 0;
+        if (context.debug()) {
+            flags |= FLAG_DEBUG;
+        } else if (context.sampled() != null) {
+            flags |= FLAG_SAMPLED_SET;
+            if (context.sampled()) {
+                flags |= FLAG_SAMPLED;
+            }
+        }
+        if (traceIdHigh) {
+            flags |= FLAG_TRACE_ID_HIGH;
+        }
+        bytes[0] = VERSION;
+        bytes[1] = (byte) flags;
+        int pos = 2;
+        if (traceIdHigh) {
+            pos = writeLong(bytes, pos, context.traceIdHigh());
+        }
+        pos = writeLong(bytes, pos, context.traceId());
+        writeLong(bytes, pos, context.spanId());
+        return ENCODER.encodeToString(bytes);
+    }
+
+    /**
+     * @return 格式不正确时返回null
+     */
+    static TraceContextOrSamplingFlags parseBinary(String value) {
+        byte[] bytes;
+        try {
+            bytes = DECODER.decode(value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (bytes.length < BINARY_SIZE || bytes[0] != VERSION) {
+            return null;
+        }
+        int flags = bytes[1];
+        boolean traceIdHigh = (flags & FLAG_TRACE_ID_HIGH) != 0;
+        if (bytes.length != (traceIdHigh ? BINARY_SIZE + 8 : BINARY_SIZE)) {
+            return null;
+        }
+        int pos = 2;
+        long high = 0L;
+        if (traceIdHigh) {
+            high = readLong(bytes, pos);
+            pos += 8;
+        }
+        long traceId = readLong(bytes, pos);
+        long spanId = readLong(bytes, pos + 8);
+        if (traceId == 0L || spanId == 0L) {
+            return null;
+        }
+        TraceContext.Builder builder = TraceContext.newBuilder().traceIdHigh(high).traceId(traceId).spanId(spanId);
+        if ((flags & FLAG_DEBUG) != 0) {
+            builder.debug(true);
+        } else if ((flags & FLAG_SAMPLED_SET) != 0) {
+            builder.sampled((flags & FLAG_SAMPLED) != 0);
+        }
+        return TraceContextOrSamplingFlags.create(builder.build());
+    }
+
+    private static int writeLong(byte[] bytes, int pos, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            bytes[pos++] = (byte) (value >>> shift);
+        }
+        return pos;
+    }
+
+    private static long readLong(byte[] bytes, int pos) {
+        long value = 0L;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[pos + i] & 0xff);
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,23 @@
+package top.liumian.zipkin.core.mq;
+
+/**
+ * 为RocketMQ客户端开启链路跟踪的方式
+ *
+ * @author liumian  2022/10/6 10:00
+ */
+public enum InstrumentationMode {
+
+    /**
+     * 通过CGLIB生成生产者/消费者的子类，拦截发送方法和监听器注册，
+     * 一次发送只有一个span（包含客户端重试），业务异常会记录到消费span上
+     */
+    PROXY,
+
+    /**
+     * 在原对象上注册RocketMQ自带的 SendMessageHook/ConsumeMessageHook，不生成字节码，
+     * 返回的仍是原对象，适用于生产者/消费者的子类或无法被继承的场景。
+     * 每次向broker发送（包括重试）各有一个span，消费端只能拿到消费状态，拿不到业务异常
+     */
+    HOOK
+
+}
@@ -0,0 +1,66 @@
+package top.liumian.zipkin.core.mq;
+
+import brave.propagation.Propagation;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageExt;
+
+import java.util.Collection;
+
+/**
+ * 直接读写RocketMQ消息属性的链路上下文存取器，无需中间Map
+ *
+ * @author liumian  2022/8/20 10:12
+ */
+public final class MessagePropagation {
+
+    /**
+     * 将链路信息写入单条消息的用户属性
+     */
+    public static final Propagation.Setter<Message, String> MESSAGE_SETTER = new Propagation.Setter<Message, String>() {
+        @Override
+        public void put(Message message, String key, String value) {
+            message.putUserProperty(key, value);
+        }
+
+        @Override
+        public String toString() {
+            return "Message::putUserProperty";
+        }
+    };
+
+    /**
+     * 将同一份链路信息写入批量消息中的每一条消息
+     */
+    public static final Propagation.Setter<Collection<Message>, String> BATCH_SETTER = new Propagation.Setter<Collection<Message>, String>() {
+        @Override
+        public void put(Collection<Message> messages, String key, String value) {
+            for (Message message : messages) {
+                message.putUserProperty(key, value);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Collection<Message>::putUserProperty";
+        }
+    };
+
+    /**
+     * 从消费到的消息属性中读取链路信息
+     */
+    public static final Propagation.Getter<MessageExt, String> MESSAGE_GETTER = new Propagation.Getter<MessageExt, String>() {
+        @Override
+        public String get(MessageExt message, String key) {
+            return message.getUserProperty(key);
+        }
+
+        @Override
+        public String toString() {
+            return "MessageExt::getUserProperty";
+        }
+    };
+
+    private MessagePropagation() {
+    }
+
+}
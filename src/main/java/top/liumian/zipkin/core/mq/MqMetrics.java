@@ -0,0 +1,183 @@
+package top.liumian.zipkin.core.mq;
+
+import top.liumian.zipkin.core.metrics.LatencyHistogram;
+import top.liumian.zipkin.core.metrics.RedMetrics;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 按topic统计的发送指标、按消费组和topic统计的消费指标，以及按队列统计的消费延迟
+ * <p>
+ * 由发送代理和消费监听器在每次调用时记录，不受采样影响，可以在大幅降低采样率的同时保留完整的延迟分布。
+ * 通过 {@link #sendSnapshot()}、{@link #consumeSnapshot()} 和 {@link #consumeLagSnapshot()} 拉取。
+ *
+ * @author liumian  2022/10/2 11:00
+ */
+public final class MqMetrics {
+
+    static final String UNKNOWN = "unknown";
+
+    private final ConcurrentMap<String, RedMetrics> send = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, ConcurrentMap<String, RedMetrics>> consume = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, BrokerQueues>>> consumeLag = new ConcurrentHashMap<>();
+
+    public static MqMetrics create() {
+        return new MqMetrics();
+    }
+
+    private MqMetrics() {
+    }
+
+    /**
+     * @param topic topic
+     * @return 该topic的发送指标
+     */
+    public RedMetrics send(String topic) {
+        return metrics(send, topic);
+    }
+
+    /**
+     * @param consumerGroup 消费组
+     * @param topic         topic
+     * @return 该消费组在该topic上的消费指标
+     */
+    public RedMetrics consume(String consumerGroup, String topic) {
+        String group = consumerGroup != null ? consumerGroup : UNKNOWN;
+        ConcurrentMap<String, RedMetrics> byTopic = consume.get(group);
+        if (byTopic == null) {
+            byTopic = consume.computeIfAbsent(group, key -> new ConcurrentHashMap<>());
+        }
+        return metrics(byTopic, topic);
+    }
+
+    /**
+     * 消息从broker存储到开始消费的等待时间，可作为扩容消费者的依据
+     *
+     * @param consumerGroup 消费组
+     * @param topic         topic
+     * @param brokerName    broker名称
+     * @param queueId       队列id
+     * @return 该队列的消费延迟分布
+     */
+    public LatencyHistogram consumeLag(String consumerGroup, String topic, String brokerName, int queueId) {
+        ConcurrentMap<String, ConcurrentMap<String, BrokerQueues>> byTopic = child(consumeLag, consumerGroup);
+        ConcurrentMap<String, BrokerQueues> byBroker = child(byTopic, topic);
+        String broker = brokerName != null ? brokerName : UNKNOWN;
+        BrokerQueues queues = byBroker.get(broker);
+        if (queues == null) {
+            queues = byBroker.computeIfAbsent(broker, key -> new BrokerQueues());
+        }
+        return queues.get(Math.max(queueId, 0));
+    }
+
+    private static <V> ConcurrentMap<String, V> child(ConcurrentMap<String, ConcurrentMap<String, V>> parent, String key) {
+        String name = key != null ? key : UNKNOWN;
+        ConcurrentMap<String, V> child = parent.get(name);
+        if (child == null) {
+            child = parent.computeIfAbsent(name, k -> new ConcurrentHashMap<>());
+        }
+        return child;
+    }
+
+    /**
+     * 先无锁读取，不存在时才创建，避免computeIfAbsent在已有key上加锁
+     */
+    private static RedMetrics metrics(ConcurrentMap<String, RedMetrics> metrics, String key) {
+        String name = key != null ? key : UNKNOWN;
+        RedMetrics result = metrics.get(name);
+        if (result == null) {
+            result = metrics.computeIfAbsent(name, k -> new RedMetrics());
+        }
+        return result;
+    }
+
+    /**
+     * @return topic到发送指标快照的映射
+     */
+    public Map<String, RedMetrics.Snapshot> sendSnapshot() {
+        return snapshot(send);
+    }
+
+    /**
+     * @return 消费组到（topic到消费指标快照）的映射
+     */
+    public Map<String, Map<String, RedMetrics.Snapshot>> consumeSnapshot() {
+        Map<String, Map<String, RedMetrics.Snapshot>> snapshot = new LinkedHashMap<>();
+        consume.forEach((group, byTopic) -> snapshot.put(group, snapshot(byTopic)));
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    /**
+     * @return 消费组到（topic到（broker名称-队列id到消费延迟快照））的映射
+     */
+    public Map<String, Map<String, Map<String, LatencyHistogram.Snapshot>>> consumeLagSnapshot() {
+        Map<String, Map<String, Map<String, LatencyHistogram.Snapshot>>> snapshot = new LinkedHashMap<>();
+        consumeLag.forEach((group, byTopic) -> {
+            Map<String, Map<String, LatencyHistogram.Snapshot>> topics = new LinkedHashMap<>();
+            byTopic.forEach((topic, byBroker) -> {
+                Map<String, LatencyHistogram.Snapshot> queues = new LinkedHashMap<>();
+                byBroker.forEach((broker, brokerQueues) -> brokerQueues.snapshot(broker, queues));
+                topics.put(topic, Collections.unmodifiableMap(queues));
+            });
+            snapshot.put(group, Collections.unmodifiableMap(topics));
+        });
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    private static Map<String, RedMetrics.Snapshot> snapshot(Map<String, RedMetrics> metrics) {
+        Map<String, RedMetrics.Snapshot> snapshot = new LinkedHashMap<>();
+        metrics.forEach((name, red) -> snapshot.put(name, red.snapshot()));
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    /**
+     * 一个broker上各队列的消费延迟，按队列id下标访问
+     */
+    private static final class BrokerQueues {
+
+        /**
+         * 同一队列通常只由少数线程消费，分段数不必太多
+         */
+        private static final int STRIPES = 2;
+
+        private volatile LatencyHistogram[] queues = new LatencyHistogram[0];
+
+        LatencyHistogram get(int queueId) {
+            LatencyHistogram[] current = queues;
+            LatencyHistogram histogram = queueId < current.length ? current[queueId] : null;
+            return histogram != null ? histogram : create(queueId);
+        }
+
+        private synchronized LatencyHistogram create(int queueId) {
+            LatencyHistogram[] current = queues;
+            if (queueId >= current.length) {
+                current = Arrays.copyOf(current, queueId + 1);
+            } else if (current[queueId] != null) {
+                return current[queueId];
+            } else {
+                current = current.clone();
+            }
+            LatencyHistogram histogram = new LatencyHistogram(STRIPES);
+            current[queueId] = histogram;
+            queues = current;
+            return histogram;
+        }
+
+        void snapshot(String broker, Map<String, LatencyHistogram.Snapshot> snapshot) {
+            LatencyHistogram[] current = queues;
+            for (int queueId = 0; queueId < current.length; queueId++) {
+                if (current[queueId] != null) {
+                    snapshot.put(broker + "-" + queueId, current[queueId].snapshot());
+                }
+            }
+        }
+    }
+
+}
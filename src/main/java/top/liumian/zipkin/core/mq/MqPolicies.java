@@ -0,0 +1,217 @@
+package top.liumian.zipkin.core.mq;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按topic和消费组生效的 {@link MqPolicy}，可以在运行时整体替换，例如由 {@link MqPolicyWatcher} 在策略文件变化时重新加载
+ * <p>
+ * topic和消费组名称第一次出现时分配一个固定的编号，此后不再变化；每次 {@link #update} 按编号生成不可变的策略数组，
+ * 通过一次volatile写整体替换。发送/消费时由各自的 {@link Resolver} 读取：消费组编号在创建时确定，
+ * topic编号缓存最近一次的结果，命中时不查map、不加锁，只按编号读一次数组。
+ * 消费组策略优先于topic策略，都没有时使用默认策略。
+ *
+ * @author liumian  2022/10/10 10:30
+ */
+public final class MqPolicies {
+
+    /**
+     * 未配置策略的名称最多分配的编号数量，超过后不再分配，这些名称始终使用默认策略
+     */
+    static final int MAX_UNCONFIGURED_NAMES = 4096;
+
+    private final ConcurrentMap<String, Integer> topicIds = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Integer> groupIds = new ConcurrentHashMap<>();
+
+    private final AtomicInteger nextTopicId = new AtomicInteger();
+
+    private final AtomicInteger nextGroupId = new AtomicInteger();
+
+    private volatile Snapshot snapshot = new Snapshot(MqPolicy.DEFAULT, Collections.emptyMap(), Collections.emptyMap(), new MqPolicy[0], new MqPolicy[0]);
+
+    /**
+     * 所有topic和消费组都使用 {@link MqPolicy#DEFAULT}
+     */
+    public static MqPolicies create() {
+        return new MqPolicies();
+    }
+
+    private MqPolicies() {
+    }
+
+    /**
+     * 整体替换所有策略，已创建的 {@link Resolver} 立即读到新策略
+     *
+     * @param defaults 没有匹配策略时使用的默认策略
+     * @param topics   按topic生效的策略
+     * @param groups   按消费组生效的策略，优先于topic策略
+     */
+    public synchronized void update(MqPolicy defaults, Map<String, MqPolicy> topics, Map<String, MqPolicy> groups) {
+        if (defaults == null || topics == null || groups == null) {
+            throw new NullPointerException("defaults == null || topics == null || groups == null");
+        }
+        Map<String, MqPolicy> topicPolicies = Collections.unmodifiableMap(new LinkedHashMap<>(topics));
+        Map<String, MqPolicy> groupPolicies = Collections.unmodifiableMap(new LinkedHashMap<>(groups));
+        this.snapshot = new Snapshot(defaults, topicPolicies, groupPolicies,
+                index(topicPolicies, topicIds, nextTopicId), index(groupPolicies, groupIds, nextGroupId));
+    }
+
+    /**
+     * @return 没有匹配策略时使用的默认策略
+     */
+    public MqPolicy defaults() {
+        return snapshot.defaults;
+    }
+
+    /**
+     * @return 按topic生效的策略，不可修改
+     */
+    public Map<String, MqPolicy> topics() {
+        return snapshot.topics;
+    }
+
+    /**
+     * @return 按消费组生效的策略，不可修改
+     */
+    public Map<String, MqPolicy> groups() {
+        return snapshot.groups;
+    }
+
+    /**
+     * 为发送端或一个消费组创建策略读取器，每个发送/消费链路跟踪实例各持有一个
+     *
+     * @param consumerGroup 消费组，发送端为null
+     * @return 读取器
+     */
+    public Resolver resolver(String consumerGroup) {
+        return new Resolver(consumerGroup == null ? -1 : id(groupIds, nextGroupId, consumerGroup, true));
+    }
+
+    /**
+     * 按编号排列的策略数组，没有策略的编号为null
+     */
+    private static MqPolicy[] index(Map<String, MqPolicy> policies, ConcurrentMap<String, Integer> ids, AtomicInteger nextId) {
+        int[] policyIds = new int[policies.size()];
+        int length = 0;
+        int i = 0;
+        for (String name : policies.keySet()) {
+            policyIds[i] = id(ids, nextId, name, true);
+            length = Math.max(length, policyIds[i++] + 1);
+        }
+        MqPolicy[] indexed = new MqPolicy[length];
+        i = 0;
+        for (MqPolicy policy : policies.values()) {
+            indexed[policyIds[i++]] = policy;
+        }
+        return indexed;
+    }
+
+    /**
+     * @param force 是否忽略 {@link #MAX_UNCONFIGURED_NAMES} 的限制，配置了策略的名称总会分配编号
+     * @return 名称的编号，超出限制时返回-1
+     */
+    private static int id(ConcurrentMap<String, Integer> ids, AtomicInteger nextId, String name, boolean force) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        if (!force && nextId.get() >= MAX_UNCONFIGURED_NAMES) {
+            return -1;
+        }
+        return ids.computeIfAbsent(name, key -> nextId.getAndIncrement());
+    }
+
+    /**
+     * 某一时刻的全部策略，创建后不再修改
+     */
+    private static final class Snapshot {
+
+        final MqPolicy defaults;
+
+        final Map<String, MqPolicy> topics;
+
+        final Map<String, MqPolicy> groups;
+
+        final MqPolicy[] topicPolicies;
+
+        final MqPolicy[] groupPolicies;
+
+        Snapshot(MqPolicy defaults, Map<String, MqPolicy> topics, Map<String, MqPolicy> groups, MqPolicy[] topicPolicies, MqPolicy[] groupPolicies) {
+            this.defaults = defaults;
+            this.topics = topics;
+            this.groups = groups;
+            this.topicPolicies = topicPolicies;
+            this.groupPolicies = groupPolicies;
+        }
+    }
+
+    /**
+     * 最近一次解析的topic及其编号，不可变，在线程间共享时无需同步
+     */
+    private static final class TopicId {
+
+        final String topic;
+
+        final int id;
+
+        TopicId(String topic, int id) {
+            this.topic = topic;
+            this.id = id;
+        }
+    }
+
+    /**
+     * 发送端或某个消费组的策略读取器，可以在多个线程中使用
+     */
+    public final class Resolver {
+
+        private final int groupId;
+
+        /**
+         * 不加volatile：读到旧值时只是多查一次map
+         */
+        private TopicId last;
+
+        private Resolver(int groupId) {
+            this.groupId = groupId;
+        }
+
+        /**
+         * @param topic 消息主题，可以为null
+         * @return 当前生效的策略，消费组策略优先于topic策略，都没有时返回默认策略
+         */
+        public MqPolicy resolve(String topic) {
+            Snapshot snapshot = MqPolicies.this.snapshot;
+            MqPolicy[] groupPolicies = snapshot.groupPolicies;
+            if (groupId >= 0 && groupId < groupPolicies.length && groupPolicies[groupId] != null) {
+                return groupPolicies[groupId];
+            }
+            MqPolicy[] topicPolicies = snapshot.topicPolicies;
+            if (topic != null && topicPolicies.length > 0) {
+                int topicId = topicId(topic);
+                if (topicId >= 0 && topicId < topicPolicies.length && topicPolicies[topicId] != null) {
+                    return topicPolicies[topicId];
+                }
+            }
+            return snapshot.defaults;
+        }
+
+        private int topicId(String topic) {
+            TopicId last = this.last;
+            if (last != null && (last.topic == topic || last.topic.equals(topic))) {
+                return last.id;
+            }
+            int id = id(topicIds, nextTopicId, topic, false);
+            if (id >= 0) {
+                this.last = new TopicId(topic, id);
+            }
+            return id;
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+package top.liumian.zipkin.core.mq;
+
+import brave.sampler.RateLimitingSampler;
+import brave.sampler.Sampler;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * 一个topic或消费组的链路跟踪策略：是否跟踪、新链路的采样器、记录哪些标签以及span名称，创建后不可修改
+ * <p>
+ * 关闭跟踪时不再记录span，并把当前及下游链路标记为未采样；采样器只对新链路生效，已有上游采样结果的消息沿用上游结果，
+ * 没有采样器时交给 {@link MqSampler} 和 {@link brave.Tracing} 的默认采样器。
+ *
+ * @author liumian  2022/10/10 10:10
+ */
+public final class MqPolicy {
+
+    /**
+     * 没有配置策略时使用，与引入策略之前的行为相同
+     */
+    public static final MqPolicy DEFAULT = newBuilder().build();
+
+    private final boolean enabled;
+
+    private final Sampler sampler;
+
+    private final int tags;
+
+    private final String sendName;
+
+    private final String consumeName;
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    private MqPolicy(Builder builder) {
+        this.enabled = builder.enabled;
+        this.sampler = builder.sampler;
+        this.tags = builder.tags;
+        this.sendName = builder.sendName;
+        this.consumeName = builder.consumeName;
+    }
+
+    /**
+     * @return 是否记录span
+     */
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * @return 新链路的采样器，没有时返回null
+     */
+    public Sampler sampler() {
+        return sampler;
+    }
+
+    /**
+     * @return 是否记录该标签
+     */
+    public boolean tag(MqTag tag) {
+        return (tags & tag.mask) != 0;
+    }
+
+    /**
+     * @return 记录的标签
+     */
+    public Set<MqTag> tags() {
+        Set<MqTag> tags = EnumSet.noneOf(MqTag.class);
+        for (MqTag tag : MqTag.values()) {
+            if (tag(tag)) {
+                tags.add(tag);
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * @return 发送span的名称
+     */
+    public String sendName() {
+        return sendName;
+    }
+
+    /**
+     * @return 消费span的名称
+     */
+    public String consumeName() {
+        return consumeName;
+    }
+
+    /**
+     * @return 以当前策略为初始值的Builder
+     */
+    public Builder toBuilder() {
+        Builder builder = new Builder();
+        builder.enabled = enabled;
+        builder.sampler = sampler;
+        builder.tags = tags;
+        builder.sendName = sendName;
+        builder.consumeName = consumeName;
+        return builder;
+    }
+
+    @Override
+    public String toString() {
+        return "MqPolicy{enabled=" + enabled + ", sampler=" + sampler + ", tags=" + tags()
+                + ", sendName=" + sendName + ", consumeName=" + consumeName + "}";
+    }
+
+    public static final class Builder {
+
+        private boolean enabled = true;
+
+        private Sampler sampler;
+
+        private int tags = MqTag.DEFAULTS;
+
+        private String sendName = "MQ/SEND";
+
+        private String consumeName = "MQ/CONSUME";
+
+        Builder() {
+        }
+
+        /**
+         * 是否记录span，默认true
+         *
+         * @param enabled 是否记录
+         * @return this
+         */
+        public Builder enabled(boolean enabled) {
+            this.enabled = enabled;
+            return this;
+        }
+
+        /**
+         * 按概率对新链路采样
+         *
+         * @param probability 采样率，0到1之间
+         * @return this
+         */
+        public Builder probability(float probability) {
+            return sampler(Sampler.create(probability));
+        }
+
+        /**
+         * 限制每秒最多采样的新链路数
+         *
+         * @param tracesPerSecond 每秒最多采样的链路数
+         * @return this
+         */
+        public Builder rateLimit(int tracesPerSecond) {
+            return sampler(RateLimitingSampler.create(tracesPerSecond));
+        }
+
+        /**
+         * 新链路的采样器，默认为null，即交给 {@link MqSampler} 和默认采样器
+         *
+         * @param sampler 采样器
+         * @return this
+         */
+        public Builder sampler(Sampler sampler) {
+            this.sampler = sampler;
+            return this;
+        }
+
+        /**
+         * 记录的标签，替换已有的设置，默认为 TOPIC、QUEUE_ID、RECONSUME_TIMES、STORE_LATENCY、CONSUME_LAG
+         *
+         * @param tags 标签
+         * @return this
+         */
+        public Builder tags(Set<MqTag> tags) {
+            if (tags == null) {
+                throw new NullPointerException("tags == null");
+            }
+            int mask = 0;
+            for (MqTag tag : tags) {
+                mask |= tag.mask;
+            }
+            this.tags = mask;
+            return this;
+        }
+
+        /**
+         * 发送span的名称，默认为 MQ/SEND
+         *
+         * @param sendName span名称
+         * @return this
+         */
+        public Builder sendName(String sendName) {
+            if (sendName == null || sendName.isEmpty()) {
+                throw new IllegalArgumentException("span名称不能为空");
+            }
+            this.sendName = sendName;
+            return this;
+        }
+
+        /**
+         * 消费span的名称，默认为 MQ/CONSUME
+         *
+         * @param consumeName span名称
+         * @return this
+         */
+        public Builder consumeName(String consumeName) {
+            if (consumeName == null || consumeName.isEmpty()) {
+                throw new IllegalArgumentException("span名称不能为空");
+            }
+            this.consumeName = consumeName;
+            return this;
+        }
+
+        public MqPolicy build() {
+            return new MqPolicy(this);
+        }
+    }
+
+}
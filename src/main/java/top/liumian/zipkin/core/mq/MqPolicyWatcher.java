@@ -0,0 +1,237 @@
+package top.liumian.zipkin.core.mq;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 监听本地策略文件，文件变化时重新加载到 {@link MqPolicies}
+ * <p>
+ * 策略文件为properties格式，default开头的配置为默认策略，topic/消费组策略以默认策略为初始值：
+ * <pre>
+ * default.tags=TOPIC,QUEUE_ID,RECONSUME_TIMES,STORE_LATENCY,CONSUME_LAG
+ * topic.order-event.enabled=false
+ * topic.audit-event.rate=10
+ * group.payment-group.probability=1.0
+ * group.payment-group.tags=QUEUE_ID,CONSUME_LAG,MSG_ID,KEYS
+ * group.payment-group.consume-name=payment/consume
+ * </pre>
+ * 可用的属性为 enabled、probability、rate（优先于probability）、tags（{@link MqTag} 名称，逗号分隔）、send-name、consume-name。
+ * <p>
+ * 监听文件所在的目录，目录中任何文件变化都会重新读取策略文件，内容没有变化时不更新，
+ * 因此通过替换符号链接发布的文件（例如Kubernetes ConfigMap）同样可以生效。加载失败时记录警告并继续使用上一版本的策略。
+ *
+ * @author liumian  2022/10/10 11:00
+ */
+public final class MqPolicyWatcher implements Closeable {
+
+    private final static Logger logger = Logger.getLogger(MqPolicyWatcher.class.getName());
+
+    private final Path file;
+
+    private final MqPolicies policies;
+
+    private final WatchService watchService;
+
+    private final Thread watchThread;
+
+    /**
+     * 最近一次成功加载的文件内容
+     */
+    private byte[] loaded;
+
+    /**
+     * 加载策略文件并开始监听，文件不存在时使用默认策略，等待文件创建；文件内容有误时抛出异常
+     *
+     * @param file     策略文件
+     * @param policies 加载到的策略
+     * @return 监听器，不再需要时关闭
+     * @throws IOException 无法监听文件所在目录
+     */
+    public static MqPolicyWatcher start(Path file, MqPolicies policies) throws IOException {
+        if (file == null || policies == null) {
+            throw new NullPointerException("file == null || policies == null");
+        }
+        MqPolicyWatcher watcher = new MqPolicyWatcher(file.toAbsolutePath(), policies);
+        try {
+            watcher.reload();
+        } catch (NoSuchFileException e) {
+            logger.log(Level.WARNING, "策略文件不存在，使用默认策略: " + file);
+        } catch (IOException | RuntimeException e) {
+            watcher.close();
+            throw e;
+        }
+        watcher.watchThread.start();
+        return watcher;
+    }
+
+    private MqPolicyWatcher(Path file, MqPolicies policies) throws IOException {
+        this.file = file;
+        this.policies = policies;
+        this.watchService = file.getFileSystem().newWatchService();
+        file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        this.watchThread = new Thread(this::watchLoop, "MqPolicyWatcher{" + file + "}");
+        this.watchThread.setDaemon(true);
+    }
+
+    /**
+     * 立即重新读取策略文件
+     *
+     * @return 内容有变化并已更新时返回true
+     * @throws IOException 读取失败，策略不变
+     */
+    public synchronized boolean reload() throws IOException {
+        byte[] content = Files.readAllBytes(file);
+        if (Arrays.equals(content, loaded)) {
+            return false;
+        }
+        Properties properties = new Properties();
+        properties.load(new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8));
+        apply(properties, policies);
+        loaded = content;
+        return true;
+    }
+
+    private void watchLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            key.pollEvents();
+            try {
+                if (reload()) {
+                    logger.log(Level.INFO, "已重新加载策略文件: " + file);
+                }
+            } catch (NoSuchFileException e) {
+                // 文件被删除或正在替换，等待下一次变化
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "重新加载策略文件失败，继续使用上一版本: " + e.getMessage());
+            }
+            if (!key.reset()) {
+                logger.log(Level.WARNING, "策略文件所在目录已不可用，停止监听: " + file.getParent());
+                return;
+            }
+        }
+    }
+
+    /**
+     * 解析策略配置并整体替换，配置有误时抛出 {@link IllegalArgumentException}，策略不变
+     */
+    static void apply(Properties properties, MqPolicies policies) {
+        Map<String, String> defaults = new HashMap<>();
+        Map<String, Map<String, String>> topics = new LinkedHashMap<>();
+        Map<String, Map<String, String>> groups = new LinkedHashMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            String value = properties.getProperty(key).trim();
+            if (key.startsWith("default.")) {
+                defaults.put(key.substring("default.".length()), value);
+            } else if (key.startsWith("topic.")) {
+                put(topics, key, key.substring("topic.".length()), value);
+            } else if (key.startsWith("group.")) {
+                put(groups, key, key.substring("group.".length()), value);
+            } else {
+                throw new IllegalArgumentException("无法识别的策略配置: " + key);
+            }
+        }
+        MqPolicy defaultPolicy = policy(MqPolicy.DEFAULT, defaults);
+        policies.update(defaultPolicy, policies(defaultPolicy, topics), policies(defaultPolicy, groups));
+    }
+
+    /**
+     * topic和消费组名称中不能包含 '.'，最后一个 '.' 之后为属性名
+     */
+    private static void put(Map<String, Map<String, String>> attributes, String key, String nameAndAttribute, String value) {
+        int dot = nameAndAttribute.lastIndexOf('.');
+        if (dot <= 0 || dot == nameAndAttribute.length() - 1) {
+            throw new IllegalArgumentException("无法识别的策略配置: " + key);
+        }
+        attributes.computeIfAbsent(nameAndAttribute.substring(0, dot), name -> new HashMap<>())
+                .put(nameAndAttribute.substring(dot + 1), value);
+    }
+
+    private static Map<String, MqPolicy> policies(MqPolicy defaults, Map<String, Map<String, String>> attributes) {
+        Map<String, MqPolicy> policies = new LinkedHashMap<>();
+        attributes.forEach((name, policyAttributes) -> policies.put(name, policy(defaults, policyAttributes)));
+        return policies;
+    }
+
+    private static MqPolicy policy(MqPolicy base, Map<String, String> attributes) {
+        MqPolicy.Builder builder = base.toBuilder();
+        for (String attribute : attributes.keySet()) {
+            switch (attribute) {
+                case "enabled":
+                case "probability":
+                case "rate":
+                case "tags":
+                case "send-name":
+                case "consume-name":
+                    break;
+                default:
+                    throw new IllegalArgumentException("无法识别的策略属性: " + attribute);
+            }
+        }
+        String enabled = attributes.get("enabled");
+        if (enabled != null) {
+            if (!"true".equalsIgnoreCase(enabled) && !"false".equalsIgnoreCase(enabled)) {
+                throw new IllegalArgumentException("enabled只能为true或false: " + enabled);
+            }
+            builder.enabled(Boolean.parseBoolean(enabled));
+        }
+        String rate = attributes.get("rate");
+        String probability = attributes.get("probability");
+        if (rate != null) {
+            builder.rateLimit(Integer.parseInt(rate));
+        } else if (probability != null) {
+            builder.probability(Float.parseFloat(probability));
+        }
+        String tags = attributes.get("tags");
+        if (tags != null) {
+            Set<MqTag> tagSet = EnumSet.noneOf(MqTag.class);
+            for (String tag : tags.split(",")) {
+                if (!tag.trim().isEmpty()) {
+                    tagSet.add(MqTag.valueOf(tag.trim()));
+                }
+            }
+            builder.tags(tagSet);
+        }
+        String sendName = attributes.get("send-name");
+        if (sendName != null) {
+            builder.sendName(sendName);
+        }
+        String consumeName = attributes.get("consume-name");
+        if (consumeName != null) {
+            builder.consumeName(consumeName);
+        }
+        return builder.build();
+    }
+
+    /**
+     * 停止监听，已加载的策略保持不变
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+}
@@ -0,0 +1,131 @@
+package top.liumian.zipkin.core.mq;
+
+import brave.sampler.RateLimitingSampler;
+import brave.sampler.Sampler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 按topic和消费组声明的采样规则，只对新链路生效，已有上游采样结果的消息沿用上游结果
+ * <p>
+ * 没有匹配规则时返回null，交给 {@link brave.Tracing} 的默认采样器处理。
+ *
+ * @author liumian  2022/9/17 10:15
+ */
+public final class MqSampler {
+
+    private final Map<String, Sampler> topicSamplers;
+
+    private final Map<String, Sampler> groupSamplers;
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    private MqSampler(Builder builder) {
+        this.topicSamplers = new HashMap<>(builder.topicSamplers);
+        this.groupSamplers = new HashMap<>(builder.groupSamplers);
+    }
+
+    /**
+     * 发送消息时的采样决策
+     *
+     * @param topic 消息主题
+     * @return 采样结果，没有匹配规则时返回null
+     */
+    public Boolean trySample(String topic) {
+        Sampler sampler = topic == null ? null : topicSamplers.get(topic);
+        return sampler == null ? null : sampler.isSampled(0L);
+    }
+
+    /**
+     * 消费消息时的采样决策，消费组规则优先于topic规则
+     *
+     * @param group 消费组
+     * @param topic 消息主题
+     * @return 采样结果，没有匹配规则时返回null
+     */
+    public Boolean trySample(String group, String topic) {
+        Sampler sampler = group == null ? null : groupSamplers.get(group);
+        if (sampler == null) {
+            return trySample(topic);
+        }
+        return sampler.isSampled(0L);
+    }
+
+    public static final class Builder {
+
+        private final Map<String, Sampler> topicSamplers = new HashMap<>();
+
+        private final Map<String, Sampler> groupSamplers = new HashMap<>();
+
+        Builder() {
+        }
+
+        /**
+         * 按概率对topic采样
+         *
+         * @param topic       消息主题
+         * @param probability 采样率，0到1之间
+         * @return this
+         */
+        public Builder topicProbability(String topic, float probability) {
+            return putTopic(topic, Sampler.create(probability));
+        }
+
+        /**
+         * 限制topic每秒最多采样的链路数
+         *
+         * @param topic          消息主题
+         * @param tracesPerSecond 每秒最多采样的链路数
+         * @return this
+         */
+        public Builder topicRateLimit(String topic, int tracesPerSecond) {
+            return putTopic(topic, RateLimitingSampler.create(tracesPerSecond));
+        }
+
+        /**
+         * 按概率对消费组采样
+         *
+         * @param group       消费组
+         * @param probability 采样率，0到1之间
+         * @return this
+         */
+        public Builder groupProbability(String group, float probability) {
+            return putGroup(group, Sampler.create(probability));
+        }
+
+        /**
+         * 限制消费组每秒最多采样的链路数
+         *
+         * @param group          消费组
+         * @param tracesPerSecond 每秒最多采样的链路数
+         * @return this
+         */
+        public Builder groupRateLimit(String group, int tracesPerSecond) {
+            return putGroup(group, RateLimitingSampler.create(tracesPerSecond));
+        }
+
+        public Builder putTopic(String topic, Sampler sampler) {
+            if (topic == null || sampler == null) {
+                throw new NullPointerException("topic == null || sampler == null");
+            }
+            topicSamplers.put(topic, sampler);
+            return this;
+        }
+
+        public Builder putGroup(String group, Sampler sampler) {
+            if (group == null || sampler == null) {
+                throw new NullPointerException("group == null || sampler == null");
+            }
+            groupSamplers.put(group, sampler);
+            return this;
+        }
+
+        public MqSampler build() {
+            return new MqSampler(this);
+        }
+    }
+
+}
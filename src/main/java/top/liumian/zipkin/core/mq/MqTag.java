@@ -0,0 +1,71 @@
+package top.liumian.zipkin.core.mq;
+
+/**
+ * 发送/消费span上可以按 {@link MqPolicy} 开关的标签，批量消费的 mq.batch.size、mq.links、mq.batch.id 始终记录
+ *
+ * @author liumian  2022/10/10 10:00
+ */
+public enum MqTag {
+
+    /**
+     * 发送span的 mq.topic
+     */
+    TOPIC("mq.topic"),
+
+    /**
+     * 消费span的 mq.queue.id
+     */
+    QUEUE_ID("mq.queue.id"),
+
+    /**
+     * 消费span的 mq.reconsume.times
+     */
+    RECONSUME_TIMES("mq.reconsume.times"),
+
+    /**
+     * 消费span的 mq.store.latency，发送到存储的毫秒数
+     */
+    STORE_LATENCY("mq.store.latency"),
+
+    /**
+     * 消费span的 mq.consume.lag，存储到开始消费的毫秒数，批量消费时取最早的消息
+     */
+    CONSUME_LAG("mq.consume.lag"),
+
+    /**
+     * 消费span的 mq.msg.id
+     */
+    MSG_ID("mq.msg.id"),
+
+    /**
+     * 发送/消费span的 mq.keys，即消息的业务key
+     */
+    KEYS("mq.keys"),
+
+    /**
+     * 发送/消费span的 mq.tags，即消息的tag
+     */
+    TAGS("mq.tags");
+
+    /**
+     * 默认记录的标签，与引入策略之前的行为相同
+     */
+    static final int DEFAULTS = TOPIC.mask | QUEUE_ID.mask | RECONSUME_TIMES.mask | STORE_LATENCY.mask | CONSUME_LAG.mask;
+
+    private final String key;
+
+    final int mask;
+
+    MqTag(String key) {
+        this.key = key;
+        this.mask = 1 << ordinal();
+    }
+
+    /**
+     * @return span上的标签名
+     */
+    public String key() {
+        return key;
+    }
+
+}
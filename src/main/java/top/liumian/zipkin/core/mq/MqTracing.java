@@ -0,0 +1,273 @@
+package top.liumian.zipkin.core.mq;
+
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageExt;
+import top.liumian.zipkin.core.mq.consumer.BatchTracingMode;
+
+import java.util.Collection;
+
+/**
+ * RocketMQ链路跟踪上下文，缓存可复用的Injector/Extractor，避免在每条消息上重复创建
+ *
+ * @author liumian  2022/8/20 10:30
+ */
+public final class MqTracing {
+
+    private final Tracing tracing;
+
+    private final TraceContext.Injector<Message> messageInjector;
+
+    private final TraceContext.Injector<Collection<Message>> batchInjector;
+
+    private final TraceContext.Extractor<MessageExt> messageExtractor;
+
+    private final BatchTracingMode batchTracingMode;
+
+    private final MqSampler sampler;
+
+    private final MqPolicies policies;
+
+    private final PropagationFormat propagationFormat;
+
+    private final MqMetrics metrics;
+
+    private final boolean queueSpan;
+
+    private final InstrumentationMode instrumentationMode;
+
+    public static MqTracing create(Tracing tracing) {
+        return newBuilder(tracing).build();
+    }
+
+    public static Builder newBuilder(Tracing tracing) {
+        return new Builder(tracing);
+    }
+
+    private MqTracing(Builder builder) {
+        Tracing tracing = builder.tracing;
+        this.tracing = tracing;
+        this.batchTracingMode = builder.batchTracingMode;
+        this.sampler = builder.sampler;
+        this.policies = builder.policies;
+        this.propagationFormat = builder.propagationFormat;
+        this.metrics = builder.metrics;
+        this.queueSpan = builder.queueSpan;
+        this.instrumentationMode = builder.instrumentationMode;
+        switch (propagationFormat) {
+            case B3_SINGLE:
+                this.messageInjector = CompactPropagation.messageInjector(CompactPropagation.B3, CompactPropagation.B3_WRITER);
+                this.batchInjector = CompactPropagation.batchInjector(CompactPropagation.B3, CompactPropagation.B3_WRITER);
+                break;
+            case BINARY:
+                this.messageInjector = CompactPropagation.messageInjector(CompactPropagation.BINARY, CompactPropagation.BINARY_WRITER);
+                this.batchInjector = CompactPropagation.batchInjector(CompactPropagation.BINARY, CompactPropagation.BINARY_WRITER);
+                break;
+            default:
+                this.messageInjector = tracing.propagation().injector(MessagePropagation.MESSAGE_SETTER);
+                this.batchInjector = tracing.propagation().injector(MessagePropagation.BATCH_SETTER);
+        }
+        this.messageExtractor = CompactPropagation.extractor(tracing.propagation().extractor(MessagePropagation.MESSAGE_GETTER));
+    }
+
+    public Tracing tracing() {
+        return tracing;
+    }
+
+    /**
+     * @return 将链路信息写入单条消息的Injector
+     */
+    public TraceContext.Injector<Message> messageInjector() {
+        return messageInjector;
+    }
+
+    /**
+     * @return 将链路信息写入批量消息的Injector
+     */
+    public TraceContext.Injector<Collection<Message>> batchInjector() {
+        return batchInjector;
+    }
+
+    /**
+     * @return 从消费消息中读取链路信息的Extractor，可以识别所有 {@link PropagationFormat}
+     */
+    public TraceContext.Extractor<MessageExt> messageExtractor() {
+        return messageExtractor;
+    }
+
+    /**
+     * @return 批量消费时的链路跟踪方式
+     */
+    public BatchTracingMode batchTracingMode() {
+        return batchTracingMode;
+    }
+
+    /**
+     * @return 按topic和消费组声明的采样规则
+     */
+    public MqSampler sampler() {
+        return sampler;
+    }
+
+    /**
+     * @return 按topic和消费组生效、可以在运行时替换的链路跟踪策略
+     */
+    public MqPolicies policies() {
+        return policies;
+    }
+
+    /**
+     * @return 发送端写入链路信息的格式
+     */
+    public PropagationFormat propagationFormat() {
+        return propagationFormat;
+    }
+
+    /**
+     * @return 发送与消费指标，未开启时返回null
+     */
+    public MqMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * @return 消费时是否补记消息在broker中等待的span
+     */
+    public boolean queueSpan() {
+        return queueSpan;
+    }
+
+    /**
+     * @return 为生产者/消费者开启链路跟踪的方式
+     */
+    public InstrumentationMode instrumentationMode() {
+        return instrumentationMode;
+    }
+
+    public static final class Builder {
+
+        private final Tracing tracing;
+
+        private BatchTracingMode batchTracingMode = BatchTracingMode.LINKS;
+
+        private MqSampler sampler = MqSampler.newBuilder().build();
+
+        private MqPolicies policies = MqPolicies.create();
+
+        private PropagationFormat propagationFormat = PropagationFormat.DEFAULT;
+
+        private MqMetrics metrics;
+
+        private boolean queueSpan;
+
+        private InstrumentationMode instrumentationMode = InstrumentationMode.PROXY;
+
+        Builder(Tracing tracing) {
+            if (tracing == null) {
+                throw new NullPointerException("tracing == null");
+            }
+            this.tracing = tracing;
+        }
+
+        /**
+         * 批量消费时的链路跟踪方式，默认为 {@link BatchTracingMode#LINKS}
+         *
+         * @param batchTracingMode 链路跟踪方式
+         * @return this
+         */
+        public Builder batchTracingMode(BatchTracingMode batchTracingMode) {
+            if (batchTracingMode == null) {
+                throw new NullPointerException("batchTracingMode == null");
+            }
+            this.batchTracingMode = batchTracingMode;
+            return this;
+        }
+
+        /**
+         * 按topic和消费组声明的采样规则，默认没有任何规则
+         *
+         * @param sampler 采样规则
+         * @return this
+         */
+        public Builder sampler(MqSampler sampler) {
+            if (sampler == null) {
+                throw new NullPointerException("sampler == null");
+            }
+            this.sampler = sampler;
+            return this;
+        }
+
+        /**
+         * 按topic和消费组生效的链路跟踪策略，默认所有topic和消费组都使用 {@link MqPolicy#DEFAULT}
+         *
+         * @param policies 链路跟踪策略，之后对它的更新立即生效
+         * @return this
+         */
+        public Builder policies(MqPolicies policies) {
+            if (policies == null) {
+                throw new NullPointerException("policies == null");
+            }
+            this.policies = policies;
+            return this;
+        }
+
+        /**
+         * 发送端写入链路信息的格式，默认为 {@link PropagationFormat#DEFAULT}
+         *
+         * @param propagationFormat 链路信息格式
+         * @return this
+         */
+        public Builder propagationFormat(PropagationFormat propagationFormat) {
+            if (propagationFormat == null) {
+                throw new NullPointerException("propagationFormat == null");
+            }
+            this.propagationFormat = propagationFormat;
+            return this;
+        }
+
+        /**
+         * 记录每次发送和消费的请求数、错误数与耗时分布，不受采样影响，默认不记录
+         *
+         * @param metrics 指标
+         * @return this
+         */
+        public Builder metrics(MqMetrics metrics) {
+            if (metrics == null) {
+                throw new NullPointerException("metrics == null");
+            }
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * 消费时是否补记一个从消息存储到开始消费的 MQ/QUEUED span，默认不记录，消费span上的 mq.consume.lag 标签不受影响
+         *
+         * @param queueSpan 是否补记
+         * @return this
+         */
+        public Builder queueSpan(boolean queueSpan) {
+            this.queueSpan = queueSpan;
+            return this;
+        }
+
+        /**
+         * 为生产者/消费者开启链路跟踪的方式，默认为 {@link InstrumentationMode#PROXY}
+         *
+         * @param instrumentationMode 链路跟踪方式
+         * @return this
+         */
+        public Builder instrumentationMode(InstrumentationMode instrumentationMode) {
+            if (instrumentationMode == null) {
+                throw new NullPointerException("instrumentationMode == null");
+            }
+            this.instrumentationMode = instrumentationMode;
+            return this;
+        }
+
+        public MqTracing build() {
+            return new MqTracing(this);
+        }
+    }
+
+}
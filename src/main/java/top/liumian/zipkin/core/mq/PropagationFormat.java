@@ -0,0 +1,28 @@
+package top.liumian.zipkin.core.mq;
+
+/**
+ * 链路信息写入RocketMQ消息属性的格式
+ * <p>
+ * 无论选择哪种格式，消费端都能同时识别三种格式，升级时先升级消费端即可。
+ * 紧凑格式只携带trace id、span id和采样标记，不携带baggage等附加字段。
+ *
+ * @author liumian  2022/10/1 10:00
+ */
+public enum PropagationFormat {
+
+    /**
+     * 使用tracing.propagation()的默认格式，B3时为X-B3-TraceId、X-B3-SpanId等多个属性
+     */
+    DEFAULT,
+
+    /**
+     * 单个b3属性，格式为 {traceId}-{spanId}-{sampled}
+     */
+    B3_SINGLE,
+
+    /**
+     * 二进制打包后以base64编码的单个属性，64位trace id时只占24个字符
+     */
+    BINARY
+
+}
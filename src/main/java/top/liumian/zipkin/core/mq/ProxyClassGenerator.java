@@ -0,0 +1,66 @@
+package top.liumian.zipkin.core.mq;
+
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import top.liumian.zipkin.core.mq.consumer.TracingConsumerProxyFactory;
+import top.liumian.zipkin.core.mq.producer.TracingProducerProxyFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * 在构建时预生成链路跟踪代理类，运行时直接从classpath加载，启动时不再生成任何类
+ * <p>
+ * 在应用构建的 process-classes 阶段执行，输出到 target/classes，参数为输出目录和需要代理的生产者/消费者类，
+ * 不指定类时生成 DefaultMQProducer 和 DefaultMQPushConsumer 的代理类：
+ *
+ * <pre>{@code
+ * java -cp <classpath> top.liumian.zipkin.core.mq.ProxyClassGenerator target/classes com.example.OrderProducer
+ * }</pre>
+ * <p>
+ * 每个代理类旁有一个签名文件，运行时的RocketMQ版本或本starter的分发规则与生成时不一致时自动改为运行时生成。
+ *
+ * @author liumian  2022/10/7 14:00
+ */
+public final class ProxyClassGenerator {
+
+    private ProxyClassGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("usage: ProxyClassGenerator <output directory> [producer or consumer class ...]");
+            System.exit(1);
+        }
+        Path directory = Paths.get(args[0]);
+        if (args.length == 1) {
+            System.out.println(generate(DefaultMQProducer.class, directory));
+            System.out.println(generate(DefaultMQPushConsumer.class, directory));
+            return;
+        }
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        for (int i = 1; i < args.length; i++) {
+            System.out.println(generate(Class.forName(args[i], false, classLoader), directory));
+        }
+    }
+
+    /**
+     * 生成代理类及其签名文件
+     *
+     * @param type      DefaultMQProducer或DefaultMQPushConsumer及其子类
+     * @param directory 输出目录
+     * @return 代理类名称
+     * @throws IOException 写入失败
+     */
+    public static String generate(Class<?> type, Path directory) throws IOException {
+        if (DefaultMQProducer.class.isAssignableFrom(type)) {
+            return TracingProducerProxyFactory.generateProxyClass(type.asSubclass(DefaultMQProducer.class), directory);
+        } else if (DefaultMQPushConsumer.class.isAssignableFrom(type)) {
+            return TracingConsumerProxyFactory.generateProxyClass(type.asSubclass(DefaultMQPushConsumer.class), directory);
+        } else {
+            throw new IllegalArgumentException(type.getName() + " 不是DefaultMQProducer或DefaultMQPushConsumer");
+        }
+    }
+
+}
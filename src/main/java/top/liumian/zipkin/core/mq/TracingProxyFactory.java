@@ -1,13 +1,70 @@
 package top.liumian.zipkin.core.mq;
 
 import brave.Tracing;
+import net.sf.cglib.core.DefaultGeneratorStrategy;
+import net.sf.cglib.core.NamingPolicy;
+import net.sf.cglib.core.Predicate;
+import net.sf.cglib.proxy.Callback;
+import net.sf.cglib.proxy.CallbackFilter;
+import net.sf.cglib.proxy.Dispatcher;
 import net.sf.cglib.proxy.Enhancer;
+import net.sf.cglib.proxy.Factory;
 import net.sf.cglib.proxy.MethodInterceptor;
+import net.sf.cglib.proxy.NoOp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
+ * 基于CGLIB子类的链路跟踪代理
+ * <p>
+ * 代理类按目标类和分发规则只生成一次，之后直接实例化并设置回调，不再经过Enhancer。
+ * 缓存的只有代理类本身，不持有任何代理对象、被代理对象或Tracing，并随目标类的类加载器一起回收。
+ * 代理类名称是确定的，可以在构建时通过 {@link ProxyClassGenerator} 预先生成，运行时从classpath加载，启动时不再生成任何类。
+ *
  * @author liumian  2022/8/7 17:08
  */
-public abstract class TracingProxyFactory<T> implements MethodInterceptor {
+public abstract class TracingProxyFactory<T> {
+
+    /**
+     * 设置为false时忽略classpath中预生成的代理类
+     */
+    public static final String PREGENERATED_PROPERTY = "zipkin.rocketmq.proxy.pregenerated";
+
+    /**
+     * 预生成代理类旁的签名文件后缀，内容为生成时目标类public方法的摘要
+     */
+    static final String FINGERPRINT_SUFFIX = ".fingerprint";
+
+    /**
+     * CGLIB生成的代理类中设置当前线程回调的静态方法
+     */
+    private static final String SET_THREAD_CALLBACKS = "CGLIB$SET_THREAD_CALLBACKS";
+
+    /**
+     * 不需要链路跟踪的方法，直接转发给被代理对象，不经过反射
+     */
+    protected static final int PASS_THROUGH = 0;
+
+    /**
+     * 非public方法，由代理对象自身处理
+     */
+    protected static final int SELF = 1;
+
+    /**
+     * 需要链路跟踪的方法对应的第一个回调下标，子类的回调从此处开始编号
+     */
+    protected static final int TRACED = 2;
 
     protected final Tracing tracing;
     protected final T instance;
@@ -23,14 +80,257 @@ public abstract class TracingProxyFactory<T> implements MethodInterceptor {
      * @return 代理对象
      */
     protected T getProxy() {
-        // 1. 创建Enhancer类对象，它类似于咱们JDK动态代理中的Proxy类，该类就是用来获取代理对象的
-        Enhancer enhancer = new Enhancer();
-        // 2. 设置父类的字节码对象。为啥子要这样做呢？因为使用CGLIB生成的代理类是属于目标类的子类的，也就是说代理类是要继承自目标类的
-        enhancer.setSuperclass(instance.getClass());
-        // 3. 设置回调函数
-        enhancer.setCallback(this);
-        // 4. 创建代理对象
-        return (T) enhancer.create();
+        return newInstance(callbackFilter().proxyClasses.get(instance.getClass()), callbacks());
+    }
+
+    /**
+     * 创建代理类的实例，与 Enhancer.registerCallbacks 相同，但不加载Enhancer：
+     * Enhancer的静态初始化本身就会生成类，使用预生成代理类时应完全避免
+     */
+    private static <T> T newInstance(Class<?> proxyClass, Callback[] callbacks) {
+        try {
+            Method setThreadCallbacks = proxyClass.getDeclaredMethod(SET_THREAD_CALLBACKS, Callback[].class);
+            setThreadCallbacks.invoke(null, (Object) callbacks);
+            try {
+                return (T) proxyClass.getDeclaredConstructor().newInstance();
+            } finally {
+                setThreadCallbacks.invoke(null, (Object) null);
+            }
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("无法创建代理: " + proxyClass.getName(), e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("无法创建代理: " + proxyClass.getName(), e);
+        }
+    }
+
+    /**
+     * 方法分发规则，需要是无状态的单例，代理类按分发规则缓存
+     *
+     * @return 分发规则
+     */
+    protected abstract TracingCallbackFilter callbackFilter();
+
+    /**
+     * 链路跟踪回调，第i个回调对应下标 {@link #TRACED} + i
+     *
+     * @return 链路跟踪回调，数量与 {@link TracingCallbackFilter#TracingCallbackFilter(int)} 一致
+     */
+    protected abstract MethodInterceptor[] tracingCallbacks();
+
+    /**
+     * 在被代理对象上调用原方法
+     * <p>
+     * 通过反射而不是MethodProxy调用，避免首次调用时为代理类和目标类各生成一个FastClass
+     *
+     * @param method 被拦截的方法
+     * @param args   调用参数
+     * @return 方法返回值
+     * @throws Throwable 原方法抛出的异常
+     */
+    protected Object invoke(Method method, Object[] args) throws Throwable {
+        try {
+            try {
+                return method.invoke(instance, args);
+            } catch (IllegalAccessException e) {
+                // 目标类不是public时，代理类中的Method对象是共享的，只需设置一次
+                method.setAccessible(true);
+                return method.invoke(instance, args);
+            }
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private Callback[] callbacks() {
+        Callback[] tracingCallbacks = tracingCallbacks();
+        Callback[] callbacks = new Callback[TRACED + tracingCallbacks.length];
+        callbacks[PASS_THROUGH] = (Dispatcher) () -> instance;
+        callbacks[SELF] = NoOp.INSTANCE;
+        System.arraycopy(tracingCallbacks, 0, callbacks, TRACED, tracingCallbacks.length);
+        return callbacks;
+    }
+
+    /**
+     * 生成代理类字节码并写入目录，同时写入目标类的签名文件
+     *
+     * @param type      目标类
+     * @param filter    分发规则
+     * @param directory 输出目录，一般为 target/classes
+     * @return 代理类名称
+     * @throws IOException 写入失败
+     */
+    protected static String writeProxyClass(Class<?> type, TracingCallbackFilter filter, Path directory) throws IOException {
+        String name = filter.proxyClassName(type);
+        byte[][] bytecode = new byte[1][];
+        Enhancer enhancer = filter.enhancer(type);
+        enhancer.setUseCache(false);
+        enhancer.setStrategy(new DefaultGeneratorStrategy() {
+            @Override
+            protected byte[] transform(byte[] b) {
+                bytecode[0] = b;
+                return b;
+            }
+        });
+        // 在一个独立的类加载器中定义，避免与当前类加载器中已有的同名类冲突
+        enhancer.setClassLoader(new ClassLoader(type.getClassLoader()) {
+        });
+        enhancer.createClass();
+
+        Path classFile = directory.resolve(name.replace('.', '/') + ".class");
+        Files.createDirectories(classFile.getParent());
+        Files.write(classFile, bytecode[0]);
+        Files.write(directory.resolve(name.replace('.', '/') + FINGERPRINT_SUFFIX), filter.fingerprint(type).getBytes(StandardCharsets.UTF_8));
+        return name;
+    }
+
+    /**
+     * 方法分发规则，非public方法统一交给代理对象自身处理
+     */
+    protected abstract static class TracingCallbackFilter implements CallbackFilter {
+
+        private final Class<?>[] callbackTypes;
+
+        private final String proxySuffix;
+
+        /**
+         * 目标类 -> 代理类，值保存在目标类上，不会阻止目标类及其类加载器被回收
+         */
+        private final ClassValue<Class<?>> proxyClasses = new ClassValue<Class<?>>() {
+            @Override
+            protected Class<?> computeValue(Class<?> type) {
+                return proxyClass(type);
+            }
+        };
+
+        /**
+         * @param tracingCallbacks 链路跟踪回调的数量
+         */
+        protected TracingCallbackFilter(int tracingCallbacks) {
+            this.callbackTypes = new Class<?>[TRACED + tracingCallbacks];
+            callbackTypes[PASS_THROUGH] = Dispatcher.class;
+            callbackTypes[SELF] = NoOp.class;
+            Arrays.fill(callbackTypes, TRACED, callbackTypes.length, MethodInterceptor.class);
+            this.proxySuffix = "$$Tracing" + getClass().getSimpleName().replace("CallbackFilter", "");
+        }
+
+        @Override
+        public final int accept(Method method) {
+            if (!Modifier.isPublic(method.getModifiers())) {
+                return SELF;
+            }
+            return classify(method);
+        }
+
+        /**
+         * 对public方法进行分类
+         *
+         * @param method 代理类的方法
+         * @return 回调下标
+         */
+        protected abstract int classify(Method method);
+
+        /**
+         * 目标类所有public方法的签名及其分类结果的摘要，目标类或分发规则变化后与预生成时不一致，此时改为运行时生成
+         */
+        String fingerprint(Class<?> type) {
+            List<String> signatures = new ArrayList<>();
+            for (Method method : type.getMethods()) {
+                if (!Modifier.isStatic(method.getModifiers()) && !Modifier.isFinal(method.getModifiers())) {
+                    signatures.add(method.getReturnType().getName() + ' ' + method.getName() + Arrays.toString(method.getParameterTypes()) + '=' + accept(method));
+                }
+            }
+            Collections.sort(signatures);
+            long hash = 1125899906842597L;
+            for (String signature : signatures) {
+                for (int i = 0; i < signature.length(); i++) {
+                    hash = 31 * hash + signature.charAt(i);
+                }
+            }
+            return signatures.size() + "-" + Long.toHexString(hash);
+        }
+
+        String proxyClassName(Class<?> type) {
+            return type.getName() + proxySuffix;
+        }
+
+        /**
+         * 优先加载预生成的代理类，没有或目标类已变化时在运行时生成
+         */
+        Class<?> proxyClass(Class<?> type) {
+            Class<?> pregenerated = pregenerated(type);
+            return pregenerated != null ? pregenerated : enhancer(type).createClass();
+        }
+
+        private Class<?> pregenerated(Class<?> type) {
+            if ("false".equals(System.getProperty(PREGENERATED_PROPERTY))) {
+                return null;
+            }
+            String name = proxyClassName(type);
+            ClassLoader classLoader = type.getClassLoader();
+            try (InputStream in = classLoader.getResourceAsStream(name.replace('.', '/') + FINGERPRINT_SUFFIX)) {
+                if (in == null || !fingerprint(type).equals(new String(readAll(in), StandardCharsets.UTF_8))) {
+                    return null;
+                }
+                Class<?> proxyClass = Class.forName(name, false, classLoader);
+                return proxyClass.getSuperclass() == type && Factory.class.isAssignableFrom(proxyClass) ? proxyClass : null;
+            } catch (IOException | ClassNotFoundException | LinkageError e) {
+                return null;
+            }
+        }
+
+        private static byte[] readAll(InputStream in) throws IOException {
+            byte[] buffer = new byte[64];
+            int length = 0;
+            for (int read; (read = in.read(buffer, length, buffer.length - length)) > 0; ) {
+                length += read;
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, length * 2);
+                }
+            }
+            return Arrays.copyOf(buffer, length);
+        }
+
+        Enhancer enhancer(Class<?> type) {
+            Enhancer enhancer = new Enhancer();
+            // 代理类是目标类的子类，方法分发规则在生成代理类时对每个方法分类一次，调用时不再做判断
+            enhancer.setSuperclass(type);
+            enhancer.setCallbackFilter(this);
+            enhancer.setCallbackTypes(callbackTypes);
+            enhancer.setNamingPolicy(new FixedNamingPolicy(proxyClassName(type)));
+            return enhancer;
+        }
+
+    }
+
+    /**
+     * 固定的代理类名称，预生成的类与运行时生成的类同名；同一个类加载器中已存在时追加序号
+     */
+    private static final class FixedNamingPolicy implements NamingPolicy {
+
+        private final String name;
+
+        FixedNamingPolicy(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getClassName(String prefix, String source, Object key, Predicate names) {
+            String className = name;
+            for (int i = 2; names.evaluate(className); i++) {
+                className = name + "$$" + i;
+            }
+            return className;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FixedNamingPolicy && ((FixedNamingPolicy) o).name.equals(name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
     }
 
 }
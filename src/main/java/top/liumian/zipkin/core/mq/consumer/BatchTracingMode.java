@@ -0,0 +1,21 @@
+package top.liumian.zipkin.core.mq.consumer;
+
+/**
+ * 批量消费（consumeMessageBatchMaxSize &gt; 1）时的链路跟踪方式
+ *
+ * @author liumian  2022/8/27 10:02
+ */
+public enum BatchTracingMode {
+
+    /**
+     * 每批消息一个消费span，以第一条带链路信息的消息为父span，其余消息的上游链路记录在 {@code mq.links} 标签中
+     */
+    LINKS,
+
+    /**
+     * 与 {@link #LINKS} 一样创建批量消费span，但不记录 {@code mq.links} 标签，而是为每条消息在其上游链路下创建一个轻量的消费span，
+     * 并通过 {@code mq.batch.id} 标签关联到批量消费span
+     */
+    CHILD_PER_MESSAGE
+
+}
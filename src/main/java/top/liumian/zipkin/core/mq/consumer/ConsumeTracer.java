@@ -0,0 +1,403 @@
+package top.liumian.zipkin.core.mq.consumer;
+
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import brave.sampler.SamplerFunction;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyStatus;
+import org.apache.rocketmq.common.message.MessageExt;
+import top.liumian.zipkin.core.metrics.RedMetrics;
+import top.liumian.zipkin.core.mq.MqMetrics;
+import top.liumian.zipkin.core.mq.MqPolicies;
+import top.liumian.zipkin.core.mq.MqPolicy;
+import top.liumian.zipkin.core.mq.MqSampler;
+import top.liumian.zipkin.core.mq.MqTag;
+import top.liumian.zipkin.core.mq.MqTracing;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 消费端链路跟踪，单条消息沿用上游链路，批量消息按 {@link BatchTracingMode} 处理；
+ * 开启指标时每次消费都按消费组和topic记录耗时与结果，与是否采样无关；span名称、标签和是否跟踪由消费组或topic的 {@link MqPolicy} 决定
+ *
+ * @author liumian  2022/8/27 10:20
+ */
+final class ConsumeTracer {
+
+    static final String QUEUED = "MQ/QUEUED";
+
+    /**
+     * 采样结果已确定时直接使用该结果
+     */
+    private static final SamplerFunction<Boolean> DECIDED = sampled -> sampled;
+
+    private final Tracing tracing;
+
+    private final TraceContext.Extractor<MessageExt> extractor;
+
+    private final BatchTracingMode batchTracingMode;
+
+    private final MqSampler sampler;
+
+    private final String consumerGroup;
+
+    private final MqMetrics metrics;
+
+    private final boolean queueSpan;
+
+    private final MqPolicies.Resolver policies;
+
+    ConsumeTracer(MqTracing mqTracing, String consumerGroup) {
+        this.tracing = mqTracing.tracing();
+        this.extractor = mqTracing.messageExtractor();
+        this.batchTracingMode = mqTracing.batchTracingMode();
+        this.sampler = mqTracing.sampler();
+        this.consumerGroup = consumerGroup;
+        this.metrics = mqTracing.metrics();
+        this.queueSpan = mqTracing.queueSpan();
+        this.policies = mqTracing.policies().resolver(consumerGroup);
+    }
+
+    /**
+     * 在消费span中执行业务逻辑
+     *
+     * @param msgs     本次消费的消息，原样交给业务逻辑
+     * @param function 业务逻辑
+     * @param <R>      返回类型
+     * @return 业务逻辑返回结果
+     */
+    <R> R consume(List<MessageExt> msgs, Function<Span, R> function) {
+        return consume(begin(msgs), function);
+    }
+
+    /**
+     * 在单条消息的消费span中执行业务逻辑
+     *
+     * @param msg      消息
+     * @param function 业务逻辑
+     * @param <R>      返回类型
+     * @return 业务逻辑返回结果
+     */
+    <R> R consume(MessageExt msg, Function<Span, R> function) {
+        return consume(begin(msg, null), function);
+    }
+
+    /**
+     * 开启消费span并放入当前线程，必须在同一线程中调用 {@link Consumption#finish}
+     *
+     * @param msgs 本次消费的消息
+     * @return 进行中的消费
+     */
+    Consumption begin(List<MessageExt> msgs) {
+        return begin(msgs.size() == 1 ? msgs.get(0) : null, msgs);
+    }
+
+    private <R> R consume(Consumption consumption, Function<Span, R> function) {
+        R result = null;
+        Throwable error = null;
+        try {
+            result = function.apply(consumption.span);
+            return result;
+        } catch (RuntimeException | Error e) {
+            error = e;
+            throw e;
+        } finally {
+            consumption.finish(error, failed(result));
+        }
+    }
+
+    /**
+     * @param single 单条消费时的消息，批量消费时为null
+     * @param batch  批量消费时的消息
+     */
+    private Consumption begin(MessageExt single, List<MessageExt> batch) {
+        long consumeMillis = System.currentTimeMillis();
+        RedMetrics red = null;
+        if (metrics != null) {
+            String topic;
+            if (single != null) {
+                recordConsumeLag(single, consumeMillis);
+                topic = single.getTopic();
+            } else {
+                for (int i = 0, size = batch.size(); i < size; i++) {
+                    recordConsumeLag(batch.get(i), consumeMillis);
+                }
+                topic = batch.isEmpty() ? null : batch.get(0).getTopic();
+            }
+            red = metrics.consume(consumerGroup, topic);
+        }
+        long startNanos = red != null ? System.nanoTime() : 0L;
+        Tracer tracer = tracing.tracer();
+        if (single != null) {
+            MqPolicy policy = policies.resolve(single.getTopic());
+            return new Consumption(tracer, startSingle(tracer, policy, single, consumeMillis), null, red, startNanos);
+        }
+        MqPolicy policy = policies.resolve(batch.isEmpty() ? null : batch.get(0).getTopic());
+        return startBatch(tracer, policy, batch, consumeMillis, red, startNanos);
+    }
+
+    /**
+     * 按队列记录消息从broker存储到开始消费的等待时间，与是否采样无关
+     */
+    private void recordConsumeLag(MessageExt msg, long consumeMillis) {
+        long storeTimestamp = msg.getStoreTimestamp();
+        if (storeTimestamp > 0) {
+            metrics.consumeLag(consumerGroup, msg.getTopic(), msg.getBrokerName(), msg.getQueueId())
+                    .record(TimeUnit.MILLISECONDS.toNanos(Math.max(consumeMillis - storeTimestamp, 0L)));
+        }
+    }
+
+    /**
+     * 按策略记录消息所在队列、重试次数，以及发送到存储、存储到消费两段耗时，单位毫秒，broker与客户端的时钟偏差导致的负值按0处理
+     */
+    private static void tagMessage(Span span, MqPolicy policy, MessageExt msg, long consumeMillis) {
+        if (policy.tag(MqTag.QUEUE_ID)) {
+            span.tag(MqTag.QUEUE_ID.key(), String.valueOf(msg.getQueueId()));
+        }
+        if (policy.tag(MqTag.RECONSUME_TIMES)) {
+            span.tag(MqTag.RECONSUME_TIMES.key(), String.valueOf(msg.getReconsumeTimes()));
+        }
+        if (policy.tag(MqTag.MSG_ID)) {
+            tag(span, MqTag.MSG_ID, msg.getMsgId());
+        }
+        if (policy.tag(MqTag.KEYS)) {
+            tag(span, MqTag.KEYS, msg.getKeys());
+        }
+        if (policy.tag(MqTag.TAGS)) {
+            tag(span, MqTag.TAGS, msg.getTags());
+        }
+        long storeTimestamp = msg.getStoreTimestamp();
+        if (storeTimestamp <= 0) {
+            return;
+        }
+        if (msg.getBornTimestamp() > 0 && policy.tag(MqTag.STORE_LATENCY)) {
+            span.tag(MqTag.STORE_LATENCY.key(), String.valueOf(Math.max(storeTimestamp - msg.getBornTimestamp(), 0L)));
+        }
+        if (policy.tag(MqTag.CONSUME_LAG)) {
+            span.tag(MqTag.CONSUME_LAG.key(), String.valueOf(Math.max(consumeMillis - storeTimestamp, 0L)));
+        }
+    }
+
+    private static void tag(Span span, MqTag tag, String value) {
+        if (value != null && !value.isEmpty()) {
+            span.tag(tag.key(), value);
+        }
+    }
+
+    /**
+     * 补记一个从消息存储到开始消费的span，展示消息在broker和本地处理队列中等待的时间
+     */
+    private static void startQueueSpan(Tracer tracer, Span consumeSpan, long storeTimestamp, long consumeMillis) {
+        if (storeTimestamp <= 0 || storeTimestamp >= consumeMillis) {
+            return;
+        }
+        tracer.newChild(consumeSpan.context()).name(QUEUED)
+                .start(TimeUnit.MILLISECONDS.toMicros(storeTimestamp))
+                .finish(TimeUnit.MILLISECONDS.toMicros(consumeMillis));
+    }
+
+    /**
+     * 业务逻辑要求稍后重试也算作一次失败的消费
+     */
+    private static boolean failed(Object result) {
+        return result == ConsumeConcurrentlyStatus.RECONSUME_LATER || result == ConsumeOrderlyStatus.SUSPEND_CURRENT_QUEUE_A_MOMENT;
+    }
+
+    private Span startSingle(Tracer tracer, MqPolicy policy, MessageExt msg, long consumeMillis) {
+        Span span = nextSpan(tracer, policy, extractor.extract(msg), msg.getTopic());
+        if (!span.isNoop()) {
+            span.name(policy.consumeName()).kind(Span.Kind.CONSUMER).start();
+            tagMessage(span, policy, msg, consumeMillis);
+            if (queueSpan) {
+                startQueueSpan(tracer, span, msg.getStoreTimestamp(), consumeMillis);
+            }
+        }
+        return span;
+    }
+
+    /**
+     * 创建消费span：策略关闭跟踪时沿用上游链路但标记为未采样；上游已有采样结果时沿用，
+     * 否则依次按策略的采样器、消费组和topic的采样规则决定，都没有时交给默认采样器
+     */
+    private Span nextSpan(Tracer tracer, MqPolicy policy, TraceContextOrSamplingFlags extracted, String topic) {
+        Boolean sampled = policy.enabled() ? extracted.sampled() : Boolean.FALSE;
+        if (sampled == null && policy.sampler() != null) {
+            sampled = policy.sampler().isSampled(0L);
+        } else if (sampled == null) {
+            sampled = sampler.trySample(consumerGroup, topic);
+        }
+        TraceContext context = extracted.context();
+        if (context != null && !policy.enabled()) {
+            return tracer.newChild(unsampled(context));
+        }
+        if (context == null) {
+            return sampled != null ? tracer.nextSpanWithParent(DECIDED, sampled, null) : tracer.newTrace();
+        }
+        if (context.sampled() == null && sampled != null) {
+            context = context.toBuilder().sampled(sampled).build();
+        }
+        return tracer.newChild(context);
+    }
+
+    private Consumption startBatch(Tracer tracer, MqPolicy policy, List<MessageExt> msgs, long consumeMillis, RedMetrics red, long startNanos) {
+        int size = msgs.size();
+        TraceContext[] upstreams = new TraceContext[size];
+        TraceContextOrSamplingFlags parent = null;
+        for (int i = 0; i < size; i++) {
+            TraceContextOrSamplingFlags extracted = extractor.extract(msgs.get(i));
+            upstreams[i] = extracted.context();
+            if (parent == null && upstreams[i] != null) {
+                parent = extracted;
+            }
+        }
+
+        Span span = nextSpan(tracer, policy, parent != null ? parent : TraceContextOrSamplingFlags.EMPTY, size > 0 ? msgs.get(0).getTopic() : null);
+        if (!span.isNoop()) {
+            span.name(policy.consumeName()).kind(Span.Kind.CONSUMER).start();
+            span.tag("mq.batch.size", String.valueOf(size));
+            long oldestStoreTimestamp = oldestStoreTimestamp(msgs);
+            if (oldestStoreTimestamp > 0) {
+                if (policy.tag(MqTag.CONSUME_LAG)) {
+                    span.tag(MqTag.CONSUME_LAG.key(), String.valueOf(Math.max(consumeMillis - oldestStoreTimestamp, 0L)));
+                }
+                if (queueSpan) {
+                    startQueueSpan(tracer, span, oldestStoreTimestamp, consumeMillis);
+                }
+            }
+            if (batchTracingMode == BatchTracingMode.LINKS) {
+                String links = links(upstreams, parent != null ? parent.context() : null);
+                if (links != null) {
+                    span.tag("mq.links", links);
+                }
+            }
+        }
+        Span[] children = batchTracingMode == BatchTracingMode.CHILD_PER_MESSAGE ? startChildren(tracer, policy, span, msgs, upstreams, consumeMillis) : null;
+        return new Consumption(tracer, span, children, red, startNanos);
+    }
+
+    /**
+     * 在每条消息的上游链路下创建消费span，没有上游链路的消息挂在批量消费span下
+     */
+    private Span[] startChildren(Tracer tracer, MqPolicy policy, Span batchSpan, List<MessageExt> msgs, TraceContext[] upstreams, long consumeMillis) {
+        String batchId = batchSpan.isNoop() ? null : batchSpan.context().spanIdString();
+        Span[] children = new Span[upstreams.length];
+        for (int i = 0; i < upstreams.length; i++) {
+            TraceContext upstream = upstreams[i];
+            if (upstream != null && !policy.enabled()) {
+                upstream = unsampled(upstream);
+            }
+            Span child = tracer.newChild(upstream != null ? upstream : batchSpan.context());
+            child.name(policy.consumeName()).kind(Span.Kind.CONSUMER).start();
+            if (!child.isNoop()) {
+                tagMessage(child, policy, msgs.get(i), consumeMillis);
+                if (batchId != null) {
+                    child.tag("mq.batch.id", batchId);
+                }
+            }
+            children[i] = child;
+        }
+        return children;
+    }
+
+    private static TraceContext unsampled(TraceContext context) {
+        return Boolean.FALSE.equals(context.sampled()) ? context : context.toBuilder().sampled(false).build();
+    }
+
+    /**
+     * @return 批次中最早的存储时间，没有存储时间时返回0
+     */
+    private static long oldestStoreTimestamp(List<MessageExt> msgs) {
+        long oldest = 0;
+        for (int i = 0, size = msgs.size(); i < size; i++) {
+            long storeTimestamp = msgs.get(i).getStoreTimestamp();
+            if (storeTimestamp > 0 && (oldest == 0 || storeTimestamp < oldest)) {
+                oldest = storeTimestamp;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * 将除父span外的上游链路拼接为 traceId-spanId 列表，连续重复的链路只记录一次
+     */
+    private static String links(TraceContext[] upstreams, TraceContext parent) {
+        StringBuilder links = null;
+        TraceContext previous = parent;
+        for (TraceContext upstream : upstreams) {
+            if (upstream == null || upstream.equals(previous)) {
+                continue;
+            }
+            previous = upstream;
+            if (links == null) {
+                links = new StringBuilder();
+            } else {
+                links.append(',');
+            }
+            links.append(upstream.traceIdString()).append('-').append(upstream.spanIdString());
+        }
+        return links == null ? null : links.toString();
+    }
+
+    /**
+     * 一次进行中的消费：消费span已放入当前线程，结束时关闭作用域、结束span并记录指标
+     */
+    static final class Consumption {
+
+        private final Span span;
+
+        /**
+         * 按 {@link BatchTracingMode#CHILD_PER_MESSAGE} 消费时每条消息的span，否则为null
+         */
+        private final Span[] children;
+
+        private final Tracer.SpanInScope scope;
+
+        /**
+         * 未开启指标时为null
+         */
+        private final RedMetrics metrics;
+
+        private final long startNanos;
+
+        Consumption(Tracer tracer, Span span, Span[] children, RedMetrics metrics, long startNanos) {
+            this.span = span;
+            this.children = children;
+            this.metrics = metrics;
+            this.startNanos = startNanos;
+            this.scope = tracer.withSpanInScope(span);
+        }
+
+        Span span() {
+            return span;
+        }
+
+        /**
+         * @param error  业务逻辑抛出的异常，没有时为null
+         * @param failed 业务逻辑是否要求稍后重试，只影响指标
+         */
+        void finish(Throwable error, boolean failed) {
+            scope.close();
+            if (error != null) {
+                span.error(error);
+            }
+            span.finish();
+            if (children != null) {
+                for (Span child : children) {
+                    if (error != null) {
+                        child.error(error);
+                    }
+                    child.finish();
+                }
+            }
+            if (metrics != null) {
+                metrics.record(System.nanoTime() - startNanos, error != null || failed);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+package top.liumian.zipkin.core.mq.consumer;
+
+import brave.Span;
+import org.apache.rocketmq.client.hook.ConsumeMessageContext;
+import org.apache.rocketmq.client.hook.ConsumeMessageHook;
+import top.liumian.zipkin.core.mq.MqTracing;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * {@link top.liumian.zipkin.core.mq.InstrumentationMode#HOOK} 模式下的消费钩子：
+ * RocketMQ在消费线程中先后调用before/after，中间执行监听器，消费span在此期间放入当前线程
+ *
+ * @author liumian  2022/10/6 11:00
+ */
+final class TracingConsumeMessageHook implements ConsumeMessageHook {
+
+    static final String NAME = "ZipkinTracingConsumeMessageHook";
+
+    private final ConsumeTracer consumeTracer;
+
+    /**
+     * mqTraceContext已被其他钩子（例如RocketMQ自带的消息轨迹）占用时，在这里记录进行中的消费
+     */
+    private final Map<ConsumeMessageContext, ConsumeTracer.Consumption> occupied = Collections.synchronizedMap(new WeakHashMap<>());
+
+    TracingConsumeMessageHook(MqTracing mqTracing, String consumerGroup) {
+        this.consumeTracer = new ConsumeTracer(mqTracing, consumerGroup);
+    }
+
+    @Override
+    public String hookName() {
+        return NAME;
+    }
+
+    @Override
+    public void consumeMessageBefore(ConsumeMessageContext context) {
+        ConsumeTracer.Consumption consumption = consumeTracer.begin(context.getMsgList());
+        if (context.getMqTraceContext() == null) {
+            context.setMqTraceContext(consumption);
+        } else {
+            occupied.put(context, consumption);
+        }
+    }
+
+    /**
+     * 钩子拿不到监听器抛出的异常，未成功时只在span上记录消费状态
+     */
+    @Override
+    public void consumeMessageAfter(ConsumeMessageContext context) {
+        ConsumeTracer.Consumption consumption;
+        Object traceContext = context.getMqTraceContext();
+        if (traceContext instanceof ConsumeTracer.Consumption) {
+            consumption = (ConsumeTracer.Consumption) traceContext;
+            context.setMqTraceContext(null);
+        } else {
+            consumption = occupied.remove(context);
+        }
+        if (consumption == null) {
+            return;
+        }
+        Span span = consumption.span();
+        if (!context.isSuccess() && !span.isNoop()) {
+            span.tag("mq.consume.status", String.valueOf(context.getStatus()));
+        }
+        consumption.finish(null, !context.isSuccess());
+    }
+
+}
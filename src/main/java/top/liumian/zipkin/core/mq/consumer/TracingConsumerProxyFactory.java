@@ -1,12 +1,20 @@
 package top.liumian.zipkin.core.mq.consumer;
 
 import brave.Tracing;
+import net.sf.cglib.proxy.MethodInterceptor;
 import net.sf.cglib.proxy.MethodProxy;
 import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.MessageListener;
 import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerOrderly;
+import org.apache.rocketmq.common.ServiceState;
+import top.liumian.zipkin.core.mq.InstrumentationMode;
+import top.liumian.zipkin.core.mq.MqTracing;
 import top.liumian.zipkin.core.mq.TracingProxyFactory;
 
+import java.io.IOException;
 import java.lang.reflect.Method;
+import java.nio.file.Path;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,47 +23,113 @@ import java.util.logging.Logger;
  */
 public class TracingConsumerProxyFactory extends TracingProxyFactory<DefaultMQPushConsumer> {
 
+    /**
+     * 注册消息监听器
+     */
+    private static final int REGISTER_LISTENER = TRACED;
+
     private final static Logger logger = Logger.getLogger(TracingConsumerProxyFactory.class.getName());
 
+    private static final TracingCallbackFilter CALLBACK_FILTER = new ConsumerCallbackFilter();
+
+    private final MqTracing mqTracing;
+
     public static DefaultMQPushConsumer createTracingConsumer(Tracing tracing, DefaultMQPushConsumer consumer) {
-        return new TracingConsumerProxyFactory(tracing, consumer).getProxy();
+        return createTracingConsumer(MqTracing.create(tracing), consumer);
     }
 
-    private TracingConsumerProxyFactory(Tracing tracing, DefaultMQPushConsumer consumer) {
-        super(tracing, consumer);
+    /**
+     * 按 {@link MqTracing#instrumentationMode()} 开启链路跟踪，钩子模式下返回原对象
+     * <p>
+     * 代理只能拦截之后注册的监听器：已注册的监听器在这里直接包装；消费者已启动时消费服务已经持有原监听器，
+     * 改为注册钩子并返回原对象
+     */
+    public static DefaultMQPushConsumer createTracingConsumer(MqTracing mqTracing, DefaultMQPushConsumer consumer) {
+        if (mqTracing.instrumentationMode() == InstrumentationMode.HOOK) {
+            registerHook(mqTracing, consumer);
+            return consumer;
+        }
+        MessageListener listener = consumer.getMessageListener();
+        if (listener != null && !(listener instanceof TracingMessageListenerConcurrently || listener instanceof TracingMessageListenerOrderly)) {
+            if (consumer.getDefaultMQPushConsumerImpl().getServiceState() != ServiceState.CREATE_JUST) {
+                logger.log(Level.INFO, "消费者" + consumer.getConsumerGroup() + "已启动，改为通过钩子开启链路跟踪");
+                registerHook(mqTracing, consumer);
+                return consumer;
+            }
+            consumer.registerMessageListener(wrap(mqTracing, consumer.getConsumerGroup(), listener));
+        }
+        return new TracingConsumerProxyFactory(mqTracing, consumer).getProxy();
     }
 
-    @Override
-    public Object intercept(Object obj, Method method, Object[] args, MethodProxy proxy) throws Throwable {
-        if (isTargetMethod(method)) {
-            if (args[0] instanceof MessageListenerConcurrently) {
-                return method.invoke(instance, new TracingMessageListenerConcurrently(tracing, (MessageListenerConcurrently) args[0]));
-            } else {
-                return method.invoke(instance, new TracingMessageListenerOrderly(tracing, (TracingMessageListenerOrderly) args[0]));
-            }
+    private static void registerHook(MqTracing mqTracing, DefaultMQPushConsumer consumer) {
+        consumer.getDefaultMQPushConsumerImpl().registerConsumeMessageHook(new TracingConsumeMessageHook(mqTracing, consumer.getConsumerGroup()));
+    }
+
+    /**
+     * @return 链路跟踪监听器，不支持的监听器类型原样返回
+     */
+    private static MessageListener wrap(MqTracing mqTracing, String consumerGroup, Object listener) {
+        if (listener instanceof MessageListenerConcurrently) {
+            return new TracingMessageListenerConcurrently(mqTracing, consumerGroup, (MessageListenerConcurrently) listener);
+        } else if (listener instanceof MessageListenerOrderly) {
+            return new TracingMessageListenerOrderly(mqTracing, consumerGroup, (MessageListenerOrderly) listener);
         } else {
-            return method.invoke(instance, args);
+            return (MessageListener) listener;
         }
     }
 
     /**
-     * 判断是否是目标代理方法
+     * 预生成代理类，见 {@link top.liumian.zipkin.core.mq.ProxyClassGenerator}
      *
-     * @param method 当前调用方法
-     * @return 判断结果
+     * @param type      消费者类型
+     * @param directory 输出目录
+     * @return 代理类名称
+     * @throws IOException 写入失败
+     */
+    public static String generateProxyClass(Class<? extends DefaultMQPushConsumer> type, Path directory) throws IOException {
+        return writeProxyClass(type, CALLBACK_FILTER, directory);
+    }
+
+    private TracingConsumerProxyFactory(MqTracing mqTracing, DefaultMQPushConsumer consumer) {
+        super(mqTracing.tracing(), consumer);
+        this.mqTracing = mqTracing;
+    }
+
+    @Override
+    protected TracingCallbackFilter callbackFilter() {
+        return CALLBACK_FILTER;
+    }
+
+    @Override
+    protected MethodInterceptor[] tracingCallbacks() {
+        return new MethodInterceptor[]{this::registerMessageListener};
+    }
+
+    /**
+     * 注册消息监听器时将其包装为链路跟踪监听器
      */
-    private boolean isTargetMethod(Method method) {
-        String methodName = method.getName();
-        if ("registerMessageListener".equals(methodName)) {
-            if (instance.getConsumeMessageBatchMaxSize() > 1) {
-                logger.log(Level.ALL, "最大批量消费消息数量大于1，链路跟踪不生效");
-                return false;
+    private Object registerMessageListener(Object obj, Method method, Object[] args, MethodProxy proxy) throws Throwable {
+        return invoke(method, new Object[]{wrap(mqTracing, instance.getConsumerGroup(), args[0])});
+    }
+
+    /**
+     * 只有注册消息监听器的方法需要链路跟踪
+     */
+    private static class ConsumerCallbackFilter extends TracingCallbackFilter {
+
+        ConsumerCallbackFilter() {
+            super(1);
+        }
+
+        @Override
+        protected int classify(Method method) {
+            if ("registerMessageListener".equals(method.getName())) {
+                return REGISTER_LISTENER;
             } else {
-                return true;
+                return PASS_THROUGH;
             }
-        } else {
-            return false;
         }
+
     }
 
 }
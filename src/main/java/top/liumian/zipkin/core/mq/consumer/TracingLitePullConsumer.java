@@ -0,0 +1,128 @@
+package top.liumian.zipkin.core.mq.consumer;
+
+import brave.Span;
+import brave.Tracing;
+import org.apache.rocketmq.client.consumer.DefaultLitePullConsumer;
+import org.apache.rocketmq.client.exception.MQClientException;
+import org.apache.rocketmq.common.message.MessageExt;
+import top.liumian.zipkin.core.mq.MqTracing;
+
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 拉模式消费者的链路跟踪
+ * <p>
+ * {@link DefaultLitePullConsumer#poll()} 一次返回大批消息，拉取时不解析任何链路信息，消息列表原样返回；
+ * 只有业务通过 {@link #consume(MessageExt, Function)} 处理某条消息时，才提取该消息的上游链路并开启消费span，
+ * 从未被处理的消息没有任何额外开销。整批消息作为一个处理单元时使用 {@link #consumeBatch(List, Function)}，
+ * 按 {@link BatchTracingMode} 记录。
+ *
+ * <pre>{@code
+ * TracingLitePullConsumer tracingConsumer = TracingLitePullConsumer.create(mqTracing, litePullConsumer);
+ * for (MessageExt msg : tracingConsumer.poll()) {
+ *     tracingConsumer.consume(msg, span -> etl(msg));
+ * }
+ * tracingConsumer.delegate().commitSync();
+ * }</pre>
+ *
+ * @author liumian  2022/10/5 10:00
+ */
+public final class TracingLitePullConsumer {
+
+    private final DefaultLitePullConsumer delegate;
+
+    private final ConsumeTracer consumeTracer;
+
+    public static TracingLitePullConsumer create(Tracing tracing, DefaultLitePullConsumer consumer) {
+        return create(MqTracing.create(tracing), consumer);
+    }
+
+    public static TracingLitePullConsumer create(MqTracing mqTracing, DefaultLitePullConsumer consumer) {
+        if (consumer == null) {
+            throw new NullPointerException("consumer == null");
+        }
+        return new TracingLitePullConsumer(mqTracing, consumer);
+    }
+
+    private TracingLitePullConsumer(MqTracing mqTracing, DefaultLitePullConsumer delegate) {
+        this.delegate = delegate;
+        this.consumeTracer = new ConsumeTracer(mqTracing, delegate.getConsumerGroup());
+    }
+
+    /**
+     * 拉取消息，不做任何链路处理
+     */
+    public List<MessageExt> poll() {
+        return delegate.poll();
+    }
+
+    /**
+     * 拉取消息，不做任何链路处理
+     */
+    public List<MessageExt> poll(long timeout) {
+        return delegate.poll(timeout);
+    }
+
+    /**
+     * 在单条消息的消费span中执行业务逻辑，span沿用该消息的上游链路
+     *
+     * @param msg      消息
+     * @param function 业务逻辑
+     * @param <R>      返回类型
+     * @return 业务逻辑返回结果
+     */
+    public <R> R consume(MessageExt msg, Function<Span, R> function) {
+        return consumeTracer.consume(msg, function);
+    }
+
+    /**
+     * 逐条在各自的消费span中处理消息
+     *
+     * @param msgs     拉取到的消息
+     * @param consumer 业务逻辑
+     */
+    public void forEach(List<MessageExt> msgs, Consumer<MessageExt> consumer) {
+        for (int i = 0, size = msgs.size(); i < size; i++) {
+            MessageExt msg = msgs.get(i);
+            consumeTracer.consume(msg, span -> {
+                consumer.accept(msg);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * 将整批消息作为一个处理单元，按 {@link BatchTracingMode} 记录链路
+     *
+     * @param msgs     拉取到的消息，原样交给业务逻辑
+     * @param function 业务逻辑
+     * @param <R>      返回类型
+     * @return 业务逻辑返回结果
+     */
+    public <R> R consumeBatch(List<MessageExt> msgs, Function<Span, R> function) {
+        return consumeTracer.consume(msgs, function);
+    }
+
+    public void start() throws MQClientException {
+        delegate.start();
+    }
+
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    /**
+     * 订阅、提交位点等其他操作直接使用原始消费者
+     */
+    public DefaultLitePullConsumer delegate() {
+        return delegate;
+    }
+
+    @Override
+    public String toString() {
+        return "TracingLitePullConsumer{" + delegate.getConsumerGroup() + "}";
+    }
+
+}
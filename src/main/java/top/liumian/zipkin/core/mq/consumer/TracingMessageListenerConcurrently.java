@@ -5,9 +5,8 @@ import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
 import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
 import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
 import org.apache.rocketmq.common.message.MessageExt;
-import top.liumian.zipkin.util.TraceUtil;
+import top.liumian.zipkin.core.mq.MqTracing;
 
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -15,18 +14,25 @@ import java.util.List;
  */
 public class TracingMessageListenerConcurrently implements MessageListenerConcurrently {
 
-    private final Tracing tracing;
+    private final ConsumeTracer consumeTracer;
 
     private final MessageListenerConcurrently messageListenerConcurrently;
 
     public TracingMessageListenerConcurrently(Tracing tracing, MessageListenerConcurrently messageListenerConcurrently) {
-        this.tracing = tracing;
+        this(MqTracing.create(tracing), messageListenerConcurrently);
+    }
+
+    public TracingMessageListenerConcurrently(MqTracing mqTracing, MessageListenerConcurrently messageListenerConcurrently) {
+        this(mqTracing, null, messageListenerConcurrently);
+    }
+
+    public TracingMessageListenerConcurrently(MqTracing mqTracing, String consumerGroup, MessageListenerConcurrently messageListenerConcurrently) {
+        this.consumeTracer = new ConsumeTracer(mqTracing, consumerGroup);
         this.messageListenerConcurrently = messageListenerConcurrently;
     }
 
     @Override
     public ConsumeConcurrentlyStatus consumeMessage(List<MessageExt> msgs, ConsumeConcurrentlyContext context) {
-        MessageExt messageExt = msgs.get(0);
-        return TraceUtil.extractTraceInfo(tracing, "MQ/CONSUME", messageExt.getProperties(), span -> messageListenerConcurrently.consumeMessage(Collections.singletonList(messageExt),context));
+        return consumeTracer.consume(msgs, span -> messageListenerConcurrently.consumeMessage(msgs, context));
     }
 }
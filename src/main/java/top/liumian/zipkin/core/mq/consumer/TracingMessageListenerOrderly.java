@@ -5,9 +5,8 @@ import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyContext;
 import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyStatus;
 import org.apache.rocketmq.client.consumer.listener.MessageListenerOrderly;
 import org.apache.rocketmq.common.message.MessageExt;
-import top.liumian.zipkin.util.TraceUtil;
+import top.liumian.zipkin.core.mq.MqTracing;
 
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -16,18 +15,25 @@ import java.util.List;
 public class TracingMessageListenerOrderly implements MessageListenerOrderly {
 
 
-    private final Tracing tracing;
+    private final ConsumeTracer consumeTracer;
 
     private final MessageListenerOrderly MessageListenerOrderly;
 
     public TracingMessageListenerOrderly(Tracing tracing, MessageListenerOrderly messageListenerOrderly) {
-        this.tracing = tracing;
+        this(MqTracing.create(tracing), messageListenerOrderly);
+    }
+
+    public TracingMessageListenerOrderly(MqTracing mqTracing, MessageListenerOrderly messageListenerOrderly) {
+        this(mqTracing, null, messageListenerOrderly);
+    }
+
+    public TracingMessageListenerOrderly(MqTracing mqTracing, String consumerGroup, MessageListenerOrderly messageListenerOrderly) {
+        this.consumeTracer = new ConsumeTracer(mqTracing, consumerGroup);
         this.MessageListenerOrderly = messageListenerOrderly;
     }
 
     @Override
     public ConsumeOrderlyStatus consumeMessage(List<MessageExt> msgs, ConsumeOrderlyContext context) {
-        MessageExt messageExt = msgs.get(0);
-        return TraceUtil.extractTraceInfo(tracing, "MQ/CONSUME", messageExt.getProperties(), span -> MessageListenerOrderly.consumeMessage(Collections.singletonList(messageExt),context));
+        return consumeTracer.consume(msgs, span -> MessageListenerOrderly.consumeMessage(msgs, context));
     }
 }
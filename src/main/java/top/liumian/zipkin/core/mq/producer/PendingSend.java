@@ -0,0 +1,40 @@
+package top.liumian.zipkin.core.mq.producer;
+
+import brave.Span;
+import top.liumian.zipkin.core.metrics.RedMetrics;
+
+/**
+ * 一次尚未完成的发送：结束发送span并记录发送指标
+ *
+ * @author liumian  2022/10/2 11:30
+ */
+final class PendingSend {
+
+    private final Span span;
+
+    /**
+     * 未开启指标时为null
+     */
+    private final RedMetrics metrics;
+
+    private final long startNanos;
+
+    PendingSend(Span span, RedMetrics metrics) {
+        this.span = span;
+        this.metrics = metrics;
+        this.startNanos = metrics != null ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * @param error 发送失败的原因，成功时为null
+     */
+    void finish(Throwable error) {
+        if (error != null) {
+            span.error(error);
+        }
+        span.finish();
+        if (metrics != null) {
+            metrics.record(System.nanoTime() - startNanos, error != null);
+        }
+    }
+}
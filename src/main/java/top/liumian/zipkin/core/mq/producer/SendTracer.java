@@ -0,0 +1,302 @@
+package top.liumian.zipkin.core.mq.producer;
+
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import brave.sampler.SamplerFunction;
+import org.apache.rocketmq.client.producer.RequestCallback;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageBatch;
+import top.liumian.zipkin.core.metrics.RedMetrics;
+import top.liumian.zipkin.core.mq.MqMetrics;
+import top.liumian.zipkin.core.mq.MqPolicies;
+import top.liumian.zipkin.core.mq.MqPolicy;
+import top.liumian.zipkin.core.mq.MqSampler;
+import top.liumian.zipkin.core.mq.MqTag;
+import top.liumian.zipkin.core.mq.MqTracing;
+import top.liumian.zipkin.util.TracingFunction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 发送端链路跟踪：创建发送span、注入链路信息，异步发送时在回调中结束span；
+ * 开启指标时每次发送都记录耗时与结果，与是否采样无关；span名称、标签和是否跟踪由topic的 {@link MqPolicy} 决定
+ *
+ * @author liumian  2022/9/17 11:00
+ */
+final class SendTracer {
+
+    /**
+     * 按策略中的采样器决定新链路是否采样
+     */
+    private static final SamplerFunction<MqPolicy> POLICY_SAMPLER = policy -> policy.sampler().isSampled(0L);
+
+    /**
+     * 关闭跟踪的topic，新链路不采样
+     */
+    private static final SamplerFunction<MqPolicy> NEVER_SAMPLE = policy -> false;
+
+    private final Tracing tracing;
+
+    private final MqTracing mqTracing;
+
+    private final SamplerFunction<String> topicSampler;
+
+    private final MqMetrics metrics;
+
+    private final MqPolicies.Resolver policies;
+
+    SendTracer(MqTracing mqTracing) {
+        this.tracing = mqTracing.tracing();
+        this.mqTracing = mqTracing;
+        this.metrics = mqTracing.metrics();
+        this.policies = mqTracing.policies().resolver(null);
+        MqSampler sampler = mqTracing.sampler();
+        this.topicSampler = sampler::trySample;
+    }
+
+    /**
+     * 将当前链路信息注入到message中
+     *
+     * @param message  MQ业务消息
+     * @param function 业务方法
+     * @param <R>      泛型
+     * @return 业务方法执行结果
+     * @throws Throwable 异常
+     */
+    <R> R traceMessage(Message message, TracingFunction<Message, R> function) throws Throwable {
+        Span span = startSpan(message);
+        return inScope(span, metrics(message.getTopic()), message, function);
+    }
+
+    /**
+     * 将当前链路信息注入到message中
+     *
+     * @param messageCollection MQ业务消息集合
+     * @param function          业务方法
+     * @param <R>               泛型
+     * @return 业务方法执行结果
+     * @throws Throwable 异常
+     */
+    <R> R traceMessage(Collection<Message> messageCollection, TracingFunction<Collection<Message>, R> function) throws Throwable {
+        Span span = startBatchSpan(messageCollection);
+        return inScope(span, metrics(batchTopic(messageCollection)), messageCollection, function);
+    }
+
+    /**
+     * 将当前链路信息注入到异步发送的消息中，发送span在回调触发时才结束
+     *
+     * @param message  MQ业务消息
+     * @param args     调用参数，其中的回调会被替换为链路跟踪回调
+     * @param function 业务方法
+     * @return 业务方法执行结果
+     * @throws Throwable 异常
+     */
+    Object traceAsyncMessage(Message message, Object[] args, TracingFunction<Object[], Object> function) throws Throwable {
+        Span span = startSpan(message);
+        return inAsyncScope(span, metrics(message.getTopic()), args, function);
+    }
+
+    /**
+     * 将当前链路信息注入到异步发送的批量消息中，发送span在回调触发时才结束
+     *
+     * @param messageCollection MQ业务消息集合
+     * @param args              调用参数，其中的回调会被替换为链路跟踪回调
+     * @param function          业务方法
+     * @return 业务方法执行结果
+     * @throws Throwable 异常
+     */
+    Object traceAsyncMessage(Collection<Message> messageCollection, Object[] args, TracingFunction<Object[], Object> function) throws Throwable {
+        Span span = startBatchSpan(messageCollection);
+        return inAsyncScope(span, metrics(batchTopic(messageCollection)), args, function);
+    }
+
+    /**
+     * 供发送钩子调用：开启发送span并注入链路信息，span不放入当前线程，由调用方在发送完成后结束。
+     * 批量消息在到达钩子前已编码为消息体，注入后需要重新编码
+     *
+     * @param message 即将发送到broker的消息
+     * @return 进行中的发送，未采样且未开启指标时返回null
+     */
+    PendingSend startSend(Message message) {
+        Span span;
+        String topic;
+        if (message instanceof MessageBatch) {
+            MessageBatch batch = (MessageBatch) message;
+            List<Message> messages = new ArrayList<>();
+            batch.forEach(messages::add);
+            span = startBatchSpan(messages);
+            topic = batchTopic(messages);
+            batch.setBody(batch.encode());
+        } else {
+            topic = message.getTopic();
+            span = startSpan(message);
+        }
+        RedMetrics metrics = metrics(topic);
+        return span.isNoop() && metrics == null ? null : new PendingSend(span, metrics);
+    }
+
+    /**
+     * 开启发送span并注入链路信息，没有父链路时按topic采样规则决定是否采样，未采样时不做任何标记
+     */
+    private Span startSpan(Message message) {
+        String topic = message.getTopic();
+        MqPolicy policy = policies.resolve(topic);
+        Span span = nextSpan(policy, topic);
+        mqTracing.messageInjector().inject(span.context(), message);
+        if (!span.isNoop()) {
+            start(span, policy, topic);
+            if (policy.tag(MqTag.KEYS)) {
+                tag(span, MqTag.KEYS, message.getKeys());
+            }
+            if (policy.tag(MqTag.TAGS)) {
+                tag(span, MqTag.TAGS, message.getTags());
+            }
+        }
+        return span;
+    }
+
+    /**
+     * 开启批量发送span，采样时为每条消息生成独立的子上下文，未采样时所有消息共用同一个上下文
+     */
+    private Span startBatchSpan(Collection<Message> messageCollection) {
+        String topic = batchTopic(messageCollection);
+        MqPolicy policy = policies.resolve(topic);
+        Span span = nextSpan(policy, topic);
+        if (span.isNoop()) {
+            mqTracing.batchInjector().inject(span.context(), messageCollection);
+            return span;
+        }
+        start(span, policy, topic).tag("mq.batch.size", String.valueOf(messageCollection.size()));
+        injectChildContexts(span.context(), messageCollection);
+        return span;
+    }
+
+    /**
+     * 为每条消息生成以批量发送span为父节点的上下文并分别注入，只分配span id，不创建也不上报span，
+     * 下游消费span各自挂在不同的父节点下，不会集中到同一个span id
+     */
+    private void injectChildContexts(TraceContext batchContext, Collection<Message> messageCollection) {
+        TraceContext.Injector<Message> injector = mqTracing.messageInjector();
+        TraceContext.Builder builder = batchContext.toBuilder().parentId(batchContext.spanId());
+        for (Message message : messageCollection) {
+            injector.inject(builder.spanId(nextSpanId()).build(), message);
+        }
+    }
+
+    private static long nextSpanId() {
+        long spanId;
+        do {
+            spanId = ThreadLocalRandom.current().nextLong();
+        } while (spanId == 0L);
+        return spanId;
+    }
+
+    /**
+     * 关闭跟踪的topic沿用当前链路但标记为未采样，下游消费也不再记录；
+     * 否则没有父链路时依次按策略的采样器、topic采样规则和默认采样器决定
+     */
+    private Span nextSpan(MqPolicy policy, String topic) {
+        Tracer tracer = tracing.tracer();
+        if (!policy.enabled()) {
+            TraceContext parent = tracing.currentTraceContext().get();
+            return parent != null ? tracer.newChild(parent.toBuilder().sampled(false).build()) : tracer.nextSpan(NEVER_SAMPLE, policy);
+        }
+        if (policy.sampler() != null) {
+            return tracer.nextSpan(POLICY_SAMPLER, policy);
+        }
+        return topic != null ? tracer.nextSpan(topicSampler, topic) : tracer.nextSpan();
+    }
+
+    private static Span start(Span span, MqPolicy policy, String topic) {
+        span.name(policy.sendName()).kind(Span.Kind.PRODUCER).start();
+        if (topic != null && policy.tag(MqTag.TOPIC)) {
+            span.tag(MqTag.TOPIC.key(), topic);
+        }
+        return span;
+    }
+
+    private static void tag(Span span, MqTag tag, String value) {
+        if (value != null && !value.isEmpty()) {
+            span.tag(tag.key(), value);
+        }
+    }
+
+    /**
+     * RocketMQ要求批量消息属于同一个topic，取第一条消息的topic即可
+     */
+    private static String batchTopic(Collection<Message> messageCollection) {
+        return messageCollection.isEmpty() ? null : messageCollection.iterator().next().getTopic();
+    }
+
+    private RedMetrics metrics(String topic) {
+        return metrics != null ? metrics.send(topic) : null;
+    }
+
+    private <C, R> R inScope(Span span, RedMetrics metrics, C carrier, TracingFunction<C, R> function) throws Throwable {
+        long startNanos = metrics != null ? System.nanoTime() : 0L;
+        boolean error = false;
+        try (Tracer.SpanInScope ws = tracing.tracer().withSpanInScope(span)) {
+            return function.apply(carrier);
+        } catch (Throwable e) {
+            error = true;
+            span.error(e);
+            throw e;
+        } finally {
+            span.finish();
+            if (metrics != null) {
+                metrics.record(System.nanoTime() - startNanos, error);
+            }
+        }
+    }
+
+    /**
+     * 未采样且未开启指标时不替换回调；没有可替换的回调时按同步调用处理
+     */
+    private Object inAsyncScope(Span span, RedMetrics metrics, Object[] args, TracingFunction<Object[], Object> function) throws Throwable {
+        PendingSend send = span.isNoop() && metrics == null ? null : new PendingSend(span, metrics);
+        boolean wrapped = send != null && wrapCallback(args, send);
+        Throwable error = null;
+        try (Tracer.SpanInScope ws = tracing.tracer().withSpanInScope(span)) {
+            return function.apply(args);
+        } catch (Throwable e) {
+            error = e;
+            throw e;
+        } finally {
+            if (send == null) {
+                if (error != null) {
+                    span.error(error);
+                }
+                span.finish();
+            } else if (!wrapped || error != null) {
+                send.finish(error);
+            }
+        }
+    }
+
+    /**
+     * 将调用参数中的回调替换为链路跟踪回调
+     *
+     * @return 是否替换成功，回调为null时返回false
+     */
+    private boolean wrapCallback(Object[] args, PendingSend send) {
+        CurrentTraceContext currentTraceContext = tracing.currentTraceContext();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i] instanceof SendCallback) {
+                args[i] = new TracingSendCallback((SendCallback) args[i], send, currentTraceContext);
+                return true;
+            } else if (args[i] instanceof RequestCallback) {
+                args[i] = new TracingRequestCallback((RequestCallback) args[i], send, currentTraceContext);
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -1,15 +1,18 @@
 package top.liumian.zipkin.core.mq.producer;
 
-import brave.Span;
 import brave.Tracing;
-import net.sf.cglib.proxy.MethodProxy;
+import net.sf.cglib.proxy.MethodInterceptor;
 import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.RequestCallback;
+import org.apache.rocketmq.client.producer.SendCallback;
 import org.apache.rocketmq.common.message.Message;
+import top.liumian.zipkin.core.mq.InstrumentationMode;
+import top.liumian.zipkin.core.mq.MqTracing;
 import top.liumian.zipkin.core.mq.TracingProxyFactory;
-import top.liumian.zipkin.util.TraceUtil;
-import top.liumian.zipkin.util.TracingFunction;
 
+import java.io.IOException;
 import java.lang.reflect.Method;
+import java.nio.file.Path;
 import java.util.Collection;
 
 /**
@@ -17,89 +20,112 @@ import java.util.Collection;
  */
 public class TracingProducerProxyFactory extends TracingProxyFactory<DefaultMQProducer> {
 
-    public static DefaultMQProducer createTracingProducer(Tracing tracing, DefaultMQProducer producer) {
-        return new TracingProducerProxyFactory(tracing, producer).getProxy();
-    }
+    /**
+     * 发送单条消息
+     */
+    private static final int TRACED_SINGLE = TRACED;
 
-    private TracingProducerProxyFactory(Tracing tracing, DefaultMQProducer producer) {
-        super(tracing,producer);
-    }
+    /**
+     * 发送批量消息
+     */
+    private static final int TRACED_BATCH = TRACED + 1;
 
-    @Override
-    public Object intercept(Object obj, Method method, Object[] args, MethodProxy proxy) throws Throwable {
-        if (isSendMessageMethod(method, args)) {
-            return traceMessage((Message) args[0], message -> method.invoke(instance, args));
-        } else if (isSendBatchMessageMethod(method, args)) {
-            return traceMessage((Collection<Message>) args[0], messages -> method.invoke(instance, args));
-        } else {
-            return method.invoke(instance, args);
-        }
-    }
+    /**
+     * 带回调的异步发送单条消息
+     */
+    private static final int TRACED_ASYNC_SINGLE = TRACED + 2;
 
     /**
-     * 判断是否是发送消息方法
-     *
-     * @param method 当前调用方法
-     * @return 判断结果
+     * 带回调的异步发送批量消息
      */
-    private boolean isSendMessageMethod(Method method, Object[] args) {
-        String methodName = method.getName();
-        if (methodName.startsWith("send") || methodName.startsWith("request")) {
-            return args[0] instanceof Message;
-        } else {
-            return false;
-        }
-    }
+    private static final int TRACED_ASYNC_BATCH = TRACED + 3;
+
+    private static final TracingCallbackFilter CALLBACK_FILTER = new ProducerCallbackFilter();
+
+    private final SendTracer sendTracer;
 
+    public static DefaultMQProducer createTracingProducer(Tracing tracing, DefaultMQProducer producer) {
+        return createTracingProducer(MqTracing.create(tracing), producer);
+    }
 
     /**
-     * 判断是否是发送消息方法
-     *
-     * @param method 当前调用方法
-     * @return 判断结果
+     * 按 {@link MqTracing#instrumentationMode()} 开启链路跟踪，钩子模式下返回原对象
      */
-    private boolean isSendBatchMessageMethod(Method method, Object[] args) {
-        String methodName = method.getName();
-        if (methodName.startsWith("send") || methodName.startsWith("request")) {
-            return args[0] instanceof Collection;
-        } else {
-            return false;
+    public static DefaultMQProducer createTracingProducer(MqTracing mqTracing, DefaultMQProducer producer) {
+        if (mqTracing.instrumentationMode() == InstrumentationMode.HOOK) {
+            producer.getDefaultMQProducerImpl().registerSendMessageHook(new TracingSendMessageHook(mqTracing));
+            return producer;
         }
+        return new TracingProducerProxyFactory(mqTracing, producer).getProxy();
     }
 
     /**
-     * 将当前链路信息注入到message中
+     * 预生成代理类，见 {@link top.liumian.zipkin.core.mq.ProxyClassGenerator}
      *
-     * @param message  MQ业务消息
-     * @param function 业务方法
-     * @param <R>      泛型
-     * @return 业务方法执行结果
-     * @throws Throwable 异常
+     * @param type      生产者类型
+     * @param directory 输出目录
+     * @return 代理类名称
+     * @throws IOException 写入失败
      */
-    private <R> R traceMessage(Message message, TracingFunction<Message, R> function) throws Throwable {
-        return TraceUtil.injectTraceInfo(tracing, "MQ/SEND", traceInfo -> {
-            Span span = tracing.tracer().currentSpan();
-            traceInfo.forEach(message::putUserProperty);
-            span.tag("mq.topic", message.getTopic());
-            return function.apply(message);
-        });
+    public static String generateProxyClass(Class<? extends DefaultMQProducer> type, Path directory) throws IOException {
+        return writeProxyClass(type, CALLBACK_FILTER, directory);
+    }
+
+    private TracingProducerProxyFactory(MqTracing mqTracing, DefaultMQProducer producer) {
+        super(mqTracing.tracing(), producer);
+        this.sendTracer = new SendTracer(mqTracing);
+    }
+
+    @Override
+    protected TracingCallbackFilter callbackFilter() {
+        return CALLBACK_FILTER;
+    }
+
+    @Override
+    protected MethodInterceptor[] tracingCallbacks() {
+        MethodInterceptor single = (obj, method, args, proxy) -> sendTracer.traceMessage((Message) args[0], message -> invoke(method, args));
+        MethodInterceptor batch = (obj, method, args, proxy) -> sendTracer.traceMessage((Collection<Message>) args[0], messages -> invoke(method, args));
+        MethodInterceptor asyncSingle = (obj, method, args, proxy) -> sendTracer.traceAsyncMessage((Message) args[0], args, tracedArgs -> invoke(method, tracedArgs));
+        MethodInterceptor asyncBatch = (obj, method, args, proxy) -> sendTracer.traceAsyncMessage((Collection<Message>) args[0], args, tracedArgs -> invoke(method, tracedArgs));
+        return new MethodInterceptor[]{single, batch, asyncSingle, asyncBatch};
     }
 
     /**
-     * 将当前链路信息注入到message中
-     *
-     * @param messageCollection MQ业务消息集合
-     * @param function          业务方法
-     * @param <R>               泛型
-     * @return 业务方法执行结果
-     * @throws Throwable 异常
+     * 按方法签名对生产者方法分类：以send/request开头且第一个参数为消息或消息集合的方法需要链路跟踪，
+     * 带有SendCallback/RequestCallback参数的为异步方法
      */
-    private <R> R traceMessage(Collection<Message> messageCollection, TracingFunction<Collection<Message>, R> function) throws Throwable {
-        return TraceUtil.injectTraceInfo(tracing, "MQ/SEND", traceInfo -> {
-            messageCollection.forEach(message -> traceInfo.forEach(message::putUserProperty));
-            return function.apply(messageCollection);
-        });
-    }
+    private static class ProducerCallbackFilter extends TracingCallbackFilter {
+
+        ProducerCallbackFilter() {
+            super(4);
+        }
+
+        @Override
+        protected int classify(Method method) {
+            String methodName = method.getName();
+            Class<?>[] parameterTypes = method.getParameterTypes();
+            if (parameterTypes.length == 0 || !(methodName.startsWith("send") || methodName.startsWith("request"))) {
+                return PASS_THROUGH;
+            }
+            boolean async = hasCallback(parameterTypes);
+            if (Message.class.isAssignableFrom(parameterTypes[0])) {
+                return async ? TRACED_ASYNC_SINGLE : TRACED_SINGLE;
+            } else if (Collection.class.isAssignableFrom(parameterTypes[0])) {
+                return async ? TRACED_ASYNC_BATCH : TRACED_BATCH;
+            } else {
+                return PASS_THROUGH;
+            }
+        }
 
+        private static boolean hasCallback(Class<?>[] parameterTypes) {
+            for (Class<?> parameterType : parameterTypes) {
+                if (SendCallback.class.isAssignableFrom(parameterType) || RequestCallback.class.isAssignableFrom(parameterType)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
 
 }
@@ -0,0 +1,48 @@
+package top.liumian.zipkin.core.mq.producer;
+
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import org.apache.rocketmq.client.producer.RequestCallback;
+import org.apache.rocketmq.common.message.Message;
+
+/**
+ * 异步request回调包装，在收到响应消息或请求失败时结束发送span并记录发送指标
+ *
+ * @author liumian  2022/9/3 14:25
+ */
+class TracingRequestCallback implements RequestCallback {
+
+    private final RequestCallback delegate;
+
+    private final PendingSend send;
+
+    private final CurrentTraceContext currentTraceContext;
+
+    /**
+     * 发起请求时的链路上下文，回调在该上下文中执行
+     */
+    private final TraceContext invocationContext;
+
+    TracingRequestCallback(RequestCallback delegate, PendingSend send, CurrentTraceContext currentTraceContext) {
+        this.delegate = delegate;
+        this.send = send;
+        this.currentTraceContext = currentTraceContext;
+        this.invocationContext = currentTraceContext.get();
+    }
+
+    @Override
+    public void onSuccess(Message message) {
+        send.finish(null);
+        try (CurrentTraceContext.Scope scope = currentTraceContext.maybeScope(invocationContext)) {
+            delegate.onSuccess(message);
+        }
+    }
+
+    @Override
+    public void onException(Throwable e) {
+        send.finish(e);
+        try (CurrentTraceContext.Scope scope = currentTraceContext.maybeScope(invocationContext)) {
+            delegate.onException(e);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package top.liumian.zipkin.core.mq.producer;
+
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.client.producer.SendResult;
+
+/**
+ * 异步发送回调包装，在broker响应或发送失败时结束发送span并记录发送指标
+ *
+ * @author liumian  2022/9/3 14:10
+ */
+class TracingSendCallback implements SendCallback {
+
+    private final SendCallback delegate;
+
+    private final PendingSend send;
+
+    private final CurrentTraceContext currentTraceContext;
+
+    /**
+     * 发起发送时的链路上下文，回调在该上下文中执行
+     */
+    private final TraceContext invocationContext;
+
+    TracingSendCallback(SendCallback delegate, PendingSend send, CurrentTraceContext currentTraceContext) {
+        this.delegate = delegate;
+        this.send = send;
+        this.currentTraceContext = currentTraceContext;
+        this.invocationContext = currentTraceContext.get();
+    }
+
+    @Override
+    public void onSuccess(SendResult sendResult) {
+        send.finish(null);
+        try (CurrentTraceContext.Scope scope = currentTraceContext.maybeScope(invocationContext)) {
+            delegate.onSuccess(sendResult);
+        }
+    }
+
+    @Override
+    public void onException(Throwable e) {
+        send.finish(e);
+        try (CurrentTraceContext.Scope scope = currentTraceContext.maybeScope(invocationContext)) {
+            delegate.onException(e);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package top.liumian.zipkin.core.mq.producer;
+
+import org.apache.rocketmq.client.hook.SendMessageContext;
+import org.apache.rocketmq.client.hook.SendMessageHook;
+import org.apache.rocketmq.client.impl.CommunicationMode;
+import top.liumian.zipkin.core.mq.MqTracing;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * {@link top.liumian.zipkin.core.mq.InstrumentationMode#HOOK} 模式下的发送钩子：
+ * 在消息属性序列化之前注入链路信息，在收到发送结果或异常时结束发送span
+ *
+ * @author liumian  2022/10/6 10:30
+ */
+final class TracingSendMessageHook implements SendMessageHook {
+
+    static final String NAME = "ZipkinTracingSendMessageHook";
+
+    private final SendTracer sendTracer;
+
+    /**
+     * mqTraceContext已被其他钩子（例如RocketMQ自带的消息轨迹）占用时，在这里记录进行中的发送；
+     * 弱引用保证没有等到发送结果的上下文不会常驻内存
+     */
+    private final Map<SendMessageContext, PendingSend> occupied = Collections.synchronizedMap(new WeakHashMap<>());
+
+    TracingSendMessageHook(MqTracing mqTracing) {
+        this.sendTracer = new SendTracer(mqTracing);
+    }
+
+    @Override
+    public String hookName() {
+        return NAME;
+    }
+
+    @Override
+    public void sendMessageBefore(SendMessageContext context) {
+        PendingSend send = sendTracer.startSend(context.getMessage());
+        if (send == null) {
+            return;
+        }
+        if (context.getMqTraceContext() == null) {
+            context.setMqTraceContext(send);
+        } else {
+            occupied.put(context, send);
+        }
+    }
+
+    @Override
+    public void sendMessageAfter(SendMessageContext context) {
+        if (context.getCommunicationMode() == CommunicationMode.ASYNC && context.getSendResult() == null && context.getException() == null) {
+            // 异步发送的请求已发出，回调还未触发，回调时会再次调用
+            return;
+        }
+        PendingSend send;
+        Object traceContext = context.getMqTraceContext();
+        if (traceContext instanceof PendingSend) {
+            send = (PendingSend) traceContext;
+            context.setMqTraceContext(null);
+        } else {
+            send = occupied.remove(context);
+        }
+        if (send != null) {
+            send.finish(context.getException());
+        }
+    }
+
+}
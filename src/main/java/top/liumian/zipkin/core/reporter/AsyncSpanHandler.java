@@ -0,0 +1,361 @@
+package top.liumian.zipkin.core.reporter;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import zipkin2.reporter.Sender;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 有界、批量的异步span上报器
+ * <p>
+ * span在结束时编码并放入无锁队列，队列按span数量和字节数双重限制，超出时按 {@link DropPolicy} 丢弃，
+ * 不会阻塞业务线程。后台线程按 messageMaxBytes 打包，在攒满一个消息或达到 messageTimeout 时发送。
+ * 编码由sender的 {@link zipkin2.codec.Encoding} 决定，见 {@link SpanEncoder}。
+ *
+ * @author liumian  2022/9/10 09:55
+ */
+public final class AsyncSpanHandler extends SpanHandler implements ExportBacklog, Closeable, Flushable {
+
+    private final static Logger logger = Logger.getLogger(AsyncSpanHandler.class.getName());
+
+    /**
+     * 消息中除span本身以外的最大额外开销：json列表首尾及分隔符、thrift列表头
+     */
+    private static final int MESSAGE_OVERHEAD = 5;
+
+    private final Sender sender;
+
+    private final SpanEncoder encoder;
+
+    private final int queuedMaxSpans;
+
+    private final long queuedMaxBytes;
+
+    private final int messageMaxBytes;
+
+    private final long messageTimeoutNanos;
+
+    private final long closeTimeoutNanos;
+
+    private final DropPolicy dropPolicy;
+
+    private final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger queuedSpans = new AtomicInteger();
+
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    private final LongAdder droppedSpans = new LongAdder();
+
+    private final LongAdder sentSpans = new LongAdder();
+
+    private final LongAdder sentMessages = new LongAdder();
+
+    private final Thread flushThread;
+
+    /**
+     * 上一批放不下、留到下一批发送的span，只由持有flush锁的线程访问
+     */
+    private byte[] carryOver;
+
+    private volatile boolean closed;
+
+    public static Builder newBuilder(Sender sender) {
+        return new Builder(sender);
+    }
+
+    private AsyncSpanHandler(Builder builder) {
+        this.sender = builder.sender;
+        this.encoder = SpanEncoder.forEncoding(sender.encoding());
+        this.queuedMaxSpans = builder.queuedMaxSpans;
+        this.queuedMaxBytes = builder.queuedMaxBytes;
+        this.messageMaxBytes = Math.min(builder.messageMaxBytes, sender.messageMaxBytes());
+        this.messageTimeoutNanos = builder.messageTimeoutNanos;
+        this.closeTimeoutNanos = builder.closeTimeoutNanos;
+        this.dropPolicy = builder.dropPolicy;
+        this.flushThread = new Thread(this::flushLoop, "AsyncSpanHandler{" + sender + "}");
+        this.flushThread.setDaemon(true);
+        this.flushThread.start();
+    }
+
+    @Override
+    public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+        if (cause == Cause.ABANDONED || closed || !Boolean.TRUE.equals(context.sampled())) {
+            return true;
+        }
+        offer(encoder.encode(span));
+        return true;
+    }
+
+    /**
+     * 将编码后的span放入队列，队列已满时按丢弃策略处理，不会阻塞
+     *
+     * @param encodedSpan 编码后的span
+     * @return 是否入队成功
+     */
+    boolean offer(byte[] encodedSpan) {
+        if (encodedSpan.length + MESSAGE_OVERHEAD > messageMaxBytes) {
+            droppedSpans.increment();
+            return false;
+        }
+        while (!reserve(encodedSpan.length)) {
+            if (dropPolicy == DropPolicy.DROP_NEWEST || !evictOldest()) {
+                droppedSpans.increment();
+                return false;
+            }
+        }
+        queue.offer(encodedSpan);
+        if (queuedBytes.get() + MESSAGE_OVERHEAD >= messageMaxBytes) {
+            LockSupport.unpark(flushThread);
+        }
+        return true;
+    }
+
+    private boolean reserve(int bytes) {
+        if (queuedSpans.incrementAndGet() > queuedMaxSpans) {
+            queuedSpans.decrementAndGet();
+            return false;
+        }
+        if (queuedBytes.addAndGet(bytes) > queuedMaxBytes) {
+            queuedBytes.addAndGet(-bytes);
+            queuedSpans.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean evictOldest() {
+        byte[] oldest = queue.poll();
+        if (oldest == null) {
+            return false;
+        }
+        release(oldest);
+        droppedSpans.increment();
+        return true;
+    }
+
+    private void release(byte[] encodedSpan) {
+        queuedBytes.addAndGet(-encodedSpan.length);
+        queuedSpans.decrementAndGet();
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            long deadline = System.nanoTime() + messageTimeoutNanos;
+            long remaining;
+            while (!closed && queuedBytes.get() + MESSAGE_OVERHEAD < messageMaxBytes
+                    && (remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            flush();
+        }
+        long closeDeadline = System.nanoTime() + closeTimeoutNanos;
+        while ((carryOver != null || !queue.isEmpty()) && System.nanoTime() < closeDeadline) {
+            flush();
+        }
+    }
+
+    /**
+     * 发送一个消息大小以内的span
+     */
+    @Override
+    public synchronized void flush() {
+        List<byte[]> batch = new ArrayList<>();
+        int messageSize = MESSAGE_OVERHEAD;
+        if (carryOver != null) {
+            batch.add(carryOver);
+            messageSize += carryOver.length + encoder.separatorBytes();
+            carryOver = null;
+        }
+        byte[] next;
+        while ((next = queue.poll()) != null) {
+            release(next);
+            if (messageSize + next.length + encoder.separatorBytes() > messageMaxBytes) {
+                carryOver = next;
+                break;
+            }
+            batch.add(next);
+            messageSize += next.length + encoder.separatorBytes();
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            sender.sendSpans(batch).execute();
+            sentSpans.add(batch.size());
+            sentMessages.increment();
+        } catch (Exception | LinkageError e) {
+            droppedSpans.add(batch.size());
+            logger.log(Level.WARNING, "span上报失败，丢弃" + batch.size() + "个span: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return 当前排队中的span数量
+     */
+    public int queuedSpans() {
+        return queuedSpans.get();
+    }
+
+    /**
+     * @return 当前排队中的span字节数
+     */
+    public long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @return 队列按span数量和字节数占用比例中较大的一个
+     */
+    @Override
+    public double backlogRatio() {
+        return Math.max((double) queuedSpans.get() / queuedMaxSpans, (double) queuedBytes.get() / queuedMaxBytes);
+    }
+
+    /**
+     * @return 因队列已满或上报失败而丢弃的span总数
+     */
+    @Override
+    public long droppedSpans() {
+        return droppedSpans.sum();
+    }
+
+    /**
+     * @return 上报成功的span总数
+     */
+    public long sentSpans() {
+        return sentSpans.sum();
+    }
+
+    /**
+     * @return 上报成功的消息总数
+     */
+    public long sentMessages() {
+        return sentMessages.sum();
+    }
+
+    /**
+     * 停止接收新的span，在closeTimeout内尽量发送完已排队的span
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(flushThread);
+        try {
+            flushThread.join(TimeUnit.NANOSECONDS.toMillis(closeTimeoutNanos) + 1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int remaining = queuedSpans.get();
+        if (remaining > 0) {
+            droppedSpans.add(remaining);
+            logger.log(Level.WARNING, "关闭时仍有" + remaining + "个span未发送");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncSpanHandler{" + sender + "}";
+    }
+
+    public static final class Builder {
+
+        private final Sender sender;
+
+        private int queuedMaxSpans = 10000;
+
+        private long queuedMaxBytes = Math.max(Runtime.getRuntime().totalMemory() / 100, 1024 * 1024);
+
+        private int messageMaxBytes;
+
+        private long messageTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+
+        private long closeTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+
+        private DropPolicy dropPolicy = DropPolicy.DROP_NEWEST;
+
+        Builder(Sender sender) {
+            if (sender == null) {
+                throw new NullPointerException("sender == null");
+            }
+            SpanEncoder.forEncoding(sender.encoding());
+            this.sender = sender;
+            this.messageMaxBytes = sender.messageMaxBytes();
+        }
+
+        /**
+         * 队列中最多排队的span数量，默认10000
+         */
+        public Builder queuedMaxSpans(int queuedMaxSpans) {
+            this.queuedMaxSpans = queuedMaxSpans;
+            return this;
+        }
+
+        /**
+         * 队列中最多排队的span字节数，默认为堆内存的1%
+         */
+        public Builder queuedMaxBytes(long queuedMaxBytes) {
+            this.queuedMaxBytes = queuedMaxBytes;
+            return this;
+        }
+
+        /**
+         * 单次发送的最大字节数，不超过sender的限制
+         */
+        public Builder messageMaxBytes(int messageMaxBytes) {
+            this.messageMaxBytes = messageMaxBytes;
+            return this;
+        }
+
+        /**
+         * 消息未攒满时最长等待多久发送，默认1秒
+         */
+        public Builder messageTimeout(long timeout, TimeUnit unit) {
+            if (timeout <= 0) {
+                throw new IllegalArgumentException("messageTimeout <= 0");
+            }
+            this.messageTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * 关闭时等待已排队span发送完成的最长时间，默认1秒
+         */
+        public Builder closeTimeout(long timeout, TimeUnit unit) {
+            this.closeTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * 队列已满时的丢弃策略，默认 {@link DropPolicy#DROP_NEWEST}
+         */
+        public Builder dropPolicy(DropPolicy dropPolicy) {
+            if (dropPolicy == null) {
+                throw new NullPointerException("dropPolicy == null");
+            }
+            this.dropPolicy = dropPolicy;
+            return this;
+        }
+
+        public AsyncSpanHandler build() {
+            return new AsyncSpanHandler(this);
+        }
+    }
+
+}
@@ -0,0 +1,283 @@
+package top.liumian.zipkin.core.reporter;
+
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 根据上报积压自动减少新链路的采样器
+ * <p>
+ * 每隔 checkInterval 由某个采样线程读取一次 {@link ExportBacklog}：积压比例达到 highWatermark 或期间有span被丢弃时，
+ * 立即停止采样新链路，此后创建的span都是noop，不再打标签和编码；积压降到 lowWatermark 以下且没有新的丢弃后，
+ * 准入比例从1/64开始每次翻倍，逐步恢复到交给被包装的采样器决定，恢复中再次过载时重新停止。
+ * 两个水位之间保持当前比例不变。只影响新链路，已有上游采样结果的span沿用上游结果。
+ * <p>
+ * 采样时只读取volatile字段，不加锁；{@link #shedTraces()}、{@link #trips()} 等指标可以用于观察链路何时被稀疏化。
+ * <p>
+ * 开启 {@link brave.Tracing.Builder#alwaysSampleLocal()}（如尾部采样记录未采样链路）时，未采样的span仍会在本地记录，
+ * 需要用 {@link #skipLocalRecordingWhenOpen} 包装传播方式，停止采样期间才会真正创建noop span。
+ *
+ * @author liumian  2022/10/11 10:30
+ */
+public final class BackPressureSampler extends Sampler {
+
+    private final static Logger logger = Logger.getLogger(BackPressureSampler.class.getName());
+
+    /**
+     * 准入比例的单位，准入比例为 admission / ADMIT_ALL
+     */
+    static final int ADMIT_ALL = 1024;
+
+    /**
+     * 恢复时的初始准入比例
+     */
+    static final int MIN_ADMISSION = ADMIT_ALL / 64;
+
+    public enum State {
+        /**
+         * 正常采样
+         */
+        CLOSED,
+        /**
+         * 上报过载，不采样新链路
+         */
+        OPEN,
+        /**
+         * 正在逐步恢复
+         */
+        RECOVERING
+    }
+
+    private final Sampler delegate;
+
+    private final ExportBacklog backlog;
+
+    private final double highWatermark;
+
+    private final double lowWatermark;
+
+    private final long checkIntervalNanos;
+
+    private final AtomicLong nextCheckNanos;
+
+    private final LongAdder shedTraces = new LongAdder();
+
+    private final LongAdder trips = new LongAdder();
+
+    private volatile int admission = ADMIT_ALL;
+
+    private volatile long lastDroppedSpans;
+
+    public static Builder newBuilder(Sampler delegate, ExportBacklog backlog) {
+        return new Builder(delegate, backlog);
+    }
+
+    private BackPressureSampler(Builder builder) {
+        this.delegate = builder.delegate;
+        this.backlog = builder.backlog;
+        this.highWatermark = builder.highWatermark;
+        this.lowWatermark = builder.lowWatermark;
+        this.checkIntervalNanos = builder.checkIntervalNanos;
+        this.nextCheckNanos = new AtomicLong(System.nanoTime());
+        this.lastDroppedSpans = backlog.droppedSpans();
+    }
+
+    @Override
+    public boolean isSampled(long traceId) {
+        long now = System.nanoTime();
+        long next = nextCheckNanos.get();
+        if (now - next >= 0 && nextCheckNanos.compareAndSet(next, now + checkIntervalNanos)) {
+            check();
+        }
+        if (!delegate.isSampled(traceId)) {
+            return false;
+        }
+        int admission = this.admission;
+        if (admission == ADMIT_ALL || ((int) traceId & (ADMIT_ALL - 1)) < admission) {
+            return true;
+        }
+        shedTraces.increment();
+        return false;
+    }
+
+    /**
+     * 读取积压情况并调整准入比例，同一时刻只有一个线程执行
+     */
+    private void check() {
+        double ratio = backlog.backlogRatio();
+        long dropped = backlog.droppedSpans();
+        boolean dropping = dropped > lastDroppedSpans;
+        lastDroppedSpans = dropped;
+        int admission = this.admission;
+        if (ratio >= highWatermark || dropping) {
+            if (admission != 0) {
+                this.admission = 0;
+                trips.increment();
+                logger.log(Level.WARNING, "span上报积压" + Math.round(ratio * 100) + "%" + (dropping ? "且有span被丢弃" : "") + "，暂停采样新链路");
+            }
+        } else if (ratio <= lowWatermark && admission < ADMIT_ALL) {
+            this.admission = admission == 0 ? MIN_ADMISSION : Math.min(admission * 2, ADMIT_ALL);
+            if (this.admission == ADMIT_ALL) {
+                logger.log(Level.INFO, "span上报积压已缓解，恢复正常采样");
+            }
+        }
+    }
+
+    /**
+     * @return 当前状态
+     */
+    public State state() {
+        int admission = this.admission;
+        return admission == ADMIT_ALL ? State.CLOSED : admission == 0 ? State.OPEN : State.RECOVERING;
+    }
+
+    /**
+     * @return 被包装的采样器决定采样的新链路中，当前允许采样的比例
+     */
+    public double admissionRate() {
+        return (double) admission / ADMIT_ALL;
+    }
+
+    /**
+     * @return 被包装的采样器决定采样、但因上报过载而放弃的链路总数
+     */
+    public long shedTraces() {
+        return shedTraces.sum();
+    }
+
+    /**
+     * @return 因上报过载停止采样的次数
+     */
+    public long trips() {
+        return trips.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "BackPressureSampler{" + delegate + ", state=" + state() + "}";
+    }
+
+    /**
+     * 包装传播方式：处于 {@link State#OPEN} 时，新建的未采样span不再本地记录，即使开启了alwaysSampleLocal也是noop
+     * <p>
+     * 停止采样前已开始、只在本地记录的链路，其后续span同样不再记录
+     */
+    public Propagation.Factory skipLocalRecordingWhenOpen(Propagation.Factory delegate) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate == null");
+        }
+        return new SkipLocalRecordingFactory(delegate);
+    }
+
+    private final class SkipLocalRecordingFactory extends Propagation.Factory {
+
+        private final Propagation.Factory delegate;
+
+        SkipLocalRecordingFactory(Propagation.Factory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public <K> Propagation<K> create(Propagation.KeyFactory<K> keyFactory) {
+            return delegate.create(keyFactory);
+        }
+
+        @Override
+        public Propagation<String> get() {
+            return delegate.get();
+        }
+
+        @Override
+        public boolean supportsJoin() {
+            return delegate.supportsJoin();
+        }
+
+        @Override
+        public boolean requires128BitTraceId() {
+            return delegate.requires128BitTraceId();
+        }
+
+        @Override
+        public TraceContext decorate(TraceContext context) {
+            TraceContext result = delegate.decorate(context);
+            if (admission == 0 && result.sampledLocal() && !Boolean.TRUE.equals(result.sampled())) {
+                return result.toBuilder().sampledLocal(false).build();
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "SkipLocalRecording(" + delegate + ")";
+        }
+    }
+
+    public static final class Builder {
+
+        private final Sampler delegate;
+
+        private final ExportBacklog backlog;
+
+        private double highWatermark = 0.8;
+
+        private double lowWatermark = 0.5;
+
+        private long checkIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+
+        Builder(Sampler delegate, ExportBacklog backlog) {
+            if (delegate == null || backlog == null) {
+                throw new NullPointerException("delegate == null || backlog == null");
+            }
+            this.delegate = delegate;
+            this.backlog = backlog;
+        }
+
+        /**
+         * 积压比例达到该值时停止采样新链路，默认0.8
+         */
+        public Builder highWatermark(double highWatermark) {
+            if (highWatermark <= 0 || highWatermark > 1) {
+                throw new IllegalArgumentException("highWatermark应在0到1之间: " + highWatermark);
+            }
+            this.highWatermark = highWatermark;
+            return this;
+        }
+
+        /**
+         * 积压比例降到该值以下时开始逐步恢复，默认0.5
+         */
+        public Builder lowWatermark(double lowWatermark) {
+            if (lowWatermark < 0 || lowWatermark > 1) {
+                throw new IllegalArgumentException("lowWatermark应在0到1之间: " + lowWatermark);
+            }
+            this.lowWatermark = lowWatermark;
+            return this;
+        }
+
+        /**
+         * 读取积压情况的间隔，也是恢复时准入比例翻倍的间隔，默认1秒
+         */
+        public Builder checkInterval(long interval, TimeUnit unit) {
+            if (interval < 0) {
+                throw new IllegalArgumentException("interval < 0");
+            }
+            this.checkIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        public BackPressureSampler build() {
+            if (lowWatermark >= highWatermark) {
+                throw new IllegalArgumentException("lowWatermark应小于highWatermark");
+            }
+            return new BackPressureSampler(this);
+        }
+    }
+
+}
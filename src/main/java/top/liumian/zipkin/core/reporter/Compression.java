@@ -0,0 +1,159 @@
+package top.liumian.zipkin.core.reporter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 上报消息的压缩方式
+ * <p>
+ * GZIP 每个线程复用一个 {@link Deflater} 和输出缓冲区，只在返回结果时分配一次数组；
+ * ZSTD 依赖 com.github.luben:zstd-jni（随rocketmq-client引入），压缩比和速度都优于gzip，但需要collector支持。
+ *
+ * @author liumian  2022/10/12 14:00
+ */
+public enum Compression {
+
+    NONE(null) {
+        @Override
+        public byte[] compress(byte[] message) {
+            return message;
+        }
+
+        @Override
+        public byte[] decompress(byte[] compressed) {
+            return compressed;
+        }
+    },
+
+    GZIP("gzip") {
+        @Override
+        public byte[] compress(byte[] message) {
+            GzipState state = GZIP_STATE.get();
+            Deflater deflater = state.deflater;
+            deflater.reset();
+            deflater.setInput(message);
+            deflater.finish();
+            byte[] out = state.buffer;
+            System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+            int length = GZIP_HEADER.length;
+            while (!deflater.finished()) {
+                if (length == out.length) {
+                    out = state.buffer = Arrays.copyOf(out, out.length * 2);
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            state.crc.reset();
+            state.crc.update(message, 0, message.length);
+            byte[] result = Arrays.copyOf(out, length + GZIP_TRAILER);
+            writeIntLittleEndian(result, length, (int) state.crc.getValue());
+            writeIntLittleEndian(result, length + 4, message.length);
+            if (out.length > MAX_RETAINED_BYTES) {
+                state.buffer = new byte[INITIAL_BUFFER_BYTES];
+            }
+            return result;
+        }
+
+        @Override
+        public byte[] decompress(byte[] compressed) throws IOException {
+            return readFully(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+        }
+    },
+
+    ZSTD("zstd") {
+        @Override
+        public byte[] compress(byte[] message) {
+            return com.github.luben.zstd.Zstd.compress(message);
+        }
+
+        @Override
+        public byte[] decompress(byte[] compressed) throws IOException {
+            return readFully(new com.github.luben.zstd.ZstdInputStream(new ByteArrayInputStream(compressed)));
+        }
+
+        @Override
+        void checkAvailable() {
+            try {
+                Class.forName("com.github.luben.zstd.Zstd", false, Compression.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("zstd压缩需要依赖 com.github.luben:zstd-jni");
+            }
+        }
+    };
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private static final int GZIP_TRAILER = 8;
+
+    private static final int INITIAL_BUFFER_BYTES = 8 * 1024;
+
+    private static final int MAX_RETAINED_BYTES = 1024 * 1024;
+
+    private static final ThreadLocal<GzipState> GZIP_STATE = ThreadLocal.withInitial(GzipState::new);
+
+    private final String contentEncoding;
+
+    Compression(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * @return http请求的 Content-Encoding，不压缩时为null
+     */
+    public String contentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * @param message 编码后的消息
+     * @return 压缩后的消息，不压缩时返回原数组
+     */
+    public abstract byte[] compress(byte[] message);
+
+    /**
+     * @param compressed 压缩后的消息
+     * @return 原消息
+     * @throws IOException 数据不完整或格式错误
+     */
+    public abstract byte[] decompress(byte[] compressed) throws IOException;
+
+    /**
+     * 检查压缩所需的依赖是否存在，创建sender时调用，避免到第一次上报才失败
+     */
+    void checkAvailable() {
+    }
+
+    private static void writeIntLittleEndian(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static final class GzipState {
+
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+        final CRC32 crc = new CRC32();
+
+        byte[] buffer = new byte[INITIAL_BUFFER_BYTES];
+    }
+
+}
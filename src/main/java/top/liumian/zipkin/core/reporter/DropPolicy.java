@@ -0,0 +1,20 @@
+package top.liumian.zipkin.core.reporter;
+
+/**
+ * 上报队列已满时的丢弃策略
+ *
+ * @author liumian  2022/9/10 09:40
+ */
+public enum DropPolicy {
+
+    /**
+     * 丢弃新完成的span，已排队的span保持不变
+     */
+    DROP_NEWEST,
+
+    /**
+     * 丢弃队列中最早的span，为新完成的span腾出空间
+     */
+    DROP_OLDEST
+
+}
@@ -0,0 +1,20 @@
+package top.liumian.zipkin.core.reporter;
+
+/**
+ * span上报器的积压情况，供 {@link BackPressureSampler} 判断上报是否过载
+ *
+ * @author liumian  2022/10/11 10:00
+ */
+public interface ExportBacklog {
+
+    /**
+     * @return 等待发送的span占用上限的比例，0到1之间
+     */
+    double backlogRatio();
+
+    /**
+     * @return 累计丢弃的span数量
+     */
+    long droppedSpans();
+
+}
@@ -0,0 +1,262 @@
+package top.liumian.zipkin.core.reporter;
+
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.BytesMessageEncoder;
+import zipkin2.reporter.Sender;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 把span消息追加到本地文件的sender，由日志采集等旁路程序转发到collector
+ * <p>
+ * 每个消息为一条记录：4字节长度、1字节压缩方式（{@link Compression} 的序号）、压缩后的消息，
+ * 可以用 {@link #readMessages(Path)} 读取。文件超过 maxFileBytes 时重命名为 文件名.1 并重新开始，只保留一个历史文件。
+ * 写入时对文件加排他锁，文件正在被其他sender写入时发送失败。
+ *
+ * @author liumian  2022/10/12 16:00
+ */
+public final class FileSpanSender extends Sender {
+
+    private static final int RECORD_HEADER = 5;
+
+    private final Path file;
+
+    private final Path rolledFile;
+
+    private final Encoding encoding;
+
+    private final BytesMessageEncoder messageEncoder;
+
+    private final Compression compression;
+
+    private final int messageMaxBytes;
+
+    private final long maxFileBytes;
+
+    private FileChannel channel;
+
+    private boolean closeCalled;
+
+    public static Builder newBuilder(Path file) {
+        return new Builder(file);
+    }
+
+    private FileSpanSender(Builder builder) {
+        this.file = builder.file;
+        this.rolledFile = builder.file.resolveSibling(builder.file.getFileName() + ".1");
+        this.encoding = builder.encoding;
+        this.messageEncoder = BytesMessageEncoder.forEncoding(builder.encoding);
+        this.compression = builder.compression;
+        this.messageMaxBytes = builder.messageMaxBytes;
+        this.maxFileBytes = builder.maxFileBytes;
+    }
+
+    @Override
+    public Encoding encoding() {
+        return encoding;
+    }
+
+    @Override
+    public int messageMaxBytes() {
+        return messageMaxBytes;
+    }
+
+    @Override
+    public int messageSizeInBytes(List<byte[]> encodedSpans) {
+        return encoding.listSizeInBytes(encodedSpans);
+    }
+
+    @Override
+    public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+        return new AppendCall(compression.compress(messageEncoder.encode(encodedSpans)));
+    }
+
+    private synchronized void append(byte[] message) throws IOException {
+        if (closeCalled) {
+            throw new IllegalStateException("closed");
+        }
+        if (channel == null) {
+            channel = open(file);
+        } else if (channel.size() + RECORD_HEADER + message.length > maxFileBytes && channel.size() > 0) {
+            channel.close();
+            channel = null;
+            Files.move(file, rolledFile, StandardCopyOption.REPLACE_EXISTING);
+            channel = open(file);
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        header.putInt(message.length).put((byte) compression.ordinal()).flip();
+        ByteBuffer[] record = {header, ByteBuffer.wrap(message)};
+        while (record[1].hasRemaining()) {
+            channel.write(record);
+        }
+    }
+
+    /**
+     * 多个sender同时追加会使记录交错，锁由channel持有，关闭channel时释放
+     */
+    private static FileChannel open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        boolean locked = false;
+        try {
+            locked = channel.tryLock() != null;
+        } catch (OverlappingFileLockException e) {
+            // 同一进程中已有sender在写入该文件
+        } finally {
+            if (!locked) {
+                channel.close();
+            }
+        }
+        if (!locked) {
+            throw new IOException("文件正在被其他sender写入: " + file);
+        }
+        return channel;
+    }
+
+    /**
+     * 读取文件中的全部消息，末尾不完整的记录（写入中或进程异常退出）被忽略
+     *
+     * @param file sender写入的文件
+     * @return 解压后的消息，按sender的编码可以用 {@link zipkin2.codec.SpanBytesDecoder#decodeList(byte[])} 解码
+     * @throws IOException 文件无法读取或记录已损坏
+     */
+    public static List<byte[]> readMessages(Path file) throws IOException {
+        ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(file));
+        List<byte[]> messages = new ArrayList<>();
+        Compression[] compressions = Compression.values();
+        while (content.remaining() >= RECORD_HEADER) {
+            int length = content.getInt();
+            int compression = content.get();
+            if (length < 0 || compression < 0 || compression >= compressions.length) {
+                throw new IOException("记录已损坏: " + file);
+            }
+            if (content.remaining() < length) {
+                break;
+            }
+            byte[] message = new byte[length];
+            content.get(message);
+            messages.add(compressions[compression].decompress(message));
+        }
+        return messages;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeCalled = true;
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FileSpanSender{" + file + ", " + encoding + ", " + compression + "}";
+    }
+
+    private final class AppendCall extends Call.Base<Void> {
+
+        private final byte[] message;
+
+        AppendCall(byte[] message) {
+            this.message = message;
+        }
+
+        @Override
+        protected Void doExecute() throws IOException {
+            append(message);
+            return null;
+        }
+
+        @Override
+        protected void doEnqueue(Callback<Void> callback) {
+            try {
+                append(message);
+                callback.onSuccess(null);
+            } catch (IOException | RuntimeException e) {
+                callback.onError(e);
+            }
+        }
+
+        @Override
+        public Call<Void> clone() {
+            return new AppendCall(message);
+        }
+    }
+
+    public static final class Builder {
+
+        private final Path file;
+
+        private Encoding encoding = Encoding.JSON;
+
+        private Compression compression = Compression.NONE;
+
+        private int messageMaxBytes = 512 * 1024;
+
+        private long maxFileBytes = 256L * 1024 * 1024;
+
+        Builder(Path file) {
+            if (file == null) {
+                throw new NullPointerException("file == null");
+            }
+            this.file = file.toAbsolutePath();
+        }
+
+        /**
+         * span编码，默认json
+         */
+        public Builder encoding(Encoding encoding) {
+            if (encoding == null) {
+                throw new NullPointerException("encoding == null");
+            }
+            this.encoding = encoding;
+            return this;
+        }
+
+        /**
+         * 消息压缩方式，默认不压缩
+         */
+        public Builder compression(Compression compression) {
+            if (compression == null) {
+                throw new NullPointerException("compression == null");
+            }
+            compression.checkAvailable();
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * 单个消息压缩前的最大字节数，默认512KB
+         */
+        public Builder messageMaxBytes(int messageMaxBytes) {
+            this.messageMaxBytes = messageMaxBytes;
+            return this;
+        }
+
+        /**
+         * 文件超过该大小时滚动，默认256MB
+         */
+        public Builder maxFileBytes(long maxFileBytes) {
+            if (maxFileBytes <= 0) {
+                throw new IllegalArgumentException("maxFileBytes <= 0");
+            }
+            this.maxFileBytes = maxFileBytes;
+            return this;
+        }
+
+        public FileSpanSender build() {
+            return new FileSpanSender(this);
+        }
+    }
+
+}
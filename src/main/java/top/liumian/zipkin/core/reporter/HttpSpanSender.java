@@ -0,0 +1,263 @@
+package top.liumian.zipkin.core.reporter;
+
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.BytesMessageEncoder;
+import zipkin2.reporter.Sender;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+
+/**
+ * 通过http POST上报span的sender，支持json/proto3/thrift编码和gzip/zstd压缩
+ * <p>
+ * 每次发送一个消息，Content-Type 按编码设置，压缩时设置 Content-Encoding。
+ * zipkin服务端只在 {@code api/v1/spans} 接收thrift，上报地址按 {@link #spansPath(Encoding)} 拼接。
+ * zipkin服务端支持gzip，zstd需要collector或网关支持。
+ *
+ * @author liumian  2022/10/12 15:00
+ */
+public final class HttpSpanSender extends Sender {
+
+    private final URL endpoint;
+
+    private final Encoding encoding;
+
+    private final BytesMessageEncoder messageEncoder;
+
+    private final Compression compression;
+
+    private final int messageMaxBytes;
+
+    private final int connectTimeout;
+
+    private final int readTimeout;
+
+    private volatile boolean closeCalled;
+
+    public static Builder newBuilder(String endpoint) {
+        return new Builder(endpoint);
+    }
+
+    private HttpSpanSender(Builder builder) {
+        this.endpoint = builder.endpoint;
+        this.encoding = builder.encoding;
+        this.messageEncoder = BytesMessageEncoder.forEncoding(builder.encoding);
+        this.compression = builder.compression;
+        this.messageMaxBytes = builder.messageMaxBytes;
+        this.connectTimeout = builder.connectTimeout;
+        this.readTimeout = builder.readTimeout;
+    }
+
+    @Override
+    public Encoding encoding() {
+        return encoding;
+    }
+
+    /**
+     * 按压缩前的大小计算
+     */
+    @Override
+    public int messageMaxBytes() {
+        return messageMaxBytes;
+    }
+
+    @Override
+    public int messageSizeInBytes(List<byte[]> encodedSpans) {
+        return encoding.listSizeInBytes(encodedSpans);
+    }
+
+    public Compression compression() {
+        return compression;
+    }
+
+    @Override
+    public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+        if (closeCalled) {
+            throw new IllegalStateException("closed");
+        }
+        return new PostCall(compression.compress(messageEncoder.encode(encodedSpans)));
+    }
+
+    void post(byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", contentType(encoding));
+        if (compression.contentEncoding() != null) {
+            connection.setRequestProperty("Content-Encoding", compression.contentEncoding());
+        }
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        int status = connection.getResponseCode();
+        drain(status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+        if (status / 100 != 2) {
+            throw new IOException("上报失败，响应码" + status + ": " + endpoint);
+        }
+    }
+
+    /**
+     * 读完响应以便复用连接
+     */
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try (InputStream input = in) {
+            byte[] buffer = new byte[1024];
+            while (input.read(buffer) != -1) {
+                // 丢弃响应内容
+            }
+        }
+    }
+
+    /**
+     * @return zipkin服务端接收该编码的路径，thrift只能发送到v1接口
+     */
+    public static String spansPath(Encoding encoding) {
+        switch (encoding) {
+            case THRIFT:
+                return "api/v1/spans";
+            default:
+                return "api/v2/spans";
+        }
+    }
+
+    static String contentType(Encoding encoding) {
+        switch (encoding) {
+            case PROTO3:
+                return "application/x-protobuf";
+            case THRIFT:
+                return "application/x-thrift";
+            default:
+                return "application/json";
+        }
+    }
+
+    @Override
+    public void close() {
+        closeCalled = true;
+    }
+
+    @Override
+    public String toString() {
+        return "HttpSpanSender{" + endpoint + ", " + encoding + ", " + compression + "}";
+    }
+
+    private final class PostCall extends Call.Base<Void> {
+
+        private final byte[] body;
+
+        PostCall(byte[] body) {
+            this.body = body;
+        }
+
+        @Override
+        protected Void doExecute() throws IOException {
+            post(body);
+            return null;
+        }
+
+        @Override
+        protected void doEnqueue(Callback<Void> callback) {
+            try {
+                post(body);
+                callback.onSuccess(null);
+            } catch (IOException | RuntimeException e) {
+                callback.onError(e);
+            }
+        }
+
+        @Override
+        public Call<Void> clone() {
+            return new PostCall(body);
+        }
+    }
+
+    public static final class Builder {
+
+        private final URL endpoint;
+
+        private Encoding encoding = Encoding.JSON;
+
+        private Compression compression = Compression.GZIP;
+
+        private int messageMaxBytes = 512 * 1024;
+
+        private int connectTimeout = 10 * 1000;
+
+        private int readTimeout = 60 * 1000;
+
+        Builder(String endpoint) {
+            if (endpoint == null) {
+                throw new NullPointerException("endpoint == null");
+            }
+            try {
+                this.endpoint = new URL(endpoint);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("无效的上报地址: " + endpoint, e);
+            }
+        }
+
+        /**
+         * span编码，默认json
+         */
+        public Builder encoding(Encoding encoding) {
+            if (encoding == null) {
+                throw new NullPointerException("encoding == null");
+            }
+            this.encoding = encoding;
+            return this;
+        }
+
+        /**
+         * 消息压缩方式，默认gzip
+         */
+        public Builder compression(Compression compression) {
+            if (compression == null) {
+                throw new NullPointerException("compression == null");
+            }
+            compression.checkAvailable();
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * 单个消息压缩前的最大字节数，默认512KB
+         */
+        public Builder messageMaxBytes(int messageMaxBytes) {
+            this.messageMaxBytes = messageMaxBytes;
+            return this;
+        }
+
+        /**
+         * 连接超时时间，单位毫秒，默认10秒
+         */
+        public Builder connectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        /**
+         * 读取超时时间，单位毫秒，默认60秒
+         */
+        public Builder readTimeout(int readTimeout) {
+            this.readTimeout = readTimeout;
+            return this;
+        }
+
+        public HttpSpanSender build() {
+            return new HttpSpanSender(this);
+        }
+    }
+
+}
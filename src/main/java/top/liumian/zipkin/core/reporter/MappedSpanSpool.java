@@ -0,0 +1,309 @@
+package top.liumian.zipkin.core.reporter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 基于内存映射文件的环形span缓冲区
+ * <p>
+ * 文件由64字节的头部和固定大小的数据区组成，头部记录读写位置，数据区中每条记录为4字节长度加编码后的span。
+ * 读写位置单调递增，对数据区大小取模得到物理位置；记录放不下数据区末尾时写入填充标记并从头开始。
+ * 写入只是一次内存拷贝，由操作系统负责刷盘，进程重启后可以从头部恢复未发送的span。
+ * 打开时对文件加排他锁，同一文件只能被一个spool使用，关闭文件时释放。
+ *
+ * @author liumian  2022/9/24 14:00
+ */
+final class MappedSpanSpool implements Closeable {
+
+    private final static Logger logger = Logger.getLogger(MappedSpanSpool.class.getName());
+
+    static final int HEADER_SIZE = 64;
+
+    private static final int MAGIC = 0x5a4b5350;
+
+    private static final int VERSION = 1;
+
+    private static final int MAGIC_OFFSET = 0;
+
+    private static final int VERSION_OFFSET = 4;
+
+    private static final int CAPACITY_OFFSET = 8;
+
+    private static final int HEAD_OFFSET = 16;
+
+    private static final int TAIL_OFFSET = 24;
+
+    private static final int RECORD_HEADER = 4;
+
+    /**
+     * 填充标记，表示数据区末尾剩余空间不足以写入下一条记录
+     */
+    private static final int PADDING = -1;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    private final int capacity;
+
+    private long head;
+
+    private long tail;
+
+    private int spooledSpans;
+
+    private long evictedSpans;
+
+    private MappedSpanSpool(FileChannel channel, MappedByteBuffer buffer, int capacity) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = capacity;
+    }
+
+    /**
+     * 打开或创建spool文件，文件格式或大小不匹配时清空重建
+     *
+     * @param file     spool文件
+     * @param maxBytes 文件总大小，包含头部
+     * @return spool
+     * @throws IOException 文件无法打开或映射，或正在被其他spool使用
+     */
+    static MappedSpanSpool open(Path file, int maxBytes) throws IOException {
+        if (maxBytes <= HEADER_SIZE + RECORD_HEADER) {
+            throw new IllegalArgumentException("maxBytes过小: " + maxBytes);
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (!tryLock(channel)) {
+                throw new IOException("spool文件正在被其他进程使用: " + file);
+            }
+            if (channel.size() > maxBytes) {
+                channel.truncate(maxBytes);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, maxBytes);
+            MappedSpanSpool spool = new MappedSpanSpool(channel, buffer, maxBytes - HEADER_SIZE);
+            spool.recover();
+            return spool;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 多个进程映射同一文件会互相覆盖读写位置，锁由channel持有，关闭channel时释放
+     */
+    private static boolean tryLock(FileChannel channel) throws IOException {
+        try {
+            FileLock lock = channel.tryLock();
+            return lock != null;
+        } catch (OverlappingFileLockException e) {
+            // 同一进程中已有spool打开该文件
+            return false;
+        }
+    }
+
+    /**
+     * 从文件头部恢复读写位置并统计剩余span数量，头部或记录损坏时清空
+     */
+    private void recover() {
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION
+                || buffer.getLong(CAPACITY_OFFSET) != capacity) {
+            reset();
+            return;
+        }
+        head = buffer.getLong(HEAD_OFFSET);
+        tail = buffer.getLong(TAIL_OFFSET);
+        if (head < 0 || head > tail || tail - head > capacity) {
+            logger.log(Level.WARNING, "spool文件头部已损坏，清空后重新使用");
+            reset();
+            return;
+        }
+        long position = head;
+        int count = 0;
+        while ((position = skipPadding(position)) < tail) {
+            int length = buffer.getInt(physical(position));
+            if (length < 0 || RECORD_HEADER + length > capacity - offset(position) || position + RECORD_HEADER + length > tail) {
+                logger.log(Level.WARNING, "spool文件记录已损坏，清空后重新使用");
+                reset();
+                return;
+            }
+            position += RECORD_HEADER + length;
+            count++;
+        }
+        spooledSpans = count;
+    }
+
+    private void reset() {
+        head = 0;
+        tail = 0;
+        spooledSpans = 0;
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putLong(CAPACITY_OFFSET, capacity);
+        buffer.putLong(HEAD_OFFSET, 0);
+        buffer.putLong(TAIL_OFFSET, 0);
+    }
+
+    /**
+     * 追加一条记录，空间不足时从最旧的记录开始淘汰
+     *
+     * @param src    数据
+     * @param offset 数据起始位置
+     * @param length 数据长度
+     * @return 记录超过数据区大小时返回false
+     */
+    synchronized boolean append(byte[] src, int offset, int length) {
+        int needed = RECORD_HEADER + length;
+        if (needed > capacity) {
+            return false;
+        }
+        int contiguous = capacity - offset(tail);
+        int padding = contiguous < needed ? contiguous : 0;
+        while (tail + padding + needed - head > capacity) {
+            if (head == tail) {
+                tail += padding;
+                head = tail;
+                padding = 0;
+            } else {
+                evictOldest();
+            }
+        }
+        if (padding > 0) {
+            if (padding >= RECORD_HEADER) {
+                buffer.putInt(physical(tail), PADDING);
+            }
+            tail += padding;
+        }
+        int position = physical(tail);
+        buffer.putInt(position, length);
+        buffer.position(position + RECORD_HEADER);
+        buffer.put(src, offset, length);
+        tail += needed;
+        spooledSpans++;
+        buffer.putLong(HEAD_OFFSET, head);
+        buffer.putLong(TAIL_OFFSET, tail);
+        return true;
+    }
+
+    private void evictOldest() {
+        head = skipPadding(head);
+        if (head < tail) {
+            head += RECORD_HEADER + buffer.getInt(physical(head));
+            spooledSpans--;
+            evictedSpans++;
+        }
+    }
+
+    /**
+     * 从最旧的记录开始读取一批span，不会移动读位置，发送成功后需要调用 {@link #commit(Batch)}
+     *
+     * @param messageMaxBytes 一批span编码为消息后的最大字节数
+     * @param encoder         span的编码，决定消息的额外开销
+     * @return 读取的span，spool为空时返回的批次不包含span
+     */
+    synchronized Batch read(int messageMaxBytes, SpanEncoder encoder) {
+        List<byte[]> spans = Collections.emptyList();
+        long position = head;
+        int messageSize = encoder.messageOverhead();
+        while ((position = skipPadding(position)) < tail) {
+            int length = buffer.getInt(physical(position));
+            int spanSize = spans.isEmpty() ? length : length + encoder.separatorBytes();
+            if (messageSize + spanSize > messageMaxBytes && !spans.isEmpty()) {
+                break;
+            }
+            if (spans.isEmpty()) {
+                spans = new ArrayList<>();
+            }
+            byte[] span = new byte[length];
+            buffer.position(physical(position) + RECORD_HEADER);
+            buffer.get(span);
+            spans.add(span);
+            messageSize += spanSize;
+            position += RECORD_HEADER + length;
+        }
+        return new Batch(spans, position);
+    }
+
+    /**
+     * 释放已发送的批次，读取后被淘汰的记录不会重复计数
+     */
+    synchronized void commit(Batch batch) {
+        while ((head = skipPadding(head)) < batch.end) {
+            head += RECORD_HEADER + buffer.getInt(physical(head));
+            spooledSpans--;
+        }
+        buffer.putLong(HEAD_OFFSET, head);
+    }
+
+    private long skipPadding(long position) {
+        if (position >= tail) {
+            return position;
+        }
+        int contiguous = capacity - offset(position);
+        if (contiguous < RECORD_HEADER || buffer.getInt(physical(position)) == PADDING) {
+            return position + contiguous;
+        }
+        return position;
+    }
+
+    private int offset(long position) {
+        return (int) (position % capacity);
+    }
+
+    private int physical(long position) {
+        return HEADER_SIZE + offset(position);
+    }
+
+    /**
+     * @return 可以存放记录的字节数，不含文件头部
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    synchronized int spooledSpans() {
+        return spooledSpans;
+    }
+
+    synchronized long spooledBytes() {
+        return tail - head;
+    }
+
+    synchronized long evictedSpans() {
+        return evictedSpans;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    static final class Batch {
+
+        final List<byte[]> spans;
+
+        /**
+         * 批次中最后一条记录之后的位置
+         */
+        final long end;
+
+        Batch(List<byte[]> spans, long end) {
+            this.spans = spans;
+            this.end = end;
+        }
+    }
+
+}
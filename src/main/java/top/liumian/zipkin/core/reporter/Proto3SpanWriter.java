@@ -0,0 +1,331 @@
+package top.liumian.zipkin.core.reporter;
+
+import brave.Tags;
+import brave.handler.MutableSpan;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * 将 {@link MutableSpan} 直接写为zipkin.proto格式，不经过 zipkin2.Span 转换
+ * <p>
+ * 每个span写为 ListOfSpans 的一个 spans 字段（tag + 长度 + Span），多个span直接拼接即为一个消息。
+ * 嵌套消息和字符串先预留1字节长度，写完后回填，长度超过127时把内容后移，因此只遍历一次字符串。
+ * 字段顺序与 zipkin2 的 PROTO3 编码一致。
+ *
+ * @author liumian  2022/10/12 10:30
+ */
+final class Proto3SpanWriter {
+
+    private static final int WIRETYPE_VARINT = 0;
+
+    private static final int WIRETYPE_FIXED64 = 1;
+
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+    private static final int LIST_OF_SPANS_SPANS = 1;
+
+    private static final int SPAN_TRACE_ID = 1;
+
+    private static final int SPAN_PARENT_ID = 2;
+
+    private static final int SPAN_ID = 3;
+
+    private static final int SPAN_KIND = 4;
+
+    private static final int SPAN_NAME = 5;
+
+    private static final int SPAN_TIMESTAMP = 6;
+
+    private static final int SPAN_DURATION = 7;
+
+    private static final int SPAN_LOCAL_ENDPOINT = 8;
+
+    private static final int SPAN_REMOTE_ENDPOINT = 9;
+
+    private static final int SPAN_ANNOTATIONS = 10;
+
+    private static final int SPAN_TAGS = 11;
+
+    private static final int SPAN_DEBUG = 12;
+
+    private static final int SPAN_SHARED = 13;
+
+    private static final int ENDPOINT_SERVICE_NAME = 1;
+
+    private static final int ENDPOINT_IPV4 = 2;
+
+    private static final int ENDPOINT_IPV6 = 3;
+
+    private static final int ENDPOINT_PORT = 4;
+
+    private static final int ANNOTATION_TIMESTAMP = 1;
+
+    private static final int ANNOTATION_VALUE = 2;
+
+    private static final int ENTRY_KEY = 1;
+
+    private static final int ENTRY_VALUE = 2;
+
+    private Proto3SpanWriter() {
+    }
+
+    /**
+     * 从 buffer.length 开始写入一个span，写完后 buffer.length 为结束位置
+     */
+    static void write(MutableSpan span, SpanBuffer buffer) {
+        int spanStart = beginLengthDelimited(buffer, LIST_OF_SPANS_SPANS);
+
+        String traceId = span.traceId();
+        writeKey(buffer, SPAN_TRACE_ID, WIRETYPE_LENGTH_DELIMITED);
+        if (traceId.length() == 32) {
+            writeVarint(buffer, 16);
+            writeLongBigEndian(buffer, parseHex(traceId, 0));
+            writeLongBigEndian(buffer, parseHex(traceId, 16));
+        } else {
+            writeVarint(buffer, 8);
+            writeLongBigEndian(buffer, parseHex(traceId, 0));
+        }
+        String parentId = span.parentId();
+        if (parentId != null) {
+            writeKey(buffer, SPAN_PARENT_ID, WIRETYPE_LENGTH_DELIMITED);
+            writeVarint(buffer, 8);
+            writeLongBigEndian(buffer, parseHex(parentId, 0));
+        }
+        writeKey(buffer, SPAN_ID, WIRETYPE_LENGTH_DELIMITED);
+        writeVarint(buffer, 8);
+        writeLongBigEndian(buffer, parseHex(span.id(), 0));
+
+        if (span.kind() != null) {
+            writeKey(buffer, SPAN_KIND, WIRETYPE_VARINT);
+            writeVarint(buffer, span.kind().ordinal() + 1);
+        }
+        writeString(buffer, SPAN_NAME, span.name());
+
+        long startTimestamp = span.startTimestamp();
+        long finishTimestamp = span.finishTimestamp();
+        if (startTimestamp != 0L) {
+            writeKey(buffer, SPAN_TIMESTAMP, WIRETYPE_FIXED64);
+            writeLongLittleEndian(buffer, startTimestamp);
+            if (finishTimestamp != 0L) {
+                writeKey(buffer, SPAN_DURATION, WIRETYPE_VARINT);
+                writeVarint(buffer, Math.max(finishTimestamp - startTimestamp, 1));
+            }
+        }
+
+        writeEndpoint(buffer, SPAN_LOCAL_ENDPOINT, span.localServiceName(), span.localIp(), span.localPort());
+        writeEndpoint(buffer, SPAN_REMOTE_ENDPOINT, span.remoteServiceName(), span.remoteIp(), span.remotePort());
+
+        for (int i = 0, count = span.annotationCount(); i < count; i++) {
+            int start = beginLengthDelimited(buffer, SPAN_ANNOTATIONS);
+            writeKey(buffer, ANNOTATION_TIMESTAMP, WIRETYPE_FIXED64);
+            writeLongLittleEndian(buffer, span.annotationTimestampAt(i));
+            writeString(buffer, ANNOTATION_VALUE, span.annotationValueAt(i));
+            endLengthDelimited(buffer, start);
+        }
+
+        boolean errorTagged = false;
+        for (int i = 0, count = span.tagCount(); i < count; i++) {
+            String key = span.tagKeyAt(i);
+            errorTagged |= Tags.ERROR.key().equals(key);
+            writeTag(buffer, key, span.tagValueAt(i));
+        }
+        if (span.error() != null && !errorTagged) {
+            writeTag(buffer, Tags.ERROR.key(), Tags.ERROR.value(span.error(), null));
+        }
+
+        if (span.debug()) {
+            writeKey(buffer, SPAN_DEBUG, WIRETYPE_VARINT);
+            writeVarint(buffer, 1);
+        }
+        if (span.shared()) {
+            writeKey(buffer, SPAN_SHARED, WIRETYPE_VARINT);
+            writeVarint(buffer, 1);
+        }
+
+        endLengthDelimited(buffer, spanStart);
+    }
+
+    private static void writeEndpoint(SpanBuffer buffer, int field, String serviceName, String ip, int port) {
+        if (serviceName == null && ip == null && port == 0) {
+            return;
+        }
+        int start = beginLengthDelimited(buffer, field);
+        writeString(buffer, ENDPOINT_SERVICE_NAME, serviceName);
+        if (ip != null) {
+            writeIp(buffer, ip);
+        }
+        if (port != 0) {
+            writeKey(buffer, ENDPOINT_PORT, WIRETYPE_VARINT);
+            writeVarint(buffer, port);
+        }
+        endLengthDelimited(buffer, start);
+    }
+
+    /**
+     * brave已将ip规范化，ipv4直接逐段解析，ipv6交给 {@link InetAddress} 解析字面量，不会查询DNS
+     */
+    private static void writeIp(SpanBuffer buffer, String ip) {
+        if (ip.indexOf(':') < 0) {
+            writeKey(buffer, ENDPOINT_IPV4, WIRETYPE_LENGTH_DELIMITED);
+            writeVarint(buffer, 4);
+            buffer.ensureCapacity(buffer.length + 4);
+            int octet = 0;
+            for (int i = 0; i < ip.length(); i++) {
+                char c = ip.charAt(i);
+                if (c == '.') {
+                    buffer.bytes[buffer.length++] = (byte) octet;
+                    octet = 0;
+                } else {
+                    octet = octet * 10 + (c - '0');
+                }
+            }
+            buffer.bytes[buffer.length++] = (byte) octet;
+            return;
+        }
+        byte[] address;
+        try {
+            address = InetAddress.getByName(ip).getAddress();
+        } catch (UnknownHostException e) {
+            return;
+        }
+        writeKey(buffer, address.length == 4 ? ENDPOINT_IPV4 : ENDPOINT_IPV6, WIRETYPE_LENGTH_DELIMITED);
+        writeVarint(buffer, address.length);
+        buffer.ensureCapacity(buffer.length + address.length);
+        System.arraycopy(address, 0, buffer.bytes, buffer.length, address.length);
+        buffer.length += address.length;
+    }
+
+    private static void writeTag(SpanBuffer buffer, String key, String value) {
+        int start = beginLengthDelimited(buffer, SPAN_TAGS);
+        writeString(buffer, ENTRY_KEY, key);
+        writeString(buffer, ENTRY_VALUE, value);
+        endLengthDelimited(buffer, start);
+    }
+
+    /**
+     * 空字符串和null都不写，与proto3的默认值一致
+     */
+    private static void writeString(SpanBuffer buffer, int field, String value) {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        int start = beginLengthDelimited(buffer, field);
+        int length = value.length();
+        buffer.ensureCapacity(buffer.length + length * 3);
+        byte[] bytes = buffer.bytes;
+        int pos = buffer.length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[pos++] = (byte) (0xc0 | (c >> 6));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                bytes[pos++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                bytes[pos++] = '?';
+            } else {
+                bytes[pos++] = (byte) (0xe0 | (c >> 12));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        buffer.length = pos;
+        endLengthDelimited(buffer, start);
+    }
+
+    /**
+     * 写入字段tag并预留1字节长度
+     *
+     * @return 预留的长度所在位置
+     */
+    private static int beginLengthDelimited(SpanBuffer buffer, int field) {
+        writeKey(buffer, field, WIRETYPE_LENGTH_DELIMITED);
+        int start = buffer.length;
+        buffer.ensureCapacity(start + 1);
+        buffer.length = start + 1;
+        return start;
+    }
+
+    private static void endLengthDelimited(SpanBuffer buffer, int start) {
+        int size = buffer.length - start - 1;
+        int sizeOfLength = varintSize(size);
+        if (sizeOfLength > 1) {
+            buffer.ensureCapacity(buffer.length + sizeOfLength - 1);
+            System.arraycopy(buffer.bytes, start + 1, buffer.bytes, start + sizeOfLength, size);
+            buffer.length += sizeOfLength - 1;
+        }
+        byte[] bytes = buffer.bytes;
+        int pos = start;
+        while ((size & ~0x7f) != 0) {
+            bytes[pos++] = (byte) ((size & 0x7f) | 0x80);
+            size >>>= 7;
+        }
+        bytes[pos] = (byte) size;
+    }
+
+    private static void writeKey(SpanBuffer buffer, int field, int wireType) {
+        writeVarint(buffer, (field << 3) | wireType);
+    }
+
+    private static void writeVarint(SpanBuffer buffer, long value) {
+        buffer.ensureCapacity(buffer.length + 10);
+        byte[] bytes = buffer.bytes;
+        int pos = buffer.length;
+        while ((value & ~0x7fL) != 0) {
+            bytes[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[pos++] = (byte) value;
+        buffer.length = pos;
+    }
+
+    private static int varintSize(int value) {
+        if ((value & (0xffffffff << 7)) == 0) {
+            return 1;
+        }
+        if ((value & (0xffffffff << 14)) == 0) {
+            return 2;
+        }
+        if ((value & (0xffffffff << 21)) == 0) {
+            return 3;
+        }
+        if ((value & (0xffffffff << 28)) == 0) {
+            return 4;
+        }
+        return 5;
+    }
+
+    private static void writeLongBigEndian(SpanBuffer buffer, long value) {
+        buffer.ensureCapacity(buffer.length + 8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer.bytes[buffer.length++] = (byte) (value >>> shift);
+        }
+    }
+
+    private static void writeLongLittleEndian(SpanBuffer buffer, long value) {
+        buffer.ensureCapacity(buffer.length + 8);
+        for (int shift = 0; shift < 64; shift += 8) {
+            buffer.bytes[buffer.length++] = (byte) (value >>> shift);
+        }
+    }
+
+    /**
+     * 解析从start开始的16位小写十六进制id
+     */
+    private static long parseHex(String id, int start) {
+        long value = 0;
+        for (int i = start, end = start + 16; i < end; i++) {
+            char c = id.charAt(i);
+            value = (value << 4) | (c <= '9' ? c - '0' : c - 'a' + 10);
+        }
+        return value;
+    }
+
+}
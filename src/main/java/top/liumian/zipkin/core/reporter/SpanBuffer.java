@@ -0,0 +1,48 @@
+package top.liumian.zipkin.core.reporter;
+
+import java.util.Arrays;
+
+/**
+ * 线程本地复用的编码缓冲区，编码结果为 bytes[offset, offset + length)，在同一线程下一次编码前有效
+ *
+ * @author liumian  2022/10/12 10:00
+ */
+final class SpanBuffer {
+
+    private static final ThreadLocal<SpanBuffer> LOCAL = ThreadLocal.withInitial(SpanBuffer::new);
+
+    /**
+     * 超过该大小的缓冲区用完后不再保留，避免个别大span让每个线程长期占用大块内存
+     */
+    private static final int MAX_RETAINED_BYTES = 64 * 1024;
+
+    byte[] bytes = new byte[1024];
+
+    int offset;
+
+    int length;
+
+    static SpanBuffer get() {
+        SpanBuffer buffer = LOCAL.get();
+        if (buffer.bytes.length > MAX_RETAINED_BYTES) {
+            buffer.bytes = new byte[1024];
+        }
+        buffer.offset = 0;
+        buffer.length = 0;
+        return buffer;
+    }
+
+    /**
+     * 保证从0开始至少有capacity字节可写，扩容时保留已写入的内容
+     */
+    void ensureCapacity(int capacity) {
+        if (bytes.length < capacity) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOfRange(bytes, offset, offset + length);
+    }
+
+}
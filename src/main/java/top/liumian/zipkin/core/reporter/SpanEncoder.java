@@ -0,0 +1,127 @@
+package top.liumian.zipkin.core.reporter;
+
+import brave.Tags;
+import brave.handler.MutableSpan;
+import brave.handler.MutableSpanBytesEncoder;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesEncoder;
+
+import java.util.Collections;
+
+/**
+ * span上报时使用的编码，由sender的 {@link Encoding} 决定
+ * <p>
+ * 编码先写入线程本地复用的缓冲区：落盘上报直接从缓冲区拷贝进spool，不再分配数组；队列上报拷贝出一个刚好大小的数组。
+ * PROTO3 由 {@link Proto3SpanWriter} 直接写出，体积约为json的一半；THRIFT 需要先转换为 zipkin2 Span，
+ * 主要用于兼容只接收thrift的旧collector。
+ *
+ * @author liumian  2022/10/12 11:30
+ */
+public enum SpanEncoder {
+
+    JSON(Encoding.JSON, 2, 1) {
+
+        private final MutableSpanBytesEncoder encoder = MutableSpanBytesEncoder.zipkinJsonV2(Tags.ERROR);
+
+        @Override
+        public byte[] encode(MutableSpan span) {
+            return encoder.encode(span);
+        }
+
+        /**
+         * brave只提供按列表写入数组的接口，写入后去掉首尾的方括号
+         */
+        @Override
+        void encode(MutableSpan span, SpanBuffer buffer) {
+            buffer.ensureCapacity(encoder.sizeInBytes(span) + 2);
+            int written = encoder.encodeList(Collections.singletonList(span), buffer.bytes, 0);
+            buffer.offset = 1;
+            buffer.length = written - 2;
+        }
+    },
+
+    PROTO3(Encoding.PROTO3, 0, 0) {
+        @Override
+        void encode(MutableSpan span, SpanBuffer buffer) {
+            Proto3SpanWriter.write(span, buffer);
+        }
+    },
+
+    @SuppressWarnings("deprecation") // 旧版只接收thrift的collector仍需要该编码
+    THRIFT(Encoding.THRIFT, 5, 0) {
+        @Override
+        public byte[] encode(MutableSpan span) {
+            return SpanBytesEncoder.THRIFT.encode(ZipkinSpans.convert(span));
+        }
+
+        /**
+         * zipkin2只提供按列表写入数组的接口，写入后去掉5字节的列表头
+         */
+        @Override
+        void encode(MutableSpan span, SpanBuffer buffer) {
+            Span converted = ZipkinSpans.convert(span);
+            buffer.ensureCapacity(SpanBytesEncoder.THRIFT.sizeInBytes(converted) + 5);
+            int written = SpanBytesEncoder.THRIFT.encodeList(Collections.singletonList(converted), buffer.bytes, 0);
+            buffer.offset = 5;
+            buffer.length = written - 5;
+        }
+    };
+
+    private final Encoding encoding;
+
+    private final int messageOverhead;
+
+    private final int separatorBytes;
+
+    SpanEncoder(Encoding encoding, int messageOverhead, int separatorBytes) {
+        this.encoding = encoding;
+        this.messageOverhead = messageOverhead;
+        this.separatorBytes = separatorBytes;
+    }
+
+    public static SpanEncoder forEncoding(Encoding encoding) {
+        if (encoding == null) {
+            throw new NullPointerException("encoding == null");
+        }
+        for (SpanEncoder encoder : values()) {
+            if (encoder.encoding == encoding) {
+                return encoder;
+            }
+        }
+        throw new IllegalArgumentException("暂不支持的编码: " + encoding);
+    }
+
+    public Encoding encoding() {
+        return encoding;
+    }
+
+    /**
+     * @return 编码后的span，长度与内容完全一致
+     */
+    public byte[] encode(MutableSpan span) {
+        SpanBuffer buffer = SpanBuffer.get();
+        encode(span, buffer);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * 编码到线程本地缓冲区，结果为 buffer.bytes[offset, offset + length)
+     */
+    abstract void encode(MutableSpan span, SpanBuffer buffer);
+
+    /**
+     * @return 消息中与span数量无关的开销，例如json列表的首尾方括号、thrift的列表头
+     */
+    int messageOverhead() {
+        return messageOverhead;
+    }
+
+    /**
+     * @return 消息中每两个span之间的分隔符字节数
+     */
+    int separatorBytes() {
+        return separatorBytes;
+    }
+
+}
@@ -0,0 +1,337 @@
+package top.liumian.zipkin.core.reporter;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import zipkin2.reporter.Sender;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 落盘的span上报器，用于zipkin服务不可用时暂存span
+ * <p>
+ * span结束时编码到线程本地缓冲区，再拷贝进内存映射的环形文件 {@link MappedSpanSpool}，写入路径没有系统调用；
+ * 文件写满时淘汰最旧的span。后台线程按 messageMaxBytes 分批发送，发送失败时保留span并指数退避重试，
+ * 进程重启后继续发送文件中剩余的span。
+ *
+ * @author liumian  2022/9/24 15:00
+ */
+public final class SpoolSpanHandler extends SpanHandler implements ExportBacklog, Closeable, Flushable {
+
+    private final static Logger logger = Logger.getLogger(SpoolSpanHandler.class.getName());
+
+    private final Sender sender;
+
+    private final SpanEncoder encoder;
+
+    private final MappedSpanSpool spool;
+
+    private final int messageMaxBytes;
+
+    private final long drainIntervalNanos;
+
+    private final long maxBackoffNanos;
+
+    private final long closeTimeoutNanos;
+
+    private final LongAdder oversizedSpans = new LongAdder();
+
+    private final LongAdder sentSpans = new LongAdder();
+
+    private final LongAdder sentMessages = new LongAdder();
+
+    private final LongAdder failedMessages = new LongAdder();
+
+    private final Thread drainThread;
+
+    private volatile boolean closed;
+
+    public static Builder newBuilder(Sender sender, Path file) {
+        return new Builder(sender, file);
+    }
+
+    private SpoolSpanHandler(Builder builder) {
+        this.sender = builder.sender;
+        this.encoder = SpanEncoder.forEncoding(sender.encoding());
+        this.messageMaxBytes = Math.min(builder.messageMaxBytes, sender.messageMaxBytes());
+        this.drainIntervalNanos = builder.drainIntervalNanos;
+        this.maxBackoffNanos = Math.max(builder.maxBackoffNanos, builder.drainIntervalNanos);
+        this.closeTimeoutNanos = builder.closeTimeoutNanos;
+        try {
+            this.spool = MappedSpanSpool.open(builder.file, builder.maxBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException("无法打开spool文件: " + builder.file, e);
+        }
+        this.drainThread = new Thread(this::drainLoop, "SpoolSpanHandler{" + builder.file + "}");
+        this.drainThread.setDaemon(true);
+        this.drainThread.start();
+    }
+
+    @Override
+    public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+        if (cause == Cause.ABANDONED || closed || !Boolean.TRUE.equals(context.sampled())) {
+            return true;
+        }
+        SpanBuffer buffer = SpanBuffer.get();
+        encoder.encode(span, buffer);
+        append(buffer.bytes, buffer.offset, buffer.length);
+        return true;
+    }
+
+    /**
+     * 写入一个编码后的span，仅用于测试
+     */
+    boolean offer(byte[] encodedSpan) {
+        return append(encodedSpan, 0, encodedSpan.length);
+    }
+
+    private boolean append(byte[] encodedSpan, int offset, int length) {
+        if (length + encoder.messageOverhead() > messageMaxBytes || !spool.append(encodedSpan, offset, length)) {
+            oversizedSpans.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private void drainLoop() {
+        long waitNanos = drainIntervalNanos;
+        long backoffNanos = drainIntervalNanos;
+        boolean failing = false;
+        while (!closed) {
+            if (!await(waitNanos)) {
+                return;
+            }
+            try {
+                while (!closed && drainOnce() > 0) {
+                    // 继续发送下一批
+                }
+                waitNanos = backoffNanos = drainIntervalNanos;
+                failing = false;
+            } catch (Exception | LinkageError e) {
+                if (!failing) {
+                    logger.log(Level.WARNING, "span上报失败，暂存到spool文件后重试: " + e.getMessage());
+                    failing = true;
+                }
+                waitNanos = backoffNanos;
+                backoffNanos = Math.min(backoffNanos * 2, maxBackoffNanos);
+            }
+        }
+    }
+
+    /**
+     * parkNanos可能提前返回（虚假唤醒、中断），未到时间时继续等待，只有close会提前结束等待
+     *
+     * @return 等待到期时返回true，已关闭时返回false
+     */
+    private boolean await(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long remaining;
+        while (!closed && (remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+        }
+        return !closed;
+    }
+
+    /**
+     * 发送一批span，发送失败时span保留在spool中
+     *
+     * @return 发送成功的span数量，spool为空时返回0
+     */
+    private synchronized int drainOnce() throws IOException {
+        MappedSpanSpool.Batch batch = spool.read(messageMaxBytes, encoder);
+        if (batch.spans.isEmpty()) {
+            return 0;
+        }
+        try {
+            sender.sendSpans(batch.spans).execute();
+        } catch (Exception | LinkageError e) {
+            failedMessages.increment();
+            throw e;
+        }
+        spool.commit(batch);
+        sentSpans.add(batch.spans.size());
+        sentMessages.increment();
+        return batch.spans.size();
+    }
+
+    /**
+     * 发送spool中的全部span，遇到发送失败时停止
+     */
+    @Override
+    public void flush() {
+        try {
+            while (drainOnce() > 0) {
+                // 继续发送下一批
+            }
+        } catch (Exception | LinkageError e) {
+            logger.log(Level.WARNING, "span上报失败，暂存到spool文件后重试: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return spool中尚未发送的span数量
+     */
+    public int spooledSpans() {
+        return spool.spooledSpans();
+    }
+
+    /**
+     * @return spool中尚未发送的span占用的字节数
+     */
+    public long spooledBytes() {
+        return spool.spooledBytes();
+    }
+
+    /**
+     * @return spool文件的占用比例，上报失败的span保留在spool中，zipkin不可用时持续上升
+     */
+    @Override
+    public double backlogRatio() {
+        return (double) spool.spooledBytes() / spool.capacity();
+    }
+
+    /**
+     * @return 因超过大小限制或spool写满被淘汰而丢弃的span总数
+     */
+    @Override
+    public long droppedSpans() {
+        return oversizedSpans.sum() + spool.evictedSpans();
+    }
+
+    /**
+     * @return 上报成功的span总数
+     */
+    public long sentSpans() {
+        return sentSpans.sum();
+    }
+
+    /**
+     * @return 上报成功的消息总数
+     */
+    public long sentMessages() {
+        return sentMessages.sum();
+    }
+
+    /**
+     * @return 上报失败的消息总数，失败的span仍保留在spool中
+     */
+    public long failedMessages() {
+        return failedMessages.sum();
+    }
+
+    /**
+     * 停止接收新的span和后台发送，未发送的span保留在文件中，下次启动后继续发送
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(drainThread);
+        try {
+            drainThread.join(TimeUnit.NANOSECONDS.toMillis(closeTimeoutNanos) + 1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                spool.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "关闭spool文件失败: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SpoolSpanHandler{" + sender + "}";
+    }
+
+    public static final class Builder {
+
+        private final Sender sender;
+
+        private final Path file;
+
+        private int maxBytes = 64 * 1024 * 1024;
+
+        private int messageMaxBytes;
+
+        private long drainIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+
+        private long maxBackoffNanos = TimeUnit.SECONDS.toNanos(30);
+
+        private long closeTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+
+        Builder(Sender sender, Path file) {
+            if (sender == null) {
+                throw new NullPointerException("sender == null");
+            }
+            if (file == null) {
+                throw new NullPointerException("file == null");
+            }
+            SpanEncoder.forEncoding(sender.encoding());
+            this.sender = sender;
+            this.file = file;
+            this.messageMaxBytes = sender.messageMaxBytes();
+        }
+
+        /**
+         * spool文件大小，写满后淘汰最旧的span，默认64MB
+         */
+        public Builder maxBytes(int maxBytes) {
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * 单次发送的最大字节数，不超过sender的限制
+         */
+        public Builder messageMaxBytes(int messageMaxBytes) {
+            this.messageMaxBytes = messageMaxBytes;
+            return this;
+        }
+
+        /**
+         * spool为空时检查新span的间隔，默认1秒
+         */
+        public Builder drainInterval(long interval, TimeUnit unit) {
+            if (interval <= 0) {
+                throw new IllegalArgumentException("drainInterval <= 0");
+            }
+            this.drainIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * 发送失败后重试间隔的上限，默认30秒
+         */
+        public Builder maxBackoff(long backoff, TimeUnit unit) {
+            this.maxBackoffNanos = unit.toNanos(backoff);
+            return this;
+        }
+
+        /**
+         * 关闭时等待后台发送线程退出的最长时间，默认1秒
+         */
+        public Builder closeTimeout(long timeout, TimeUnit unit) {
+            this.closeTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        public SpoolSpanHandler build() {
+            return new SpoolSpanHandler(this);
+        }
+    }
+
+}
@@ -0,0 +1,552 @@
+package top.liumian.zipkin.core.reporter;
+
+import brave.Tags;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 尾部采样：按trace id缓存已结束的span，链路中出现错误或慢span时才交给后续的上报器
+ * <p>
+ * 头部采样在链路开始时就要做决定，此时还不知道消费是否会失败或变慢。本处理器按trace id把span暂存在分段的缓冲区中，
+ * 每段用以trace id为key的开放寻址表索引一个固定大小的环形数组，写满时淘汰最旧的链路；
+ * 某个span出错或耗时超过按名称配置的阈值时，立即导出该链路已缓存的span，之后同一链路的span直接导出；
+ * 本进程内的根span结束时仍未命中则丢弃整条链路，超过 decisionWait 仍未结束的链路同样丢弃。
+ * 缓存的字节数按span中的字符串长度估算，超过 maxBufferedBytes 时从最旧的链路开始淘汰，内存占用有明确上限。
+ * <p>
+ * 各进程独立判断，同一条链路在上下游服务中可能只保留一部分。
+ *
+ * @author liumian  2022/10/3 10:00
+ */
+public final class TailSamplingSpanHandler extends SpanHandler {
+
+    private static final int SEGMENTS = 16;
+
+    /**
+     * 每个span除字符串以外的估算开销
+     */
+    private static final int SPAN_OVERHEAD = 256;
+
+    /**
+     * 链路已命中，只需导出当前span
+     */
+    private static final Flush FORWARD = new Flush(new TraceContext[0], new MutableSpan[0], 0);
+
+    private final SpanHandler[] delegates;
+
+    private final Segment[] segments;
+
+    private final Map<String, Long> latencyThresholdsMicros;
+
+    private final long defaultLatencyThresholdMicros;
+
+    private final long decisionWaitNanos;
+
+    private final boolean recordUnsampled;
+
+    private final LongSupplier nanoTime;
+
+    private final LongAdder keptTraces = new LongAdder();
+
+    private final LongAdder exportedSpans = new LongAdder();
+
+    private final LongAdder droppedSpans = new LongAdder();
+
+    public static Builder newBuilder(SpanHandler... delegates) {
+        return new Builder(delegates);
+    }
+
+    private TailSamplingSpanHandler(Builder builder) {
+        this.delegates = builder.delegates;
+        this.latencyThresholdsMicros = new HashMap<>(builder.latencyThresholdsMicros);
+        this.defaultLatencyThresholdMicros = builder.defaultLatencyThresholdMicros;
+        this.decisionWaitNanos = builder.decisionWaitNanos;
+        this.recordUnsampled = builder.recordUnsampled;
+        this.nanoTime = builder.nanoTime;
+        int tracesPerSegment = Math.max(1, (builder.maxTraces + SEGMENTS - 1) / SEGMENTS);
+        long bytesPerSegment = Math.max(1L, builder.maxBufferedBytes / SEGMENTS);
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(tracesPerSegment, bytesPerSegment);
+        }
+    }
+
+    /**
+     * @return 是否让头部未采样的链路也参与尾部采样，为true时需要在 {@link brave.Tracing.Builder#alwaysSampleLocal()} 中开启本地记录
+     */
+    public boolean recordUnsampled() {
+        return recordUnsampled;
+    }
+
+    @Override
+    public boolean begin(TraceContext context, MutableSpan span, TraceContext parent) {
+        for (SpanHandler delegate : delegates) {
+            if (!delegate.begin(context, span, parent)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+        if (cause == Cause.ABANDONED) {
+            return forward(context, span, cause);
+        }
+        Segment segment = segments[(int) (mix(context.traceId()) >>> 60)];
+        Flush flush = segment.end(context, span, isInteresting(span), context.isLocalRoot(), nanoTime.getAsLong());
+        if (flush == null) {
+            return true;
+        }
+        if (flush != FORWARD) {
+            keptTraces.increment();
+            for (int i = 0; i < flush.size; i++) {
+                export(flush.contexts[i], flush.spans[i], Cause.FINISHED);
+            }
+        }
+        return export(context, span, cause);
+    }
+
+    /**
+     * 头部未采样的span以已采样的上下文导出，后续上报器只处理已采样的span
+     */
+    private boolean export(TraceContext context, MutableSpan span, Cause cause) {
+        exportedSpans.increment();
+        TraceContext sampled = Boolean.TRUE.equals(context.sampled()) ? context : context.toBuilder().sampled(true).build();
+        return forward(sampled, span, cause);
+    }
+
+    private boolean forward(TraceContext context, MutableSpan span, Cause cause) {
+        for (SpanHandler delegate : delegates) {
+            if (!delegate.end(context, span, cause)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isInteresting(MutableSpan span) {
+        if (span.error() != null || span.tag(Tags.ERROR.key()) != null) {
+            return true;
+        }
+        long startTimestamp = span.startTimestamp();
+        long finishTimestamp = span.finishTimestamp();
+        if (startTimestamp == 0L || finishTimestamp == 0L) {
+            return false;
+        }
+        String name = span.name();
+        Long threshold = name != null ? latencyThresholdsMicros.get(name) : null;
+        return finishTimestamp - startTimestamp > (threshold != null ? threshold : defaultLatencyThresholdMicros);
+    }
+
+    /**
+     * 按span中的字符串长度估算占用的字节数
+     */
+    static int estimateBytes(MutableSpan span) {
+        int bytes = SPAN_OVERHEAD + length(span.name()) + length(span.localServiceName()) + length(span.remoteServiceName());
+        for (int i = 0, count = span.tagCount(); i < count; i++) {
+            bytes += 16 + length(span.tagKeyAt(i)) + length(span.tagValueAt(i));
+        }
+        for (int i = 0, count = span.annotationCount(); i < count; i++) {
+            bytes += 32 + length(span.annotationValueAt(i));
+        }
+        return bytes;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length() * 2;
+    }
+
+    private static long mix(long traceId) {
+        return traceId * 0x9E3779B97F4A7C15L;
+    }
+
+    /**
+     * @return 命中错误或慢span而导出的链路数
+     */
+    public long keptTraces() {
+        return keptTraces.sum();
+    }
+
+    /**
+     * @return 导出的span总数
+     */
+    public long exportedSpans() {
+        return exportedSpans.sum();
+    }
+
+    /**
+     * @return 未命中而丢弃的span总数，包括超时和因缓冲区写满被淘汰的span
+     */
+    public long droppedSpans() {
+        return droppedSpans.sum();
+    }
+
+    /**
+     * @return 缓冲区中的span数量
+     */
+    public int bufferedSpans() {
+        int spans = 0;
+        for (Segment segment : segments) {
+            spans += segment.bufferedSpans();
+        }
+        return spans;
+    }
+
+    /**
+     * @return 缓冲区中span的估算字节数
+     */
+    public long bufferedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.bufferedBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "TailSamplingSpanHandler" + Arrays.toString(delegates);
+    }
+
+    /**
+     * 需要导出的已缓存span
+     */
+    private static final class Flush {
+
+        final TraceContext[] contexts;
+
+        final MutableSpan[] spans;
+
+        final int size;
+
+        Flush(TraceContext[] contexts, MutableSpan[] spans, int size) {
+            this.contexts = contexts;
+            this.spans = spans;
+            this.size = size;
+        }
+    }
+
+    /**
+     * 一条链路在缓冲区中的span，对象在环形数组中复用
+     */
+    private static final class Trace {
+
+        /**
+         * 只用trace id的低64位作为key，高64位不同而低64位相同的链路会被合并
+         */
+        long traceId;
+
+        long createdNanos;
+
+        boolean keep;
+
+        int size;
+
+        long bytes;
+
+        TraceContext[] contexts = new TraceContext[4];
+
+        MutableSpan[] spans = new MutableSpan[4];
+
+        void add(TraceContext context, MutableSpan span, int spanBytes) {
+            if (size == spans.length) {
+                contexts = Arrays.copyOf(contexts, size * 2);
+                spans = Arrays.copyOf(spans, size * 2);
+            }
+            contexts[size] = context;
+            spans[size] = span;
+            size++;
+            bytes += spanBytes;
+        }
+
+        /**
+         * 释放缓存的span，异常大的数组恢复为初始大小
+         */
+        void clear() {
+            if (spans.length > 64) {
+                contexts = new TraceContext[4];
+                spans = new MutableSpan[4];
+            } else {
+                Arrays.fill(contexts, 0, size, null);
+                Arrays.fill(spans, 0, size, null);
+            }
+            size = 0;
+            bytes = 0;
+            keep = false;
+        }
+    }
+
+    private final class Segment {
+
+        private final Trace[] traces;
+
+        /**
+         * 开放寻址表，key为trace id，0表示空位，value为环形数组中的位置
+         */
+        private final long[] keys;
+
+        private final long[] positions;
+
+        private final int mask;
+
+        private final long maxBytes;
+
+        private long head;
+
+        private long tail;
+
+        private int bufferedSpans;
+
+        private long bufferedBytes;
+
+        Segment(int capacity, long maxBytes) {
+            this.traces = new Trace[capacity];
+            for (int i = 0; i < capacity; i++) {
+                traces[i] = new Trace();
+            }
+            int tableSize = Integer.highestOneBit(Math.max(capacity * 2 - 1, 1)) << 1;
+            this.keys = new long[tableSize];
+            this.positions = new long[tableSize];
+            this.mask = tableSize - 1;
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * @return 需要导出的span，null表示已缓存或已丢弃
+         */
+        synchronized Flush end(TraceContext context, MutableSpan span, boolean interesting, boolean localRoot, long now) {
+            expire(now);
+            long traceId = context.traceId();
+            int slot = find(traceId);
+            Trace trace = slot >= 0 ? traces[(int) (positions[slot] % traces.length)] : null;
+            if (trace != null && trace.keep) {
+                return FORWARD;
+            }
+            if (interesting) {
+                Flush flush = FORWARD;
+                if (trace == null) {
+                    trace = create(traceId, now);
+                } else if (trace.size > 0) {
+                    flush = new Flush(Arrays.copyOf(trace.contexts, trace.size), Arrays.copyOf(trace.spans, trace.size), trace.size);
+                    release(trace);
+                }
+                trace.keep = true;
+                return flush;
+            }
+            if (localRoot) {
+                // 本进程内的链路已全部结束且没有命中，直接丢弃
+                droppedSpans.increment();
+                if (trace != null) {
+                    droppedSpans.add(trace.size);
+                    release(trace);
+                }
+                return null;
+            }
+            if (trace == null) {
+                trace = create(traceId, now);
+            }
+            int spanBytes = estimateBytes(span);
+            trace.add(context, span, spanBytes);
+            bufferedSpans++;
+            bufferedBytes += spanBytes;
+            while (bufferedBytes > maxBytes && head < tail) {
+                evictOldest();
+            }
+            return null;
+        }
+
+        /**
+         * 丢弃超过等待时间仍未命中的链路
+         */
+        private void expire(long now) {
+            while (head < tail && now - traces[(int) (head % traces.length)].createdNanos >= decisionWaitNanos) {
+                evictOldest();
+            }
+        }
+
+        private Trace create(long traceId, long now) {
+            if (tail - head == traces.length) {
+                evictOldest();
+            }
+            long position = tail++;
+            Trace trace = traces[(int) (position % traces.length)];
+            trace.traceId = traceId;
+            trace.createdNanos = now;
+            int slot = (int) mix(traceId) & mask;
+            while (keys[slot] != 0L) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = traceId;
+            positions[slot] = position;
+            return trace;
+        }
+
+        private void evictOldest() {
+            Trace trace = traces[(int) (head % traces.length)];
+            droppedSpans.add(trace.size);
+            release(trace);
+            remove(trace.traceId);
+            trace.clear();
+            head++;
+        }
+
+        /**
+         * 释放链路中缓存的span，链路本身留在环形数组中，直到被淘汰
+         */
+        private void release(Trace trace) {
+            bufferedSpans -= trace.size;
+            bufferedBytes -= trace.bytes;
+            boolean keep = trace.keep;
+            trace.clear();
+            trace.keep = keep;
+        }
+
+        private int find(long traceId) {
+            int slot = (int) mix(traceId) & mask;
+            long key;
+            while ((key = keys[slot]) != 0L) {
+                if (key == traceId) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * 删除key后将后续冲突的key前移，保持线性探测的查找正确
+         */
+        private void remove(long traceId) {
+            int slot = find(traceId);
+            if (slot < 0) {
+                return;
+            }
+            int next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                long key = keys[next];
+                if (key == 0L) {
+                    break;
+                }
+                int home = (int) mix(key) & mask;
+                if (((next - home) & mask) >= ((next - slot) & mask)) {
+                    keys[slot] = key;
+                    positions[slot] = positions[next];
+                    slot = next;
+                }
+            }
+            keys[slot] = 0L;
+        }
+
+        synchronized int bufferedSpans() {
+            return bufferedSpans;
+        }
+
+        synchronized long bufferedBytes() {
+            return bufferedBytes;
+        }
+    }
+
+    public static final class Builder {
+
+        private final SpanHandler[] delegates;
+
+        private long maxBufferedBytes = 16 * 1024 * 1024;
+
+        private int maxTraces = 65536;
+
+        private long decisionWaitNanos = TimeUnit.SECONDS.toNanos(10);
+
+        private final Map<String, Long> latencyThresholdsMicros = new HashMap<>();
+
+        private long defaultLatencyThresholdMicros = Long.MAX_VALUE;
+
+        private boolean recordUnsampled = true;
+
+        private LongSupplier nanoTime = System::nanoTime;
+
+        Builder(SpanHandler... delegates) {
+            if (delegates == null || delegates.length == 0) {
+                throw new IllegalArgumentException("delegates is empty");
+            }
+            for (SpanHandler delegate : delegates) {
+                if (delegate == null) {
+                    throw new NullPointerException("delegate == null");
+                }
+            }
+            this.delegates = delegates.clone();
+        }
+
+        /**
+         * 缓冲区中span的估算字节数上限，超过时从最旧的链路开始淘汰，默认16MB
+         */
+        public Builder maxBufferedBytes(long maxBufferedBytes) {
+            this.maxBufferedBytes = maxBufferedBytes;
+            return this;
+        }
+
+        /**
+         * 同时缓存的链路数上限，默认65536
+         */
+        public Builder maxTraces(int maxTraces) {
+            this.maxTraces = maxTraces;
+            return this;
+        }
+
+        /**
+         * 链路缓存的最长时间，超过后仍未命中则丢弃，默认10秒
+         */
+        public Builder decisionWait(long wait, TimeUnit unit) {
+            this.decisionWaitNanos = unit.toNanos(wait);
+            return this;
+        }
+
+        /**
+         * 指定名称的span耗时超过阈值时导出整条链路
+         */
+        public Builder latencyThreshold(String spanName, long threshold, TimeUnit unit) {
+            if (spanName == null) {
+                throw new NullPointerException("spanName == null");
+            }
+            latencyThresholdsMicros.put(spanName, unit.toMicros(threshold));
+            return this;
+        }
+
+        /**
+         * 未单独配置阈值的span使用的耗时阈值，默认不按耗时导出
+         */
+        public Builder defaultLatencyThreshold(long threshold, TimeUnit unit) {
+            this.defaultLatencyThresholdMicros = unit.toMicros(threshold);
+            return this;
+        }
+
+        /**
+         * 是否让头部未采样的链路也参与尾部采样，默认开启，需要同时开启 {@link brave.Tracing.Builder#alwaysSampleLocal()}
+         */
+        public Builder recordUnsampled(boolean recordUnsampled) {
+            this.recordUnsampled = recordUnsampled;
+            return this;
+        }
+
+        /**
+         * 仅用于测试
+         */
+        Builder nanoTime(LongSupplier nanoTime) {
+            this.nanoTime = nanoTime;
+            return this;
+        }
+
+        public TailSamplingSpanHandler build() {
+            return new TailSamplingSpanHandler(this);
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package top.liumian.zipkin.core.reporter;
+
+import brave.Tags;
+import brave.handler.MutableSpan;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+/**
+ * {@link MutableSpan} 与 zipkin2 {@link Span} 之间的转换，用于zipkin2自带编码器支持而这里没有直接编码的格式
+ *
+ * @author liumian  2022/10/12 11:00
+ */
+final class ZipkinSpans {
+
+    private ZipkinSpans() {
+    }
+
+    static Span convert(MutableSpan span) {
+        Span.Builder result = Span.newBuilder()
+                .traceId(span.traceId())
+                .parentId(span.parentId())
+                .id(span.id())
+                .name(span.name());
+        if (span.kind() != null) {
+            result.kind(Span.Kind.valueOf(span.kind().name()));
+        }
+        long start = span.startTimestamp();
+        long finish = span.finishTimestamp();
+        result.timestamp(start);
+        if (start != 0L && finish != 0L) {
+            result.duration(Math.max(finish - start, 1));
+        }
+        result.localEndpoint(endpoint(span.localServiceName(), span.localIp(), span.localPort()));
+        result.remoteEndpoint(endpoint(span.remoteServiceName(), span.remoteIp(), span.remotePort()));
+        for (int i = 0, count = span.annotationCount(); i < count; i++) {
+            result.addAnnotation(span.annotationTimestampAt(i), span.annotationValueAt(i));
+        }
+        for (int i = 0, count = span.tagCount(); i < count; i++) {
+            result.putTag(span.tagKeyAt(i), span.tagValueAt(i));
+        }
+        if (span.error() != null && span.tag(Tags.ERROR.key()) == null) {
+            result.putTag(Tags.ERROR.key(), Tags.ERROR.value(span.error(), null));
+        }
+        if (span.debug()) {
+            result.debug(true);
+        }
+        if (span.shared()) {
+            result.shared(true);
+        }
+        return result.build();
+    }
+
+    private static Endpoint endpoint(String serviceName, String ip, int port) {
+        if (serviceName == null && ip == null && port == 0) {
+            return null;
+        }
+        return Endpoint.newBuilder().serviceName(serviceName).ip(ip).port(port).build();
+    }
+
+}
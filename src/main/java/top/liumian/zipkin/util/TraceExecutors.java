@@ -0,0 +1,224 @@
+package top.liumian.zipkin.util;
+
+import brave.Tracing;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 将链路上下文传递到线程池、CompletableFuture和虚拟线程中
+ * <p>
+ * 消费监听器中的业务逻辑把任务交给其他线程后，{@link TraceUtil} 开启的 SpanInScope 只在监听器线程中生效，
+ * 异步任务中新建的span会变成新的链路。这里的方法在提交任务时捕获一次当前链路上下文，任务执行时只恢复一次ThreadLocal，
+ * 任务中通过 {@link TraceUtil#newChildTrace} 或 {@link TraceTemplate#newChildTrace} 创建的span都会挂在原链路下。
+ *
+ * <pre>{@code
+ * Executor executor = TraceExecutors.contextExecutor(tracing, pool);
+ * CompletableFuture.supplyAsync(() -> queryOrder(orderId), executor)
+ *         .thenApplyAsync(order -> TraceUtil.newChildTrace(tracing, "pay", span -> pay(order)), executor);
+ * }</pre>
+ *
+ * @author liumian  2022/10/4 10:00
+ */
+public final class TraceExecutors {
+
+    private TraceExecutors() {
+    }
+
+    /**
+     * 每个任务在提交时捕获当前链路上下文
+     *
+     * @param tracing  tracing
+     * @param delegate 实际执行任务的线程池
+     * @return 传递链路上下文的线程池
+     */
+    public static Executor executor(Tracing tracing, Executor delegate) {
+        return tracing.currentTraceContext().executor(delegate);
+    }
+
+    /**
+     * 每个任务在提交时捕获当前链路上下文，包括 invokeAll/invokeAny 提交的任务
+     *
+     * @param tracing  tracing
+     * @param delegate 实际执行任务的线程池
+     * @return 传递链路上下文的线程池
+     */
+    public static ExecutorService executorService(Tracing tracing, ExecutorService delegate) {
+        return tracing.currentTraceContext().executorService(delegate);
+    }
+
+    /**
+     * 在创建时捕获一次当前链路上下文，之后提交的每个任务都在该上下文中执行，与提交任务的线程无关
+     * <p>
+     * 适用于CompletableFuture链：后续阶段可能由任意线程触发，提交时的线程上下文不一定是原链路。
+     *
+     * @param tracing  tracing
+     * @param delegate 实际执行任务的线程池
+     * @return 固定链路上下文的线程池
+     */
+    public static Executor contextExecutor(Tracing tracing, Executor delegate) {
+        return new ContextExecutor(tracing.currentTraceContext(), tracing.currentTraceContext().get(), delegate);
+    }
+
+    /**
+     * 在当前链路上下文中异步执行
+     */
+    public static <T> CompletableFuture<T> supplyAsync(Tracing tracing, Supplier<T> supplier, Executor executor) {
+        return CompletableFuture.supplyAsync(wrapSupplier(tracing, supplier), executor);
+    }
+
+    /**
+     * 在当前链路上下文中异步执行
+     */
+    public static CompletableFuture<Void> runAsync(Tracing tracing, Runnable runnable, Executor executor) {
+        return CompletableFuture.runAsync(wrap(tracing, runnable), executor);
+    }
+
+    /**
+     * 为新线程传递创建线程时的链路上下文，只适用于每个任务创建一个线程的场景，例如直接用
+     * {@code Thread.ofVirtual().factory()} 为每个任务创建虚拟线程
+     * <p>
+     * 不要交给 {@link java.util.concurrent.ThreadPoolExecutor} 等线程池：线程池传给工厂的是长期运行的工作线程，
+     * 创建工作线程时的链路会一直保留在该线程上，之后执行的所有任务都会挂在这条链路下。线程池请使用
+     * {@link #executor(Tracing, Executor)} 或 {@link #executorService(Tracing, ExecutorService)}。
+     *
+     * @param tracing  tracing
+     * @param delegate 实际创建线程的工厂
+     * @return 传递链路上下文的线程工厂
+     */
+    public static ThreadFactory threadPerTaskFactory(Tracing tracing, ThreadFactory delegate) {
+        CurrentTraceContext currentTraceContext = tracing.currentTraceContext();
+        return runnable -> delegate.newThread(currentTraceContext.wrap(runnable));
+    }
+
+    /**
+     * 每个任务一个虚拟线程的线程池，任务在提交时捕获当前链路上下文，需要JDK21及以上
+     *
+     * @param tracing tracing
+     * @return 传递链路上下文的虚拟线程池
+     * @throws UnsupportedOperationException 当前JDK不支持虚拟线程
+     */
+    public static ExecutorService virtualThreadExecutor(Tracing tracing) {
+        return executorService(tracing, VirtualThreads.newExecutor());
+    }
+
+    /**
+     * 捕获当前链路上下文，执行时恢复
+     */
+    public static Runnable wrap(Tracing tracing, Runnable runnable) {
+        return tracing.currentTraceContext().wrap(runnable);
+    }
+
+    /**
+     * 捕获当前链路上下文，执行时恢复
+     */
+    public static <V> Callable<V> wrap(Tracing tracing, Callable<V> callable) {
+        return tracing.currentTraceContext().wrap(callable);
+    }
+
+    /**
+     * 捕获当前链路上下文，用于CompletableFuture中不指定线程池的阶段
+     */
+    public static <T> Supplier<T> wrapSupplier(Tracing tracing, Supplier<T> supplier) {
+        CurrentTraceContext currentTraceContext = tracing.currentTraceContext();
+        TraceContext context = currentTraceContext.get();
+        return () -> {
+            try (CurrentTraceContext.Scope scope = currentTraceContext.maybeScope(context)) {
+                return supplier.get();
+            }
+        };
+    }
+
+    /**
+     * 捕获当前链路上下文，用于 thenApply 等阶段
+     */
+    public static <T, R> Function<T, R> wrapFunction(Tracing tracing, Function<T, R> function) {
+        CurrentTraceContext currentTraceContext = tracing.currentTraceContext();
+        TraceContext context = currentTraceContext.get();
+        return value -> {
+            try (CurrentTraceContext.Scope scope = currentTraceContext.maybeScope(context)) {
+                return function.apply(value);
+            }
+        };
+    }
+
+    /**
+     * 捕获当前链路上下文，用于 thenAccept 等阶段
+     */
+    public static <T> Consumer<T> wrapConsumer(Tracing tracing, Consumer<T> consumer) {
+        CurrentTraceContext currentTraceContext = tracing.currentTraceContext();
+        TraceContext context = currentTraceContext.get();
+        return value -> {
+            try (CurrentTraceContext.Scope scope = currentTraceContext.maybeScope(context)) {
+                consumer.accept(value);
+            }
+        };
+    }
+
+    private static final class ContextExecutor implements Executor {
+
+        private final CurrentTraceContext currentTraceContext;
+
+        private final TraceContext context;
+
+        private final Executor delegate;
+
+        ContextExecutor(CurrentTraceContext currentTraceContext, TraceContext context, Executor delegate) {
+            this.currentTraceContext = currentTraceContext;
+            this.context = context;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            delegate.execute(() -> {
+                try (CurrentTraceContext.Scope scope = currentTraceContext.maybeScope(context)) {
+                    command.run();
+                }
+            });
+        }
+
+        @Override
+        public String toString() {
+            return "ContextExecutor{" + context + ", " + delegate + "}";
+        }
+    }
+
+    /**
+     * 通过反射调用 Executors.newVirtualThreadPerTaskExecutor，保持对JDK8的兼容
+     */
+    private static final class VirtualThreads {
+
+        private static final Method NEW_EXECUTOR = newExecutorMethod();
+
+        private static Method newExecutorMethod() {
+            try {
+                return java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+
+        static ExecutorService newExecutor() {
+            if (NEW_EXECUTOR == null) {
+                throw new UnsupportedOperationException("当前JDK不支持虚拟线程: " + System.getProperty("java.version"));
+            }
+            try {
+                return (ExecutorService) NEW_EXECUTOR.invoke(null);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new UnsupportedOperationException("无法创建虚拟线程池", e);
+            }
+        }
+    }
+
+}
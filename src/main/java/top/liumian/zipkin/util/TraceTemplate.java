@@ -0,0 +1,205 @@
+package top.liumian.zipkin.util;
+
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+
+/**
+ * 可复用的链路模板，每种操作创建一次
+ * <p>
+ * 与 {@link TraceUtil} 相比，span名称、开始/结束标记在创建模板时就已确定，线程名等附加信息可以按模板关闭，
+ * 重复调用时除span本身外不再产生额外的对象。业务逻辑可以抛出受检异常，异常会记录到span上并原样抛出。
+ *
+ * <pre>{@code
+ * private static final TraceTemplate QUERY_ORDER = TraceTemplate.newBuilder(tracing, "queryOrder").build();
+ *
+ * Order order = QUERY_ORDER.newChildTrace(span -> orderDao.query(orderId));
+ * }</pre>
+ *
+ * @author liumian  2022/9/25 10:00
+ */
+public final class TraceTemplate {
+
+    static final String THREAD_TAG = "thread";
+
+    private final Tracing tracing;
+
+    private final String name;
+
+    private final String startAnnotation;
+
+    private final String finishAnnotation;
+
+    private final Span.Kind kind;
+
+    private final boolean annotate;
+
+    private final boolean tagThread;
+
+    public static Builder newBuilder(Tracing tracing, String name) {
+        return new Builder(tracing, name);
+    }
+
+    private TraceTemplate(Builder builder) {
+        this.tracing = builder.tracing;
+        this.name = builder.name;
+        this.startAnnotation = builder.name + ".start";
+        this.finishAnnotation = builder.name + ".finish";
+        this.kind = builder.kind;
+        this.annotate = builder.annotate;
+        this.tagThread = builder.tagThread;
+    }
+
+    /**
+     * 开启一个新的链路
+     *
+     * @param function 自定义业务逻辑
+     * @param <R>      返回类型
+     * @return 业务逻辑执行结果
+     * @throws Throwable 业务逻辑抛出的异常
+     */
+    public <R> R newTrace(TracingFunction<Span, R> function) throws Throwable {
+        return trace(tracing.tracer().newTrace(), function);
+    }
+
+    /**
+     * 在当前链路下开启一条子链路，没有当前链路时开启新的链路
+     *
+     * @param function 自定义业务逻辑
+     * @param <R>      返回类型
+     * @return 业务逻辑执行结果
+     * @throws Throwable 业务逻辑抛出的异常
+     */
+    public <R> R newChildTrace(TracingFunction<Span, R> function) throws Throwable {
+        return trace(tracing.tracer().nextSpan(), function);
+    }
+
+    /**
+     * 从载体中提取链路上下文，并在其下开启一条子链路
+     *
+     * @param extractor 链路上下文提取器，建议缓存复用
+     * @param carrier   链路上下文载体，例如MQ消息
+     * @param function  自定义业务逻辑
+     * @param <C>       载体类型
+     * @param <R>       返回类型
+     * @return 业务逻辑执行结果
+     * @throws Throwable 业务逻辑抛出的异常
+     */
+    public <C, R> R extract(TraceContext.Extractor<C> extractor, C carrier, TracingFunction<Span, R> function) throws Throwable {
+        TraceContextOrSamplingFlags extracted = extractor.extract(carrier);
+        Tracer tracer = tracing.tracer();
+        Span span = extracted.context() != null ? tracer.newChild(extracted.context()) : tracer.nextSpan(extracted);
+        return trace(span, function);
+    }
+
+    /**
+     * 在当前链路下开启一条子链路，并将其上下文注入到载体中
+     *
+     * @param injector 链路上下文注入器，建议缓存复用
+     * @param carrier  链路上下文载体，例如MQ消息
+     * @param function 自定义业务逻辑
+     * @param <C>      载体类型
+     * @param <R>      返回类型
+     * @return 业务逻辑执行结果
+     * @throws Throwable 业务逻辑抛出的异常
+     */
+    public <C, R> R inject(TraceContext.Injector<C> injector, C carrier, TracingFunction<Span, R> function) throws Throwable {
+        Span span = tracing.tracer().nextSpan();
+        injector.inject(span.context(), carrier);
+        return trace(span, function);
+    }
+
+    private <R> R trace(Span span, TracingFunction<Span, R> function) throws Throwable {
+        boolean recording = !span.isNoop();
+        if (recording) {
+            span.name(name);
+            if (kind != null) {
+                span.kind(kind);
+            }
+            span.start();
+            if (annotate) {
+                span.annotate(startAnnotation);
+            }
+        }
+        try (Tracer.SpanInScope ws = tracing.tracer().withSpanInScope(span)) {
+            return function.apply(span);
+        } catch (Throwable e) {
+            span.error(e);
+            throw e;
+        } finally {
+            if (recording) {
+                if (tagThread) {
+                    span.tag(THREAD_TAG, Thread.currentThread().getName());
+                }
+                if (annotate) {
+                    span.annotate(finishAnnotation);
+                }
+            }
+            span.finish();
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return "TraceTemplate{" + name + "}";
+    }
+
+    public static final class Builder {
+
+        private final Tracing tracing;
+
+        private final String name;
+
+        private Span.Kind kind;
+
+        private boolean annotate = true;
+
+        private boolean tagThread = true;
+
+        Builder(Tracing tracing, String name) {
+            if (tracing == null) {
+                throw new NullPointerException("tracing == null");
+            }
+            if (name == null) {
+                throw new NullPointerException("name == null");
+            }
+            this.tracing = tracing;
+            this.name = name;
+        }
+
+        /**
+         * span类型，默认不设置
+         */
+        public Builder kind(Span.Kind kind) {
+            this.kind = kind;
+            return this;
+        }
+
+        /**
+         * 是否添加 name.start/name.finish 标记，默认添加
+         */
+        public Builder annotate(boolean annotate) {
+            this.annotate = annotate;
+            return this;
+        }
+
+        /**
+         * 是否添加线程名tag，默认添加
+         */
+        public Builder tagThread(boolean tagThread) {
+            this.tagThread = tagThread;
+            return this;
+        }
+
+        public TraceTemplate build() {
+            return new TraceTemplate(this);
+        }
+    }
+
+}
@@ -12,10 +12,16 @@ import java.util.function.Consumer;
 import java.util.function.Function;
 
 /**
+ * 链路跟踪工具类，高频调用的操作建议使用 {@link TraceTemplate}，避免每次调用拼接标记
+ *
  * @author liumian  2022/8/6 13:15
  */
 public class TraceUtil {
 
+    /**
+     * 载体为空时使用的extractor，避免创建新的extractor
+     */
+    private static final TraceContext.Extractor<Map<String, String>> EMPTY_EXTRACTOR = carrier -> TraceContextOrSamplingFlags.EMPTY;
 
     /**
      * 开启一个新的链路，适用于需要返回业务逻辑执行结果的场景
@@ -29,15 +35,20 @@ public class TraceUtil {
     public static <R> R newTrace(Tracing tracing, String tranceName, Function<Span, R> function) {
         Tracer tracer = tracing.tracer();
         Span span = tracer.newTrace().name(tranceName).start();
-        span.annotate(tranceName + ".start");
+        boolean recording = !span.isNoop();
+        if (recording) {
+            span.annotate(tranceName + ".start");
+        }
         try (Tracer.SpanInScope ws = tracer.withSpanInScope(span)) {
             return function.apply(span);
         } catch (RuntimeException e) {
             span.error(e);
             throw e;
         } finally {
-            span.tag("thread", Thread.currentThread().getName());
-            span.annotate(tranceName + ".finish");
+            if (recording) {
+                span.tag(TraceTemplate.THREAD_TAG, Thread.currentThread().getName());
+                span.annotate(tranceName + ".finish");
+            }
             span.finish();
         }
     }
@@ -52,15 +63,20 @@ public class TraceUtil {
     public static void newTrace(Tracing tracing, String tranceName, Consumer<Span> consumer) {
         Tracer tracer = tracing.tracer();
         Span span = tracer.newTrace().name(tranceName).start();
-        span.annotate(tranceName + ".start");
+        boolean recording = !span.isNoop();
+        if (recording) {
+            span.annotate(tranceName + ".start");
+        }
         try (Tracer.SpanInScope ws = tracer.withSpanInScope(span)) {
             consumer.accept(span);
         } catch (RuntimeException e) {
             span.error(e);
             throw e;
         } finally {
-            span.tag("thread", Thread.currentThread().getName());
-            span.annotate(tranceName + ".finish");
+            if (recording) {
+                span.tag(TraceTemplate.THREAD_TAG, Thread.currentThread().getName());
+                span.annotate(tranceName + ".finish");
+            }
             span.finish();
         }
     }
@@ -78,15 +94,20 @@ public class TraceUtil {
     public static <R> R newChildTrace(Tracing tracing, String traceName, Function<Span, R> function) {
         Tracer tracer = tracing.tracer();
         Span span = tracer.nextSpan().name(traceName).start();
-        span.annotate(traceName + ".start");
+        boolean recording = !span.isNoop();
+        if (recording) {
+            span.annotate(traceName + ".start");
+        }
         try (Tracer.SpanInScope ws = tracer.withSpanInScope(span)) {
             return function.apply(span);
         } catch (RuntimeException e) {
             span.error(e);
             throw e;
         } finally {
-            span.tag("thread", Thread.currentThread().getName());
-            span.annotate(traceName + ".finish");
+            if (recording) {
+                span.tag(TraceTemplate.THREAD_TAG, Thread.currentThread().getName());
+                span.annotate(traceName + ".finish");
+            }
             span.finish();
         }
     }
@@ -102,15 +123,20 @@ public class TraceUtil {
     public static void newChildTrace(Tracing tracing, String traceName, Consumer<Span> consumer) {
         Tracer tracer = tracing.tracer();
         Span span = tracer.nextSpan().name(traceName).start();
-        span.annotate(traceName + ".start");
+        boolean recording = !span.isNoop();
+        if (recording) {
+            span.annotate(traceName + ".start");
+        }
         try (Tracer.SpanInScope ws = tracer.withSpanInScope(span)) {
             consumer.accept(span);
         } catch (RuntimeException e) {
             span.error(e);
             throw e;
         } finally {
-            span.tag("thread", Thread.currentThread().getName());
-            span.annotate(traceName + ".finish");
+            if (recording) {
+                span.tag(TraceTemplate.THREAD_TAG, Thread.currentThread().getName());
+                span.annotate(traceName + ".finish");
+            }
             span.finish();
         }
     }
@@ -126,20 +152,34 @@ public class TraceUtil {
      * @return 自定义业务逻辑返回结果
      */
     public static <R> R extractTraceInfo(Tracing tracing, String traceName, Map<String,String> properties, Function<Span, R> function) {
-        TraceContext.Extractor<Map<String,String>> extractor = tracing.propagation().extractor(Map::get);
+        if (properties == null || properties.isEmpty()) {
+            return extractTraceInfo(tracing, traceName, EMPTY_EXTRACTOR, properties, function);
+        }
+        return extractTraceInfo(tracing, traceName, tracing.propagation().extractor(Map::get), properties, function);
+    }
+
+    /**
+     * 使用可复用的extractor直接从载体中提取链路上下文并注入到内存中
+     *
+     * @param tracing   tracing
+     * @param traceName 链路名称
+     * @param extractor 链路上下文提取器，建议缓存复用
+     * @param carrier   链路上下文载体，例如MQ消息
+     * @param function  自定义业务逻辑
+     * @param <C>       载体类型
+     * @param <R>       返回类型
+     * @return 自定义业务逻辑返回结果
+     */
+    public static <C, R> R extractTraceInfo(Tracing tracing, String traceName, TraceContext.Extractor<C> extractor, C carrier, Function<Span, R> function) {
         Tracer tracer = tracing.tracer();
+        TraceContextOrSamplingFlags traceInfo = extractor.extract(carrier);
         Span span;
-        if (properties == null || properties.isEmpty()) {
-            span = tracer.newTrace().name(traceName).start();
+        if (traceInfo.context() != null) {
+            span = tracer.newChild(traceInfo.context());
         } else {
-            TraceContextOrSamplingFlags traceInfo = extractor.extract(properties);
-            if (traceInfo != null && traceInfo.context() != null) {
-                span = tracer.newChild(traceInfo.context()).name(traceName).start();
-            } else {
-                span = tracer.newTrace().name(traceName).start();
-            }
+            span = tracer.newTrace();
         }
-        span.kind(Span.Kind.CONSUMER);
+        span.name(traceName).kind(Span.Kind.CONSUMER).start();
         try (Tracer.SpanInScope ws = tracer.withSpanInScope(span)) {
             return function.apply(span);
         } catch (Exception e) {
@@ -160,14 +200,28 @@ public class TraceUtil {
      * @return 自定义业务逻辑返回结果
      */
     public static <R> R injectTraceInfo(Tracing tracing, String traceName, TracingFunction<Map<String, String>, R> function) throws Throwable {
-        Tracer tracer = tracing.tracer();
-        Span span = tracer.nextSpan().name(traceName).start();
-        TraceContext.Injector<Map<String, String>> injector = tracing.propagation().injector(Map::put);
         Map<String, String> traceInfo = new HashMap<>();
-        injector.inject(span.context(), traceInfo);
-        span.kind(Span.Kind.PRODUCER);
+        return injectTraceInfo(tracing, traceName, tracing.propagation().injector(Map::put), traceInfo, span -> function.apply(traceInfo));
+    }
+
+    /**
+     * 使用可复用的injector将当前链路上下文直接注入到载体中
+     *
+     * @param tracing   tracing
+     * @param traceName 链路名称
+     * @param injector  链路上下文注入器，建议缓存复用
+     * @param carrier   链路上下文载体，例如MQ消息
+     * @param function  自定义业务逻辑
+     * @param <C>       载体类型
+     * @param <R>       返回类型
+     * @return 自定义业务逻辑返回结果
+     */
+    public static <C, R> R injectTraceInfo(Tracing tracing, String traceName, TraceContext.Injector<C> injector, C carrier, TracingFunction<Span, R> function) throws Throwable {
+        Tracer tracer = tracing.tracer();
+        Span span = tracer.nextSpan().name(traceName).kind(Span.Kind.PRODUCER).start();
+        injector.inject(span.context(), carrier);
         try (Tracer.SpanInScope ws = tracer.withSpanInScope(span)) {
-            return function.apply(traceInfo);
+            return function.apply(span);
         } finally {
             span.finish();
         }
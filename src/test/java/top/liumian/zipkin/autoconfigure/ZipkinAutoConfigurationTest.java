@@ -0,0 +1,338 @@
+package top.liumian.zipkin.autoconfigure;
+
+import brave.Span;
+import brave.Tracing;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import net.sf.cglib.proxy.Factory;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.boot.autoconfigure.AutoConfigurations;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+import top.liumian.zipkin.core.log.MdcScopeDecorator;
+import top.liumian.zipkin.core.metrics.ResourceUsageSpanHandler;
+import top.liumian.zipkin.core.mq.MqMetrics;
+import top.liumian.zipkin.core.mq.MqPolicies;
+import top.liumian.zipkin.core.mq.MqPolicyWatcher;
+import top.liumian.zipkin.core.mq.MqSampler;
+import top.liumian.zipkin.core.mq.MqTracing;
+import top.liumian.zipkin.core.mq.consumer.BatchTracingMode;
+import top.liumian.zipkin.core.reporter.AsyncSpanHandler;
+import top.liumian.zipkin.core.reporter.BackPressureSampler;
+import top.liumian.zipkin.core.reporter.ExportBacklog;
+import top.liumian.zipkin.core.reporter.FileSpanSender;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.reporter.Sender;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author liumian  2022/9/10 17:00
+ */
+public class ZipkinAutoConfigurationTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ApplicationContextRunner contextRunner = new ApplicationContextRunner()
+            .withConfiguration(AutoConfigurations.of(ZipkinAutoConfiguration.class));
+
+    @Test
+    public void createsTracingBackedByAsyncSpanHandler() {
+        List<MutableSpan> spans = new ArrayList<>();
+        contextRunner.withPropertyValues("spring.application.name=order-service",
+                "zipkin.reporter.queued-max-spans=500",
+                "zipkin.rocketmq.batch-tracing-mode=CHILD_PER_MESSAGE")
+                .withBean("recordingSpanHandler", SpanHandler.class, () -> new SpanHandler() {
+                    @Override
+                    public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+                        spans.add(span);
+                        return true;
+                    }
+                })
+                .run(context -> {
+                    Tracing tracing = context.getBean(Tracing.class);
+                    assertTrue(tracing.tracer().toString().contains("AsyncSpanHandler"));
+                    tracing.tracer().nextSpan().name("test").start().finish();
+                    assertEquals("order-service", spans.get(0).localServiceName());
+                    assertEquals(BatchTracingMode.CHILD_PER_MESSAGE, context.getBean(MqTracing.class).batchTracingMode());
+                });
+    }
+
+    @Test
+    public void wrapsRocketMQClients() {
+        List<MutableSpan> spans = new ArrayList<>();
+        contextRunner.withBean("producer", DefaultMQProducer.class, () -> new DefaultMQProducer("producer_group"))
+                .withBean("consumer", DefaultMQPushConsumer.class, () -> {
+                    // 与常见写法一样在@Bean方法中注册监听器，此时消费者还没有被代理
+                    DefaultMQPushConsumer consumer = new DefaultMQPushConsumer("consumer_group");
+                    consumer.registerMessageListener((MessageListenerConcurrently) (msgs, context) -> ConsumeConcurrentlyStatus.CONSUME_SUCCESS);
+                    return consumer;
+                })
+                .withBean("recordingSpanHandler", SpanHandler.class, () -> new SpanHandler() {
+                    @Override
+                    public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+                        spans.add(span);
+                        return true;
+                    }
+                })
+                .run(context -> {
+                    DefaultMQProducer producer = context.getBean(DefaultMQProducer.class);
+                    assertTrue(producer instanceof Factory);
+                    assertEquals("producer_group", producer.getProducerGroup());
+                    DefaultMQPushConsumer consumer = context.getBean(DefaultMQPushConsumer.class);
+                    assertTrue(consumer instanceof Factory);
+
+                    MessageExt message = new MessageExt();
+                    message.setTopic("TopicTest");
+                    List<MessageExt> msgs = new ArrayList<>();
+                    msgs.add(message);
+                    ((MessageListenerConcurrently) consumer.getMessageListener()).consumeMessage(msgs, null);
+                    assertEquals(1, spans.size());
+                    assertEquals("MQ/CONSUME", spans.get(0).name());
+                });
+    }
+
+    @Test
+    public void hookModeKeepsRocketMQClientsUnproxied() {
+        contextRunner.withPropertyValues("zipkin.rocketmq.instrumentation-mode=HOOK")
+                .withBean("producer", DefaultMQProducer.class, () -> new DefaultMQProducer("producer_group"))
+                .withBean("consumer", DefaultMQPushConsumer.class, () -> new DefaultMQPushConsumer("consumer_group"))
+                .run(context -> {
+                    DefaultMQProducer producer = context.getBean(DefaultMQProducer.class);
+                    assertFalse(producer instanceof Factory);
+                    assertTrue(producer.getDefaultMQProducerImpl().hasSendMessageHook());
+                    DefaultMQPushConsumer consumer = context.getBean(DefaultMQPushConsumer.class);
+                    assertFalse(consumer instanceof Factory);
+                    assertTrue(consumer.getDefaultMQPushConsumerImpl().hasHook());
+                });
+    }
+
+    @Test
+    public void spoolReplacesInMemoryQueue() throws Exception {
+        File spool = folder.newFile();
+        contextRunner.withPropertyValues("zipkin.reporter.spool.enabled=true",
+                "zipkin.reporter.spool.file=" + spool.getAbsolutePath(),
+                "zipkin.reporter.spool.max-bytes=65536")
+                .run(context -> {
+                    assertTrue(context.getBeansOfType(AsyncSpanHandler.class).isEmpty());
+                    assertTrue(context.getBean(Tracing.class).tracer().toString().contains("SpoolSpanHandler"));
+                    assertEquals(65536, spool.length());
+                });
+    }
+
+    @Test
+    public void defaultSpoolFileIsNamedAfterService() throws Exception {
+        String serviceName = "spool-test-" + System.nanoTime();
+        File spool = new File(System.getProperty("java.io.tmpdir"), "zipkin-" + serviceName + ".spool");
+        try {
+            contextRunner.withPropertyValues("zipkin.reporter.spool.enabled=true",
+                    "zipkin.reporter.spool.max-bytes=65536",
+                    "zipkin.service-name=" + serviceName)
+                    .run(context -> {
+                        assertTrue(context.getBean(Tracing.class).tracer().toString().contains("SpoolSpanHandler"));
+                        assertEquals(65536, spool.length());
+                    });
+        } finally {
+            Files.deleteIfExists(spool.toPath());
+        }
+    }
+
+    @Test
+    public void writesCompressedProto3SpansToFile() throws Exception {
+        File file = new File(folder.getRoot(), "spans.bin");
+        contextRunner.withPropertyValues("zipkin.sender.transport=FILE",
+                "zipkin.sender.encoding=PROTO3",
+                "zipkin.sender.compression=ZSTD",
+                "zipkin.sender.file=" + file.getAbsolutePath())
+                .run(context -> {
+                    assertEquals(Encoding.PROTO3, context.getBean(Sender.class).encoding());
+                    context.getBean(Tracing.class).tracer().nextSpan().name("file").start().finish();
+                    context.getBean(AsyncSpanHandler.class).flush();
+
+                    List<byte[]> messages = FileSpanSender.readMessages(file.toPath());
+                    assertEquals("file", SpanBytesDecoder.PROTO3.decodeList(messages.get(0)).get(0).name());
+                });
+    }
+
+    @Test
+    public void sendsThriftToV1Endpoint() {
+        contextRunner.withPropertyValues("zipkin.base-url=http://zipkin:9411", "zipkin.sender.encoding=THRIFT")
+                .run(context -> assertTrue(context.getBean(Sender.class).toString().contains("http://zipkin:9411/api/v1/spans")));
+        contextRunner.run(context -> assertTrue(context.getBean(Sender.class).toString().contains("http://localhost:9411/api/v2/spans")));
+    }
+
+    @Test
+    public void tailSamplingOnlyPassesErroredTraces() {
+        List<MutableSpan> spans = new ArrayList<>();
+        contextRunner.withPropertyValues("zipkin.sampler.probability=0", "zipkin.reporter.tail-sampling.enabled=true")
+                .withBean("recordingSpanHandler", SpanHandler.class, () -> new SpanHandler() {
+                    @Override
+                    public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+                        spans.add(span);
+                        return true;
+                    }
+                })
+                .run(context -> {
+                    Tracing tracing = context.getBean(Tracing.class);
+                    tracing.tracer().newTrace().name("ok").start().finish();
+                    tracing.tracer().newTrace().name("failed").start().error(new IllegalStateException()).finish();
+                    assertEquals(1, spans.size());
+                    assertEquals("failed", spans.get(0).name());
+                });
+    }
+
+    @Test
+    public void tagsResourceUsageBeforeReporting() {
+        List<MutableSpan> spans = new ArrayList<>();
+        contextRunner.withPropertyValues("zipkin.resource-usage.enabled=true",
+                "zipkin.resource-usage.probability=1",
+                "zipkin.reporter.tail-sampling.enabled=true")
+                .withBean("recordingSpanHandler", SpanHandler.class, () -> new SpanHandler() {
+                    @Override
+                    public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+                        spans.add(span);
+                        return true;
+                    }
+                })
+                .run(context -> {
+                    context.getBean(Tracing.class).tracer().newTrace().name("failed").start().error(new IllegalStateException()).finish();
+                    assertEquals(1, spans.size());
+                    assertTrue(spans.get(0).tags().containsKey(ResourceUsageSpanHandler.CPU_TIME_TAG));
+                    assertEquals(1, context.getBean(ResourceUsageSpanHandler.class).snapshot().get("failed").spans());
+                });
+        contextRunner.run(context -> assertTrue(context.getBeansOfType(ResourceUsageSpanHandler.class).isEmpty()));
+    }
+
+    @Test
+    public void shedsTracesWhenReporterBacksUp() {
+        contextRunner.withPropertyValues("zipkin.sampler.back-pressure.high-watermark=0.9")
+                .run(context -> {
+                    assertTrue(context.getBean(Sampler.class) instanceof BackPressureSampler);
+                    assertTrue(context.getBean(Tracing.class).tracer().newTrace().context().sampled());
+                });
+        contextRunner.withPropertyValues("zipkin.sampler.back-pressure.enabled=false")
+                .run(context -> assertFalse(context.getBean(Sampler.class) instanceof BackPressureSampler));
+    }
+
+    @Test
+    public void tailSamplingStopsRecordingWhenBackPressureTrips() {
+        List<MutableSpan> spans = new ArrayList<>();
+        contextRunner.withPropertyValues("zipkin.reporter.tail-sampling.enabled=true")
+                .withBean(Sampler.class, () -> BackPressureSampler.newBuilder(Sampler.ALWAYS_SAMPLE, new ExportBacklog() {
+                    @Override
+                    public double backlogRatio() {
+                        return 1;
+                    }
+
+                    @Override
+                    public long droppedSpans() {
+                        return 0;
+                    }
+                }).checkInterval(0, TimeUnit.NANOSECONDS).build())
+                .withBean("recordingSpanHandler", SpanHandler.class, () -> new SpanHandler() {
+                    @Override
+                    public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+                        spans.add(span);
+                        return true;
+                    }
+                })
+                .run(context -> {
+                    Span span = context.getBean(Tracing.class).tracer().newTrace().name("failed").start();
+                    assertTrue(span.isNoop());
+                    span.error(new IllegalStateException()).finish();
+                    assertEquals(BackPressureSampler.State.OPEN, ((BackPressureSampler) context.getBean(Sampler.class)).state());
+                    assertTrue(spans.isEmpty());
+                });
+    }
+
+    @Test
+    public void bindsRocketMQSamplerRules() {
+        contextRunner.withPropertyValues("zipkin.rocketmq.topic-samplers.order-event.rate=10",
+                "zipkin.rocketmq.group-samplers.etl-group.probability=0")
+                .run(context -> {
+                    MqSampler sampler = context.getBean(MqTracing.class).sampler();
+                    assertEquals(Boolean.TRUE, sampler.trySample("order-event"));
+                    assertEquals(Boolean.FALSE, sampler.trySample("etl-group", "order-event"));
+                    assertNull(sampler.trySample("other-topic"));
+                });
+    }
+
+    @Test
+    public void loadsRocketMQPolicyFile() throws Exception {
+        File policyFile = folder.newFile("mq-policy.properties");
+        Files.write(policyFile.toPath(), "topic.order-event.enabled=false\n".getBytes(StandardCharsets.UTF_8));
+        contextRunner.withPropertyValues("zipkin.rocketmq.policy-file=" + policyFile.getAbsolutePath())
+                .run(context -> {
+                    MqPolicies policies = context.getBean(MqTracing.class).policies();
+                    assertSame(context.getBean(MqPolicies.class), policies);
+                    assertFalse(policies.topics().get("order-event").enabled());
+                });
+        contextRunner.run(context -> assertTrue(context.getBeansOfType(MqPolicyWatcher.class).isEmpty()));
+    }
+
+    @Test
+    public void exposesRocketMQMetricsUnlessDisabled() {
+        contextRunner.run(context -> assertSame(context.getBean(MqMetrics.class), context.getBean(MqTracing.class).metrics()));
+        contextRunner.withPropertyValues("zipkin.rocketmq.metrics-enabled=false")
+                .run(context -> assertNull(context.getBean(MqTracing.class).metrics()));
+    }
+
+    @Test
+    public void rocketMQWrappingCanBeDisabled() {
+        contextRunner.withPropertyValues("zipkin.rocketmq.enabled=false")
+                .withBean("producer", DefaultMQProducer.class, () -> new DefaultMQProducer("producer_group"))
+                .run(context -> assertFalse(context.getBean(DefaultMQProducer.class) instanceof Factory));
+    }
+
+    @Test
+    public void decoratesScopesWithConfiguredMdcFields() {
+        List<TraceContext> decorated = new ArrayList<>();
+        contextRunner.withPropertyValues("zipkin.mdc.fields=TRACE_ID,SAMPLED",
+                "zipkin.mdc.names.TRACE_ID=X-B3-TraceId",
+                "zipkin.mdc.sampled-only=true")
+                .withBean("recordingScopeDecorator", CurrentTraceContext.ScopeDecorator.class, () -> (traceContext, scope) -> {
+                    decorated.add(traceContext);
+                    return scope;
+                })
+                .run(context -> {
+                    assertEquals("MdcScopeDecorator{fields={TRACE_ID=X-B3-TraceId, SAMPLED=sampled}, sampledOnly=true}",
+                            context.getBean(MdcScopeDecorator.class).toString());
+                    Tracing tracing = context.getBean(Tracing.class);
+                    TraceContext traceContext = tracing.tracer().nextSpan().context();
+                    tracing.currentTraceContext().newScope(traceContext).close();
+                    assertEquals(1, decorated.size());
+                    assertSame(traceContext, decorated.get(0));
+                });
+        contextRunner.withPropertyValues("zipkin.mdc.enabled=false")
+                .run(context -> assertTrue(context.getBeansOfType(MdcScopeDecorator.class).isEmpty()));
+    }
+
+    @Test
+    public void backsOffWhenDisabled() {
+        contextRunner.withPropertyValues("zipkin.enabled=false")
+                .run(context -> assertTrue(context.getBeansOfType(Tracing.class).isEmpty()));
+    }
+
+}
@@ -0,0 +1,118 @@
+package top.liumian.zipkin.core.log;
+
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.CurrentTraceContext.Scope;
+import brave.propagation.ThreadLocalCurrentTraceContext;
+import brave.propagation.TraceContext;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author liumian  2022/10/9 11:00
+ */
+public class MdcScopeDecoratorTest {
+
+    private final Map<String, String> mdc = new HashMap<>();
+
+    private int writes;
+
+    private final MdcScopeDecorator.Writer writer = (name, value) -> {
+        writes++;
+        if (value == null) {
+            mdc.remove(name);
+        } else {
+            mdc.put(name, value);
+        }
+    };
+
+    private final TraceContext parent = TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build();
+
+    private final TraceContext child = parent.toBuilder().parentId(2L).spanId(3L).build();
+
+    @Test
+    public void writesSelectedFieldsAndRestoresOnClose() {
+        CurrentTraceContext current = currentTraceContext(MdcScopeDecorator.newBuilder(writer).build());
+
+        try (Scope scope = current.newScope(parent)) {
+            assertEquals(parent.traceIdString(), mdc.get("traceId"));
+            assertEquals(parent.spanIdString(), mdc.get("spanId"));
+            assertNull("未选择的字段不写入", mdc.get("parentId"));
+            try (Scope childScope = current.newScope(child)) {
+                assertEquals(child.spanIdString(), mdc.get("spanId"));
+            }
+            assertEquals(parent.spanIdString(), mdc.get("spanId"));
+        }
+        assertTrue(mdc.isEmpty());
+    }
+
+    @Test
+    public void onlyChangedFieldsAreWritten() {
+        CurrentTraceContext current = currentTraceContext(MdcScopeDecorator.newBuilder(writer).build());
+
+        try (Scope scope = current.newScope(parent)) {
+            writes = 0;
+            try (Scope childScope = current.newScope(child)) {
+                assertEquals("traceId不变，只写spanId", 1, writes);
+            }
+            assertEquals(2, writes);
+        }
+    }
+
+    @Test
+    public void nestedScopeWithSameFieldsIsFree() {
+        CurrentTraceContext current = currentTraceContext(MdcScopeDecorator.newBuilder(writer).clear()
+                .add(MdcScopeDecorator.Field.TRACE_ID, "X-B3-TraceId").build());
+
+        try (Scope scope = current.newScope(parent)) {
+            writes = 0;
+            Scope childScope = current.newScope(child);
+            Scope sameScope = current.newScope(child);
+            sameScope.close();
+            childScope.close();
+            assertEquals(0, writes);
+            assertEquals(parent.traceIdString(), mdc.get("X-B3-TraceId"));
+        }
+        assertTrue(mdc.isEmpty());
+    }
+
+    @Test
+    public void clearingScopeRemovesFields() {
+        CurrentTraceContext current = currentTraceContext(MdcScopeDecorator.newBuilder(writer).add(MdcScopeDecorator.Field.PARENT_ID).build());
+
+        try (Scope scope = current.newScope(child)) {
+            assertEquals(parent.spanIdString(), mdc.get("parentId"));
+            try (Scope cleared = current.newScope(null)) {
+                assertTrue(mdc.isEmpty());
+            }
+            assertEquals(3, mdc.size());
+        }
+    }
+
+    @Test
+    public void unsampledTracesAreSkippedWhenSampledOnly() {
+        CurrentTraceContext current = currentTraceContext(MdcScopeDecorator.newBuilder(writer).sampledOnly(true).build());
+        TraceContext unsampled = parent.toBuilder().sampled(false).build();
+
+        try (Scope scope = current.newScope(unsampled)) {
+            assertEquals(0, writes);
+            assertTrue(mdc.isEmpty());
+        }
+        assertEquals(0, writes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresAtLeastOneField() {
+        MdcScopeDecorator.newBuilder(writer).clear().build();
+    }
+
+    private static CurrentTraceContext currentTraceContext(MdcScopeDecorator decorator) {
+        return ThreadLocalCurrentTraceContext.newBuilder().addScopeDecorator(decorator).build();
+    }
+
+}
@@ -0,0 +1,99 @@
+package top.liumian.zipkin.core.metrics;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author liumian  2022/10/2 14:00
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverValuesWithBoundedRelativeError() {
+        long previous = -1;
+        for (long micros = 0; micros < 1L << 20; micros += 7) {
+            int index = LatencyHistogram.index(micros);
+            long upper = LatencyHistogram.highestEquivalentValue(index);
+            assertTrue(index >= 0 && index < LatencyHistogram.BUCKETS);
+            assertTrue(upper >= micros);
+            assertTrue("相对误差不应超过1/16: " + micros, upper - micros <= micros / 16);
+            assertTrue(upper >= previous);
+            previous = upper;
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.index((1L << 32) - 1));
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(1000, snapshot.count());
+        assertApproximately(TimeUnit.MILLISECONDS.toNanos(500), snapshot.percentileNanos(50));
+        assertApproximately(TimeUnit.MILLISECONDS.toNanos(990), snapshot.percentileNanos(99));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), snapshot.percentileNanos(100));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), snapshot.maxNanos());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(500500), snapshot.meanNanos());
+    }
+
+    @Test
+    public void sinceReturnsTheInterval() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.SECONDS.toNanos(1));
+        LatencyHistogram.Snapshot first = histogram.snapshot();
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+
+        LatencyHistogram.Snapshot interval = histogram.snapshot().since(first);
+        assertEquals(2, interval.count());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1), interval.meanNanos());
+        assertApproximately(TimeUnit.MILLISECONDS.toNanos(1), interval.percentileNanos(99));
+    }
+
+    @Test
+    public void concurrentRecordsAreNotLost() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram(4);
+        int threads = 8;
+        int perThread = 100_000;
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    histogram.record(i * 1000L);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        assertEquals((long) threads * perThread, histogram.snapshot().count());
+    }
+
+    @Test
+    public void recordDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 100_000; i++) {
+            histogram.record(i);
+        }
+        long before = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < 100_000; i++) {
+            histogram.record(i * 1000L);
+        }
+        long allocated = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        assertTrue("记录耗时不应分配内存: " + allocated, allocated < 1024);
+    }
+
+    private static void assertApproximately(long expected, long actual) {
+        assertTrue(expected + " != " + actual, Math.abs(expected - actual) <= expected / 16);
+    }
+
+}
@@ -0,0 +1,126 @@
+package top.liumian.zipkin.core.metrics;
+
+import brave.Span;
+import brave.Tracing;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import top.liumian.zipkin.util.TraceUtil;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author liumian  2022/10/13 11:30
+ */
+public class ResourceUsageSpanHandlerTest {
+
+    private static final int ONE_MB = 1 << 20;
+
+    private static volatile byte[] sink;
+
+    private final List<MutableSpan> spans = new CopyOnWriteArrayList<>();
+
+    private Tracing tracing;
+
+    @After
+    public void closeTracing() {
+        if (tracing != null) {
+            tracing.close();
+        }
+    }
+
+    @Test
+    public void tagsCpuTimeAndAllocatedBytes() {
+        ResourceUsageSpanHandler handler = ResourceUsageSpanHandler.newBuilder().probability(1).build();
+        Assume.assumeTrue(handler.allocationSupported());
+        tracing = tracing(handler);
+
+        TraceUtil.newTrace(tracing, "consume", span -> {
+            TraceUtil.newChildTrace(tracing, "handle", (Span child) -> sink = new byte[ONE_MB]);
+        });
+
+        assertEquals(2, spans.size());
+        MutableSpan child = spans.get(0);
+        MutableSpan parent = spans.get(1);
+        long childBytes = Long.parseLong(child.tag(ResourceUsageSpanHandler.ALLOCATED_BYTES_TAG));
+        long parentBytes = Long.parseLong(parent.tag(ResourceUsageSpanHandler.ALLOCATED_BYTES_TAG));
+        assertTrue("分配了1MB: " + childBytes, childBytes >= ONE_MB);
+        assertTrue("父span包含子span的分配", parentBytes >= childBytes);
+        assertTrue(Long.parseLong(parent.tag(ResourceUsageSpanHandler.CPU_TIME_TAG)) >= 0);
+
+        Map<String, ResourceUsage.Snapshot> snapshot = handler.snapshot();
+        assertEquals(1, snapshot.get("consume").spans());
+        assertEquals(1, snapshot.get("handle").spans());
+        assertEquals(childBytes, snapshot.get("handle").allocatedBytes());
+        assertEquals(0, handler.unmatchedSpans());
+    }
+
+    @Test
+    public void skipsTracesOutsideProbability() {
+        ResourceUsageSpanHandler handler = ResourceUsageSpanHandler.newBuilder().probability(0).build();
+        tracing = tracing(handler);
+
+        TraceUtil.newTrace(tracing, "consume", span -> {
+        });
+
+        assertEquals(1, spans.size());
+        assertNull(spans.get(0).tag(ResourceUsageSpanHandler.CPU_TIME_TAG));
+        assertTrue(handler.snapshot().isEmpty());
+    }
+
+    @Test
+    public void skipsSpansFinishedOnAnotherThread() throws Exception {
+        ResourceUsageSpanHandler handler = ResourceUsageSpanHandler.newBuilder().probability(1).build();
+        tracing = tracing(handler);
+
+        Span span = tracing.tracer().newTrace().name("async").start();
+        Thread thread = new Thread(span::finish);
+        thread.start();
+        thread.join();
+
+        assertEquals(1, spans.size());
+        assertNull(spans.get(0).tag(ResourceUsageSpanHandler.CPU_TIME_TAG));
+        assertEquals(1, handler.unmatchedSpans());
+        assertTrue(handler.snapshot().isEmpty());
+    }
+
+    @Test
+    public void onlyRecordsConfiguredSpanNames() {
+        ResourceUsageSpanHandler handler = ResourceUsageSpanHandler.newBuilder().probability(1).spanName("handle").build();
+        tracing = tracing(handler);
+
+        TraceUtil.newTrace(tracing, "consume", span -> {
+            TraceUtil.newChildTrace(tracing, "handle", (Span child) -> {
+            });
+        });
+
+        assertNotNull(spans.get(0).tag(ResourceUsageSpanHandler.CPU_TIME_TAG));
+        assertNull(spans.get(1).tag(ResourceUsageSpanHandler.CPU_TIME_TAG));
+        assertEquals(1, handler.snapshot().size());
+        assertEquals(0, handler.unmatchedSpans());
+    }
+
+    private Tracing tracing(ResourceUsageSpanHandler handler) {
+        return Tracing.newBuilder()
+                .addSpanHandler(handler)
+                .addSpanHandler(new SpanHandler() {
+                    @Override
+                    public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+                        spans.add(span);
+                        return true;
+                    }
+                })
+                .build();
+    }
+
+}
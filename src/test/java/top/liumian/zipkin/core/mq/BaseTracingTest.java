@@ -1,23 +1,56 @@
 package top.liumian.zipkin.core.mq;
 
 import brave.Tracing;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import org.junit.After;
 import org.junit.Before;
 
-import static brave.handler.SpanHandler.NOOP;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * @author liumian  2022/8/7 12:19
  */
 public class BaseTracingTest {
 
+    /**
+     * 已结束的span，按结束顺序排列
+     */
+    protected final List<MutableSpan> spans = new CopyOnWriteArrayList<>();
+
     protected Tracing tracing;
 
 
     @Before
     public void initTracing() {
+        tracing = newTracing(Sampler.ALWAYS_SAMPLE);
+    }
+
+    @After
+    public void closeTracing() {
+        tracing.close();
+    }
+
+    /**
+     * 关闭当前的tracing，换成使用指定采样器、同样记录到 {@link #spans} 的tracing
+     */
+    protected void resetTracing(Sampler sampler) {
+        tracing.close();
+        tracing = newTracing(sampler);
+    }
 
-        tracing = Tracing.newBuilder().localServiceName("tracingTest")
-                .addSpanHandler(NOOP)
+    private Tracing newTracing(Sampler sampler) {
+        return Tracing.newBuilder().localServiceName("tracingTest").sampler(sampler)
+                .addSpanHandler(new SpanHandler() {
+                    @Override
+                    public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+                        spans.add(span);
+                        return true;
+                    }
+                })
 //                .currentTraceContext(ThreadLocalCurrentTraceContext.newBuilder().addScopeDecorator(MDCScopeDecorator.get()).build())
                 .build();
     }
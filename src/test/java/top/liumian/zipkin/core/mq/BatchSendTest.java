@@ -0,0 +1,71 @@
+package top.liumian.zipkin.core.mq;
+
+import brave.handler.MutableSpan;
+import brave.sampler.Sampler;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.common.message.Message;
+import org.junit.Test;
+import top.liumian.zipkin.core.mq.producer.TracingProducerProxyFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author liumian  2022/9/25 15:00
+ */
+public class BatchSendTest extends BaseTracingTest {
+
+    @Test
+    public void eachMessageGetsItsOwnChildContext() throws Exception {
+        List<Message> messages = messages(100);
+        producer().send(messages);
+
+        assertEquals(1, spans.size());
+        MutableSpan batchSpan = spans.get(0);
+        assertEquals("100", batchSpan.tag("mq.batch.size"));
+        assertEquals("TopicTest", batchSpan.tag("mq.topic"));
+
+        Set<String> spanIds = new HashSet<>();
+        for (Message message : messages) {
+            assertEquals(batchSpan.traceId(), message.getUserProperty("X-B3-TraceId"));
+            assertEquals(batchSpan.id(), message.getUserProperty("X-B3-ParentSpanId"));
+            assertEquals("1", message.getUserProperty("X-B3-Sampled"));
+            spanIds.add(message.getUserProperty("X-B3-SpanId"));
+        }
+        assertEquals(100, spanIds.size());
+        assertTrue(!spanIds.contains(batchSpan.id()));
+    }
+
+    @Test
+    public void unsampledBatchSharesOneContext() throws Exception {
+        resetTracing(Sampler.NEVER_SAMPLE);
+        List<Message> messages = messages(10);
+        producer().send(messages);
+
+        assertTrue(spans.isEmpty());
+        Set<String> spanIds = new HashSet<>();
+        for (Message message : messages) {
+            assertEquals("0", message.getUserProperty("X-B3-Sampled"));
+            spanIds.add(message.getUserProperty("X-B3-SpanId"));
+        }
+        assertEquals(1, spanIds.size());
+    }
+
+    private DefaultMQProducer producer() {
+        return TracingProducerProxyFactory.createTracingProducer(tracing, new TracingProxyFactoryTest.StubProducer());
+    }
+
+    private static List<Message> messages(int count) {
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(new Message("TopicTest", new byte[0]));
+        }
+        return messages;
+    }
+
+}
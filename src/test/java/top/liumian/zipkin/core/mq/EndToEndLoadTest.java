@@ -0,0 +1,297 @@
+package top.liumian.zipkin.core.mq;
+
+import brave.Span;
+import brave.Tracing;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.common.message.Message;
+import org.junit.Test;
+import top.liumian.zipkin.core.metrics.LatencyHistogram;
+import top.liumian.zipkin.core.mq.consumer.TracingConsumerProxyFactory;
+import top.liumian.zipkin.core.mq.producer.TracingProducerProxyFactory;
+import top.liumian.zipkin.core.reporter.AsyncSpanHandler;
+import zipkin2.Call;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.Sender;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 端到端的吞吐与链路跟踪开销测试：代理生产者 -> {@link InMemoryBroker} -> 链路跟踪推模式消费者
+ * <p>
+ * 在不开启链路跟踪、noop、完整上报（代理模式和钩子模式）几种情况下发送同样数量的消息，
+ * 输出吞吐、端到端延迟的p50/p99和分配速率，各行对比即为链路跟踪带来的开销。
+ * 默认规模很小，只验证整条链路正确；测量时调大规模，并可设置相对不开启链路跟踪允许的最大吞吐下降比例：
+ * <pre>{@code
+ * mvn test -Dtest=EndToEndLoadTest -Dloadtest.messages=500000 -Dloadtest.rate=50000 -Dloadtest.maxThroughputDrop=0.2
+ * }</pre>
+ *
+ * @author liumian  2022/10/8 14:00
+ */
+public class EndToEndLoadTest {
+
+    private static final String TOPIC = "LoadTestTopic";
+
+    private static final int MESSAGES = Integer.getInteger("loadtest.messages", 20000);
+
+    /**
+     * 每秒发送的消息数，0表示不限速
+     */
+    private static final int RATE = Integer.getInteger("loadtest.rate", 0);
+
+    private static final int CONSUME_THREADS = Integer.getInteger("loadtest.consumeThreads", 4);
+
+    private static final int BODY_SIZE = Math.max(Integer.getInteger("loadtest.bodySize", 128), Long.BYTES);
+
+    /**
+     * 链路跟踪相对不开启时允许的最大吞吐下降比例，默认不检查
+     */
+    private static final double MAX_THROUGHPUT_DROP = Double.parseDouble(System.getProperty("loadtest.maxThroughputDrop", "1"));
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    enum Mode {
+        /**
+         * 原始生产者和消费者，不创建代理
+         */
+        OFF,
+        /**
+         * 创建代理，但 {@link Tracing#setNoop(boolean)} 关闭了链路跟踪
+         */
+        NOOP,
+        /**
+         * 代理模式，所有span编码后交给 {@link AsyncSpanHandler} 上报
+         */
+        EXPORTED,
+        /**
+         * 钩子模式，所有span编码后交给 {@link AsyncSpanHandler} 上报
+         */
+        EXPORTED_HOOK
+    }
+
+    @Test
+    public void tracingOverhead() throws Exception {
+        for (Mode mode : Mode.values()) {
+            run(mode, Math.min(MESSAGES, 20000));
+        }
+        Map<Mode, Result> results = new EnumMap<>(Mode.class);
+        for (Mode mode : Mode.values()) {
+            results.put(mode, run(mode, MESSAGES));
+        }
+
+        System.out.printf("%d messages, rate %s, %d consume threads, %d bytes body%n", MESSAGES, RATE > 0 ? RATE + " msgs/s" : "unlimited", CONSUME_THREADS, BODY_SIZE);
+        results.values().forEach(System.out::println);
+
+        double baseline = results.get(Mode.OFF).throughput();
+        for (Result result : results.values()) {
+            double drop = 1 - result.throughput() / baseline;
+            assertTrue(result.mode + " 吞吐下降 " + Math.round(drop * 100) + "%", drop <= MAX_THROUGHPUT_DROP);
+        }
+    }
+
+    private Result run(Mode mode, int messages) throws Exception {
+        InMemoryBroker broker = new InMemoryBroker();
+        LongAdder linkedConsumeSpans = new LongAdder();
+        AsyncSpanHandler spanHandler = AsyncSpanHandler.newBuilder(new DiscardingSender()).build();
+        Tracing tracing = Tracing.newBuilder().localServiceName("loadTest")
+                .addSpanHandler(new SpanHandler() {
+                    @Override
+                    public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+                        if (span.kind() == Span.Kind.CONSUMER && span.parentId() != null) {
+                            linkedConsumeSpans.increment();
+                        }
+                        return true;
+                    }
+                })
+                .addSpanHandler(spanHandler)
+                .build();
+        tracing.setNoop(mode == Mode.NOOP);
+
+        DefaultMQProducer producer = new InMemoryMQProducer(broker, "loadTestProducer");
+        DefaultMQPushConsumer consumer = new InMemoryMQPushConsumer(broker, "loadTestConsumer");
+        consumer.setConsumeThreadMax(Math.max(CONSUME_THREADS, consumer.getConsumeThreadMax()));
+        consumer.setConsumeThreadMin(CONSUME_THREADS);
+        if (mode != Mode.OFF) {
+            MqTracing mqTracing = MqTracing.newBuilder(tracing)
+                    .instrumentationMode(mode == Mode.EXPORTED_HOOK ? InstrumentationMode.HOOK : InstrumentationMode.PROXY)
+                    .build();
+            producer = TracingProducerProxyFactory.createTracingProducer(mqTracing, producer);
+            consumer = TracingConsumerProxyFactory.createTracingConsumer(mqTracing, consumer);
+        }
+
+        LatencyHistogram latency = new LatencyHistogram();
+        CountDownLatch consumed = new CountDownLatch(messages);
+        consumer.subscribe(TOPIC, "*");
+        consumer.registerMessageListener((MessageListenerConcurrently) (msgs, context) -> {
+            long now = System.nanoTime();
+            for (int i = 0, size = msgs.size(); i < size; i++) {
+                latency.record(now - readLong(msgs.get(i).getBody()));
+                consumed.countDown();
+            }
+            return ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
+        });
+        consumer.start();
+        producer.start();
+
+        Result result;
+        try {
+            Map<Long, Long> allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                if (RATE > 0) {
+                    long due = start + i * TimeUnit.SECONDS.toNanos(1) / RATE;
+                    for (long now; (now = System.nanoTime()) < due; ) {
+                        LockSupport.parkNanos(due - now);
+                    }
+                }
+                byte[] body = new byte[BODY_SIZE];
+                writeLong(body, System.nanoTime());
+                producer.send(new Message(TOPIC, "TagA", body));
+            }
+            assertTrue(mode + " 消费超时", consumed.await(1, TimeUnit.MINUTES));
+            long elapsedNanos = System.nanoTime() - start;
+            result = new Result(mode, messages, elapsedNanos, latency.snapshot(), allocatedSince(allocatedBefore));
+        } finally {
+            producer.shutdown();
+            consumer.shutdown();
+            spanHandler.flush();
+            tracing.close();
+            spanHandler.close();
+        }
+
+        if (mode == Mode.EXPORTED || mode == Mode.EXPORTED_HOOK) {
+            assertEquals("每条消息的消费span都延续发送span", messages, linkedConsumeSpans.sum());
+            assertEquals("发送和消费span全部上报或计入丢弃", 2L * messages, spanHandler.sentSpans() + spanHandler.droppedSpans());
+        } else {
+            assertEquals(0, linkedConsumeSpans.sum());
+        }
+        return result;
+    }
+
+    /**
+     * 各存活线程累计分配的字节数
+     */
+    private static Map<Long, Long> allocatedBytes() {
+        long[] threadIds = THREAD_MX_BEAN.getAllThreadIds();
+        long[] allocated = THREAD_MX_BEAN.getThreadAllocatedBytes(threadIds);
+        Map<Long, Long> allocatedBytes = new HashMap<>();
+        for (int i = 0; i < threadIds.length; i++) {
+            if (allocated[i] >= 0) {
+                allocatedBytes.put(threadIds[i], allocated[i]);
+            }
+        }
+        return allocatedBytes;
+    }
+
+    /**
+     * 测量期间所有线程分配的字节数，生产者、消费线程和上报线程在测量结束前都不会退出；
+     * 期间退出的其他线程（例如上一轮的线程）不计入
+     */
+    private static long allocatedSince(Map<Long, Long> before) {
+        long total = 0;
+        for (Map.Entry<Long, Long> entry : allocatedBytes().entrySet()) {
+            long allocatedBefore = before.getOrDefault(entry.getKey(), 0L);
+            // JDK 8 对刚启动的线程可能返回未初始化的值，此时按测量期间启动处理
+            total += entry.getValue() - (allocatedBefore > entry.getValue() ? 0L : allocatedBefore);
+        }
+        return total;
+    }
+
+    private static void writeLong(byte[] bytes, long value) {
+        for (int i = Long.BYTES - 1; i >= 0; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long readLong(byte[] bytes) {
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = value << 8 | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static final class Result {
+
+        final Mode mode;
+
+        final int messages;
+
+        final long elapsedNanos;
+
+        final LatencyHistogram.Snapshot latency;
+
+        final long allocatedBytes;
+
+        Result(Mode mode, int messages, long elapsedNanos, LatencyHistogram.Snapshot latency, long allocatedBytes) {
+            this.mode = mode;
+            this.messages = messages;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        double throughput() {
+            return messages * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-13s %10.0f msgs/s  p50 %7d us  p99 %7d us  %7d B/msg  %8.1f MB/s",
+                    mode, throughput(),
+                    TimeUnit.NANOSECONDS.toMicros(latency.percentileNanos(50)),
+                    TimeUnit.NANOSECONDS.toMicros(latency.percentileNanos(99)),
+                    allocatedBytes / messages,
+                    allocatedBytes * 1e9 / elapsedNanos / (1024 * 1024));
+        }
+    }
+
+    /**
+     * 只统计不保存的sender，span的编码和打包仍完整执行
+     */
+    private static final class DiscardingSender extends Sender {
+
+        @Override
+        public Encoding encoding() {
+            return Encoding.JSON;
+        }
+
+        @Override
+        public int messageMaxBytes() {
+            return 512 * 1024;
+        }
+
+        @Override
+        public int messageSizeInBytes(List<byte[]> encodedSpans) {
+            return encoding().listSizeInBytes(encodedSpans);
+        }
+
+        @Override
+        public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+            return Call.create(null);
+        }
+
+        @Override
+        public String toString() {
+            return "DiscardingSender";
+        }
+    }
+
+}
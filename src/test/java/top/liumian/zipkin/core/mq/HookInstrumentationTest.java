@@ -0,0 +1,175 @@
+package top.liumian.zipkin.core.mq;
+
+import brave.Span;
+import brave.handler.MutableSpan;
+import net.sf.cglib.proxy.Factory;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.hook.ConsumeMessageContext;
+import org.apache.rocketmq.client.hook.SendMessageContext;
+import org.apache.rocketmq.client.impl.CommunicationMode;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageBatch;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.remoting.exception.RemotingTimeoutException;
+import org.junit.Before;
+import org.junit.Test;
+import top.liumian.zipkin.core.mq.consumer.TracingConsumerProxyFactory;
+import top.liumian.zipkin.core.mq.producer.TracingProducerProxyFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author liumian  2022/10/6 14:00
+ */
+public class HookInstrumentationTest extends BaseTracingTest {
+
+    private MqTracing mqTracing;
+
+    @Before
+    public void initMqTracing() {
+        mqTracing = MqTracing.newBuilder(tracing).instrumentationMode(InstrumentationMode.HOOK).build();
+    }
+
+    @Test
+    public void hookModeReturnsTheOriginalProducer() {
+        DefaultMQProducer producer = new DefaultMQProducer("hookGroup");
+
+        DefaultMQProducer traced = TracingProducerProxyFactory.createTracingProducer(mqTracing, producer);
+
+        assertSame(producer, traced);
+        assertFalse(traced instanceof Factory);
+        assertEquals(true, producer.getDefaultMQProducerImpl().hasSendMessageHook());
+    }
+
+    @Test
+    public void sendHookInjectsBeforeAndFinishesAfter() {
+        DefaultMQProducer producer = TracingProducerProxyFactory.createTracingProducer(mqTracing, new DefaultMQProducer("hookGroup"));
+        Message message = new Message("TopicTest", "TagA", new byte[0]);
+        SendMessageContext context = sendContext(message, CommunicationMode.SYNC);
+
+        producer.getDefaultMQProducerImpl().executeSendMessageHookBefore(context);
+        assertNotNull(message.getUserProperty("X-B3-TraceId"));
+        assertEquals(0, spans.size());
+
+        context.setSendResult(new SendResult());
+        producer.getDefaultMQProducerImpl().executeSendMessageHookAfter(context);
+
+        assertEquals(1, spans.size());
+        assertEquals("MQ/SEND", spans.get(0).name());
+        assertEquals(message.getUserProperty("X-B3-SpanId"), spans.get(0).id());
+        assertNull(context.getMqTraceContext());
+    }
+
+    @Test
+    public void asyncSendFinishesWhenTheResultArrives() {
+        DefaultMQProducer producer = TracingProducerProxyFactory.createTracingProducer(mqTracing, new DefaultMQProducer("hookGroup"));
+        SendMessageContext context = sendContext(new Message("TopicTest", "TagA", new byte[0]), CommunicationMode.ASYNC);
+
+        producer.getDefaultMQProducerImpl().executeSendMessageHookBefore(context);
+        producer.getDefaultMQProducerImpl().executeSendMessageHookAfter(context);
+        assertEquals("请求已发出，结果还未返回", 0, spans.size());
+
+        context.setException(new RemotingTimeoutException("timeout"));
+        producer.getDefaultMQProducerImpl().executeSendMessageHookAfter(context);
+
+        assertEquals(1, spans.size());
+        assertNotNull(spans.get(0).error());
+    }
+
+    @Test
+    public void sendHookCoexistsWithOtherHooksUsingTheTraceContext() {
+        DefaultMQProducer producer = TracingProducerProxyFactory.createTracingProducer(mqTracing, new DefaultMQProducer("hookGroup"));
+        SendMessageContext context = sendContext(new Message("TopicTest", "TagA", new byte[0]), CommunicationMode.SYNC);
+        Object other = new Object();
+        context.setMqTraceContext(other);
+
+        producer.getDefaultMQProducerImpl().executeSendMessageHookBefore(context);
+        producer.getDefaultMQProducerImpl().executeSendMessageHookAfter(context);
+
+        assertSame(other, context.getMqTraceContext());
+        assertEquals(1, spans.size());
+    }
+
+    @Test
+    public void batchBodyIsReencodedWithPerMessageContexts() throws Exception {
+        DefaultMQProducer producer = TracingProducerProxyFactory.createTracingProducer(mqTracing, new DefaultMQProducer("hookGroup"));
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            messages.add(new Message("TopicTest", "TagA", new byte[]{(byte) i}));
+        }
+        MessageBatch batch = MessageBatch.generateFromList(messages);
+        batch.setBody(batch.encode());
+        SendMessageContext context = sendContext(batch, CommunicationMode.SYNC);
+
+        producer.getDefaultMQProducerImpl().executeSendMessageHookBefore(context);
+        producer.getDefaultMQProducerImpl().executeSendMessageHookAfter(context);
+
+        MutableSpan batchSpan = spans.get(0);
+        List<Message> decoded = MessageDecoder.decodeMessages(ByteBuffer.wrap(batch.getBody()));
+        assertEquals(3, decoded.size());
+        for (Message message : decoded) {
+            assertEquals(batchSpan.traceId(), message.getUserProperty("X-B3-TraceId"));
+            assertEquals(batchSpan.id(), message.getUserProperty("X-B3-ParentSpanId"));
+        }
+    }
+
+    @Test
+    public void consumeHookScopesTheListener() throws Throwable {
+        DefaultMQPushConsumer consumer = new DefaultMQPushConsumer("hookGroup");
+        assertSame(consumer, TracingConsumerProxyFactory.createTracingConsumer(mqTracing, consumer));
+        MessageExt msg = producedMessage();
+        spans.clear();
+
+        List<MessageExt> msgs = new ArrayList<>();
+        msgs.add(msg);
+        ConsumeMessageContext context = new ConsumeMessageContext();
+        context.setConsumerGroup("hookGroup");
+        context.setMsgList(msgs);
+
+        consumer.getDefaultMQPushConsumerImpl().executeHookBefore(context);
+        Span current = tracing.tracer().currentSpan();
+        context.setSuccess(false);
+        context.setStatus("RECONSUME_LATER");
+        consumer.getDefaultMQPushConsumerImpl().executeHookAfter(context);
+
+        assertNull(tracing.tracer().currentSpan());
+        assertEquals(1, spans.size());
+        MutableSpan span = spans.get(0);
+        assertEquals(current.context().spanIdString(), span.id());
+        assertEquals(msg.getUserProperty("X-B3-SpanId"), span.parentId());
+        assertEquals("RECONSUME_LATER", span.tag("mq.consume.status"));
+    }
+
+    private static SendMessageContext sendContext(Message message, CommunicationMode mode) {
+        SendMessageContext context = new SendMessageContext();
+        context.setProducerGroup("hookGroup");
+        context.setMessage(message);
+        context.setCommunicationMode(mode);
+        return context;
+    }
+
+    private MessageExt producedMessage() throws Throwable {
+        Message message = new Message("TopicTest", "TagA", new byte[0]);
+        SendMessageContext context = sendContext(message, CommunicationMode.ONEWAY);
+        DefaultMQProducer producer = TracingProducerProxyFactory.createTracingProducer(mqTracing, new DefaultMQProducer("hookGroup"));
+        producer.getDefaultMQProducerImpl().executeSendMessageHookBefore(context);
+        producer.getDefaultMQProducerImpl().executeSendMessageHookAfter(context);
+        MessageExt messageExt = new MessageExt();
+        messageExt.setTopic(message.getTopic());
+        MessageAccessor.setProperties(messageExt, message.getProperties());
+        return messageExt;
+    }
+
+}
@@ -0,0 +1,133 @@
+package top.liumian.zipkin.core.mq;
+
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.client.producer.SendStatus;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageBatch;
+import org.apache.rocketmq.common.message.MessageClientExt;
+import org.apache.rocketmq.common.message.MessageClientIDSetter;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的broker替身，不需要NameServer和Broker即可端到端地运行生产者和推模式消费者
+ * <p>
+ * 配合 {@link InMemoryMQProducer} 和 {@link InMemoryMQPushConsumer} 使用：每个消费组订阅的每个topic对应一个有界队列，
+ * 消息写入时像broker一样转换为带存储时间、队列和位点的 {@link MessageExt}，投递给所有订阅了该topic的消费组，队列满时阻塞发送方。
+ * 订阅之前发送的消息不会投递，也不做tag过滤。
+ *
+ * @author liumian  2022/10/8 10:00
+ */
+public class InMemoryBroker {
+
+    public static final String BROKER_NAME = "inMemoryBroker";
+
+    private static final int QUEUES = 4;
+
+    private static final InetSocketAddress HOST = new InetSocketAddress("127.0.0.1", 10911);
+
+    private final int capacity;
+
+    /**
+     * topic -> 订阅了该topic的各消费组的队列
+     */
+    private final ConcurrentMap<String, List<BlockingQueue<MessageExt>>> subscriptions = new ConcurrentHashMap<>();
+
+    /**
+     * 消费组@topic -> 队列
+     */
+    private final ConcurrentMap<String, BlockingQueue<MessageExt>> queues = new ConcurrentHashMap<>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong commitLogOffset = new AtomicLong();
+
+    public InMemoryBroker() {
+        this(10000);
+    }
+
+    /**
+     * @param capacity 每个消费组每个topic最多堆积的消息数
+     */
+    public InMemoryBroker(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * 消费组订阅topic，同一消费组的多个消费者共用一个队列
+     *
+     * @param consumerGroup 消费组
+     * @param topic         topic
+     * @return 待消费的消息
+     */
+    BlockingQueue<MessageExt> subscribe(String consumerGroup, String topic) {
+        return queues.computeIfAbsent(consumerGroup + '@' + topic, key -> {
+            BlockingQueue<MessageExt> queue = new LinkedBlockingQueue<>(capacity);
+            subscriptions.computeIfAbsent(topic, t -> new CopyOnWriteArrayList<>()).add(queue);
+            return queue;
+        });
+    }
+
+    /**
+     * 写入消息，批量消息与broker一样从消息体中解码，整批写入同一个队列
+     *
+     * @param msg 单条消息或 {@link MessageBatch}
+     * @return 发送结果
+     * @throws Exception 批量消息解码失败，或等待队列空间时被中断
+     */
+    SendResult put(Message msg) throws Exception {
+        List<Message> messages = msg instanceof MessageBatch ? MessageDecoder.decodeMessages(ByteBuffer.wrap(msg.getBody())) : Collections.singletonList(msg);
+        int queueId = (int) (sequence.getAndIncrement() % QUEUES);
+        long storeTimestamp = System.currentTimeMillis();
+        StringBuilder msgIds = new StringBuilder();
+        long queueOffset = -1;
+        for (Message message : messages) {
+            long offset = commitLogOffset.getAndIncrement();
+            if (queueOffset < 0) {
+                queueOffset = offset;
+            }
+            if (msgIds.length() > 0) {
+                msgIds.append(',');
+            }
+            msgIds.append(MessageClientIDSetter.getUniqID(message));
+            for (BlockingQueue<MessageExt> queue : subscriptions.getOrDefault(msg.getTopic(), Collections.emptyList())) {
+                queue.put(store(msg.getTopic(), message, queueId, offset, storeTimestamp));
+            }
+        }
+        return new SendResult(SendStatus.SEND_OK, msgIds.toString(), new MessageQueue(msg.getTopic(), BROKER_NAME, queueId), queueOffset, null, null, null);
+    }
+
+    private static MessageExt store(String topic, Message message, int queueId, long offset, long storeTimestamp) {
+        MessageClientExt messageExt = new MessageClientExt();
+        messageExt.setTopic(topic);
+        messageExt.setFlag(message.getFlag());
+        messageExt.setBody(message.getBody());
+        // 每个消费组各自一份属性，重试时修改重试次数不会互相影响
+        MessageAccessor.setProperties(messageExt, new HashMap<>(message.getProperties()));
+        messageExt.setBrokerName(BROKER_NAME);
+        messageExt.setQueueId(queueId);
+        messageExt.setQueueOffset(offset);
+        messageExt.setCommitLogOffset(offset);
+        messageExt.setBornTimestamp(storeTimestamp);
+        messageExt.setBornHost(HOST);
+        messageExt.setStoreTimestamp(storeTimestamp);
+        messageExt.setStoreHost(HOST);
+        messageExt.setMsgId(MessageClientIDSetter.getUniqID(message));
+        return messageExt;
+    }
+
+}
@@ -0,0 +1,167 @@
+package top.liumian.zipkin.core.mq;
+
+import org.apache.rocketmq.client.exception.MQClientException;
+import org.apache.rocketmq.client.hook.SendMessageContext;
+import org.apache.rocketmq.client.impl.CommunicationMode;
+import org.apache.rocketmq.client.impl.producer.DefaultMQProducerImpl;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageBatch;
+import org.apache.rocketmq.common.message.MessageClientIDSetter;
+
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 发送到 {@link InMemoryBroker} 的生产者，不访问网络
+ * <p>
+ * 同步、异步、批量和单向发送与真实客户端的执行顺序一致：设置消息唯一id、批量消息编码后执行发送前钩子，
+ * 异步发送在单独的线程中完成，发出时和返回结果时各执行一次发送后钩子。其他发送方法仍是真实实现，调用会失败。
+ *
+ * @author liumian  2022/10/8 10:30
+ */
+public class InMemoryMQProducer extends DefaultMQProducer {
+
+    private final InMemoryBroker broker;
+
+    private ExecutorService asyncSenderExecutor;
+
+    /**
+     * 代理类通过无参构造器创建，代理对象本身不会发送消息
+     */
+    public InMemoryMQProducer() {
+        this.broker = null;
+    }
+
+    public InMemoryMQProducer(InMemoryBroker broker, String producerGroup) {
+        super(producerGroup);
+        this.broker = broker;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (asyncSenderExecutor == null) {
+            asyncSenderExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "InMemoryAsyncSender_" + getProducerGroup());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        if (asyncSenderExecutor != null) {
+            asyncSenderExecutor.shutdown();
+            asyncSenderExecutor = null;
+        }
+    }
+
+    @Override
+    public SendResult send(Message msg) throws MQClientException {
+        return sendKernel(msg, CommunicationMode.SYNC);
+    }
+
+    @Override
+    public SendResult send(Message msg, long timeout) throws MQClientException {
+        return send(msg);
+    }
+
+    @Override
+    public SendResult send(Collection<Message> msgs) throws MQClientException {
+        return send(batch(msgs));
+    }
+
+    @Override
+    public SendResult send(Collection<Message> msgs, long timeout) throws MQClientException {
+        return send(msgs);
+    }
+
+    @Override
+    public void send(Message msg, SendCallback sendCallback) throws MQClientException {
+        ExecutorService executor = asyncSenderExecutor;
+        if (executor == null) {
+            throw new MQClientException("The producer service state not OK, " + getProducerGroup(), null);
+        }
+        executor.execute(() -> {
+            SendResult sendResult;
+            try {
+                sendResult = sendKernel(msg, CommunicationMode.ASYNC);
+            } catch (MQClientException e) {
+                sendCallback.onException(e);
+                return;
+            }
+            sendCallback.onSuccess(sendResult);
+        });
+    }
+
+    @Override
+    public void send(Message msg, SendCallback sendCallback, long timeout) throws MQClientException {
+        send(msg, sendCallback);
+    }
+
+    @Override
+    public void send(Collection<Message> msgs, SendCallback sendCallback) throws MQClientException {
+        send(batch(msgs), sendCallback);
+    }
+
+    @Override
+    public void sendOneway(Message msg) throws MQClientException {
+        sendKernel(msg, CommunicationMode.ONEWAY);
+    }
+
+    private static MessageBatch batch(Collection<Message> msgs) throws MQClientException {
+        MessageBatch batch;
+        try {
+            batch = MessageBatch.generateFromList(msgs);
+        } catch (RuntimeException e) {
+            throw new MQClientException("Failed to initiate the MessageBatch", e);
+        }
+        for (Message message : batch) {
+            MessageClientIDSetter.setUniqID(message);
+        }
+        batch.setBody(batch.encode());
+        return batch;
+    }
+
+    private SendResult sendKernel(Message msg, CommunicationMode communicationMode) throws MQClientException {
+        if (!(msg instanceof MessageBatch)) {
+            MessageClientIDSetter.setUniqID(msg);
+        }
+        DefaultMQProducerImpl producerImpl = getDefaultMQProducerImpl();
+        SendMessageContext context = null;
+        if (producerImpl.hasSendMessageHook()) {
+            context = new SendMessageContext();
+            context.setProducer(producerImpl);
+            context.setProducerGroup(getProducerGroup());
+            context.setCommunicationMode(communicationMode);
+            context.setBornHost(getClientIP());
+            context.setBrokerAddr(InMemoryBroker.BROKER_NAME);
+            context.setMessage(msg);
+            producerImpl.executeSendMessageHookBefore(context);
+            if (communicationMode == CommunicationMode.ASYNC) {
+                // 与真实客户端一样，异步请求发出时先执行一次，此时还没有结果
+                producerImpl.executeSendMessageHookAfter(context);
+            }
+        }
+        SendResult sendResult;
+        try {
+            sendResult = broker.put(msg);
+        } catch (Exception e) {
+            if (context != null) {
+                context.setException(e);
+                producerImpl.executeSendMessageHookAfter(context);
+            }
+            throw new MQClientException("send to in-memory broker failed", e);
+        }
+        if (context != null) {
+            context.setSendResult(sendResult);
+            producerImpl.executeSendMessageHookAfter(context);
+        }
+        return sendResult;
+    }
+
+}
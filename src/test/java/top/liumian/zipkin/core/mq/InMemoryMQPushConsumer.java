@@ -0,0 +1,195 @@
+package top.liumian.zipkin.core.mq;
+
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListener;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerOrderly;
+import org.apache.rocketmq.client.exception.MQClientException;
+import org.apache.rocketmq.client.hook.ConsumeMessageContext;
+import org.apache.rocketmq.client.impl.consumer.DefaultMQPushConsumerImpl;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 从 {@link InMemoryBroker} 消费的推模式消费者，不访问网络
+ * <p>
+ * 每个订阅的topic由 consumeThreadMin 个线程消费（顺序监听器只用一个线程），每次最多取 consumeMessageBatchMaxSize 条消息，
+ * 与真实客户端一样在监听器前后执行消费钩子。消费失败的消息立即重新入队，不经过重试topic和延迟级别，
+ * 超过 maxReconsumeTimes 后丢弃。
+ *
+ * @author liumian  2022/10/8 11:00
+ */
+public class InMemoryMQPushConsumer extends DefaultMQPushConsumer {
+
+    private static final int DEFAULT_MAX_RECONSUME_TIMES = 16;
+
+    private final InMemoryBroker broker;
+
+    private final Set<String> topics = new CopyOnWriteArraySet<>();
+
+    private ExecutorService consumeExecutor;
+
+    private volatile boolean running;
+
+    /**
+     * 代理类通过无参构造器创建，代理对象本身不会消费消息
+     */
+    public InMemoryMQPushConsumer() {
+        this.broker = null;
+    }
+
+    public InMemoryMQPushConsumer(InMemoryBroker broker, String consumerGroup) {
+        super(consumerGroup);
+        this.broker = broker;
+    }
+
+    /**
+     * 只记录topic，不做tag过滤
+     */
+    @Override
+    public void subscribe(String topic, String subExpression) {
+        topics.add(topic);
+    }
+
+    @Override
+    public synchronized void start() throws MQClientException {
+        if (running) {
+            return;
+        }
+        MessageListener listener = getMessageListener();
+        if (listener == null) {
+            throw new MQClientException("messageListener is null", null);
+        }
+        int threads = listener instanceof MessageListenerOrderly ? 1 : getConsumeThreadMin();
+        AtomicInteger index = new AtomicInteger();
+        consumeExecutor = Executors.newFixedThreadPool(threads * Math.max(topics.size(), 1), r -> {
+            Thread thread = new Thread(r, "InMemoryConsumeThread_" + getConsumerGroup() + "_" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+        for (String topic : topics) {
+            BlockingQueue<MessageExt> queue = broker.subscribe(getConsumerGroup(), topic);
+            for (int i = 0; i < threads; i++) {
+                consumeExecutor.execute(() -> consumeLoop(queue));
+            }
+        }
+    }
+
+    /**
+     * 停止消费并等待正在执行的监听器返回
+     */
+    @Override
+    public synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        consumeExecutor.shutdown();
+        try {
+            consumeExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void consumeLoop(BlockingQueue<MessageExt> queue) {
+        int batchSize = getConsumeMessageBatchMaxSize();
+        int maxReconsumeTimes = getMaxReconsumeTimes() < 0 ? DEFAULT_MAX_RECONSUME_TIMES : getMaxReconsumeTimes();
+        while (running) {
+            MessageExt first;
+            try {
+                first = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == null) {
+                continue;
+            }
+            List<MessageExt> msgs = new ArrayList<>(batchSize);
+            msgs.add(first);
+            queue.drainTo(msgs, batchSize - 1);
+            if (consume(msgs)) {
+                continue;
+            }
+            for (MessageExt msg : msgs) {
+                msg.setReconsumeTimes(msg.getReconsumeTimes() + 1);
+                if (msg.getReconsumeTimes() <= maxReconsumeTimes) {
+                    queue.offer(msg);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 是否消费成功
+     */
+    private boolean consume(List<MessageExt> msgs) {
+        MessageExt first = msgs.get(0);
+        MessageQueue mq = new MessageQueue(first.getTopic(), first.getBrokerName(), first.getQueueId());
+        DefaultMQPushConsumerImpl consumerImpl = getDefaultMQPushConsumerImpl();
+        ConsumeMessageContext context = null;
+        if (consumerImpl.hasHook()) {
+            context = new ConsumeMessageContext();
+            context.setNamespace(getNamespace());
+            context.setConsumerGroup(getConsumerGroup());
+            context.setProps(new HashMap<>());
+            context.setMq(mq);
+            context.setMsgList(msgs);
+            context.setSuccess(false);
+            consumerImpl.executeHookBefore(context);
+        }
+        String consumeStartTimestamp = String.valueOf(System.currentTimeMillis());
+        for (MessageExt msg : msgs) {
+            MessageAccessor.setConsumeStartTimeStamp(msg, consumeStartTimestamp);
+        }
+
+        boolean success;
+        String status;
+        try {
+            MessageListener listener = getMessageListener();
+            if (listener instanceof MessageListenerConcurrently) {
+                ConsumeConcurrentlyStatus result = ((MessageListenerConcurrently) listener).consumeMessage(msgs, new ConsumeConcurrentlyContext(mq));
+                success = result == ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
+                status = String.valueOf(result == null ? ConsumeConcurrentlyStatus.RECONSUME_LATER : result);
+            } else {
+                ConsumeOrderlyStatus result = ((MessageListenerOrderly) listener).consumeMessage(msgs, new ConsumeOrderlyContext(mq));
+                success = result == ConsumeOrderlyStatus.SUCCESS || result == ConsumeOrderlyStatus.COMMIT;
+                status = String.valueOf(result == null ? ConsumeOrderlyStatus.SUSPEND_CURRENT_QUEUE_A_MOMENT : result);
+            }
+        } catch (Throwable e) {
+            success = false;
+            status = listenerRetryStatus();
+        }
+
+        if (context != null) {
+            context.setStatus(status);
+            context.setSuccess(success);
+            consumerImpl.executeHookAfter(context);
+        }
+        return success;
+    }
+
+    private String listenerRetryStatus() {
+        return getMessageListener() instanceof MessageListenerOrderly
+                ? ConsumeOrderlyStatus.SUSPEND_CURRENT_QUEUE_A_MOMENT.name()
+                : ConsumeConcurrentlyStatus.RECONSUME_LATER.name();
+    }
+
+}
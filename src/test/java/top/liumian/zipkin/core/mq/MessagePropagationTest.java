@@ -0,0 +1,114 @@
+package top.liumian.zipkin.core.mq;
+
+import brave.Tracing;
+import brave.handler.SpanHandler;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.junit.Before;
+import org.junit.Test;
+import top.liumian.zipkin.util.TraceUtil;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * @author liumian  2022/8/20 11:05
+ */
+public class MessagePropagationTest extends BaseTracingTest {
+
+    private static final int ITERATIONS = 20_000;
+
+    private MqTracing mqTracing;
+
+    @Before
+    public void initMqTracing() {
+        // SpanHandler.NOOP会退化为日志输出，这里使用不做任何处理的handler以免干扰内存分配统计
+        tracing.close();
+        tracing = Tracing.newBuilder().localServiceName("tracingTest").addSpanHandler(new SpanHandler() {
+        }).build();
+        mqTracing = MqTracing.create(tracing);
+    }
+
+    @Test
+    public void injectAndExtractThroughMessageProperties() throws Throwable {
+        Message message = new Message("TopicTest", "TagA", new byte[0]);
+        String traceId = TraceUtil.injectTraceInfo(tracing, "MQ/SEND", mqTracing.messageInjector(), message, span -> span.context().traceIdString());
+
+        assertEquals(traceId, message.getUserProperty("X-B3-TraceId"));
+
+        MessageExt messageExt = toMessageExt(message);
+        String consumedTraceId = TraceUtil.extractTraceInfo(tracing, "MQ/CONSUME", mqTracing.messageExtractor(), messageExt, span -> span.context().traceIdString());
+        assertEquals(traceId, consumedTraceId);
+    }
+
+    @Test
+    public void injectorAndExtractorAreReused() {
+        assertSame(mqTracing.messageInjector(), mqTracing.messageInjector());
+        assertSame(mqTracing.messageExtractor(), mqTracing.messageExtractor());
+    }
+
+    @Test
+    public void allocationPerSendAndConsumeStaysFlat() throws Throwable {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        Message message = new Message("TopicTest", "TagA", new byte[0]);
+        MessageExt messageExt = toMessageExt(message);
+        TraceUtil.injectTraceInfo(tracing, "MQ/SEND", mqTracing.messageInjector(), message, span -> null);
+
+        // 预热，排除JIT与类加载带来的干扰
+        sendAndConsume(message, messageExt, ITERATIONS);
+        sendAndConsumeWithMap(message, messageExt, ITERATIONS);
+
+        long mapBytes = allocatedBytes(threadMXBean, () -> sendAndConsumeWithMap(message, messageExt, ITERATIONS));
+        long firstRound = allocatedBytes(threadMXBean, () -> sendAndConsume(message, messageExt, ITERATIONS));
+        long secondRound = allocatedBytes(threadMXBean, () -> sendAndConsume(message, messageExt, ITERATIONS * 2));
+
+        System.out.printf("bytes/op map: %d, direct: %d, direct(x2): %d%n",
+                mapBytes / ITERATIONS, firstRound / ITERATIONS, secondRound / (ITERATIONS * 2));
+        assertTrue("直接读写消息属性应比中间Map分配更少内存", firstRound < mapBytes);
+        assertTrue("每次收发的内存分配不应随调用次数增长", secondRound / 2 <= firstRound + firstRound / 10);
+    }
+
+    private void sendAndConsume(Message message, MessageExt messageExt, int iterations) throws Throwable {
+        for (int i = 0; i < iterations; i++) {
+            TraceUtil.injectTraceInfo(tracing, "MQ/SEND", mqTracing.messageInjector(), message, span -> null);
+            TraceUtil.extractTraceInfo(tracing, "MQ/CONSUME", mqTracing.messageExtractor(), messageExt, span -> null);
+        }
+    }
+
+    private void sendAndConsumeWithMap(Message message, MessageExt messageExt, int iterations) throws Throwable {
+        for (int i = 0; i < iterations; i++) {
+            TraceUtil.injectTraceInfo(tracing, "MQ/SEND", traceInfo -> {
+                traceInfo.forEach(message::putUserProperty);
+                return null;
+            });
+            TraceUtil.extractTraceInfo(tracing, "MQ/CONSUME", messageExt.getProperties(), span -> null);
+        }
+    }
+
+    private static long allocatedBytes(com.sun.management.ThreadMXBean threadMXBean, ThrowingRunnable runnable) throws Throwable {
+        long threadId = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        runnable.run();
+        return threadMXBean.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    private static MessageExt toMessageExt(Message message) {
+        MessageExt messageExt = new MessageExt();
+        messageExt.setTopic(message.getTopic());
+        MessageAccessor.setProperties(messageExt, message.getProperties());
+        return messageExt;
+    }
+
+    private interface ThrowingRunnable {
+        void run() throws Throwable;
+    }
+
+}
@@ -0,0 +1,138 @@
+package top.liumian.zipkin.core.mq;
+
+import brave.Tracing;
+import brave.sampler.Sampler;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import top.liumian.zipkin.core.metrics.LatencyHistogram;
+import top.liumian.zipkin.core.metrics.RedMetrics;
+import top.liumian.zipkin.core.mq.consumer.TracingMessageListenerConcurrently;
+import top.liumian.zipkin.core.mq.producer.TracingProducerProxyFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author liumian  2022/10/2 14:40
+ */
+public class MqMetricsTest {
+
+    private Tracing tracing;
+
+    private MqMetrics metrics;
+
+    private MqTracing mqTracing;
+
+    @Before
+    public void neverSample() {
+        tracing = Tracing.newBuilder().localServiceName("tracingTest").sampler(Sampler.NEVER_SAMPLE).build();
+        metrics = MqMetrics.create();
+        mqTracing = MqTracing.newBuilder(tracing).metrics(metrics).build();
+    }
+
+    @After
+    public void closeTracing() {
+        tracing.close();
+    }
+
+    @Test
+    public void unsampledSendsAreCountedPerTopic() throws Exception {
+        DefaultMQProducer producer = TracingProducerProxyFactory.createTracingProducer(mqTracing, new TracingProxyFactoryTest.StubProducer());
+        producer.send(new Message("TopicA", new byte[0]));
+        producer.send(new Message("TopicA", new byte[0]));
+        producer.send(Collections.singletonList(new Message("TopicB", new byte[0])));
+
+        assertEquals(2, metrics.sendSnapshot().get("TopicA").requests());
+        assertEquals(0, metrics.sendSnapshot().get("TopicA").errors());
+        assertEquals(1, metrics.sendSnapshot().get("TopicB").requests());
+    }
+
+    @Test
+    public void unsampledAsyncSendIsRecordedWhenCallbackFires() throws Exception {
+        TracingProducerCallbackTest.AsyncStubProducer stub = new TracingProducerCallbackTest.AsyncStubProducer();
+        DefaultMQProducer producer = TracingProducerProxyFactory.createTracingProducer(mqTracing, stub);
+        producer.send(new Message("TopicA", new byte[0]), new SendCallback() {
+            @Override
+            public void onSuccess(SendResult sendResult) {
+            }
+
+            @Override
+            public void onException(Throwable e) {
+            }
+        });
+        assertTrue(metrics.sendSnapshot().isEmpty() || metrics.sendSnapshot().get("TopicA").requests() == 0);
+
+        stub.sendCallback.onException(new IllegalStateException("broker busy"));
+
+        RedMetrics.Snapshot snapshot = metrics.sendSnapshot().get("TopicA");
+        assertEquals(1, snapshot.requests());
+        assertEquals(1, snapshot.errors());
+    }
+
+    @Test
+    public void consumeCountsExceptionsAndRetriesAsErrors() {
+        MessageExt message = new MessageExt();
+        message.setTopic("TopicA");
+        List<MessageExt> msgs = Collections.singletonList(message);
+        ConsumeConcurrentlyStatus[] status = {ConsumeConcurrentlyStatus.CONSUME_SUCCESS};
+        MessageListenerConcurrently listener = new TracingMessageListenerConcurrently(mqTracing, "GroupA", (list, context) -> {
+            if (status[0] == null) {
+                throw new IllegalStateException("consume failed");
+            }
+            return status[0];
+        });
+
+        listener.consumeMessage(msgs, null);
+        status[0] = ConsumeConcurrentlyStatus.RECONSUME_LATER;
+        listener.consumeMessage(msgs, null);
+        status[0] = null;
+        try {
+            listener.consumeMessage(msgs, null);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        RedMetrics.Snapshot snapshot = metrics.consumeSnapshot().get("GroupA").get("TopicA");
+        assertEquals(3, snapshot.requests());
+        assertEquals(2, snapshot.errors());
+        assertTrue(snapshot.latency().percentileNanos(99) >= 0);
+    }
+
+    @Test
+    public void consumeLagIsRecordedPerQueue() {
+        long now = System.currentTimeMillis();
+        List<MessageExt> msgs = new ArrayList<>();
+        for (int queueId = 0; queueId < 2; queueId++) {
+            MessageExt message = new MessageExt();
+            message.setTopic("TopicA");
+            message.setBrokerName("broker-a");
+            message.setQueueId(queueId);
+            message.setStoreTimestamp(now - 1000 * (queueId + 1));
+            msgs.add(message);
+        }
+        new TracingMessageListenerConcurrently(mqTracing, "GroupA", (list, context) -> ConsumeConcurrentlyStatus.CONSUME_SUCCESS)
+                .consumeMessage(msgs, null);
+
+        Map<String, LatencyHistogram.Snapshot> queues = metrics.consumeLagSnapshot().get("GroupA").get("TopicA");
+        assertEquals(2, queues.size());
+        assertEquals(1, queues.get("broker-a-0").count());
+        assertTrue(queues.get("broker-a-0").maxNanos() >= TimeUnit.SECONDS.toNanos(1));
+        assertTrue(queues.get("broker-a-1").maxNanos() >= TimeUnit.SECONDS.toNanos(2));
+    }
+
+}
@@ -0,0 +1,196 @@
+package top.liumian.zipkin.core.mq;
+
+import brave.Span;
+import brave.Tracer;
+import brave.handler.MutableSpan;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import top.liumian.zipkin.core.mq.consumer.TracingMessageListenerConcurrently;
+import top.liumian.zipkin.core.mq.producer.TracingProducerProxyFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author liumian  2022/10/10 14:00
+ */
+public class MqPoliciesTest extends BaseTracingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MqPolicies policies = MqPolicies.create();
+
+    @Test
+    public void groupPolicyTakesPrecedenceOverTopicPolicy() {
+        MqPolicy topicPolicy = MqPolicy.newBuilder().sendName("topic").build();
+        MqPolicy groupPolicy = MqPolicy.newBuilder().consumeName("group").build();
+        MqPolicies.Resolver producer = policies.resolver(null);
+        MqPolicies.Resolver etl = policies.resolver("etl_group");
+        MqPolicies.Resolver audit = policies.resolver("audit_group");
+        assertSame(MqPolicy.DEFAULT, etl.resolve("Firehose"));
+
+        policies.update(MqPolicy.DEFAULT, Collections.singletonMap("Firehose", topicPolicy), Collections.singletonMap("etl_group", groupPolicy));
+
+        assertSame("已创建的读取器立即读到新策略", topicPolicy, producer.resolve("Firehose"));
+        assertSame(groupPolicy, etl.resolve("Firehose"));
+        assertSame(topicPolicy, audit.resolve(new String("Firehose".toCharArray())));
+        assertSame(MqPolicy.DEFAULT, audit.resolve("Payments"));
+        assertSame(MqPolicy.DEFAULT, audit.resolve(null));
+    }
+
+    @Test
+    public void disabledTopicMarksDownstreamUnsampled() throws Exception {
+        policies.update(MqPolicy.DEFAULT, Collections.singletonMap("Firehose", MqPolicy.newBuilder().enabled(false).build()), Collections.emptyMap());
+        MqTracing mqTracing = MqTracing.newBuilder(tracing).policies(policies).build();
+        DefaultMQProducer producer = TracingProducerProxyFactory.createTracingProducer(mqTracing, new TracingProxyFactoryTest.StubProducer());
+
+        Message firehose = new Message("Firehose", new byte[0]);
+        Span parent = tracing.tracer().newTrace().name("job").start();
+        try (Tracer.SpanInScope ws = tracing.tracer().withSpanInScope(parent)) {
+            producer.send(firehose);
+        } finally {
+            parent.finish();
+        }
+
+        assertEquals(parent.context().traceIdString(), firehose.getUserProperty("X-B3-TraceId"));
+        assertEquals("0", firehose.getUserProperty("X-B3-Sampled"));
+        assertEquals("只有父span", 1, spans.size());
+
+        producer.send(new Message("Payments", new byte[0]));
+        assertEquals(2, spans.size());
+    }
+
+    @Test
+    public void disabledGroupIgnoresSampledUpstream() throws Exception {
+        policies.update(MqPolicy.DEFAULT, Collections.emptyMap(), Collections.singletonMap("etl_group", MqPolicy.newBuilder().enabled(false).build()));
+        MqTracing mqTracing = MqTracing.newBuilder(tracing).policies(policies).build();
+        Message message = new Message("Firehose", new byte[0]);
+        TracingProducerProxyFactory.createTracingProducer(mqTracing, new TracingProxyFactoryTest.StubProducer()).send(message);
+        spans.clear();
+
+        MessageExt messageExt = message("Firehose");
+        MessageAccessor.setProperties(messageExt, message.getProperties());
+        consume(mqTracing, "etl_group", messageExt);
+        assertTrue(spans.isEmpty());
+
+        consume(mqTracing, "audit_group", messageExt);
+        assertEquals(1, spans.size());
+    }
+
+    @Test
+    public void policyControlsTagsAndSpanName() {
+        MqPolicy detailed = MqPolicy.newBuilder().tags(EnumSet.of(MqTag.MSG_ID, MqTag.KEYS, MqTag.CONSUME_LAG))
+                .consumeName("payment/consume").build();
+        policies.update(MqPolicy.DEFAULT, Collections.emptyMap(), Collections.singletonMap("payment_group", detailed));
+        MqTracing mqTracing = MqTracing.newBuilder(tracing).policies(policies).build();
+
+        MessageExt messageExt = message("Payments");
+        messageExt.setMsgId("msg-1");
+        messageExt.setKeys("order-1");
+        messageExt.setQueueId(3);
+        consume(mqTracing, "payment_group", messageExt);
+        consume(mqTracing, "audit_group", messageExt);
+
+        MutableSpan payment = spans.get(0);
+        assertEquals("payment/consume", payment.name());
+        assertEquals("msg-1", payment.tag("mq.msg.id"));
+        assertEquals("order-1", payment.tag("mq.keys"));
+        assertNull(payment.tag("mq.queue.id"));
+
+        MutableSpan audit = spans.get(1);
+        assertEquals("MQ/CONSUME", audit.name());
+        assertEquals("3", audit.tag("mq.queue.id"));
+        assertNull(audit.tag("mq.keys"));
+    }
+
+    @Test
+    public void policySamplerDecidesNewTraces() {
+        policies.update(MqPolicy.DEFAULT, Collections.singletonMap("Firehose", MqPolicy.newBuilder().probability(0.0f).build()), Collections.emptyMap());
+        MqTracing mqTracing = MqTracing.newBuilder(tracing)
+                .sampler(MqSampler.newBuilder().topicProbability("Firehose", 1.0f).build())
+                .policies(policies)
+                .build();
+
+        consume(mqTracing, "etl_group", message("Firehose"));
+        assertTrue("策略的采样器优先于MqSampler", spans.isEmpty());
+    }
+
+    @Test
+    public void watcherReloadsChangedFile() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("mq-policy.properties");
+        write(file, "topic.Firehose.enabled=false\n");
+        try (MqPolicyWatcher watcher = MqPolicyWatcher.start(file, policies)) {
+            assertFalse(policies.topics().get("Firehose").enabled());
+
+            write(file, "default.tags=TOPIC,KEYS\ngroup.etl_group.consume-name=etl\n");
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (policies.groups().isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+
+            assertTrue(policies.topics().isEmpty());
+            MqPolicy etl = policies.groups().get("etl_group");
+            assertEquals("etl", etl.consumeName());
+            assertEquals("以默认策略为初始值", EnumSet.of(MqTag.TOPIC, MqTag.KEYS), etl.tags());
+            assertFalse("内容没有变化时不更新", watcher.reload());
+        }
+    }
+
+    @Test
+    public void invalidFileKeepsPreviousPolicies() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("mq-policy.properties");
+        write(file, "topic.Firehose.rate=10\n");
+        try (MqPolicyWatcher watcher = MqPolicyWatcher.start(file, policies)) {
+            MqPolicy firehose = policies.topics().get("Firehose");
+
+            write(file, "topic.Firehose.tags=QUEUE_ID,UNKNOWN\n");
+            try {
+                watcher.reload();
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+            assertSame(firehose, policies.topics().get("Firehose"));
+        }
+    }
+
+    private static void write(Path file, String content) throws Exception {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static MessageExt message(String topic) {
+        MessageExt messageExt = new MessageExt();
+        messageExt.setTopic(topic);
+        return messageExt;
+    }
+
+    private void consume(MqTracing mqTracing, String group, MessageExt message) {
+        List<MessageExt> msgs = new ArrayList<>();
+        msgs.add(message);
+        new TracingMessageListenerConcurrently(mqTracing, group, (MessageListenerConcurrently) (list, context) ->
+                ConsumeConcurrentlyStatus.CONSUME_SUCCESS).consumeMessage(msgs, null);
+    }
+
+}
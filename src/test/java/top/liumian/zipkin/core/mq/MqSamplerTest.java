@@ -0,0 +1,113 @@
+package top.liumian.zipkin.core.mq;
+
+import brave.Tracing;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.junit.Test;
+import top.liumian.zipkin.core.mq.consumer.TracingMessageListenerConcurrently;
+import top.liumian.zipkin.core.mq.producer.TracingProducerProxyFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author liumian  2022/9/17 15:30
+ */
+public class MqSamplerTest extends BaseTracingTest {
+
+    @Test
+    public void topicRuleSamplesNewSendTraces() throws Exception {
+        MqTracing mqTracing = MqTracing.newBuilder(tracing)
+                .sampler(MqSampler.newBuilder().topicProbability("Firehose", 0.0f).build())
+                .build();
+        TracingProxyFactoryTest.StubProducer stub = new TracingProxyFactoryTest.StubProducer();
+        DefaultMQProducer producer = TracingProducerProxyFactory.createTracingProducer(mqTracing, stub);
+
+        Message firehose = new Message("Firehose", new byte[0]);
+        producer.send(firehose);
+        Message payments = new Message("Payments", new byte[0]);
+        producer.send(payments);
+
+        assertEquals("0", firehose.getUserProperty("X-B3-Sampled"));
+        assertEquals("1", payments.getUserProperty("X-B3-Sampled"));
+        assertEquals(1, spans.size());
+        assertEquals("Payments", spans.get(0).tag("mq.topic"));
+    }
+
+    @Test
+    public void groupRuleTakesPrecedenceOverTopicRule() {
+        MqTracing mqTracing = MqTracing.newBuilder(tracing)
+                .sampler(MqSampler.newBuilder().topicProbability("Firehose", 1.0f).groupProbability("etl_group", 0.0f).build())
+                .build();
+
+        consume(mqTracing, "etl_group", message("Firehose"));
+        assertTrue(spans.isEmpty());
+
+        consume(mqTracing, "audit_group", message("Firehose"));
+        assertEquals(1, spans.size());
+    }
+
+    @Test
+    public void upstreamDecisionWins() throws Exception {
+        MqTracing mqTracing = MqTracing.newBuilder(tracing)
+                .sampler(MqSampler.newBuilder().groupProbability("etl_group", 0.0f).build())
+                .build();
+        Message message = new Message("Firehose", new byte[0]);
+        TracingProducerProxyFactory.createTracingProducer(tracing, new TracingProxyFactoryTest.StubProducer()).send(message);
+        spans.clear();
+
+        MessageExt messageExt = message("Firehose");
+        MessageAccessor.setProperties(messageExt, message.getProperties());
+        consume(mqTracing, "etl_group", messageExt);
+
+        assertEquals(1, spans.size());
+        assertEquals(message.getUserProperty("X-B3-SpanId"), spans.get(0).parentId());
+    }
+
+    @Test
+    public void noContextAndNoRuleFallsBackToDefaultSampler() {
+        MqTracing mqTracing = MqTracing.newBuilder(tracing)
+                .sampler(MqSampler.newBuilder().topicProbability("Payments", 0.0f).build())
+                .build();
+
+        consume(mqTracing, "etl_group", message("Firehose"));
+
+        assertEquals(1, spans.size());
+        assertEquals("MQ/CONSUME", spans.get(0).name());
+    }
+
+    @Test
+    public void unsampledTraceSkipsTags() {
+        Tracing unsampled = Tracing.newBuilder().sampler(brave.sampler.Sampler.NEVER_SAMPLE).build();
+        try {
+            top.liumian.zipkin.util.TraceUtil.newTrace(unsampled, "job", span -> {
+                assertTrue(span.isNoop());
+                return null;
+            });
+            assertTrue(spans.isEmpty());
+        } finally {
+            unsampled.close();
+        }
+    }
+
+    private static MessageExt message(String topic) {
+        MessageExt messageExt = new MessageExt();
+        messageExt.setTopic(topic);
+        return messageExt;
+    }
+
+    private void consume(MqTracing mqTracing, String group, MessageExt message) {
+        List<MessageExt> msgs = new ArrayList<>();
+        msgs.add(message);
+        new TracingMessageListenerConcurrently(mqTracing, group, (MessageListenerConcurrently) (list, context) ->
+                ConsumeConcurrentlyStatus.CONSUME_SUCCESS).consumeMessage(msgs, null);
+    }
+
+}
@@ -0,0 +1,131 @@
+package top.liumian.zipkin.core.mq;
+
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import brave.sampler.Sampler;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author liumian  2022/10/1 11:00
+ */
+public class PropagationFormatTest {
+
+    private Tracing tracing = Tracing.newBuilder().localServiceName("tracingTest").build();
+
+    @After
+    public void closeTracing() {
+        tracing.close();
+    }
+
+    @Test
+    public void everyFormatRoundTrips() {
+        TraceContext context = tracing.tracer().nextSpan().context();
+        for (PropagationFormat format : PropagationFormat.values()) {
+            MqTracing mqTracing = MqTracing.newBuilder(tracing).propagationFormat(format).build();
+            Message message = new Message("TopicTest", new byte[0]);
+            mqTracing.messageInjector().inject(context, message);
+
+            TraceContext extracted = mqTracing.messageExtractor().extract(toMessageExt(message)).context();
+            assertEquals(format.name(), context.traceId(), extracted.traceId());
+            assertEquals(format.name(), context.spanId(), extracted.spanId());
+            assertEquals(format.name(), Boolean.TRUE, extracted.sampled());
+        }
+    }
+
+    @Test
+    public void compactFormatsUseOneProperty() {
+        TraceContext context = tracing.tracer().nextSpan().context();
+        int defaultBytes = propertyBytes(PropagationFormat.DEFAULT, context);
+        int b3Bytes = propertyBytes(PropagationFormat.B3_SINGLE, context);
+        int binaryBytes = propertyBytes(PropagationFormat.BINARY, context);
+
+        System.out.printf("property bytes default: %d, b3: %d, binary: %d%n", defaultBytes, b3Bytes, binaryBytes);
+        assertTrue(b3Bytes < defaultBytes);
+        assertTrue(binaryBytes < b3Bytes);
+    }
+
+    @Test
+    public void readsLegacyHeadersWhenWritingCompactFormat() {
+        TraceContext context = tracing.tracer().nextSpan().context();
+        Message message = new Message("TopicTest", new byte[0]);
+        MqTracing.create(tracing).messageInjector().inject(context, message);
+        assertTrue(message.getProperties().containsKey("X-B3-TraceId"));
+
+        MqTracing binary = MqTracing.newBuilder(tracing).propagationFormat(PropagationFormat.BINARY).build();
+        assertEquals(context.spanId(), binary.messageExtractor().extract(toMessageExt(message)).context().spanId());
+    }
+
+    @Test
+    public void binaryKeepsSamplingFlagsAnd128BitIds() {
+        tracing.close();
+        tracing = Tracing.newBuilder().traceId128Bit(true).sampler(Sampler.NEVER_SAMPLE).build();
+        TraceContext context = tracing.tracer().nextSpan().context();
+        TraceContext extracted = CompactPropagation.parseBinary(CompactPropagation.writeBinary(context)).context();
+
+        assertEquals(context.traceIdHigh(), extracted.traceIdHigh());
+        assertEquals(context.traceId(), extracted.traceId());
+        assertEquals(Boolean.FALSE, extracted.sampled());
+
+        TraceContext debug = context.toBuilder().debug(true).build();
+        assertTrue(CompactPropagation.parseBinary(CompactPropagation.writeBinary(debug)).context().debug());
+    }
+
+    @Test
+    public void malformedBinaryFallsBackToOtherFormats() {
+        assertNull(CompactPropagation.parseBinary("not base64!"));
+        assertNull(CompactPropagation.parseBinary("AQ"));
+
+        MessageExt messageExt = new MessageExt();
+        messageExt.putUserProperty(CompactPropagation.BINARY, "garbage");
+        TraceContextOrSamplingFlags extracted = MqTracing.create(tracing).messageExtractor().extract(messageExt);
+        assertNull(extracted.context());
+    }
+
+    @Test
+    public void batchInjectorSharesEncodedValue() {
+        TraceContext context = tracing.tracer().nextSpan().context();
+        MqTracing mqTracing = MqTracing.newBuilder(tracing).propagationFormat(PropagationFormat.BINARY).build();
+        List<Message> messages = new ArrayList<>();
+        messages.add(new Message("TopicTest", new byte[0]));
+        messages.add(new Message("TopicTest", new byte[0]));
+        mqTracing.batchInjector().inject(context, messages);
+
+        String value = messages.get(0).getUserProperty(CompactPropagation.BINARY);
+        assertEquals(24, value.length());
+        assertEquals(value, messages.get(1).getUserProperty(CompactPropagation.BINARY));
+        assertFalse(messages.get(0).getProperties().containsKey("X-B3-TraceId"));
+    }
+
+    /**
+     * 按RocketMQ存储消息时的序列化方式统计链路信息占用的字节数
+     */
+    private int propertyBytes(PropagationFormat format, TraceContext context) {
+        Message message = new Message("TopicTest", new byte[0]);
+        int before = MessageDecoder.messageProperties2String(message.getProperties()).getBytes(StandardCharsets.UTF_8).length;
+        MqTracing.newBuilder(tracing).propagationFormat(format).build().messageInjector().inject(context, message);
+        return MessageDecoder.messageProperties2String(message.getProperties()).getBytes(StandardCharsets.UTF_8).length - before;
+    }
+
+    private static MessageExt toMessageExt(Message message) {
+        MessageExt messageExt = new MessageExt();
+        messageExt.setTopic(message.getTopic());
+        MessageAccessor.setProperties(messageExt, message.getProperties());
+        return messageExt;
+    }
+
+}
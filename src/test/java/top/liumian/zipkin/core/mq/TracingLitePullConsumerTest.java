@@ -0,0 +1,106 @@
+package top.liumian.zipkin.core.mq;
+
+import brave.handler.MutableSpan;
+import org.apache.rocketmq.client.consumer.DefaultLitePullConsumer;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.junit.Test;
+import top.liumian.zipkin.core.mq.consumer.BatchTracingMode;
+import top.liumian.zipkin.core.mq.consumer.TracingLitePullConsumer;
+import top.liumian.zipkin.util.TraceUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author liumian  2022/10/5 11:00
+ */
+public class TracingLitePullConsumerTest extends BaseTracingTest {
+
+    private final List<MessageExt> polled = new ArrayList<>();
+
+    private final DefaultLitePullConsumer consumer = new DefaultLitePullConsumer("etlGroup") {
+        @Override
+        public List<MessageExt> poll() {
+            return polled;
+        }
+    };
+
+    @Test
+    public void pollReturnsTheBatchWithoutTracing() throws Throwable {
+        for (int i = 0; i < 100; i++) {
+            polled.add(producedMessage());
+        }
+        spans.clear();
+
+        TracingLitePullConsumer tracingConsumer = TracingLitePullConsumer.create(tracing, consumer);
+
+        assertSame(polled, tracingConsumer.poll());
+        assertTrue(spans.isEmpty());
+    }
+
+    @Test
+    public void onlyConsumedRecordsAreTraced() throws Throwable {
+        for (int i = 0; i < 10; i++) {
+            polled.add(producedMessage());
+        }
+        spans.clear();
+
+        TracingLitePullConsumer tracingConsumer = TracingLitePullConsumer.create(tracing, consumer);
+        List<MessageExt> msgs = tracingConsumer.poll();
+        MessageExt msg = msgs.get(3);
+        String result = tracingConsumer.consume(msg, span -> tracing.currentTraceContext().get().traceIdString());
+
+        assertEquals(1, spans.size());
+        MutableSpan span = spans.get(0);
+        assertEquals("MQ/CONSUME", span.name());
+        assertEquals(msg.getUserProperty("X-B3-TraceId"), span.traceId());
+        assertEquals(msg.getUserProperty("X-B3-SpanId"), span.parentId());
+        assertEquals(span.traceId(), result);
+    }
+
+    @Test
+    public void forEachStartsOneSpanPerRecord() throws Throwable {
+        for (int i = 0; i < 3; i++) {
+            polled.add(producedMessage());
+        }
+        spans.clear();
+
+        List<MessageExt> handled = new ArrayList<>();
+        TracingLitePullConsumer.create(tracing, consumer).forEach(consumer.poll(), handled::add);
+
+        assertEquals(polled, handled);
+        assertEquals(3, spans.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(polled.get(i).getUserProperty("X-B3-SpanId"), spans.get(i).parentId());
+        }
+    }
+
+    @Test
+    public void consumeBatchFollowsBatchTracingMode() throws Throwable {
+        for (int i = 0; i < 3; i++) {
+            polled.add(producedMessage());
+        }
+        spans.clear();
+
+        MqTracing mqTracing = MqTracing.newBuilder(tracing).batchTracingMode(BatchTracingMode.CHILD_PER_MESSAGE).build();
+        TracingLitePullConsumer.create(mqTracing, consumer).consumeBatch(consumer.poll(), span -> null);
+
+        assertEquals("每条消息一个子span，外加批量消费span", 4, spans.size());
+    }
+
+    private MessageExt producedMessage() throws Throwable {
+        Message message = new Message("TopicTest", "TagA", new byte[0]);
+        TraceUtil.injectTraceInfo(tracing, "MQ/SEND", MqTracing.create(tracing).messageInjector(), message, span -> null);
+        MessageExt messageExt = new MessageExt();
+        messageExt.setTopic(message.getTopic());
+        MessageAccessor.setProperties(messageExt, message.getProperties());
+        return messageExt;
+    }
+
+}
@@ -0,0 +1,137 @@
+package top.liumian.zipkin.core.mq;
+
+import brave.handler.MutableSpan;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerOrderly;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.junit.Test;
+import top.liumian.zipkin.core.mq.consumer.BatchTracingMode;
+import top.liumian.zipkin.core.mq.consumer.TracingMessageListenerConcurrently;
+import top.liumian.zipkin.core.mq.consumer.TracingMessageListenerOrderly;
+import top.liumian.zipkin.util.TraceUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author liumian  2022/8/27 11:15
+ */
+public class TracingMessageListenerTest extends BaseTracingTest {
+
+    @Test
+    public void singleMessageContinuesUpstreamTrace() throws Throwable {
+        MessageExt message = producedMessage();
+        spans.clear();
+
+        List<MessageExt> msgs = singletonList(message);
+        List<List<MessageExt>> received = new ArrayList<>();
+        new TracingMessageListenerConcurrently(tracing, (MessageListenerConcurrently) (list, context) -> {
+            received.add(list);
+            return ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
+        }).consumeMessage(msgs, null);
+
+        assertSame(msgs, received.get(0));
+        assertEquals(1, spans.size());
+        assertEquals(message.getUserProperty("X-B3-TraceId"), spans.get(0).traceId());
+        assertEquals(message.getUserProperty("X-B3-SpanId"), spans.get(0).parentId());
+    }
+
+    @Test
+    public void batchReachesListenerUnchangedWithOneLinkedSpan() throws Throwable {
+        List<MessageExt> msgs = new ArrayList<>();
+        msgs.add(producedMessage());
+        msgs.add(producedMessage());
+        msgs.add(producedMessage());
+        spans.clear();
+
+        List<List<MessageExt>> received = new ArrayList<>();
+        new TracingMessageListenerConcurrently(tracing, (MessageListenerConcurrently) (list, context) -> {
+            received.add(list);
+            return ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
+        }).consumeMessage(msgs, null);
+
+        assertSame(msgs, received.get(0));
+        assertEquals(1, spans.size());
+        MutableSpan span = spans.get(0);
+        assertEquals(msgs.get(0).getUserProperty("X-B3-SpanId"), span.parentId());
+        assertEquals("3", span.tag("mq.batch.size"));
+        assertEquals(link(msgs.get(1)) + "," + link(msgs.get(2)), span.tag("mq.links"));
+    }
+
+    @Test
+    public void batchCreatesChildPerMessage() throws Throwable {
+        List<MessageExt> msgs = new ArrayList<>();
+        msgs.add(producedMessage());
+        msgs.add(new MessageExt());
+        spans.clear();
+
+        MqTracing mqTracing = MqTracing.newBuilder(tracing).batchTracingMode(BatchTracingMode.CHILD_PER_MESSAGE).build();
+        new TracingMessageListenerOrderly(mqTracing, (MessageListenerOrderly) (list, context) -> ConsumeOrderlyStatus.SUCCESS)
+                .consumeMessage(msgs, null);
+
+        assertEquals(3, spans.size());
+        MutableSpan batchSpan = spans.get(0);
+        assertNull(batchSpan.tag("mq.links"));
+        MutableSpan upstreamChild = spans.get(1);
+        assertEquals(msgs.get(0).getUserProperty("X-B3-SpanId"), upstreamChild.parentId());
+        assertEquals(batchSpan.id(), upstreamChild.tag("mq.batch.id"));
+        MutableSpan orphanChild = spans.get(2);
+        assertEquals(batchSpan.id(), orphanChild.parentId());
+    }
+
+    @Test
+    public void consumeSpanRecordsBrokerQueueTime() throws Throwable {
+        MessageExt message = producedMessage();
+        long now = System.currentTimeMillis();
+        message.setBornTimestamp(now - 300);
+        message.setStoreTimestamp(now - 200);
+        message.setQueueId(3);
+        message.setReconsumeTimes(2);
+        spans.clear();
+
+        MqTracing mqTracing = MqTracing.newBuilder(tracing).queueSpan(true).build();
+        new TracingMessageListenerConcurrently(mqTracing, (MessageListenerConcurrently) (list, context) -> ConsumeConcurrentlyStatus.CONSUME_SUCCESS)
+                .consumeMessage(singletonList(message), null);
+
+        assertEquals(2, spans.size());
+        MutableSpan queued = spans.get(0);
+        MutableSpan consume = spans.get(1);
+        assertEquals("3", consume.tag("mq.queue.id"));
+        assertEquals("2", consume.tag("mq.reconsume.times"));
+        assertEquals("100", consume.tag("mq.store.latency"));
+        assertTrue(Long.parseLong(consume.tag("mq.consume.lag")) >= 200);
+        assertEquals("MQ/QUEUED", queued.name());
+        assertEquals(consume.id(), queued.parentId());
+        assertEquals((now - 200) * 1000, queued.startTimestamp());
+        assertTrue(queued.finishTimestamp() <= consume.startTimestamp() + 1000);
+    }
+
+    private MessageExt producedMessage() throws Throwable {
+        Message message = new Message("TopicTest", "TagA", new byte[0]);
+        TraceUtil.injectTraceInfo(tracing, "MQ/SEND", MqTracing.create(tracing).messageInjector(), message, span -> null);
+        MessageExt messageExt = new MessageExt();
+        messageExt.setTopic(message.getTopic());
+        MessageAccessor.setProperties(messageExt, message.getProperties());
+        return messageExt;
+    }
+
+    private static String link(MessageExt message) {
+        return message.getUserProperty("X-B3-TraceId") + "-" + message.getUserProperty("X-B3-SpanId");
+    }
+
+    private static List<MessageExt> singletonList(MessageExt message) {
+        List<MessageExt> msgs = new ArrayList<>();
+        msgs.add(message);
+        return msgs;
+    }
+
+}
@@ -0,0 +1,102 @@
+package top.liumian.zipkin.core.mq;
+
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.RequestCallback;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.common.message.Message;
+import org.junit.Test;
+import top.liumian.zipkin.core.mq.producer.TracingProducerProxyFactory;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author liumian  2022/9/3 15:02
+ */
+public class TracingProducerCallbackTest extends BaseTracingTest {
+
+    @Test
+    public void sendSpanFinishesOnSuccessCallback() throws Exception {
+        AsyncStubProducer stub = new AsyncStubProducer();
+        DefaultMQProducer producer = TracingProducerProxyFactory.createTracingProducer(tracing, stub);
+        SendResult[] received = new SendResult[1];
+
+        producer.send(new Message("TopicTest", new byte[0]), new SendCallback() {
+            @Override
+            public void onSuccess(SendResult sendResult) {
+                received[0] = sendResult;
+            }
+
+            @Override
+            public void onException(Throwable e) {
+            }
+        });
+
+        assertTrue("回调触发前发送span不应结束", spans.isEmpty());
+        SendResult sendResult = new SendResult();
+        stub.sendCallback.onSuccess(sendResult);
+
+        assertSame(sendResult, received[0]);
+        assertEquals(1, spans.size());
+        assertEquals("TopicTest", spans.get(0).tag("mq.topic"));
+    }
+
+    @Test
+    public void requestSpanRecordsCallbackException() throws Exception {
+        AsyncStubProducer stub = new AsyncStubProducer();
+        DefaultMQProducer producer = TracingProducerProxyFactory.createTracingProducer(tracing, stub);
+        Throwable[] received = new Throwable[1];
+
+        producer.request(new Message("TopicTest", new byte[0]), new RequestCallback() {
+            @Override
+            public void onSuccess(Message message) {
+            }
+
+            @Override
+            public void onException(Throwable e) {
+                received[0] = e;
+            }
+        }, 3000L);
+
+        assertTrue(spans.isEmpty());
+        IllegalStateException error = new IllegalStateException("broker busy");
+        stub.requestCallback.onException(error);
+
+        assertSame(error, received[0]);
+        assertEquals(1, spans.size());
+        assertSame(error, spans.get(0).error());
+        assertNotNull(stub.requested.getUserProperty("X-B3-TraceId"));
+    }
+
+    /**
+     * 不访问网络的生产者，保存异步回调以便测试中手动触发
+     */
+    public static class AsyncStubProducer extends DefaultMQProducer {
+
+        SendCallback sendCallback;
+
+        RequestCallback requestCallback;
+
+        Message requested;
+
+        public AsyncStubProducer() {
+            super("stub_producer_group");
+        }
+
+        @Override
+        public void send(Message msg, SendCallback sendCallback) {
+            this.sendCallback = sendCallback;
+        }
+
+        @Override
+        public void request(Message msg, RequestCallback requestCallback, long timeout) {
+            this.requested = msg;
+            this.requestCallback = requestCallback;
+        }
+    }
+
+}
@@ -0,0 +1,209 @@
+package top.liumian.zipkin.core.mq;
+
+import net.sf.cglib.proxy.Factory;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerOrderly;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.client.producer.SendStatus;
+import org.apache.rocketmq.common.ServiceState;
+import org.apache.rocketmq.common.message.Message;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import top.liumian.zipkin.core.mq.consumer.TracingConsumerProxyFactory;
+import top.liumian.zipkin.core.mq.consumer.TracingMessageListenerOrderly;
+import top.liumian.zipkin.core.mq.producer.TracingProducerProxyFactory;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author liumian  2022/8/21 15:40
+ */
+public class TracingProxyFactoryTest extends BaseTracingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sendMethodsAreTraced() throws Exception {
+        StubProducer stub = new StubProducer();
+        DefaultMQProducer producer = TracingProducerProxyFactory.createTracingProducer(tracing, stub);
+
+        Message message = new Message("TopicTest", "TagA", new byte[0]);
+        producer.send(message);
+        producer.send(Arrays.asList(new Message("TopicTest", new byte[0]), new Message("TopicTest", new byte[0])));
+
+        assertEquals(3, stub.sent.size());
+        for (Message sent : stub.sent) {
+            assertNotNull(sent.getUserProperty("X-B3-TraceId"));
+        }
+    }
+
+    @Test
+    public void otherMethodsPassThroughToInstance() {
+        StubProducer stub = new StubProducer();
+        DefaultMQProducer producer = TracingProducerProxyFactory.createTracingProducer(tracing, stub);
+
+        producer.setProducerGroup("pass_through_group");
+
+        assertEquals("pass_through_group", stub.getProducerGroup());
+        assertEquals("pass_through_group", producer.getProducerGroup());
+    }
+
+    @Test
+    public void proxyClassIsReusedPerTargetClass() {
+        DefaultMQProducer first = TracingProducerProxyFactory.createTracingProducer(tracing, new StubProducer());
+        DefaultMQProducer second = TracingProducerProxyFactory.createTracingProducer(tracing, new StubProducer());
+
+        assertSame(first.getClass(), second.getClass());
+        assertEquals(StubProducer.class.getName() + "$$TracingProducer", first.getClass().getName());
+    }
+
+    @Test
+    public void proxyCacheDoesNotRetainTargets() throws Exception {
+        WeakReference<DefaultMQProducer> target = new WeakReference<>(new StubProducer());
+        TracingProducerProxyFactory.createTracingProducer(tracing, target.get());
+        WeakReference<ClassLoader> classLoader = new WeakReference<>(
+                TracingProducerProxyFactory.createTracingProducer(tracing, newIsolatedStubProducer(folder.newFolder().toPath())).getClass().getClassLoader());
+
+        for (int i = 0; i < 50 && (target.get() != null || classLoader.get() != null); i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("第一个被代理对象不应被缓存", target.get());
+        assertNull("目标类的类加载器应可以被回收", classLoader.get());
+    }
+
+    @Test
+    public void pregeneratedProxyClassIsLoadedInsteadOfGenerated() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        ProxyClassGenerator.generate(isolatedStubProducer(directory), directory);
+
+        DefaultMQProducer producer = TracingProducerProxyFactory.createTracingProducer(tracing, newIsolatedStubProducer(directory));
+
+        assertEquals(directory.toUri().toURL(), producer.getClass().getProtectionDomain().getCodeSource().getLocation());
+        Message message = new Message("TopicTest", "TagA", new byte[0]);
+        producer.send(message);
+        assertNotNull(message.getUserProperty("X-B3-TraceId"));
+    }
+
+    @Test
+    public void staleProxyClassIsGeneratedAtRuntime() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        String name = ProxyClassGenerator.generate(isolatedStubProducer(directory), directory);
+        Files.write(directory.resolve(name.replace('.', '/') + ".fingerprint"), "0-0".getBytes());
+
+        DefaultMQProducer producer = TracingProducerProxyFactory.createTracingProducer(tracing, newIsolatedStubProducer(directory));
+
+        assertEquals(name, producer.getClass().getName());
+        assertNotEquals(directory.toUri().toURL(), producer.getClass().getProtectionDomain().getCodeSource().getLocation());
+    }
+
+    /**
+     * 在只属于本次测试的类加载器中加载StubProducer，预生成的代理类与之位于同一个类加载器
+     */
+    private static Class<? extends DefaultMQProducer> isolatedStubProducer(Path directory) throws Exception {
+        URL testClasses = StubProducer.class.getProtectionDomain().getCodeSource().getLocation();
+        String stubName = StubProducer.class.getName();
+        ClassLoader classLoader = new URLClassLoader(new URL[]{directory.toUri().toURL(), testClasses}, TracingProxyFactoryTest.class.getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                if (!name.startsWith(stubName)) {
+                    return super.loadClass(name, resolve);
+                }
+                synchronized (getClassLoadingLock(name)) {
+                    Class<?> loaded = findLoadedClass(name);
+                    return loaded != null ? loaded : findClass(name);
+                }
+            }
+        };
+        return Class.forName(stubName, true, classLoader).asSubclass(DefaultMQProducer.class);
+    }
+
+    private static DefaultMQProducer newIsolatedStubProducer(Path directory) throws Exception {
+        return isolatedStubProducer(directory).getDeclaredConstructor().newInstance();
+    }
+
+    @Test
+    public void orderlyListenerIsWrapped() {
+        DefaultMQPushConsumer instance = new DefaultMQPushConsumer("orderly_group");
+        DefaultMQPushConsumer consumer = TracingConsumerProxyFactory.createTracingConsumer(tracing, instance);
+
+        consumer.registerMessageListener((MessageListenerOrderly) (msgs, context) -> ConsumeOrderlyStatus.SUCCESS);
+
+        assertTrue(instance.getMessageListener() instanceof TracingMessageListenerOrderly);
+    }
+
+    @Test
+    public void listenerRegisteredBeforeProxyingIsWrapped() {
+        DefaultMQPushConsumer instance = new DefaultMQPushConsumer("early_group");
+        instance.registerMessageListener((MessageListenerOrderly) (msgs, context) -> ConsumeOrderlyStatus.SUCCESS);
+
+        DefaultMQPushConsumer consumer = TracingConsumerProxyFactory.createTracingConsumer(tracing, instance);
+
+        assertTrue(consumer instanceof Factory);
+        assertTrue(instance.getMessageListener() instanceof TracingMessageListenerOrderly);
+        assertTrue(instance.getDefaultMQPushConsumerImpl().getMessageListenerInner() instanceof TracingMessageListenerOrderly);
+    }
+
+    @Test
+    public void startedConsumerFallsBackToHook() {
+        DefaultMQPushConsumer instance = new DefaultMQPushConsumer("started_group");
+        instance.registerMessageListener((MessageListenerOrderly) (msgs, context) -> ConsumeOrderlyStatus.SUCCESS);
+        instance.getDefaultMQPushConsumerImpl().setServiceState(ServiceState.RUNNING);
+
+        DefaultMQPushConsumer consumer = TracingConsumerProxyFactory.createTracingConsumer(tracing, instance);
+
+        assertSame(instance, consumer);
+        assertTrue(instance.getDefaultMQPushConsumerImpl().hasHook());
+    }
+
+    /**
+     * 不访问网络的生产者，记录发送的消息
+     */
+    public static class StubProducer extends DefaultMQProducer {
+
+        final List<Message> sent = new ArrayList<>();
+
+        public StubProducer() {
+            super("stub_producer_group");
+        }
+
+        @Override
+        public SendResult send(Message msg) {
+            sent.add(msg);
+            return sendResult();
+        }
+
+        @Override
+        public SendResult send(Collection<Message> msgs) {
+            sent.addAll(msgs);
+            return sendResult();
+        }
+
+        private static SendResult sendResult() {
+            SendResult sendResult = new SendResult();
+            sendResult.setSendStatus(SendStatus.SEND_OK);
+            return sendResult;
+        }
+    }
+
+}
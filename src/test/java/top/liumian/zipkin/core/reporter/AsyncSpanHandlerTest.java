@@ -0,0 +1,106 @@
+package top.liumian.zipkin.core.reporter;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author liumian  2022/9/10 16:25
+ */
+public class AsyncSpanHandlerTest {
+
+    @Test
+    public void batchesSpansWithinMessageMaxBytes() {
+        RecordingSender sender = new RecordingSender(100);
+        try (AsyncSpanHandler handler = AsyncSpanHandler.newBuilder(sender).messageTimeout(1, TimeUnit.HOURS).build()) {
+            for (int i = 0; i < 10; i++) {
+                handler.offer(span(30));
+            }
+            handler.flush();
+            handler.flush();
+            handler.flush();
+            handler.flush();
+
+            assertEquals(10, sender.sentSpans());
+            for (List<byte[]> message : sender.messages) {
+                assertTrue(sender.messageSizeInBytes(message) <= 100);
+            }
+            assertEquals(0, handler.queuedSpans());
+        }
+    }
+
+    @Test
+    public void dropNewestKeepsQueuedSpans() {
+        RecordingSender sender = new RecordingSender(1024);
+        try (AsyncSpanHandler handler = AsyncSpanHandler.newBuilder(sender).queuedMaxSpans(2).messageTimeout(1, TimeUnit.HOURS).build()) {
+            byte[] first = span(10);
+            assertTrue(handler.offer(first));
+            assertTrue(handler.offer(span(10)));
+            assertFalse(handler.offer(span(10)));
+
+            handler.flush();
+            assertEquals(1, handler.droppedSpans());
+            assertEquals(first, sender.messages.get(0).get(0));
+        }
+    }
+
+    @Test
+    public void dropOldestMakesRoomForNewSpans() {
+        RecordingSender sender = new RecordingSender(1024);
+        try (AsyncSpanHandler handler = AsyncSpanHandler.newBuilder(sender).queuedMaxBytes(20).dropPolicy(DropPolicy.DROP_OLDEST)
+                .messageTimeout(1, TimeUnit.HOURS).build()) {
+            handler.offer(span(10));
+            byte[] second = span(10);
+            handler.offer(second);
+            byte[] third = span(10);
+            assertTrue(handler.offer(third));
+
+            handler.flush();
+            assertEquals(1, handler.droppedSpans());
+            assertEquals(second, sender.messages.get(0).get(0));
+            assertEquals(third, sender.messages.get(0).get(1));
+        }
+    }
+
+    @Test
+    public void sendFailureCountsDroppedSpans() {
+        RecordingSender sender = new RecordingSender(1024);
+        sender.failing = true;
+        try (AsyncSpanHandler handler = AsyncSpanHandler.newBuilder(sender).messageTimeout(1, TimeUnit.HOURS).build()) {
+            handler.offer(span(10));
+            handler.offer(span(10));
+            handler.flush();
+
+            assertEquals(2, handler.droppedSpans());
+            assertEquals(0, handler.sentSpans());
+        }
+    }
+
+    @Test
+    public void flushesOnMessageTimeout() throws InterruptedException {
+        RecordingSender sender = new RecordingSender(1024);
+        try (AsyncSpanHandler handler = AsyncSpanHandler.newBuilder(sender).messageTimeout(50, TimeUnit.MILLISECONDS).build()) {
+            handler.offer(span(10));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (sender.sentSpans() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, sender.sentSpans());
+        }
+    }
+
+    static byte[] span(int size) {
+        StringBuilder json = new StringBuilder("{\"id\":\"");
+        while (json.length() < size - 2) {
+            json.append('a');
+        }
+        return json.append("\"}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,162 @@
+package top.liumian.zipkin.core.reporter;
+
+import brave.Span;
+import brave.Tracing;
+import brave.propagation.B3Propagation;
+import brave.sampler.Sampler;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author liumian  2022/10/11 14:00
+ */
+public class BackPressureSamplerTest {
+
+    private final FakeBacklog backlog = new FakeBacklog();
+
+    private final BackPressureSampler sampler = BackPressureSampler.newBuilder(Sampler.ALWAYS_SAMPLE, backlog)
+            .checkInterval(0, TimeUnit.NANOSECONDS)
+            .build();
+
+    @Test
+    public void shedsNewTracesAboveHighWatermark() {
+        backlog.ratio = 0.7;
+        assertTrue(sampler.isSampled(1L));
+        assertEquals(BackPressureSampler.State.CLOSED, sampler.state());
+
+        backlog.ratio = 0.8;
+        for (long traceId = 0; traceId < 100; traceId++) {
+            assertFalse(sampler.isSampled(traceId));
+        }
+        assertEquals(BackPressureSampler.State.OPEN, sampler.state());
+        assertEquals(100, sampler.shedTraces());
+        assertEquals(1, sampler.trips());
+    }
+
+    @Test
+    public void newDropsTripImmediately() {
+        backlog.dropped = 3;
+        assertFalse(sampler.isSampled(1L));
+        assertEquals(BackPressureSampler.State.OPEN, sampler.state());
+    }
+
+    @Test
+    public void recoversGraduallyBelowLowWatermark() {
+        backlog.ratio = 0.9;
+        sampler.isSampled(1L);
+
+        backlog.ratio = 0.6;
+        sampler.isSampled(1L);
+        assertEquals("两个水位之间保持不变", BackPressureSampler.State.OPEN, sampler.state());
+
+        backlog.ratio = 0.1;
+        sampler.isSampled(1L);
+        assertEquals(1.0 / 64, sampler.admissionRate(), 0.0);
+        sampler.isSampled(1L);
+        assertEquals(1.0 / 32, sampler.admissionRate(), 0.0);
+
+        backlog.ratio = 0.95;
+        sampler.isSampled(1L);
+        assertEquals("恢复中再次过载时重新停止", BackPressureSampler.State.OPEN, sampler.state());
+        assertEquals(2, sampler.trips());
+
+        backlog.ratio = 0;
+        for (int i = 0; i < 7; i++) {
+            sampler.isSampled(1L);
+        }
+        assertEquals(BackPressureSampler.State.CLOSED, sampler.state());
+        assertEquals(1.0, sampler.admissionRate(), 0.0);
+    }
+
+    @Test
+    public void recoveringAdmitsAFractionOfTraces() {
+        backlog.ratio = 1;
+        sampler.isSampled(1L);
+        backlog.ratio = 0;
+        sampler.isSampled(1L);
+        backlog.ratio = 0.6;
+
+        int admitted = 0;
+        for (long traceId = 0; traceId < BackPressureSampler.ADMIT_ALL; traceId++) {
+            if (sampler.isSampled(traceId)) {
+                admitted++;
+            }
+        }
+        assertEquals(BackPressureSampler.MIN_ADMISSION, admitted);
+        assertEquals(BackPressureSampler.ADMIT_ALL - BackPressureSampler.MIN_ADMISSION + 1, sampler.shedTraces());
+    }
+
+    @Test
+    public void tracesRejectedByDelegateAreNotCountedAsShed() {
+        BackPressureSampler never = BackPressureSampler.newBuilder(Sampler.NEVER_SAMPLE, backlog)
+                .checkInterval(0, TimeUnit.NANOSECONDS)
+                .build();
+        backlog.ratio = 1;
+        assertFalse(never.isSampled(1L));
+        assertEquals(0, never.shedTraces());
+    }
+
+    @Test
+    public void readsAsyncSpanHandlerQueue() {
+        RecordingSender sender = new RecordingSender(1024);
+        try (AsyncSpanHandler handler = AsyncSpanHandler.newBuilder(sender).queuedMaxSpans(10).messageTimeout(1, TimeUnit.HOURS).build()) {
+            BackPressureSampler sampler = BackPressureSampler.newBuilder(Sampler.ALWAYS_SAMPLE, handler)
+                    .checkInterval(0, TimeUnit.NANOSECONDS)
+                    .build();
+            for (int i = 0; i < 9; i++) {
+                handler.offer(new byte[10]);
+            }
+            assertEquals(0.9, handler.backlogRatio(), 0.001);
+            assertFalse(sampler.isSampled(1L));
+
+            handler.flush();
+            sampler.isSampled(1L);
+            assertEquals(BackPressureSampler.State.RECOVERING, sampler.state());
+        }
+    }
+
+    @Test
+    public void skipsLocalRecordingWhenOpen() {
+        try (Tracing tracing = Tracing.newBuilder()
+                .sampler(sampler)
+                .alwaysSampleLocal()
+                .propagationFactory(sampler.skipLocalRecordingWhenOpen(B3Propagation.FACTORY))
+                .build()) {
+            Span recorded = tracing.tracer().newTrace();
+            assertFalse(recorded.isNoop());
+            assertTrue(recorded.context().sampled());
+
+            backlog.ratio = 1;
+            Span shed = tracing.tracer().newTrace();
+            assertTrue("停止采样期间alwaysSampleLocal也不再记录", shed.isNoop());
+            assertTrue(tracing.tracer().newChild(recorded.context().toBuilder().sampled(false).build()).isNoop());
+
+            backlog.ratio = 0;
+            Span recovering = tracing.tracer().newTrace();
+            assertFalse("恢复中未准入的链路仍在本地记录", recovering.isNoop());
+        }
+    }
+
+    private static final class FakeBacklog implements ExportBacklog {
+
+        volatile double ratio;
+
+        volatile long dropped;
+
+        @Override
+        public double backlogRatio() {
+            return ratio;
+        }
+
+        @Override
+        public long droppedSpans() {
+            return dropped;
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+package top.liumian.zipkin.core.reporter;
+
+import brave.handler.MutableSpan;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesDecoder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author liumian  2022/10/12 18:30
+ */
+public class FileSpanSenderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void appendsCompressedMessages() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("spans.bin");
+        try (FileSpanSender sender = FileSpanSender.newBuilder(file)
+                .encoding(Encoding.PROTO3)
+                .compression(Compression.ZSTD)
+                .build()) {
+            sender.sendSpans(encode(0, 3)).execute();
+            sender.sendSpans(encode(3, 5)).execute();
+        }
+
+        List<byte[]> messages = FileSpanSender.readMessages(file);
+        assertEquals(2, messages.size());
+        assertEquals(names(0, 3), names(SpanBytesDecoder.PROTO3.decodeList(messages.get(0))));
+        assertEquals(names(3, 5), names(SpanBytesDecoder.PROTO3.decodeList(messages.get(1))));
+    }
+
+    @Test
+    public void ignoresTruncatedLastRecord() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("spans.bin");
+        try (FileSpanSender sender = FileSpanSender.newBuilder(file).encoding(Encoding.PROTO3).compression(Compression.GZIP).build()) {
+            sender.sendSpans(encode(0, 2)).execute();
+        }
+        Files.write(file, new byte[]{0, 0, 1, 0, 1, 42}, StandardOpenOption.APPEND);
+
+        assertEquals(1, FileSpanSender.readMessages(file).size());
+    }
+
+    @Test
+    public void rollsOverWhenFileIsFull() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("spans.bin");
+        try (FileSpanSender sender = FileSpanSender.newBuilder(file).encoding(Encoding.PROTO3).maxFileBytes(400).build()) {
+            for (int i = 0; i < 10; i++) {
+                sender.sendSpans(encode(i, i + 1)).execute();
+            }
+        }
+
+        assertTrue(Files.size(file) <= 400);
+        List<byte[]> messages = new ArrayList<>(FileSpanSender.readMessages(file.resolveSibling("spans.bin.1")));
+        messages.addAll(FileSpanSender.readMessages(file));
+        List<String> names = new ArrayList<>();
+        for (byte[] message : messages) {
+            names.addAll(names(SpanBytesDecoder.PROTO3.decodeList(message)));
+        }
+        assertEquals("只保留最近的两个文件", names(10 - names.size(), 10), names);
+    }
+
+    @Test
+    public void rejectsFileInUse() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("spans.bin");
+        try (FileSpanSender first = FileSpanSender.newBuilder(file).encoding(Encoding.PROTO3).build();
+             FileSpanSender second = FileSpanSender.newBuilder(file).encoding(Encoding.PROTO3).build()) {
+            first.sendSpans(encode(0, 1)).execute();
+            try {
+                second.sendSpans(encode(1, 2)).execute();
+                fail("同一文件不能被两个sender写入");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("正在被其他sender写入"));
+            }
+        }
+
+        assertEquals(1, FileSpanSender.readMessages(file).size());
+    }
+
+    private static List<byte[]> encode(int from, int to) {
+        List<byte[]> spans = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            MutableSpan span = SpanEncoderTest.span();
+            span.name("span-" + i);
+            spans.add(SpanEncoder.PROTO3.encode(span));
+        }
+        return spans;
+    }
+
+    private static List<String> names(int from, int to) {
+        List<String> names = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            names.add("span-" + i);
+        }
+        return names;
+    }
+
+    private static List<String> names(List<Span> spans) {
+        String[] names = new String[spans.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = spans.get(i).name();
+        }
+        return Arrays.asList(names);
+    }
+
+}
@@ -0,0 +1,116 @@
+package top.liumian.zipkin.core.reporter;
+
+import brave.Tracing;
+import org.junit.After;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author liumian  2022/10/12 18:00
+ */
+public class HttpSpanSenderTest {
+
+    private static final int SPANS = 50;
+
+    private final StandInCollector collector = new StandInCollector();
+
+    public HttpSpanSenderTest() throws IOException {
+    }
+
+    @After
+    public void closeCollector() {
+        collector.close();
+    }
+
+    @Test
+    public void exportsEveryEncodingAndCompression() {
+        for (Encoding encoding : Encoding.values()) {
+            Map<Compression, Integer> wireBytes = new EnumMap<>(Compression.class);
+            for (Compression compression : Compression.values()) {
+                collector.spans.clear();
+                collector.requests.clear();
+                HttpSpanSender sender = HttpSpanSender.newBuilder(collector.endpoint(encoding))
+                        .encoding(encoding)
+                        .compression(compression)
+                        .messageMaxBytes(4096)
+                        .build();
+                AsyncSpanHandler handler = export(sender);
+                String name = encoding + "/" + compression;
+
+                assertEquals(name, SPANS, collector.spans.size());
+                assertEquals(name, 0, handler.droppedSpans());
+                assertTrue(name + " 按messageMaxBytes分批", collector.requests.size() > 1);
+                Set<String> spanNames = new HashSet<>();
+                for (Span span : collector.spans) {
+                    spanNames.add(span.name());
+                    assertEquals("http-test", span.localServiceName());
+                }
+                assertEquals(name, SPANS, spanNames.size());
+
+                int bytes = 0;
+                for (StandInCollector.Request request : collector.requests) {
+                    assertEquals(HttpSpanSender.contentType(encoding), request.contentType);
+                    assertEquals(compression.contentEncoding(), request.contentEncoding);
+                    bytes += request.bodyBytes;
+                }
+                wireBytes.put(compression, bytes);
+            }
+            assertTrue(encoding + " gzip", wireBytes.get(Compression.GZIP) < wireBytes.get(Compression.NONE));
+            assertTrue(encoding + " zstd", wireBytes.get(Compression.ZSTD) < wireBytes.get(Compression.NONE));
+        }
+    }
+
+    @Test
+    public void rejectedPostsCountAsDropped() {
+        collector.status = 503;
+        HttpSpanSender sender = HttpSpanSender.newBuilder(collector.endpoint()).build();
+        AsyncSpanHandler handler = export(sender);
+
+        assertTrue(collector.spans.isEmpty());
+        assertEquals(SPANS, handler.droppedSpans());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation") // 验证thrift编码的上报地址
+    public void thriftIsRejectedOnV2Endpoint() {
+        HttpSpanSender sender = HttpSpanSender.newBuilder(collector.endpoint(Encoding.JSON)).encoding(Encoding.THRIFT).build();
+        AsyncSpanHandler handler = export(sender);
+
+        assertTrue(collector.spans.isEmpty());
+        assertEquals(SPANS, handler.droppedSpans());
+    }
+
+    /**
+     * 通过 {@link AsyncSpanHandler} 上报 {@link #SPANS} 个span并全部发送
+     */
+    private static AsyncSpanHandler export(HttpSpanSender sender) {
+        AsyncSpanHandler handler = AsyncSpanHandler.newBuilder(sender).messageTimeout(1, TimeUnit.HOURS).build();
+        try (Tracing tracing = Tracing.newBuilder().localServiceName("http-test").addSpanHandler(handler).build()) {
+            for (int i = 0; i < SPANS; i++) {
+                tracing.tracer().nextSpan().name("span-" + i)
+                        .tag("mq.topic", "order-event")
+                        .tag("mq.queue.id", String.valueOf(i % 4))
+                        .start().finish();
+            }
+            while (handler.queuedSpans() > 0) {
+                handler.flush();
+            }
+            handler.flush();
+        } finally {
+            handler.close();
+        }
+        return handler;
+    }
+
+}
@@ -0,0 +1,67 @@
+package top.liumian.zipkin.core.reporter;
+
+import zipkin2.Call;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.Sender;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 记录发送内容的sender，不访问网络
+ *
+ * @author liumian  2022/9/10 16:10
+ */
+public class RecordingSender extends Sender {
+
+    final List<List<byte[]>> messages = new CopyOnWriteArrayList<>();
+
+    private final int messageMaxBytes;
+
+    private final Encoding encoding;
+
+    volatile boolean failing;
+
+    public RecordingSender(int messageMaxBytes) {
+        this(messageMaxBytes, Encoding.JSON);
+    }
+
+    public RecordingSender(int messageMaxBytes, Encoding encoding) {
+        this.messageMaxBytes = messageMaxBytes;
+        this.encoding = encoding;
+    }
+
+    @Override
+    public Encoding encoding() {
+        return encoding;
+    }
+
+    @Override
+    public int messageMaxBytes() {
+        return messageMaxBytes;
+    }
+
+    @Override
+    public int messageSizeInBytes(List<byte[]> encodedSpans) {
+        return encoding().listSizeInBytes(encodedSpans);
+    }
+
+    @Override
+    public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+        if (failing) {
+            throw new IllegalStateException("collector down");
+        }
+        messages.add(new ArrayList<>(encodedSpans));
+        return Call.create(null);
+    }
+
+    int sentSpans() {
+        int count = 0;
+        for (List<byte[]> message : messages) {
+            count += message.size();
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,135 @@
+package top.liumian.zipkin.core.reporter;
+
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.reporter.BytesMessageEncoder;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author liumian  2022/10/12 17:00
+ */
+public class SpanEncoderTest {
+
+    @Test
+    public void proto3MatchesZipkinEncoder() {
+        MutableSpan span = span();
+        assertArrayEquals(SpanBytesEncoder.PROTO3.encode(ZipkinSpans.convert(span)), SpanEncoder.PROTO3.encode(span));
+    }
+
+    @Test
+    public void proto3HandlesLongAndNonAsciiStrings() {
+        MutableSpan span = span();
+        StringBuilder name = new StringBuilder();
+        while (name.length() < 300) {
+            name.append("订单-😀-");
+        }
+        span.name(name.toString());
+        span.tag("sql", name.toString() + name);
+
+        Span decoded = SpanBytesDecoder.PROTO3.decodeOne(SpanEncoder.PROTO3.encode(span));
+        assertEquals(ZipkinSpans.convert(span), decoded);
+    }
+
+    @Test
+    public void allEncodingsDecodeToTheSameSpan() {
+        MutableSpan first = span();
+        MutableSpan second = new MutableSpan(TraceContext.newBuilder().traceId(1L).spanId(2L).build(), null);
+        second.name("second");
+        second.startTimestamp(1L);
+        List<Span> expected = Arrays.asList(ZipkinSpans.convert(first), ZipkinSpans.convert(second));
+
+        for (SpanEncoder encoder : SpanEncoder.values()) {
+            List<byte[]> encoded = Arrays.asList(encoder.encode(first), encoder.encode(second));
+            byte[] message = BytesMessageEncoder.forEncoding(encoder.encoding()).encode(encoded);
+            assertEquals(encoder.name(), message.length, encoder.encoding().listSizeInBytes(encoded));
+            assertEquals(encoder.name(), expected(encoder, expected), decoder(encoder).decodeList(message));
+        }
+    }
+
+    @Test
+    public void bufferedEncodingMatchesArrayEncoding() {
+        MutableSpan span = span();
+        for (SpanEncoder encoder : SpanEncoder.values()) {
+            SpanBuffer buffer = SpanBuffer.get();
+            encoder.encode(span, buffer);
+            assertArrayEquals(encoder.name(), encoder.encode(span), buffer.toByteArray());
+        }
+    }
+
+    @Test
+    public void errorIsTaggedUnlessAlreadyPresent() {
+        MutableSpan span = span();
+        span.error(new IllegalStateException("库存不足"));
+        assertEquals("库存不足", SpanBytesDecoder.PROTO3.decodeOne(SpanEncoder.PROTO3.encode(span)).tags().get("error"));
+
+        span.tag("error", "custom");
+        assertEquals("custom", SpanBytesDecoder.PROTO3.decodeOne(SpanEncoder.PROTO3.encode(span)).tags().get("error"));
+    }
+
+    @Test
+    public void proto3IsSmallerThanJson() {
+        MutableSpan span = span();
+        assertTrue(SpanEncoder.PROTO3.encode(span).length < SpanEncoder.JSON.encode(span).length * 3 / 4);
+    }
+
+    /**
+     * thrift为v1模型，不保留shared等字段，与zipkin2自带的thrift编码结果比较
+     */
+    private static List<Span> expected(SpanEncoder encoder, List<Span> spans) {
+        if (encoder != SpanEncoder.THRIFT) {
+            return spans;
+        }
+        return SpanBytesDecoder.THRIFT.decodeList(SpanBytesEncoder.THRIFT.encodeList(spans));
+    }
+
+    private static SpanBytesDecoder decoder(SpanEncoder encoder) {
+        switch (encoder) {
+            case PROTO3:
+                return SpanBytesDecoder.PROTO3;
+            case THRIFT:
+                return SpanBytesDecoder.THRIFT;
+            default:
+                return SpanBytesDecoder.JSON_V2;
+        }
+    }
+
+    /**
+     * 包含所有字段的span，tag按key排序以便与zipkin2编码结果逐字节比较
+     */
+    static MutableSpan span() {
+        TraceContext context = TraceContext.newBuilder()
+                .traceIdHigh(0x463ac35c9f6413adL)
+                .traceId(0x48485a3953bb6124L)
+                .parentId(0x6b221d5bc9e6496cL)
+                .spanId(0x5b4185666d50f68bL)
+                .shared(true)
+                .debug(true)
+                .build();
+        MutableSpan span = new MutableSpan(context, null);
+        span.name("send-order");
+        span.kind(brave.Span.Kind.PRODUCER);
+        span.startTimestamp(1472470996199000L);
+        span.finishTimestamp(1472470996406000L);
+        span.localServiceName("order-service");
+        span.localIp("192.168.99.101");
+        span.localPort(9000);
+        span.remoteServiceName("rocketmq");
+        span.remoteIpAndPort("2001:db8::c001", 9876);
+        span.annotate(1472470996238000L, "ws");
+        span.annotate(1472470996403000L, "wr");
+        span.tag("mq.queue.id", "3");
+        span.tag("mq.topic", "order-event");
+        return span;
+    }
+
+}
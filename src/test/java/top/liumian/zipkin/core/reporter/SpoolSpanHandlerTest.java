@@ -0,0 +1,198 @@
+package top.liumian.zipkin.core.reporter;
+
+import brave.Tracing;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.BytesMessageEncoder;
+import zipkin2.codec.SpanBytesDecoder;
+
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author liumian  2022/9/24 16:00
+ */
+public class SpoolSpanHandlerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keepsSpansWhileCollectorIsDown() throws Exception {
+        RecordingSender sender = new RecordingSender(100);
+        sender.failing = true;
+        try (SpoolSpanHandler handler = handler(sender, folder.newFile().toPath(), 4096)) {
+            for (int i = 0; i < 10; i++) {
+                handler.offer(span(i, 30));
+            }
+            handler.flush();
+            assertEquals(10, handler.spooledSpans());
+            assertTrue(handler.failedMessages() > 0);
+
+            sender.failing = false;
+            handler.flush();
+            assertEquals(0, handler.spooledSpans());
+            assertEquals(10, sender.sentSpans());
+            assertEquals(0, handler.droppedSpans());
+            for (List<byte[]> message : sender.messages) {
+                assertTrue(sender.messageSizeInBytes(message) <= 100);
+            }
+            assertEquals(ids(0, 10), sentIds(sender));
+        }
+    }
+
+    @Test
+    public void spansSurviveRestart() throws Exception {
+        Path file = folder.newFile().toPath();
+        RecordingSender sender = new RecordingSender(1024);
+        sender.failing = true;
+        try (SpoolSpanHandler handler = handler(sender, file, 4096)) {
+            for (int i = 0; i < 5; i++) {
+                handler.offer(span(i, 20));
+            }
+        }
+
+        sender.failing = false;
+        try (SpoolSpanHandler handler = handler(sender, file, 4096)) {
+            assertEquals(5, handler.spooledSpans());
+            handler.flush();
+            assertEquals(ids(0, 5), sentIds(sender));
+        }
+    }
+
+    @Test
+    public void rejectsSpoolFileInUse() throws Exception {
+        Path file = folder.newFile().toPath();
+        RecordingSender sender = new RecordingSender(1024);
+        try (SpoolSpanHandler handler = handler(sender, file, 4096)) {
+            handler(sender, file, 4096).close();
+            fail("同一spool文件不能被打开两次");
+        } catch (UncheckedIOException e) {
+            assertTrue(e.getCause().getMessage().contains("正在被其他进程使用"));
+        }
+        handler(sender, file, 4096).close();
+    }
+
+    @Test
+    public void evictsOldestSpansWhenFull() throws Exception {
+        RecordingSender sender = new RecordingSender(1024);
+        try (SpoolSpanHandler handler = handler(sender, folder.newFile().toPath(), MappedSpanSpool.HEADER_SIZE + 240)) {
+            for (int i = 0; i < 20; i++) {
+                handler.offer(span(i, 20));
+            }
+            assertEquals(10, handler.spooledSpans());
+            assertEquals(10, handler.droppedSpans());
+
+            handler.flush();
+            assertEquals(ids(10, 20), sentIds(sender));
+        }
+    }
+
+    @Test
+    public void wrapsAroundTheEndOfTheFile() throws Exception {
+        RecordingSender sender = new RecordingSender(1024);
+        try (SpoolSpanHandler handler = handler(sender, folder.newFile().toPath(), MappedSpanSpool.HEADER_SIZE + 100)) {
+            int id = 0;
+            for (int round = 0; round < 50; round++) {
+                handler.offer(span(id++, 10 + round % 17));
+                handler.offer(span(id++, 10 + round % 13));
+                handler.flush();
+            }
+            assertEquals(0, handler.droppedSpans());
+            assertEquals(ids(0, id), sentIds(sender));
+        }
+    }
+
+    @Test
+    public void encodesFinishedSpans() throws Exception {
+        RecordingSender sender = new RecordingSender(1024);
+        try (SpoolSpanHandler handler = handler(sender, folder.newFile().toPath(), 4096);
+             Tracing tracing = Tracing.newBuilder().localServiceName("spool").addSpanHandler(handler).build()) {
+            tracing.tracer().nextSpan().name("first").start().finish();
+            tracing.tracer().nextSpan().name("second").tag("key", "value").start().finish();
+            handler.flush();
+
+            List<Span> spans = SpanBytesDecoder.JSON_V2.decodeList(BytesMessageEncoder.JSON.encode(sender.messages.get(0)));
+            assertEquals(2, spans.size());
+            assertEquals("first", spans.get(0).name());
+            assertEquals("value", spans.get(1).tags().get("key"));
+        }
+    }
+
+    @Test
+    public void spoolsProto3Spans() throws Exception {
+        RecordingSender sender = new RecordingSender(1024, Encoding.PROTO3);
+        try (SpoolSpanHandler handler = handler(sender, folder.newFile().toPath(), 4096);
+             Tracing tracing = Tracing.newBuilder().localServiceName("spool").addSpanHandler(handler).build()) {
+            for (int i = 0; i < 3; i++) {
+                tracing.tracer().nextSpan().name("span-" + i).start().finish();
+            }
+            handler.flush();
+
+            List<Span> spans = SpanBytesDecoder.PROTO3.decodeList(BytesMessageEncoder.PROTO3.encode(sender.messages.get(0)));
+            assertEquals(3, spans.size());
+            assertEquals("span-2", spans.get(2).name());
+            assertEquals("spool", spans.get(0).localServiceName());
+        }
+    }
+
+    @Test
+    public void rejectsSpansLargerThanAMessage() throws Exception {
+        RecordingSender sender = new RecordingSender(50);
+        try (SpoolSpanHandler handler = handler(sender, folder.newFile().toPath(), 4096)) {
+            assertFalse(handler.offer(span(0, 60)));
+            assertEquals(1, handler.droppedSpans());
+            assertEquals(0, handler.spooledSpans());
+        }
+    }
+
+    private static SpoolSpanHandler handler(RecordingSender sender, Path file, int maxBytes) {
+        return SpoolSpanHandler.newBuilder(sender, file)
+                .maxBytes(maxBytes)
+                .drainInterval(1, TimeUnit.HOURS)
+                .build();
+    }
+
+    /**
+     * 以编号开头、用空格补齐到指定长度的span
+     */
+    private static byte[] span(int id, int length) {
+        StringBuilder span = new StringBuilder().append(id).append(':');
+        while (span.length() < length) {
+            span.append(' ');
+        }
+        return span.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<Integer> ids(int from, int to) {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            ids.add(i);
+        }
+        return ids;
+    }
+
+    private static List<Integer> sentIds(RecordingSender sender) {
+        List<Integer> ids = new ArrayList<>();
+        for (List<byte[]> message : sender.messages) {
+            for (byte[] span : message) {
+                String value = new String(span, StandardCharsets.UTF_8);
+                ids.add(Integer.parseInt(value.substring(0, value.indexOf(':'))));
+            }
+        }
+        return ids;
+    }
+
+}
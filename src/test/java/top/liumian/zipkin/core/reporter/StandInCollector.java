@@ -0,0 +1,127 @@
+package top.liumian.zipkin.core.reporter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesDecoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 本地代替zipkin的collector，按 Content-Type 和 Content-Encoding 解压、解码请求中的span；
+ * 与zipkin服务端一致，thrift只在v1接口接收，v1接口也只接收thrift
+ *
+ * @author liumian  2022/10/12 17:30
+ */
+public class StandInCollector implements Closeable {
+
+    final List<Span> spans = new CopyOnWriteArrayList<>();
+
+    final List<Request> requests = new CopyOnWriteArrayList<>();
+
+    volatile int status = 202;
+
+    private static final String THRIFT = "application/x-thrift";
+
+    private final HttpServer server;
+
+    public StandInCollector() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/api/v1/spans", exchange -> handle(exchange, true));
+        server.createContext("/api/v2/spans", exchange -> handle(exchange, false));
+        server.start();
+    }
+
+    String endpoint() {
+        return endpoint(Encoding.JSON);
+    }
+
+    String endpoint(Encoding encoding) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + HttpSpanSender.spansPath(encoding);
+    }
+
+    private void handle(HttpExchange exchange, boolean v1) throws IOException {
+        try {
+            byte[] body = readFully(exchange.getRequestBody());
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            requests.add(new Request(contentType, contentEncoding, body.length));
+            if (v1 != THRIFT.equals(contentType)) {
+                exchange.sendResponseHeaders(415, -1);
+                return;
+            }
+            if (status / 100 == 2) {
+                spans.addAll(decoder(contentType).decodeList(compression(contentEncoding).decompress(body)));
+            }
+            exchange.sendResponseHeaders(status, -1);
+        } catch (RuntimeException e) {
+            exchange.sendResponseHeaders(400, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static SpanBytesDecoder decoder(String contentType) {
+        switch (contentType) {
+            case "application/x-protobuf":
+                return SpanBytesDecoder.PROTO3;
+            case THRIFT:
+                return SpanBytesDecoder.THRIFT;
+            case "application/json":
+                return SpanBytesDecoder.JSON_V2;
+            default:
+                throw new IllegalArgumentException("unsupported Content-Type: " + contentType);
+        }
+    }
+
+    private static Compression compression(String contentEncoding) {
+        if (contentEncoding == null) {
+            return Compression.NONE;
+        }
+        for (Compression compression : Compression.values()) {
+            if (contentEncoding.equals(compression.contentEncoding())) {
+                return compression;
+            }
+        }
+        throw new IllegalArgumentException("unsupported Content-Encoding: " + contentEncoding);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    static final class Request {
+
+        final String contentType;
+
+        final String contentEncoding;
+
+        final int bodyBytes;
+
+        Request(String contentType, String contentEncoding, int bodyBytes) {
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.bodyBytes = bodyBytes;
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+package top.liumian.zipkin.core.reporter;
+
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author liumian  2022/10/3 14:00
+ */
+public class TailSamplingSpanHandlerTest {
+
+    private final List<MutableSpan> spans = new CopyOnWriteArrayList<>();
+
+    private final SpanHandler recording = new SpanHandler() {
+        @Override
+        public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+            if (Boolean.TRUE.equals(context.sampled())) {
+                spans.add(span);
+            }
+            return true;
+        }
+    };
+
+    private final AtomicLong nanoTime = new AtomicLong();
+
+    private Tracing tracing;
+
+    private TailSamplingSpanHandler handler;
+
+    @After
+    public void closeTracing() {
+        tracing.close();
+    }
+
+    @Test
+    public void successfulTraceIsDroppedWhenLocalRootFinishes() {
+        tracing(TailSamplingSpanHandler.newBuilder(recording));
+        Tracer tracer = tracing.tracer();
+        Span root = tracer.newTrace().name("root").start();
+        tracer.newChild(root.context()).name("child").start().finish();
+        assertEquals(1, handler.bufferedSpans());
+
+        root.finish();
+
+        assertTrue(spans.isEmpty());
+        assertEquals(0, handler.bufferedSpans());
+        assertEquals(0, handler.bufferedBytes());
+        assertEquals(2, handler.droppedSpans());
+    }
+
+    @Test
+    public void errorExportsTheWholeTraceEvenWhenHeadSamplingSaidNo() {
+        tracing(TailSamplingSpanHandler.newBuilder(recording));
+        Tracer tracer = tracing.tracer();
+        Span root = tracer.newTrace().name("root").start();
+        tracer.newChild(root.context()).name("before").start().finish();
+        tracer.newChild(root.context()).name("failed").start().error(new IllegalStateException("consume failed")).finish();
+        assertEquals(2, spans.size());
+
+        tracer.newChild(root.context()).name("after").start().finish();
+        root.finish();
+
+        assertEquals(4, spans.size());
+        assertEquals(1, handler.keptTraces());
+        assertEquals(0, handler.bufferedSpans());
+    }
+
+    @Test
+    public void slowSpanExportsTheTrace() {
+        tracing(TailSamplingSpanHandler.newBuilder(recording).latencyThreshold("MQ/CONSUME", 100, TimeUnit.MILLISECONDS));
+        Tracer tracer = tracing.tracer();
+
+        Span fast = tracer.newTrace().name("MQ/CONSUME").start(1_000_000L);
+        fast.finish(1_000_000L + TimeUnit.MILLISECONDS.toMicros(50));
+        Span other = tracer.newTrace().name("query").start(1_000_000L);
+        other.finish(1_000_000L + TimeUnit.SECONDS.toMicros(5));
+        assertTrue(spans.isEmpty());
+
+        Span slow = tracer.newTrace().name("MQ/CONSUME").start(1_000_000L);
+        slow.finish(1_000_000L + TimeUnit.MILLISECONDS.toMicros(150));
+        assertEquals(1, spans.size());
+        assertEquals("MQ/CONSUME", spans.get(0).name());
+    }
+
+    @Test
+    public void undecidedTracesExpireAfterDecisionWait() {
+        tracing(TailSamplingSpanHandler.newBuilder(recording).decisionWait(1, TimeUnit.SECONDS));
+        Tracer tracer = tracing.tracer();
+        Span root = tracer.newTrace().start();
+        tracer.newChild(root.context()).start().finish();
+        assertEquals(1, handler.bufferedSpans());
+
+        nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        root.error(new IllegalStateException()).finish();
+
+        assertEquals("超时的span已被丢弃，只导出根span", 1, spans.size());
+    }
+
+    @Test
+    public void bufferedBytesStayUnderTheCap() {
+        long maxBytes = 64 * 1024;
+        tracing(TailSamplingSpanHandler.newBuilder(recording).maxBufferedBytes(maxBytes));
+        Tracer tracer = tracing.tracer();
+        for (int i = 0; i < 10_000; i++) {
+            Span root = tracer.newTrace().start();
+            tracer.newChild(root.context()).name("child").tag("key", "value").start().finish();
+            assertTrue(handler.bufferedBytes() <= maxBytes);
+        }
+        assertTrue(handler.droppedSpans() > 0);
+        assertTrue(handler.bufferedSpans() > 0);
+    }
+
+    @Test
+    public void evictionKeepsTheIndexConsistent() {
+        tracing(TailSamplingSpanHandler.newBuilder(recording).maxTraces(64));
+        Tracer tracer = tracing.tracer();
+        List<Span> roots = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            Span root = tracer.newTrace().start();
+            tracer.newChild(root.context()).start().finish();
+            tracer.newChild(root.context()).start().finish();
+            roots.add(root);
+        }
+        // 只有最近的链路还在缓冲区中，旧链路被淘汰后不会导出其他链路的span
+        for (Span root : roots) {
+            spans.clear();
+            root.error(new IllegalStateException()).finish();
+            assertTrue(spans.size() == 1 || spans.size() == 3);
+            for (MutableSpan span : spans) {
+                assertEquals(root.context().traceIdString(), span.traceId());
+            }
+        }
+        assertEquals(0, handler.bufferedSpans());
+    }
+
+    private void tracing(TailSamplingSpanHandler.Builder builder) {
+        handler = builder.nanoTime(nanoTime::get).build();
+        tracing = Tracing.newBuilder().localServiceName("tracingTest")
+                .sampler(Sampler.NEVER_SAMPLE)
+                .alwaysSampleLocal()
+                .addSpanHandler(handler)
+                .build();
+    }
+
+}
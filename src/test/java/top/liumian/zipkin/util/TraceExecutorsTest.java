@@ -0,0 +1,117 @@
+package top.liumian.zipkin.util;
+
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * @author liumian  2022/10/4 14:00
+ */
+public class TraceExecutorsTest {
+
+    private final List<MutableSpan> spans = new CopyOnWriteArrayList<>();
+
+    private final Tracing tracing = Tracing.newBuilder().localServiceName("tracingTest").addSpanHandler(new SpanHandler() {
+        @Override
+        public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+            spans.add(span);
+            return true;
+        }
+    }).build();
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(2);
+
+    @After
+    public void close() {
+        pool.shutdownNow();
+        tracing.close();
+    }
+
+    @Test
+    public void executorServiceRunsTasksAsChildSpans() throws Exception {
+        ExecutorService executor = TraceExecutors.executorService(tracing, pool);
+        Span parent = tracing.tracer().newTrace().start();
+        try (Tracer.SpanInScope ws = tracing.tracer().withSpanInScope(parent)) {
+            executor.submit(() -> TraceUtil.newChildTrace(tracing, "async", span -> span)).get();
+        }
+        parent.finish();
+
+        assertEquals(2, spans.size());
+        assertEquals(parent.context().spanIdString(), spans.get(0).parentId());
+        assertNull("线程池线程中不应残留链路上下文", pool.submit(() -> tracing.currentTraceContext().get()).get());
+    }
+
+    @Test
+    public void contextExecutorKeepsTheContextAcrossCompletableFutureStages() throws Exception {
+        Span parent = tracing.tracer().newTrace().start();
+        Executor executor;
+        try (Tracer.SpanInScope ws = tracing.tracer().withSpanInScope(parent)) {
+            executor = TraceExecutors.contextExecutor(tracing, pool);
+        }
+        // 在没有链路上下文的线程中继续提交后续阶段
+        TraceContext context = CompletableFuture.supplyAsync(() -> tracing.currentTraceContext().get(), executor)
+                .thenApplyAsync(upstream -> tracing.currentTraceContext().get(), executor)
+                .get(5, TimeUnit.SECONDS);
+
+        assertEquals(parent.context(), context);
+    }
+
+    @Test
+    public void supplyAsyncAndStageWrappers() throws Exception {
+        Span parent = tracing.tracer().newTrace().start();
+        CompletableFuture<TraceContext> future;
+        try (Tracer.SpanInScope ws = tracing.tracer().withSpanInScope(parent)) {
+            future = TraceExecutors.supplyAsync(tracing, () -> tracing.currentTraceContext().get(), pool)
+                    .thenApply(TraceExecutors.wrapFunction(tracing, upstream -> tracing.currentTraceContext().get()));
+        }
+        assertEquals(parent.context(), future.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void threadPerTaskFactoryPassesTheCreatingContext() throws Exception {
+        TraceContext[] seen = new TraceContext[1];
+        Span parent = tracing.tracer().newTrace().start();
+        Thread thread;
+        try (Tracer.SpanInScope ws = tracing.tracer().withSpanInScope(parent)) {
+            thread = TraceExecutors.threadPerTaskFactory(tracing, Thread::new).newThread(() -> seen[0] = tracing.currentTraceContext().get());
+        }
+        thread.start();
+        thread.join();
+        assertEquals(parent.context(), seen[0]);
+    }
+
+    @Test
+    public void virtualThreadExecutor() throws Exception {
+        ExecutorService executor;
+        try {
+            executor = TraceExecutors.virtualThreadExecutor(tracing);
+        } catch (UnsupportedOperationException e) {
+            assumeTrue("当前JDK不支持虚拟线程", false);
+            return;
+        }
+        Span parent = tracing.tracer().newTrace().start();
+        try (Tracer.SpanInScope ws = tracing.tracer().withSpanInScope(parent)) {
+            assertEquals(parent.context(), executor.submit(() -> tracing.currentTraceContext().get()).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
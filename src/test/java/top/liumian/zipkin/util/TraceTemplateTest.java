@@ -0,0 +1,165 @@
+package top.liumian.zipkin.util;
+
+import brave.Span;
+import brave.Tracing;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * @author liumian  2022/9/25 11:00
+ */
+public class TraceTemplateTest {
+
+    private static final int ITERATIONS = 20_000;
+
+    private final List<MutableSpan> spans = new CopyOnWriteArrayList<>();
+
+    private volatile boolean recording = true;
+
+    private Tracing tracing;
+
+    @Before
+    public void initTracing() {
+        tracing = Tracing.newBuilder().localServiceName("tracingTest").addSpanHandler(new SpanHandler() {
+            @Override
+            public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+                if (recording) {
+                    spans.add(span);
+                }
+                return true;
+            }
+        }).build();
+    }
+
+    @After
+    public void closeTracing() {
+        tracing.close();
+    }
+
+    @Test
+    public void recordsNameAnnotationsAndThread() throws Throwable {
+        TraceTemplate template = TraceTemplate.newBuilder(tracing, "queryOrder").build();
+        String result = template.newTrace(span -> "order");
+
+        assertEquals("order", result);
+        MutableSpan span = spans.get(0);
+        assertEquals("queryOrder", span.name());
+        assertEquals("queryOrder.start", span.annotationValueAt(0));
+        assertEquals("queryOrder.finish", span.annotationValueAt(1));
+        assertEquals(Thread.currentThread().getName(), span.tag("thread"));
+    }
+
+    @Test
+    public void extrasCanBeDisabled() throws Throwable {
+        TraceTemplate template = TraceTemplate.newBuilder(tracing, "queryOrder").annotate(false).tagThread(false).build();
+        template.newTrace(span -> null);
+
+        MutableSpan span = spans.get(0);
+        assertEquals(0, span.annotationCount());
+        assertNull(span.tag("thread"));
+    }
+
+    @Test
+    public void childTraceJoinsCurrentTrace() throws Throwable {
+        TraceTemplate parent = TraceTemplate.newBuilder(tracing, "parent").build();
+        TraceTemplate child = TraceTemplate.newBuilder(tracing, "child").build();
+        parent.newTrace(span -> child.newChildTrace(childSpan -> null));
+
+        assertEquals(2, spans.size());
+        assertEquals(spans.get(1).id(), spans.get(0).parentId());
+    }
+
+    @Test
+    public void checkedExceptionsAreRecordedAndRethrown() throws Throwable {
+        TraceTemplate template = TraceTemplate.newBuilder(tracing, "readFile").build();
+        IOException error = new IOException("disk full");
+        try {
+            template.newTrace(span -> {
+                throw error;
+            });
+            fail();
+        } catch (IOException e) {
+            assertSame(error, e);
+        }
+        assertSame(error, spans.get(0).error());
+    }
+
+    @Test
+    public void injectAndExtractShareTrace() throws Throwable {
+        TraceContext.Injector<Map<String, String>> injector = tracing.propagation().injector((Propagation.Setter<Map<String, String>, String>) Map::put);
+        TraceContext.Extractor<Map<String, String>> extractor = tracing.propagation().extractor((Propagation.Getter<Map<String, String>, String>) Map::get);
+        TraceTemplate send = TraceTemplate.newBuilder(tracing, "send").kind(Span.Kind.PRODUCER).build();
+        TraceTemplate consume = TraceTemplate.newBuilder(tracing, "consume").kind(Span.Kind.CONSUMER).build();
+
+        Map<String, String> carrier = new HashMap<>();
+        send.inject(injector, carrier, span -> null);
+        consume.extract(extractor, carrier, span -> null);
+
+        assertEquals(Span.Kind.PRODUCER, spans.get(0).kind());
+        assertEquals(Span.Kind.CONSUMER, spans.get(1).kind());
+        assertEquals(spans.get(0).traceId(), spans.get(1).traceId());
+        assertEquals(spans.get(0).id(), spans.get(1).parentId());
+    }
+
+    @Test
+    public void allocatesLessThanTraceUtil() throws Throwable {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        recording = false;
+        TraceTemplate template = TraceTemplate.newBuilder(tracing, "queryOrder").tagThread(false).build();
+
+        // 预热，排除JIT与类加载带来的干扰
+        withTemplate(template, ITERATIONS);
+        withTraceUtil(ITERATIONS);
+
+        long utilBytes = allocatedBytes(threadMXBean, () -> withTraceUtil(ITERATIONS));
+        long templateBytes = allocatedBytes(threadMXBean, () -> withTemplate(template, ITERATIONS));
+
+        System.out.printf("bytes/op TraceUtil: %d, TraceTemplate: %d%n", utilBytes / ITERATIONS, templateBytes / ITERATIONS);
+        assertTrue("模板不应再拼接标记和线程名", templateBytes < utilBytes);
+    }
+
+    private static void withTemplate(TraceTemplate template, int iterations) throws Throwable {
+        for (int i = 0; i < iterations; i++) {
+            template.newTrace(span -> null);
+        }
+    }
+
+    private void withTraceUtil(int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            TraceUtil.newTrace(tracing, "queryOrder", span -> null);
+        }
+    }
+
+    private static long allocatedBytes(com.sun.management.ThreadMXBean threadMXBean, ThrowingRunnable runnable) throws Throwable {
+        long threadId = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        runnable.run();
+        return threadMXBean.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    private interface ThrowingRunnable {
+        void run() throws Throwable;
+    }
+
+}